@@ -0,0 +1,36 @@
+@echo off
+rem Thin client for a Track Transfer server started with 'TT serve'. Usage is
+rem the same as TT (e.g. 'TTC annotate -set QA -dir C:\delivery3'), but the
+rem command is sent to the running server instead of starting Java. Only the
+rem newDelivery, annotate, report, summary, maintain, and shutdown commands are
+rem served. Use absolute file names. Set TT_TOKEN to the token printed when the
+rem server started, and TT_PORT if the server is not on port 8765.
+setlocal EnableDelayedExpansion
+if "%TT_PORT%"=="" set TT_PORT=8765
+if "%TT_TOKEN%"=="" (
+	echo Set TT_TOKEN to the token printed when the server started
+	exit /b 1
+)
+set op=%~1
+shift
+set body=
+set out=
+:loop
+if "%~1"=="" goto run
+if /i "%~1"=="-o" set out=-o "%~2"
+set "a=%~1"
+set "a=!a:\=\\!"
+if defined body set "body=!body!,"
+set "body=!body!"!a!""
+shift
+goto loop
+:run
+set req=%TEMP%\ttc%RANDOM%.json
+>"%req%" echo {"args":[!body!]}
+if /i "%op%"=="summary" (
+	curl -s -H "X-TrackTransfer-Token: %TT_TOKEN%" http://127.0.0.1:%TT_PORT%/summary
+) else (
+	curl -s -X POST %out% -H "X-TrackTransfer-Token: %TT_TOKEN%" -H "Content-Type: application/json" --data-binary "@%req%" http://127.0.0.1:%TT_PORT%/%op%
+)
+del "%req%"
+endlocal
@@ -7,15 +7,20 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.DirectoryIteratorException;
 import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
@@ -53,6 +58,31 @@ import java.util.regex.PatternSyntaxException;
  * state. You can't, however, move directly from the Custody-accepted state
  * to the Abandoned state.
  *
+ * The Items are annotated in transactions, each of which annotates a group of
+ * Items (by default 1000) and records how far the run has got. If the run
+ * fails, the group being annotated is rolled back, and the run can be resumed
+ * (with -resume) after the last Item committed. The Item is found again by
+ * name, not by position: Items selected with -select or -dir -indexed are
+ * selected in name order, so the run resumes with the first Item named after
+ * it, even if Items have since been added; Items read from a file are skipped
+ * until the line naming it. A run walking a directory (-dir without -indexed)
+ * cannot be resumed, as the order the directory is walked in may change.
+ * Alternatively, the
+ * whole run can be made a single transaction (with -atomic), so that either
+ * all of the Items are annotated or none are.
+ *
+ * If the transfer is sharded (see Shards), each shard is annotated by its own
+ * thread and connection, considering only the Items that belong to it. The
+ * transactions (and -resume) apply to each shard separately. If the run is
+ * atomic, each shard's transaction is kept open until every shard has
+ * annotated its Items; then all are committed, or if any shard failed, all
+ * are rolled back.
+ *
+ * If asked, the annotation is only planned: the Items are selected as usual,
+ * and the changes that would be made to them are counted and the run time
+ * estimated from the throughput of recent annotations (see TblRunMetric).
+ * Nothing is written to the database.
+ *
  * @author Andrew Waugh
  */
 public class CmdAnnotate extends Command {
@@ -65,11 +95,15 @@ public class CmdAnnotate extends Command {
     private int eventKey1;      // event matching desc1 (this will only be populated when an item that needs it is encountered)
     private String desc2;       // description of the event if couldn't change from Custody-accepted to Abandoned
     private int eventKey2;      // event matching desc2 (this will only be populated when an Item that needs it is encountered)
+    private String template1;   // template of desc1, with the user's description as its parameter
+    private String template2;   // template of desc2, with the user's description as its parameter
     private final List<Keyword> keywords; // keywords to be changed in the selected Items
     private String stateChange; // stateChange of Items 'X'=unchanged, 'P'=to processing, 'A'=to abandoned, 'C'=to custody accepted
     
     // variables specifying the Items
     private Path rootDir;       // root directory containing the objects being annotated (if items identified by a directory)
+    private boolean indexed;    // true if the items in rootDir are found from the instances in the database, not by looking in the directory
+    private NameSelector selection; // selects the items by name (if items identified by a selection)
     private Path inputFile;     // inputFile to process for Item names & condition (if items identified by a inputFile)
     private int skip;           // number of lines in the header to skip
     private List<MatchPattern> patterns; // patterns to match agains C/TSV files
@@ -78,11 +112,41 @@ public class CmdAnnotate extends Command {
     private boolean forceTSV;   // true if forcing the file to be a TSV file
     private boolean csv;        // true if file is being treated as a CSV file
     private int count;          // number of items annotated
-    private String usage = "[-db <database>] [-desc <text>] [-set <keyword>] [-remove <keyword>] [-custody-accepted] [-abandoned] [-dir <directory>] [[-in] file [-skip <count>] [-csv] [-tsv] [-pattern <pattern>] [itemcol <column>]] [-v] [-d] [-help]";
+
+    // variables controlling the transactions
+    private int commitEvery;    // number of Items selected that are annotated in each transaction
+    private boolean atomic;     // true if all the Items are annotated in one transaction
+    private boolean resume;     // true if resuming a run that failed part way through
+    private String runKey;      // identifies this run in the Annotation Progress table
+    private String estimate;    // estimated run time (if only planning)
+    private int position;       // number of Items selected so far in this run
+    private int numSkipped;     // number of Items selected that were annotated by a previous attempt at this run
+    private String resumeAfter; // last Item committed by a previous attempt at this run, until it is passed (null if none)
+    private String lastSelected; // the last Item selected, in the order Items are selected
+    private final List<String> pending; // Items selected, but not yet annotated
+
+    // variables counting the planned changes (if only planning)
+    private boolean plan;       // true if only counting what the annotation would do
+    private int numMissing;     // number of Items selected that are not in the database
+    private int numStateChanges; // number of Items that would change state
+    private int numStateBlocked; // number of Items that could not change from Custody-accepted to Abandoned
+    private int numLinksAdded;  // number of keywords that would be added to Items
+    private int numLinksRemoved; // number of keywords that would be removed from Items
+    private int shard;          // shard this command annotates (-1 if the command as invoked)
+    private int shards;         // number of shards in the transfer
+    private AtomicShards together; // decides if the shards of an atomic run commit (null if not sharded, or not atomic)
+    private boolean reported;   // true if this shard has told the others it has finished
+    private final TblItem.Row item = new TblItem.Row(); // item being annotated (reused for each item)
+    private final static int DEFAULT_COMMIT_EVERY = 1000;
+    private final static int MAX_RETRIES = 3; // times a group is retried after conflicting with another command
+    private String usage = "[-db <database>] [-desc <text>] [-set <keyword>] [-remove <keyword>] [-custody-accepted] [-abandoned] [-dir <directory> [-indexed]] [-select <glob|regex:expression>] [[-in] file [-skip <count>] [-csv] [-tsv] [-pattern <pattern>] [itemcol <column>]] [-commit-every <count>] [-atomic] [-resume] [-plan] [-v] [-d] [-help]";
 
     public CmdAnnotate() throws AppFatal {
         super();
         keywords = new ArrayList<>();
+        pending = new ArrayList<>();
+        shard = -1;
+        shards = 1;
     }
 
     /**
@@ -108,6 +172,33 @@ public class CmdAnnotate extends Command {
     public void annotateItemsByDirectory(
             String database, Path rootDir, String description, List<String> keywordsToAdd, List<String> keywordsToRemove, boolean veoOnly)
             throws AppFatal, AppError, SQLException {
+        annotateItemsByDirectory(database, rootDir, description, keywordsToAdd, keywordsToRemove, veoOnly, false);
+    }
+
+    /**
+     * Annotate Items selected by being in a directory (or the tree under the
+     * directory). If indexed is true, the Items are those of the instances
+     * recorded in the database as being in the tree, and the directory need
+     * not be present (e.g. if it is on a share that is no longer mounted).
+     * Otherwise, the Items are the files now in the tree.
+     *
+     * Do not call this method directly, use the wrapper in the TrackTransfer
+     * class.
+     *
+     * @param database the string representing the database
+     * @param rootDir the root of the tree of items to be annotated
+     * @param description a description of this delivery (e.g. an ID)
+     * @param keywordsToAdd list of keywords to add to selected Items
+     * @param keywordsToRemove list of keywords to removed from selected Items
+     * @param veoOnly true if only files ending in .veo or .veo.zip are to be processed
+     * @param indexed true if the Items are found from the database rather than the directory
+     * @throws AppFatal thrown if TrackTransfer had an internal error
+     * @throws AppError thrown if the calling program did something wrong
+     * @throws SQLException SQL problem occurred
+     */
+    public void annotateItemsByDirectory(
+            String database, Path rootDir, String description, List<String> keywordsToAdd, List<String> keywordsToRemove, boolean veoOnly, boolean indexed)
+            throws AppFatal, AppError, SQLException {
         int i;
 
         assert rootDir != null;
@@ -119,10 +210,15 @@ public class CmdAnnotate extends Command {
         stateChange = "X";
         eventKey1 = 0;
         eventKey2 = 0;
+        commitEvery = DEFAULT_COMMIT_EVERY;
+        atomic = false;
+        resume = false;
+        plan = false;
 
         this.database = database;
         this.desc = description;
         this.rootDir = rootDir;
+        this.indexed = indexed;
         this.veo = veoOnly;
         for (i = 0; i < keywordsToRemove.size(); i++) {
             removeKeyword(keywordsToRemove.get(i));
@@ -131,12 +227,13 @@ public class CmdAnnotate extends Command {
             setKeyword(keywordsToAdd.get(i));
         }
 
-        // parameters for annotating by file are not set
+        // parameters for annotating by file or selection are not set
         inputFile = null;
         skip = 0;
         patterns = null;
         fileColumn = 0;
         csv = false;
+        selection = null;
 
         // test the user has specified everything & do it.
         testParameters();
@@ -196,6 +293,10 @@ public class CmdAnnotate extends Command {
         stateChange = "X";
         eventKey1 = 0;
         eventKey2 = 0;
+        commitEvery = DEFAULT_COMMIT_EVERY;
+        atomic = false;
+        resume = false;
+        plan = false;
 
         this.database = database;
         this.desc = description;
@@ -216,8 +317,75 @@ public class CmdAnnotate extends Command {
             }
         }
 
-        // parameters for annotating by directory are not set
+        // parameters for annotating by directory or selection are not set
+        rootDir = null;
+        indexed = false;
+        selection = null;
+
+        testParameters();
+        doIt();
+    }
+
+    /**
+     * Annotate the Items whose names match a selection. The selection is a
+     * glob (e.g. 'A123*.veo.zip'), or a regular expression prefixed by
+     * 'regex:' (see NameSelector). The database is optional, if null the
+     * '.mv.db' directory in the current working directory is used. Any of the
+     * description, keywordsToAdd, and keywordsToRemove can be null, but not
+     * all of them.
+     *
+     * Do not call this method directly, use the wrapper in the TrackTransfer
+     * class.
+     *
+     * @param database the string representing the database
+     * @param selection the glob or regular expression selecting the Items
+     * @param description a description of this delivery (e.g. an ID)
+     * @param keywordsToAdd list of keywords to add to selected Items
+     * @param keywordsToRemove list of keywords to removed from selected Items
+     * @throws AppFatal thrown if TrackTransfer had an internal error
+     * @throws AppError thrown if the calling program did something wrong
+     * @throws SQLException SQL problem occurred
+     */
+    public void annotateItemsBySelection(
+            String database, String selection, String description, List<String> keywordsToAdd, List<String> keywordsToRemove)
+            throws AppFatal, AppError, SQLException {
+        int i;
+
+        assert selection != null;
+
+        count = 0;
+        keywords.clear();
+        stateChange = "X";
+        eventKey1 = 0;
+        eventKey2 = 0;
+        commitEvery = DEFAULT_COMMIT_EVERY;
+        atomic = false;
+        resume = false;
+        plan = false;
+
+        this.database = database;
+        this.desc = description;
+        this.selection = NameSelector.parse(selection);
+        this.veo = false;
+        if (keywordsToRemove != null) {
+            for (i = 0; i < keywordsToRemove.size(); i++) {
+                removeKeyword(keywordsToRemove.get(i));
+            }
+        }
+        if (keywordsToAdd != null) {
+            for (i = 0; i < keywordsToAdd.size(); i++) {
+                setKeyword(keywordsToAdd.get(i));
+            }
+        }
+
+        // parameters for annotating by directory or file are not set
         rootDir = null;
+        indexed = false;
+        inputFile = null;
+        skip = 0;
+        patterns = null;
+        fileColumn = 0;
+        csv = false;
 
         testParameters();
         doIt();
@@ -239,6 +407,10 @@ public class CmdAnnotate extends Command {
         stateChange = "X";
         eventKey1 = 0;
         eventKey2 = 0;
+        commitEvery = DEFAULT_COMMIT_EVERY;
+        atomic = false;
+        resume = false;
+        plan = false;
 
         // getting items from a CSV or TSV inputFile
         skip = 0;
@@ -248,6 +420,10 @@ public class CmdAnnotate extends Command {
         patterns = null;
 
         // getting items from a inputFile names in a directory
+        indexed = false;
+
+        // getting items by matching their names
+        selection = null;
         // what does the user want the command to do
         config(args, usage);
 
@@ -258,6 +434,9 @@ public class CmdAnnotate extends Command {
             LOG.info(" Conditional:");
             LOG.info("  If getting the Items from file names in a directory:");
             LOG.info("   -dir <filename>: name of directory holding objects being annotated");
+            LOG.info("   -indexed: find the objects in the directory from the database, rather than by looking in the directory");
+            LOG.info("  If selecting the Items by name:");
+            LOG.info("   -select <glob>: Items whose names match a glob (e.g. 'A123*.veo.zip'), or a regular expression prefixed by 'regex:'");
             LOG.info("  If getting the Items from a TSV or CSV file:");
             LOG.info("   -file <filename>: name of file containing the names of the Items");
             LOG.info("   -itemcol <column>: column containing filename (Item name). First column = 0");
@@ -269,6 +448,10 @@ public class CmdAnnotate extends Command {
             LOG.info("  -custody-accepted: equivalent to '-set Custody-Accepted'");
             LOG.info("  -abandoned: equivalent to '-set Abandoned'");
             LOG.info("  -db <database>: Database name (default based on .mv.db file in current working directory)");
+            LOG.info("  -commit-every <count>: Number of Items annotated in each transaction (default 1000)");
+            LOG.info("  -atomic: annotate all the Items in one transaction; if anything fails, none are annotated");
+            LOG.info("  -resume: continue a run that failed part way through after the last Item committed (not if walking a directory without -indexed)");
+            LOG.info("  -plan: count the changes the annotation would make, and estimate how long it would take, without changing the database");
             LOG.info("");
             LOG.info("  If getting the items from a TSV or CSV file:");
             LOG.info("   -skip <count>: Number of lines at head of file to skip");
@@ -323,6 +506,12 @@ public class CmdAnnotate extends Command {
         if (rootDir != null) {
             LOG.log(Level.INFO, " Getting Item names from file names in a directory");
             LOG.log(Level.INFO, "  Directory of Items being annotated: {0}", rootDir.toString());
+            if (indexed) {
+                LOG.info("  Items are found from the instances recorded in the database");
+            }
+        }
+        if (selection != null) {
+            LOG.log(Level.INFO, " Selecting Items whose names match ''{0}''", selection);
         }
         if (inputFile != null) {
             LOG.log(Level.INFO, " Getting Item names from a TSV/CSV file");
@@ -336,10 +525,36 @@ public class CmdAnnotate extends Command {
             LOG.log(Level.INFO, "  Patterns to match against: {0}", patterns == null ? "Match all lines" : patterns.toString());
             LOG.log(Level.INFO, "  Item name (filename) column: {0}", fileColumn);
         }
+        if (atomic) {
+            LOG.info(" All Items are annotated in one transaction");
+        } else {
+            LOG.log(Level.INFO, " Items annotated in each transaction: {0}", commitEvery);
+        }
+        if (resume) {
+            LOG.info(" Resuming an earlier run");
+        }
+        if (plan) {
+            LOG.info(" Only plan the annotation; nothing will be written to the database");
+        }
         genericStatus();
 
         doIt();
 
+        // report the plan
+        if (plan) {
+            LOG.info("Plan (nothing has been written to the database):");
+            LOG.log(Level.INFO, " Items selected: {0} (not in the database: {1})", new Object[]{position - numSkipped, numMissing});
+            LOG.log(Level.INFO, " Items that would be annotated: {0}", count);
+            LOG.log(Level.INFO, " Items that would change state: {0}", numStateChanges);
+            if (numStateBlocked > 0) {
+                LOG.log(Level.INFO, " Items that could not change from Custody-accepted to Abandoned: {0}", numStateBlocked);
+            }
+            LOG.log(Level.INFO, " Keywords that would be added to Items: {0}", numLinksAdded);
+            LOG.log(Level.INFO, " Keywords that would be removed from Items: {0}", numLinksRemoved);
+            LOG.log(Level.INFO, " Estimated run time: {0}", estimate);
+            return;
+        }
+
         // acknowledge creation
         LOG.log(Level.INFO, " {0} items annotated in ({1}) with event {2} or {3}", new Object[]{count, database, eventKey1, eventKey2});
     }
@@ -389,6 +604,19 @@ public class CmdAnnotate extends Command {
                 i++;
                 j = 2;
                 break;
+            // find the items in the directory from the database
+            case "-indexed":
+                i++;
+                indexed = true;
+                j = 1;
+                break;
+            // select the items whose names match a glob or regular expression
+            case "-select":
+                i++;
+                selection = NameSelector.parse(args[i]);
+                i++;
+                j = 2;
+                break;
             // directory that contains the items in the delivery
             case "-file":
                 i++;
@@ -437,6 +665,35 @@ public class CmdAnnotate extends Command {
                 forceTSV = true;
                 j = 1;
                 break;
+            // number of items to annotate in each transaction
+            case "-commit-every":
+                i++;
+                try {
+                    commitEvery = Integer.parseInt(args[i]);
+                } catch (NumberFormatException nfe) {
+                    throw new AppError("Failed converting commit count to an integer: " + nfe.getMessage());
+                }
+                i++;
+                j = 2;
+                break;
+            // annotate all the items in one transaction
+            case "-atomic":
+                i++;
+                atomic = true;
+                j = 1;
+                break;
+            // resume a run that failed part way through
+            case "-resume":
+                i++;
+                resume = true;
+                j = 1;
+                break;
+            // only plan the annotation
+            case "-plan":
+                i++;
+                plan = true;
+                j = 1;
+                break;
             // otherwise complain
             default:
                 j = 0;
@@ -456,9 +713,20 @@ public class CmdAnnotate extends Command {
             throw new AppError("At least one of '-desc', '-set', or '-remove' must be set ");
         }
         
-        // check one of a root directory or an input file (but not both) is specified
-        if ((rootDir != null && inputFile != null) || (rootDir == null && inputFile == null)) {
-            throw new AppError("Must specify either the directory containing the Items being annotated (-dir) OR a TSV/CSV file containing the Item names (-in)");
+        // check exactly one of a root directory, an input file, or a selection is specified
+        if ((rootDir != null ? 1 : 0) + (inputFile != null ? 1 : 0) + (selection != null ? 1 : 0) != 1) {
+            throw new AppError("Must specify either the directory containing the Items being annotated (-dir) OR a TSV/CSV file containing the Item names (-in) OR a selection of Item names (-select)");
+        }
+
+        // check the transactions make sense
+        if (commitEvery < 1) {
+            throw new AppError("The number of Items annotated in each transaction must be a positive number (-commit-every)");
+        }
+        if (atomic && resume) {
+            throw new AppError("A run annotating all Items in one transaction (-atomic) cannot be resumed (-resume)");
+        }
+        if (resume && rootDir != null && !indexed) {
+            throw new AppError("A run walking a directory (-dir) cannot be resumed (-resume) as the directory may be walked in a different order; use -indexed");
         }
         
         // check specific details if getting Items from a CSV/TSV inputFile
@@ -478,8 +746,10 @@ public class CmdAnnotate extends Command {
             csv = isCSVFile(inputFile, forceCSV, forceTSV);
         }
 
-        // if getting Items from a directory, check if the root directory exists and is a directory
-        if (rootDir != null) {
+        // if getting Items from a directory, check if the root directory
+        // exists and is a directory (unless the Items are found from the
+        // database)
+        if (rootDir != null && !indexed) {
             if (!rootDir.toFile().exists()) {
                 throw new AppError("Root directory '" + rootDir.toString() + "' does not exist");
             }
@@ -535,18 +805,16 @@ public class CmdAnnotate extends Command {
         // keywords to be added or removed, and the final state of the Items.
         // Make a secondary description for the situation where the existing
         // state of an Item is 'Custody-accepted' and the user wants to change
-        // it Abandoned (not allowed, no state change).
-        if (desc != null) {
-            sb.append(desc);
-            sb.append(". ");
-        }
+        // it Abandoned (not allowed, no state change). The user's description
+        // is the parameter of the event, so annotations making the same
+        // changes share the event templates
         if ((s = keywordChanges(true)) != null) {
             sb.append(s);
         }
         if ((s = keywordChanges(false)) != null) {
             sb.append(s);
         }
-        desc2 = sb.toString() + "State unchanged.";
+        template2 = sb.toString() + "State unchanged.";
         switch (stateChange) {
             case "X":
                 sb.append("State unchanged. ");
@@ -564,25 +832,456 @@ public class CmdAnnotate extends Command {
                 sb.append("Unknown state change. ");
                 break;
         }
-        desc1 = sb.toString();
+        template1 = sb.toString();
+        if (desc != null) {
+            template1 = "{0}. " + template1;
+            template2 = "{0}. " + template2;
+        }
+        desc1 = TblEventTemplate.expand(template1, desc);
+        desc2 = TblEventTemplate.expand(template2, desc);
 
         // connect to the database and create the tables
         connectDB();
+        try {
+            shards = TblTransfer.getShards();
+            if (shards <= 1 || shard >= 0) {
+                annotate();
+                return;
+            }
+        } finally {
+            disconnectDB();
+        }
+
+        // if the transfer is sharded, annotate each shard
+        annotateShards();
+    }
+
+    /**
+     * Annotate the Items in the database the command is connected to (the
+     * transfer, or one shard of it).
+     *
+     * @throws AppFatal
+     * @throws AppError
+     * @throws SQLException
+     */
+    private void annotate() throws AppFatal, AppError, SQLException {
+        long start;
 
         // find the keywords in the Keyword table
         findKeywords();
 
-        // Find Item names to process
+        // find where to start, and if all or nothing is to be annotated,
+        // start the transaction
+        start = System.currentTimeMillis();
+        startRun();
+        try {
+            // Find Item names to process
+            if (rootDir != null && indexed) {
+                annotateItemsByIndex(rootDir);
+            } else if (rootDir != null) {
+                annotateItemsByFilename(rootDir);
+            } else if (selection != null) {
+                annotateItemsBySelection(selection);
+            } else if (inputFile != null) {
+                annotateItemsByFile(inputFile, patterns);
+            }
+            flush();
+
+            // if planning, estimate how long annotating the Items would take
+            if (plan) {
+                estimate = TblRunMetric.estimate("annotate", position - numSkipped);
+                return;
+            }
+
+            // remove any keywords that are no longer referenced
+            removeDeadKeywords();
+
+            finishRun();
+        } catch (AppError | AppFatal | SQLException | RuntimeException e) {
+            if (plan) {
+                throw e;
+            } else if (atomic) {
+                undo();
+                LOG.warning("Annotation failed, no Items have been annotated");
+            } else if (position > 0) {
+                LOG.log(Level.WARNING, "Annotation failed, {0} Items were annotated. Use -resume to continue from the last Item annotated", count);
+            }
+            throw e;
+        }
+
+        // record the throughput (unless this is one of the shards)
+        if (shard < 0) {
+            TblRunMetric.add("annotate", position - numSkipped, System.currentTimeMillis() - start);
+        }
+    }
+
+    /**
+     * Annotate each shard of the transfer, each in its own thread, and total
+     * what was done.
+     *
+     * @throws AppFatal
+     * @throws AppError
+     * @throws SQLException
+     */
+    private void annotateShards() throws AppFatal, AppError, SQLException {
+        List<CmdAnnotate> workers;
+        List<Callable<Object>> tasks;
+        long start;
+        int i;
+
+        LOG.log(Level.INFO, "Annotating {0} shards", shards);
+        workers = new ArrayList<>();
+        tasks = new ArrayList<>();
+        together = atomic && !plan ? new AtomicShards(shards) : null;
+        for (i = 0; i < shards; i++) {
+            workers.add(forShard(i));
+        }
+        for (CmdAnnotate ca : workers) {
+            tasks.add(() -> {
+                try {
+                    ca.doIt();
+                } finally {
+                    // a shard that failed before finishing lets the others
+                    // roll back
+                    if (ca.together != null && !ca.reported) {
+                        ca.reported = true;
+                        ca.together.finished(false);
+                    }
+                }
+                return null;
+            });
+        }
+        start = System.currentTimeMillis();
+        Shards.run(tasks);
+
+        count = 0;
+        position = 0;
+        numSkipped = 0;
+        numMissing = 0;
+        numStateChanges = 0;
+        numStateBlocked = 0;
+        numLinksAdded = 0;
+        numLinksRemoved = 0;
+        for (CmdAnnotate ca : workers) {
+            count += ca.count;
+            position += ca.position;
+            numSkipped += ca.numSkipped;
+            numMissing += ca.numMissing;
+            numStateChanges += ca.numStateChanges;
+            numStateBlocked += ca.numStateBlocked;
+            numLinksAdded += ca.numLinksAdded;
+            numLinksRemoved += ca.numLinksRemoved;
+        }
+        eventKey1 = workers.get(0).eventKey1;
+        eventKey2 = workers.get(0).eventKey2;
+
+        // estimate the run time, or record the throughput of the shards
+        // together
+        connectDB();
+        try {
+            if (plan) {
+                estimate = TblRunMetric.estimate("annotate", position - numSkipped);
+            } else {
+                TblRunMetric.add("annotate", position - numSkipped, System.currentTimeMillis() - start);
+            }
+        } finally {
+            disconnectDB();
+        }
+    }
+
+    /**
+     * Make a copy of this command to annotate one shard. The keywords are
+     * copied, as their keys differ in each shard.
+     *
+     * @param i the shard
+     * @return the copy
+     * @throws AppFatal
+     */
+    private CmdAnnotate forShard(int i) throws AppFatal {
+        CmdAnnotate w;
+
+        w = new CmdAnnotate();
+        w.database = Shards.url(database, i);
+        w.desc = desc;
+        for (Keyword k : keywords) {
+            w.keywords.add(w.new Keyword(k.keyword, k.add, k.silent));
+        }
+        w.stateChange = stateChange;
+        w.rootDir = rootDir;
+        w.indexed = indexed;
+        w.selection = selection;
+        w.inputFile = inputFile;
+        w.skip = skip;
+        w.patterns = patterns;
+        w.fileColumn = fileColumn;
+        w.csv = csv;
+        w.veo = veo;
+        w.commitEvery = commitEvery;
+        w.atomic = atomic;
+        w.resume = resume;
+        w.plan = plan;
+        w.shard = i;
+        w.shards = shards;
+        w.together = together;
+        return w;
+    }
+
+    /**
+     * Start a run. The run is identified by the Items it selects and the
+     * annotation it makes, so that a run that is repeated with -resume finds
+     * how far the earlier attempt got. If the run is atomic, the transaction
+     * holding the whole run is started.
+     *
+     * @throws AppFatal if the run could not be identified
+     * @throws SQLException a database problem (should never occur)
+     */
+    private void startRun() throws AppFatal, SQLException {
+        MessageDigest md;
+        StringBuilder sb = new StringBuilder();
+
+        // describe the run; note that skip is consumed when reading the file
         if (rootDir != null) {
-            annotateItemsByFilename(rootDir);
+            sb.append("dir\t");
+            sb.append(rootDir.toAbsolutePath().normalize().toString());
+            sb.append(indexed ? "\tindexed" : "");
+        } else if (selection != null) {
+            sb.append("select\t");
+            sb.append(selection.toString());
         } else if (inputFile != null) {
-            annotateItemsByFile(inputFile, patterns);
+            sb.append("file\t");
+            sb.append(inputFile.toAbsolutePath().normalize().toString());
+            sb.append("\t").append(skip).append("\t").append(fileColumn).append("\t").append(csv);
+            sb.append("\t").append(patterns == null ? "" : patterns.toString());
+        }
+        sb.append("\n");
+        sb.append(desc1);
+        sb.append("\n");
+        sb.append(desc2);
+        try {
+            md = MessageDigest.getInstance(Hasher.DEFAULT_ALG);
+        } catch (NoSuchAlgorithmException e) {
+            throw new AppFatal("Failed identifying annotation run: " + e.getMessage());
+        }
+        runKey = Hasher.toHex(md.digest(sb.toString().getBytes(StandardCharsets.UTF_8)));
+
+        position = 0;
+        pending.clear();
+        numSkipped = 0;
+        numMissing = 0;
+        numStateChanges = 0;
+        numStateBlocked = 0;
+        numLinksAdded = 0;
+        numLinksRemoved = 0;
+        resumeAfter = null;
+        lastSelected = null;
+        if (resume) {
+            resumeAfter = TblAnnotationProgress.get(runKey);
+            if (resumeAfter == null) {
+                LOG.info("No earlier attempt at this annotation was found to resume; starting from the beginning");
+            } else {
+                LOG.log(Level.INFO, "Resuming after ''{0}'', the last Item annotated by an earlier attempt", resumeAfter);
+            }
+        }
+        if (atomic && !plan) {
+            SQLTable.beginTransaction();
+        }
+    }
+
+    /**
+     * An Item has been selected to be annotated. The Item is annotated when
+     * enough have been selected to fill a group (see flush()). Items that were
+     * annotated by an earlier attempt at this run are skipped.
+     *
+     * @param itemName the name of the Item
+     * @param key the name the Items are selected in order of (null if they
+     * are not selected in name order)
+     * @throws AppFatal something went fatally wrong
+     * @throws SQLException a database problem (should never occur)
+     */
+    private void select(String itemName, String key) throws AppFatal, SQLException {
+        if (shard >= 0 && Shards.of(itemName, shards) != shard) {
+            return;
+        }
+        position++;
+        if (annotatedBefore(itemName, key)) {
+            numSkipped++;
+            return;
+        }
+        lastSelected = key != null ? key : itemName;
+        pending.add(itemName);
+        if (pending.size() >= commitEvery) {
+            flush();
+        }
+    }
+
+    /**
+     * Was a selected Item annotated by the earlier attempt being resumed? If
+     * the Items are selected in name order, it was if it is not named after
+     * the last Item the attempt committed. Otherwise, it was if that Item has
+     * not yet been selected again.
+     *
+     * @param itemName the name of the Item
+     * @param key the name the Items are selected in order of (null if they
+     * are not selected in name order)
+     * @return true if the Item is to be skipped
+     */
+    private boolean annotatedBefore(String itemName, String key) {
+        if (resumeAfter == null) {
+            return false;
+        }
+        if (key != null) {
+            if (key.compareTo(resumeAfter) <= 0) {
+                return true;
+            }
+            resumeAfter = null;
+            return false;
+        }
+        if (itemName.equals(resumeAfter)) {
+            resumeAfter = null;
         }
+        return true;
+    }
 
-        // remove any keywords that are no longer referenced
-        removeDeadKeywords();
+    /**
+     * Annotate the Items selected since the last group, and record how far the
+     * run has got. Unless the run is atomic, this is done in a transaction,
+     * which is committed at the end. If the transaction fails, it is rolled
+     * back (so none of the group is annotated); if it failed because it
+     * conflicted with another command, the group is tried again.
+     *
+     * @throws AppFatal something went fatally wrong
+     * @throws SQLException a database problem (should never occur)
+     */
+    private void flush() throws AppFatal, SQLException {
+        int i, j, n;
 
-        disconnectDB();
+        if (pending.isEmpty()) {
+            return;
+        }
+        if (plan) {
+            for (j = 0; j < pending.size(); j++) {
+                planItem(pending.get(j));
+            }
+            pending.clear();
+            return;
+        }
+        for (i = 1;; i++) {
+            if (!atomic) {
+                SQLTable.beginTransaction();
+            }
+            try {
+                n = 0;
+                for (j = 0; j < pending.size(); j++) {
+                    if (annotateItem(pending.get(j))) {
+                        n++;
+                    }
+                }
+                if (!atomic) {
+                    TblAnnotationProgress.set(runKey, lastSelected, desc1);
+                    SQLTable.commit();
+                }
+                count += n;
+                pending.clear();
+                return;
+            } catch (AppFatal | SQLException | RuntimeException e) {
+                if (atomic) {
+                    throw e;
+                }
+                undo();
+                if (i >= MAX_RETRIES || !(e instanceof SQLException) || !SQLTable.isConflict((SQLException) e)) {
+                    throw e;
+                }
+                LOG.log(Level.FINE, "Retrying group of {0} Items after conflict ({1})", new Object[]{pending.size(), e.getMessage()});
+            }
+        }
+    }
+
+    /**
+     * Count the changes that annotating an Item would make, without making
+     * them.
+     *
+     * @param itemName the name of the item
+     * @throws SQLException a database problem (should never occur)
+     */
+    private void planItem(String itemName) throws SQLException {
+        int i, itemKey;
+        String stateMove;
+        Keyword k;
+
+        try (ResultSet rsItem = TblItem.findItem(itemName, null)) {
+            if (!item.next(rsItem)) {
+                numMissing++;
+                return;
+            }
+            count++;
+            itemKey = item.itemId;
+
+            // the state changes unless it is unchanged or already the target
+            // state (Custody-accepted cannot change directly to Abandoned)
+            stateMove = item.state + stateChange;
+            if (stateMove.equals("CA")) {
+                numStateBlocked++;
+            } else if (stateMove.charAt(1) != 'X' && stateMove.charAt(0) != stateMove.charAt(1)) {
+                numStateChanges++;
+            }
+
+            // a keyword not yet in the Keyword table is linked to no Items
+            for (i = 0; i < keywords.size(); i++) {
+                k = keywords.get(i);
+                if (k.silent) {
+                    continue;
+                }
+                if (k.add && (k.key == 0 || !TblItemKeyword.exists(itemKey, k.key))) {
+                    numLinksAdded++;
+                } else if (!k.add && TblItemKeyword.exists(itemKey, k.key)) {
+                    numLinksRemoved++;
+                }
+            }
+        }
+    }
+
+    /**
+     * Roll back the current transaction. The keys of the events and keywords
+     * that were added in the transaction no longer exist, so they are looked
+     * up again.
+     *
+     * @throws SQLException a database problem (should never occur)
+     */
+    private void undo() throws SQLException {
+        int i;
+
+        SQLTable.rollback();
+        eventKey1 = 0;
+        eventKey2 = 0;
+        for (i = 0; i < keywords.size(); i++) {
+            keywords.get(i).key = 0;
+        }
+        findKeywords();
+    }
+
+    /**
+     * Finish a run. The run is complete, so its progress is forgotten, and if
+     * the run is atomic, the transaction is committed. If the run is atomic
+     * over a sharded transfer, the transaction is only committed once every
+     * shard has finished, and is rolled back if any failed.
+     *
+     * @throws AppFatal if interrupted waiting for the other shards
+     * @throws SQLException a database problem (should never occur)
+     */
+    private void finishRun() throws AppFatal, SQLException {
+        TblAnnotationProgress.remove(runKey);
+        if (!atomic) {
+            return;
+        }
+        if (together != null) {
+            reported = true;
+            if (!together.finished(true)) {
+                undo();
+                LOG.log(Level.WARNING, "Annotation of shard {0} rolled back as another shard failed", shard);
+                return;
+            }
+        }
+        SQLTable.commit();
     }
 
     /**
@@ -721,9 +1420,7 @@ public class CmdAnnotate extends Command {
 
                     // otherwise change the status and/or description   
                 } else {
-                    if (annotateItem(getFileName(entry))) {
-                        count++;
-                    }
+                    select(getFileName(entry), null);
                 }
             }
         } catch (DirectoryIteratorException | IOException e) {
@@ -731,6 +1428,63 @@ public class CmdAnnotate extends Command {
         }
     }
 
+    /**
+     * Annotate the items of the instances recorded in the database as being
+     * in this directory (or the tree below it). This is the same as
+     * annotateItemsByFilename(), except that the file system is not looked
+     * at, and an item is only annotated once even if several of its instances
+     * are in the tree.
+     *
+     * @param dir the root of the tree
+     * @throws AppError if no instances have been recorded in the directory
+     * @throws AppFatal something went fatally wrong
+     * @throws SQLException a database problem (should never occur)
+     */
+    private void annotateItemsByIndex(Path dir) throws AppError, AppFatal, SQLException {
+        int dirId;
+
+        // the directory is recorded as it was given when the delivery was
+        // registered, which may have been relative or absolute
+        dirId = TblDirectory.find(dir);
+        if (dirId == 0 && !dir.isAbsolute()) {
+            dirId = TblDirectory.find(dir.toAbsolutePath().normalize());
+        }
+        if (dirId == 0 && shard >= 0) {
+            LOG.log(Level.FINE, "No instances have been recorded in directory ''{0}'' in shard {1}", new Object[]{dir.toString(), shard});
+            return;
+        }
+        if (dirId == 0) {
+            throw new AppError("No instances have been recorded in directory '" + dir.toString() + "'");
+        }
+        try (ResultSet rs = TblInstance.getItemsInTree(dirId)) {
+            while (rs.next()) {
+                select(rs.getString("FILENAME"), rs.getString("FILENAME"));
+            }
+        }
+    }
+
+    /**
+     * Annotate the items whose names match a selection. The items are found
+     * with a query on the ITEM table; the plan chosen for the query is logged
+     * so that it can be checked that the index on FILENAME is used.
+     *
+     * @param selection the selection
+     * @throws AppFatal something went fatally wrong
+     * @throws SQLException a database problem (should never occur)
+     */
+    private void annotateItemsBySelection(NameSelector selection) throws AppFatal, SQLException {
+        TblItem.Row selected = new TblItem.Row();
+        String query;
+
+        query = "select FILENAME from ITEM where " + selection.toSQL() + " order by FILENAME";
+        LOG.log(Level.INFO, "Query plan for selecting items: {0}", SQLTable.explain(query));
+        try (ResultSet rs = SQLTable.query(query)) {
+            while (selected.next(rs)) {
+                select(selected.filename, selected.filename);
+            }
+        }
+    }
+
     /**
      * Process the file. The file must be a CSV or TSV file with
      * one Item specified per line. The minimum is a specification as to which
@@ -781,8 +1535,7 @@ public class CmdAnnotate extends Command {
                     if (tokens.length < fileColumn + 1) {
                         throw new AppError("Line does not contain enough columns to have the file name");
                     }
-                    annotateItem(tokens[fileColumn]);
-                    count++;
+                    select(tokens[fileColumn], null);
                 }
             }
             br.close();
@@ -841,12 +1594,12 @@ public class CmdAnnotate extends Command {
 
         // if item exist annotate it, otherwise complain
         rsItem = TblItem.findItem(itemName, null);
-        if (rsItem.next()) {
-            itemKey = TblItem.getItemId(rsItem);
+        if (item.next(rsItem)) {
+            itemKey = item.itemId;
             assert itemKey != 0;
 
             //update the state
-            String stateMove = TblItem.getState(rsItem) + stateChange;
+            String stateMove = item.state + stateChange;
             stateChanged = true;
             switch (stateMove) {
                 case "PX":  // no state change in keywords specified
@@ -898,16 +1651,16 @@ public class CmdAnnotate extends Command {
             }
 
             // add the event (which includes the description)
-            instanceKey = TblItem.getActiveInstanceId(rsItem);
+            instanceKey = item.activeInstanceId;
             assert instanceKey != 0;
             if (stateChanged) {
                 if (eventKey1 == 0) {
-                    eventKey1 = TblEvent.add(desc1);
+                    eventKey1 = TblEvent.add(template1, desc);
                 }
                 TblInstanceEvent.add(instanceKey, eventKey1);
             } else {
                 if (eventKey2 == 0) {
-                    eventKey2 = TblEvent.add(desc2);
+                    eventKey2 = TblEvent.add(template2, desc);
                 }
                 TblInstanceEvent.add(instanceKey, eventKey2);
             }
@@ -921,22 +1674,31 @@ public class CmdAnnotate extends Command {
 
     /**
      * Get a file name from a path. Suppress the final '.lnk' in a Windows short
-     * cut. Replace single quotes with two quotes to be SQL safe.
+     * cut.
      *
      * @param p
      * @return
      */
     private String getFileName(Path p) {
-        String s;
-
         assert p != null;
-        s = p.getFileName().toString().trim();
+        return itemName(p.getFileName().toString());
+    }
+
+    /**
+     * Get the Item name from the name of a file, removing any indication that
+     * the file is a Windows short cut. The name is not quoted, as the Item is
+     * looked up using a bound parameter.
+     *
+     * @param s the name of the file
+     * @return the item name
+     */
+    private String itemName(String s) {
+        s = s.trim();
         if (s.toLowerCase().endsWith(".lnk")) {
             s = s.substring(0, s.length() - 4);
         } else if (s.toLowerCase().endsWith(" - shortcut")) {
             s = s.substring(0, s.length() - 11);
         }
-        s = s.replace("'", "''");
         return s;
     }
 
@@ -1011,6 +1773,49 @@ public class CmdAnnotate extends Command {
         }
     }
 
+    /**
+     * Decides whether the shards of an atomic run commit. Each shard's thread
+     * reports when it has finished (successfully or not); the threads that
+     * succeeded wait until every shard has reported, and then all commit, or
+     * all roll back if any shard failed.
+     */
+    private static class AtomicShards {
+
+        private final CountDownLatch pending; // shards that have not yet finished
+        private volatile boolean failed; // true if any shard failed
+
+        AtomicShards(int shards) {
+            pending = new CountDownLatch(shards);
+            failed = false;
+        }
+
+        /**
+         * A shard has finished (each shard reports once). If the shard
+         * succeeded, wait for the others.
+         *
+         * @param ok true if the shard annotated all its Items
+         * @return true if every shard succeeded (and so the shard should
+         * commit)
+         * @throws AppFatal if interrupted while waiting
+         */
+        boolean finished(boolean ok) throws AppFatal {
+            if (!ok) {
+                failed = true;
+            }
+            pending.countDown();
+            if (!ok) {
+                return false;
+            }
+            try {
+                pending.await();
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new AppFatal("Interrupted waiting for the other shards to finish annotating");
+            }
+            return !failed;
+        }
+    }
+
     /**
      * Private class that stores a pattern to be matched against lines in files
      * Each pattern consists of a column number (starting at 0) and a regular
@@ -0,0 +1,156 @@
+package TrackTransfer;
+
+import VERSCommon.AppError;
+import VERSCommon.AppFatal;
+import java.sql.SQLException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Count the Items matching a keyword query (e.g. 'Custody-accepted AND NOT
+ * Rejected'). The count is calculated from the keyword index (KeywordIndex),
+ * which is built the first time it is needed and kept up to date from then
+ * on, so counting does not read the Items. If the transfer is sharded, the
+ * Items matching in each shard are added up.
+ *
+ * @author Andrew Waugh
+ */
+public class CmdCount extends Command {
+
+    private final static Logger LOG = Logger.getLogger("TrackTransfer.CmdCount");
+    private KeywordQuery query; // query selecting items to count
+    private final String usage = "[-db <databaseURL>] -query <query> [-v] [-d] [-help]";
+
+    public CmdCount() throws AppFatal {
+        super();
+    }
+
+    /**
+     * Count the Items matching a keyword query. API version.
+     *
+     * Do not call this method directly, use the wrapper in the TrackTransfer
+     * class.
+     *
+     * @param database database to connect to (may be null)
+     * @param query the keyword query
+     * @return the number of matching Items
+     * @throws AppFatal thrown if TrackTransfer had an internal error
+     * @throws AppError thrown if the calling program did something wrong
+     * @throws SQLException SQL problem occurred
+     */
+    public int count(String database, String query) throws AppFatal, AppError, SQLException {
+        assert query != null;
+
+        this.database = database;
+        this.query = KeywordQuery.parse(query);
+        return doIt();
+    }
+
+    /**
+     * Count the Items matching a keyword query. Command line version.
+     *
+     * @param args
+     * @throws AppFatal thrown if TrackTransfer had an internal error
+     * @throws AppError thrown if the calling program did something wrong
+     * @throws SQLException SQL problem occurred
+     */
+    public void count(String args[]) throws AppFatal, AppError, SQLException {
+        int n;
+
+        query = null;
+        config(args, usage);
+
+        // just asked for help?
+        if (help) {
+            LOG.setLevel(Level.INFO);
+            LOG.info("'Count' command line arguments:");
+            LOG.info(" Mandatory:");
+            LOG.info("  -query <query>: count the items matching a query, e.g. \"Custody-accepted AND NOT (Rejected OR Duplicate)\"");
+            LOG.info("");
+            LOG.info(" Optional:");
+            LOG.info("  -db <database>: Database name (default based on .mv.db file in current working directory)");
+            genericHelp();
+            return;
+        }
+
+        // check necessary fields have been specified
+        if (query == null) {
+            throw new AppError("No keyword query specified (-query)");
+        }
+
+        // say what we are doing
+        LOG.info("Requested:");
+        LOG.log(Level.INFO, " Count items matching query: {0}", query);
+        LOG.log(Level.INFO, " Database: {0}", database == null ? "Derived from .mv.db filename" : database);
+        genericStatus();
+
+        n = doIt();
+
+        LOG.log(Level.INFO, "{0} items match ''{1}''", new Object[]{n, query});
+    }
+
+    /**
+     * Internal function that actually does the work.
+     *
+     * @return the number of matching items
+     * @throws AppFatal
+     * @throws AppError
+     * @throws SQLException
+     */
+    private int doIt() throws AppFatal, AppError, SQLException {
+        Shards shards;
+        int i, n;
+
+        connectDB();
+        shards = null;
+        try {
+            n = query.resolve().evaluate().cardinality();
+
+            // each Item is in exactly one shard. The keys of the keywords
+            // differ between shards, so the query is resolved in each
+            if ((i = TblTransfer.getShards()) > 1) {
+                shards = Shards.connect(database, i);
+                for (i = 1; i < shards.count(); i++) {
+                    shards.use(i);
+                    n += query.resolve().evaluate().cardinality();
+                }
+            }
+        } finally {
+            if (shards != null) {
+                shards.disconnect();
+            }
+            disconnectDB();
+        }
+        return n;
+    }
+
+    /**
+     * Process command line arguments specific to this command. Passed the array
+     * of command line arguments, and the current position in the array. Returns
+     * the number of arguments consumed (0 = nothing matched)
+     *
+     * @param args command line arguments
+     * @param i position in command line arguments
+     * @return command line arguments consumed
+     * @throws AppError
+     * @throws ArrayIndexOutOfBoundsException
+     */
+    @Override
+    int specificConfig(String[] args, int i) throws AppError, ArrayIndexOutOfBoundsException {
+        int j;
+
+        switch (args[i].toLowerCase()) {
+            // query selecting the items to count
+            case "-query":
+                i++;
+                query = KeywordQuery.parse(args[i]);
+                i++;
+                j = 2;
+                break;
+            // otherwise complain
+            default:
+                j = 0;
+        }
+        return j;
+    }
+}
@@ -9,6 +9,10 @@ import java.util.logging.Logger;
 /**
  * Create a new Transfer. This must be the first command as it creates the
  * empty database. You can't create more than one Transfer in the database.
+ *
+ * If asked, the Items of the transfer are partitioned across several
+ * databases (shards, see Shards), each of which is created with all the
+ * tables.
  * 
  * @author Andrew Waugh
  */
@@ -16,7 +20,8 @@ public class CmdCreateTransfer extends Command {
 
     private final static Logger LOG = Logger.getLogger("TrackTransfer.CmdCreateTransfer");
     private String desc;        // description of this delivery
-    private String usage = "-db <databaseURL> -desc <text> [-v] [-d] [-help]";
+    private int shards;         // number of databases the Items are partitioned across
+    private String usage = "-db <databaseURL> -desc <text> [-shards <count>] [-v] [-d] [-help]";
 
     public CmdCreateTransfer() throws AppFatal {
         super();
@@ -37,11 +42,32 @@ public class CmdCreateTransfer extends Command {
      * @throws SQLException SQL problem occurred
      */
     public void createTransfer(String database, String description) throws AppFatal, AppError, SQLException {
+        createTransfer(database, description, 1);
+    }
+
+    /**
+     * Create a new transfer whose Items are partitioned across a number of
+     * databases (shards). API version. The first shard is the database
+     * given; the others are named after it.
+     *
+     * Do not call this method directly, use the wrapper in the TrackTransfer
+     * class.
+     *
+     * @param database the string representing the database to create (cannot be null)
+     * @param description a description of this transfer (e.g. an ID)
+     * @param shards the number of shards (1 if the transfer is not sharded)
+     * @throws AppFatal thrown if TrackTransfer had an internal error
+     * @throws AppError thrown if the calling program did something wrong
+     * @throws SQLException SQL problem occurred
+     */
+    public void createTransfer(String database, String description, int shards) throws AppFatal, AppError, SQLException {
         assert database != null;
         assert description != null;
-        
+        assert shards > 0;
+
         this.database = database;
         this.desc = description;
+        this.shards = shards;
         doIt();
     }
     
@@ -57,6 +83,7 @@ public class CmdCreateTransfer extends Command {
         int key;
 
         LOG.setLevel(null);
+        shards = 1;
         config(args, usage);
 
         // just asked for help?
@@ -68,6 +95,7 @@ public class CmdCreateTransfer extends Command {
             LOG.info("  -desc <description>: text describing this transfer");
             LOG.info("");
             LOG.info(" Optional:");
+            LOG.info("  -shards <count>: partition the Items across this many databases (default 1)");
             genericHelp();
             LOG.info("");
             return;
@@ -86,6 +114,9 @@ public class CmdCreateTransfer extends Command {
         LOG.info(" Create a new transfer");
         LOG.log(Level.INFO, " Database: {0}", database);
         LOG.log(Level.INFO, " Description: {0}", desc);
+        if (shards > 1) {
+            LOG.log(Level.INFO, " Items partitioned across {0} databases", shards);
+        }
         genericStatus();
         
         key = doIt();
@@ -103,10 +134,51 @@ public class CmdCreateTransfer extends Command {
      * @throws SQLException 
      */
     private int doIt() throws AppFatal, AppError, SQLException {
-        int key;
-        
-        // connect to the database and create the tables
-        connectDB();
+        String transfer;
+        int i, key;
+
+        // create the first shard (i.e. the database named), and then the
+        // others named after it
+        transfer = connectDB();
+        try {
+            key = createTables();
+        } finally {
+            disconnectDB();
+        }
+        for (i = 1; i < shards; i++) {
+            database = Shards.url(transfer, i);
+            connectDB();
+            try {
+                createTables();
+            } finally {
+                disconnectDB();
+            }
+        }
+        database = transfer;
+        return key;
+    }
+
+    /**
+     * Create the tables in the connected database, and add the transfer.
+     *
+     * @return the key of the transfer
+     * @throws AppError if the transfer has already been created
+     * @throws SQLException
+     */
+    private int createTables() throws AppError, SQLException {
+        createTables(database);
+        return TblTransfer.add(desc, shards);
+    }
+
+    /**
+     * Create the (empty) tables in the connected database. Also used when
+     * importing a snapshot (CmdImport).
+     *
+     * @param database the database connected to
+     * @throws AppError if the transfer has already been created
+     * @throws SQLException
+     */
+    static void createTables(String database) throws AppError, SQLException {
         try {
             TblTransfer.createTable();
         } catch (SQLException sqe) {
@@ -116,17 +188,17 @@ public class CmdCreateTransfer extends Command {
             throw sqe;
         }
         TblDelivery.createTable();
+        TblDirectory.createTable();
         TblInstance.createTable();
+        TblEventTemplate.createTable();
         TblEvent.createTable();
         TblInstanceEvent.createTable();
         TblItem.createTable();
         TblKeyword.createTable();
         TblItemKeyword.createTable();
-
-        key = TblTransfer.add(desc);
-        disconnectDB();
-        
-        return key;
+        TblAnnotationProgress.createTable();
+        TblRunMetric.createTable();
+        TblIndexChange.createTable();
     }
 
     /**
@@ -152,6 +224,20 @@ public class CmdCreateTransfer extends Command {
                 i++;
                 j = 2;
                 break;
+            // number of databases to partition the items across
+            case "-shards":
+                i++;
+                try {
+                    shards = Integer.parseInt(args[i]);
+                } catch (NumberFormatException nfe) {
+                    throw new AppError("Failed converting shard count to an integer: " + nfe.getMessage());
+                }
+                if (shards < 1) {
+                    throw new AppError("The number of shards must be at least 1 (-shards)");
+                }
+                i++;
+                j = 2;
+                break;
             // otherwise complain
             default:
                 j = 0;
@@ -7,8 +7,8 @@ import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
- * Drops the database and all the data contained in it. This is primarily
- * intended for testing.
+ * Drops the database and all the data contained in it (including any other
+ * shards of the transfer). This is primarily intended for testing.
  * 
  * @author Andrew Waugh
  */
@@ -86,18 +86,49 @@ public class CmdDropDatabase extends Command {
      * @throws SQLException 
      */
     private void doIt() throws AppFatal, AppError, SQLException {
-        
-        // connect to the database and drop the tables
-        connectDB();
+        String transfer;
+        int i, shards;
+
+        // connect to the database and drop the tables, and then those of any
+        // other shards of the transfer
+        transfer = connectDB();
+        try {
+            shards = TblTransfer.getShards();
+            dropTables();
+        } finally {
+            disconnectDB();
+        }
+        for (i = 1; i < shards; i++) {
+            database = Shards.url(transfer, i);
+            connectDB();
+            try {
+                dropTables();
+            } finally {
+                disconnectDB();
+            }
+        }
+        database = transfer;
+    }
+
+    /**
+     * Drop the tables in the connected database.
+     *
+     * @throws SQLException
+     */
+    private void dropTables() throws SQLException {
+        TblIndexChange.dropTable();
+        TblRunMetric.dropTable();
+        TblAnnotationProgress.dropTable();
         TblItemKeyword.dropTable();
         TblKeyword.dropTable();
         TblItem.dropTable();
         TblInstanceEvent.dropTable();
         TblEvent.dropTable();
+        TblEventTemplate.dropTable();
         TblInstance.dropTable();
+        TblDirectory.dropTable();
         TblDelivery.dropTable();
         TblTransfer.dropTable();
-        disconnectDB();
     }
     
     /**
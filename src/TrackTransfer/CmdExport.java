@@ -0,0 +1,203 @@
+package TrackTransfer;
+
+import VERSCommon.AppError;
+import VERSCommon.AppFatal;
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Export a transfer as a snapshot (see Snapshot). Every table is written to
+ * the snapshot, which can be imported into a new database (CmdImport) to move
+ * or clone the transfer. The tables are read in one transaction that sees a
+ * snapshot of the database as it was when the export started, so commands
+ * that change the transfer while it is being exported (e.g. under 'serve') do
+ * not leave the snapshot inconsistent. A sharded transfer cannot be exported.
+ *
+ * @author Andrew Waugh
+ */
+public class CmdExport extends Command {
+
+    private final static Logger LOG = Logger.getLogger("TrackTransfer.CmdExport");
+    private Path outputFile;    // file to write the snapshot to
+    private long rows;          // number of rows exported
+    private final String usage = "[-db <database>] -o <file> [-v] [-d] [-help]";
+
+    public CmdExport() throws AppFatal {
+        super();
+    }
+
+    /**
+     * Export a transfer as a snapshot. API version.
+     *
+     * Do not call this method directly, use the wrapper in the TrackTransfer
+     * class.
+     *
+     * @param database database to export (may be null)
+     * @param outputFile the file to write the snapshot to
+     * @return the number of rows exported
+     * @throws AppFatal thrown if TrackTransfer had an internal error
+     * @throws AppError thrown if the calling program did something wrong
+     * @throws SQLException SQL problem occurred
+     */
+    public long export(String database, Path outputFile) throws AppFatal, AppError, SQLException {
+        assert outputFile != null;
+
+        this.database = database;
+        this.outputFile = outputFile;
+        doIt();
+        return rows;
+    }
+
+    /**
+     * Export a transfer as a snapshot. Command line version.
+     *
+     * @param args
+     * @throws AppFatal thrown if TrackTransfer had an internal error
+     * @throws AppError thrown if the calling program did something wrong
+     * @throws SQLException SQL problem occurred
+     */
+    public void export(String args[]) throws AppFatal, AppError, SQLException {
+        outputFile = null;
+        config(args, usage);
+
+        // just asked for help?
+        if (help) {
+            LOG.setLevel(Level.INFO);
+            LOG.info("'Export' command line arguments:");
+            LOG.info(" Mandatory:");
+            LOG.info("  -o <file>: file to write the snapshot to");
+            LOG.info("");
+            LOG.info(" Optional:");
+            LOG.info("  -db <database>: Database name (default based on .mv.db file in current working directory)");
+            genericHelp();
+            return;
+        }
+
+        // check necessary fields have been specified
+        if (outputFile == null) {
+            throw new AppError("No file to write the snapshot to has been specified (-o)");
+        }
+
+        // say what we are doing
+        LOG.info("Requested:");
+        LOG.info(" Export the transfer as a snapshot");
+        LOG.log(Level.INFO, " Database: {0}", database == null ? "Derived from .mv.db filename" : database);
+        LOG.log(Level.INFO, " Snapshot: {0}", outputFile.toString());
+        genericStatus();
+
+        doIt();
+
+        // acknowledge export
+        LOG.log(Level.INFO, "{0} rows exported from ({1}) to ''{2}'' ({3} bytes)", new Object[]{rows, database, outputFile.toString(), outputFile.toFile().length()});
+    }
+
+    /**
+     * Internal function that actually does the work.
+     *
+     * @throws AppFatal
+     * @throws AppError
+     * @throws SQLException
+     */
+    private void doIt() throws AppFatal, AppError, SQLException {
+        connectDB();
+        try {
+            if (TblTransfer.getShards() > 1) {
+                throw new AppError("A sharded transfer cannot be exported");
+            }
+            export();
+        } finally {
+            if (SQLTable.inTransaction()) {
+                SQLTable.rollback();
+            }
+            disconnectDB();
+        }
+    }
+
+    /**
+     * Write the snapshot of the connected database. A partial snapshot is
+     * deleted if the export fails.
+     *
+     * @throws AppError
+     * @throws SQLException
+     */
+    private void export() throws AppError, SQLException {
+        ResultSet rs;
+        boolean complete;
+        int n;
+
+        rows = 0;
+        complete = false;
+        SQLTable.beginSnapshot();
+        try {
+            try (Snapshot.Writer w = new Snapshot.Writer(new BufferedOutputStream(new FileOutputStream(outputFile.toFile())))) {
+                for (String table : Snapshot.TABLES) {
+                    rs = SQLTable.query("select * from " + table + ";");
+                    w.table(table, rs.getMetaData());
+                    n = 0;
+                    while (rs.next()) {
+                        w.row(rs);
+                        n++;
+                    }
+                    rs.close();
+                    LOG.log(Level.FINE, "Exported {0} rows from {1}", new Object[]{n, table});
+                    rows += n;
+                }
+            }
+            SQLTable.commit();
+
+            // only complete once the writer has been closed, as closing
+            // writes the end of the snapshot
+            complete = true;
+        } catch (IOException ioe) {
+            throw new AppError("Failed writing snapshot '" + outputFile.toString() + "': " + ioe.getMessage());
+        } finally {
+
+            // don't leave a partial snapshot that could be imported
+            if (!complete) {
+                try {
+                    Files.deleteIfExists(outputFile);
+                } catch (IOException ioe) {
+                    LOG.log(Level.WARNING, "Failed deleting partial snapshot ''{0}'': {1}", new Object[]{outputFile.toString(), ioe.getMessage()});
+                }
+            }
+        }
+    }
+
+    /**
+     * Process command line arguments specific to this command. Passed the array
+     * of command line arguments, and the current position in the array. Returns
+     * the number of arguments consumed (0 = nothing matched)
+     *
+     * @param args command line arguments
+     * @param i position in command line arguments
+     * @return command line arguments consumed
+     * @throws AppError
+     * @throws ArrayIndexOutOfBoundsException
+     */
+    @Override
+    int specificConfig(String[] args, int i) throws AppError, ArrayIndexOutOfBoundsException {
+        int j;
+
+        switch (args[i].toLowerCase()) {
+            // file to write the snapshot to
+            case "-o":
+                i++;
+                outputFile = Paths.get(args[i]);
+                i++;
+                j = 2;
+                break;
+            // otherwise complain
+            default:
+                j = 0;
+        }
+        return j;
+    }
+}
@@ -0,0 +1,511 @@
+package TrackTransfer;
+
+import VERSCommon.AppError;
+import VERSCommon.AppFatal;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Generate a synthetic transfer for load testing: a directory tree for each
+ * of a number of deliveries, and a CSV file to annotate the Items with. The
+ * shape of the transfer is controlled by:
+ * <ul>
+ * <li>the number of deliveries, and the number of files in each</li>
+ * <li>the depth of the directory tree in each delivery, and the number of
+ * subdirectories in each directory (the fan-out). The files are spread over
+ * the directories at the bottom of the tree</li>
+ * <li>the proportion of files that duplicate another file in the same
+ * delivery (the same name in another directory)</li>
+ * <li>the proportion of files in the second and later deliveries that
+ * re-deliver an Item from an earlier delivery, and the proportion of those
+ * whose content has changed (i.e. that supersede the earlier instance)</li>
+ * <li>the proportion of Items that are VEOs ('.veo.zip', written as small but
+ * valid ZIP files), the rest being '.pdf' files</li>
+ * <li>the proportion of files that are Windows shortcuts ('.lnk')</li>
+ * <li>the proportion of Items listed in the annotation file</li>
+ * </ul>
+ * The deliveries are written to 'delivery-1', 'delivery-2', etc in the output
+ * directory, and the annotation file is 'annotate.csv'. It has a header line,
+ * and then the name of each Item listed and a group ('A', 'B', or 'C'), so
+ * it can be used as 'annotate -file annotate.csv -skip 1 -itemcol 0 -pattern
+ * "1=A"'. The same seed always generates the same transfer.
+ *
+ * @author Andrew Waugh
+ */
+public class CmdGenerate extends Command {
+
+    private final static Logger LOG = Logger.getLogger("TrackTransfer.CmdGenerate");
+    private Path outputDir;         // directory to generate the transfer in
+    private int deliveries;         // number of deliveries
+    private int files;              // number of files in each delivery
+    private int depth;              // depth of the directory tree
+    private int fanout;             // subdirectories in each directory
+    private double dupRate;         // proportion of files duplicated within a delivery
+    private double redeliverRate;   // proportion of files re-delivering an earlier Item
+    private double supersedeRate;   // proportion of re-delivered files with changed content
+    private double veoRatio;        // proportion of Items that are VEOs
+    private double lnkRate;         // proportion of files that are shortcuts
+    private double annotateRate;    // proportion of Items listed in the annotation file
+    private int fileSize;           // approximate size of each file in bytes
+    private long seed;              // seed of the random number generator
+    private Random rnd;             // random number generator
+    private int numItems;           // number of distinct Items generated
+    private BitSet written;         // Items written (other than as shortcuts)
+    private long numFiles;          // number of files written
+    private long numDuplicates;     // files duplicating another in the same delivery
+    private long numRedelivered;    // files re-delivering an Item from an earlier delivery
+    private long numSuperseding;    // re-delivered files with changed content
+    private long numShortcuts;      // files written as shortcuts
+    private long numAnnotated;      // Items listed in the annotation file
+    private long numBytes;          // bytes written
+    private final String usage = "-o <directory> [-deliveries <n>] [-files <n>] [-depth <n>] [-fanout <n>] [-dup-rate <0-1>] [-redeliver-rate <0-1>] [-supersede-rate <0-1>] [-veo-ratio <0-1>] [-lnk-rate <0-1>] [-annotate-rate <0-1>] [-size <bytes>] [-seed <n>] [-v] [-d] [-help]";
+
+    public CmdGenerate() throws AppFatal {
+        super();
+    }
+
+    /**
+     * Generate a synthetic transfer. API version (e.g. for a benchmark).
+     *
+     * Do not call this method directly, use the wrapper in the TrackTransfer
+     * class.
+     *
+     * @param outputDir directory to generate the transfer in (must not exist,
+     * or be empty)
+     * @param deliveries number of deliveries
+     * @param files number of files in each delivery
+     * @param depth depth of the directory tree in each delivery
+     * @param fanout number of subdirectories in each directory
+     * @param dupRate proportion of files duplicated within a delivery
+     * @param redeliverRate proportion of files in later deliveries that
+     * re-deliver an earlier Item
+     * @param supersedeRate proportion of re-delivered files with changed
+     * content
+     * @param veoRatio proportion of Items that are VEOs
+     * @param lnkRate proportion of files that are Windows shortcuts
+     * @param annotateRate proportion of Items listed in the annotation file
+     * @param fileSize approximate size of each file in bytes
+     * @param seed seed of the random number generator
+     * @return the number of files written
+     * @throws AppFatal thrown if TrackTransfer had an internal error
+     * @throws AppError thrown if the calling program did something wrong
+     */
+    public long generate(Path outputDir, int deliveries, int files, int depth, int fanout, double dupRate, double redeliverRate, double supersedeRate, double veoRatio, double lnkRate, double annotateRate, int fileSize, long seed) throws AppFatal, AppError {
+        assert outputDir != null;
+
+        this.outputDir = outputDir;
+        this.deliveries = deliveries;
+        this.files = files;
+        this.depth = depth;
+        this.fanout = fanout;
+        this.dupRate = dupRate;
+        this.redeliverRate = redeliverRate;
+        this.supersedeRate = supersedeRate;
+        this.veoRatio = veoRatio;
+        this.lnkRate = lnkRate;
+        this.annotateRate = annotateRate;
+        this.fileSize = fileSize;
+        this.seed = seed;
+        testParameters();
+        doIt();
+        return numFiles;
+    }
+
+    /**
+     * Generate a synthetic transfer. Command line version.
+     *
+     * @param args
+     * @throws AppFatal thrown if TrackTransfer had an internal error
+     * @throws AppError thrown if the calling program did something wrong
+     */
+    public void generate(String args[]) throws AppFatal, AppError {
+        outputDir = null;
+        deliveries = 1;
+        files = 1000;
+        depth = 2;
+        fanout = 5;
+        dupRate = 0.01;
+        redeliverRate = 0.1;
+        supersedeRate = 0.5;
+        veoRatio = 0.9;
+        lnkRate = 0.0;
+        annotateRate = 0.1;
+        fileSize = 1024;
+        seed = 1;
+        config(args, usage);
+
+        // just asked for help?
+        if (help) {
+            LOG.setLevel(Level.INFO);
+            LOG.info("'Generate' command line arguments:");
+            LOG.info(" Mandatory:");
+            LOG.info("  -o <directory>: directory to generate the transfer in (must not exist, or be empty)");
+            LOG.info("");
+            LOG.info(" Optional:");
+            LOG.info("  -deliveries <n>: number of deliveries (default 1)");
+            LOG.info("  -files <n>: number of files in each delivery (default 1000)");
+            LOG.info("  -depth <n>: depth of the directory tree in each delivery (default 2)");
+            LOG.info("  -fanout <n>: number of subdirectories in each directory (default 5)");
+            LOG.info("  -dup-rate <0-1>: proportion of files duplicating another in the same delivery (default 0.01)");
+            LOG.info("  -redeliver-rate <0-1>: proportion of files in later deliveries that re-deliver an earlier Item (default 0.1)");
+            LOG.info("  -supersede-rate <0-1>: proportion of re-delivered files whose content has changed (default 0.5)");
+            LOG.info("  -veo-ratio <0-1>: proportion of Items that are VEOs (default 0.9)");
+            LOG.info("  -lnk-rate <0-1>: proportion of files that are Windows shortcuts (default 0)");
+            LOG.info("  -annotate-rate <0-1>: proportion of Items listed in annotate.csv (default 0.1)");
+            LOG.info("  -size <bytes>: approximate size of each file (default 1024)");
+            LOG.info("  -seed <n>: seed of the random number generator (default 1)");
+            genericHelp();
+            return;
+        }
+
+        // check necessary fields have been specified
+        if (outputDir == null) {
+            throw new AppError("Directory to generate the transfer in has not been specified (-o)");
+        }
+        testParameters();
+
+        // say what we are doing
+        LOG.info("Requested:");
+        LOG.info(" Generate a synthetic transfer");
+        LOG.log(Level.INFO, " Directory: {0}", outputDir.toString());
+        LOG.log(Level.INFO, " Deliveries: {0} of {1} files", new Object[]{deliveries, files});
+        LOG.log(Level.INFO, " Directory tree: depth {0}, fan-out {1}", new Object[]{depth, fanout});
+        LOG.log(Level.INFO, " Duplicates within a delivery: {0}", dupRate);
+        LOG.log(Level.INFO, " Re-delivered: {0} (of which superseding: {1})", new Object[]{redeliverRate, supersedeRate});
+        LOG.log(Level.INFO, " VEOs: {0}, shortcuts: {1}, annotated: {2}", new Object[]{veoRatio, lnkRate, annotateRate});
+        LOG.log(Level.INFO, " File size: {0} bytes, seed: {1}", new Object[]{fileSize, Long.toString(seed)});
+        genericStatus();
+
+        doIt();
+
+        // acknowledge generation
+        LOG.log(Level.INFO, "Generated {0} files ({1} bytes) for {2} Items in ''{3}''", new Object[]{numFiles, numBytes, numItems, outputDir.toString()});
+        LOG.log(Level.INFO, " Duplicates within a delivery: {0}", numDuplicates);
+        LOG.log(Level.INFO, " Re-delivered: {0} (superseding: {1})", new Object[]{numRedelivered, numSuperseding});
+        LOG.log(Level.INFO, " Shortcuts: {0}", numShortcuts);
+        LOG.log(Level.INFO, " Items in annotate.csv: {0}", numAnnotated);
+    }
+
+    /**
+     * Check that the parameters make sense.
+     *
+     * @throws AppError if they don't
+     */
+    private void testParameters() throws AppError {
+        if (deliveries < 1 || files < 1) {
+            throw new AppError("Must generate at least one delivery of at least one file");
+        }
+        if (depth < 0 || fanout < 1) {
+            throw new AppError("Depth must not be negative, and fan-out must be at least one");
+        }
+        if (Math.pow(fanout, depth) > 1000000) {
+            throw new AppError("Directory tree is too large (fan-out^depth must not exceed 1,000,000)");
+        }
+        rate("-dup-rate", dupRate);
+        rate("-redeliver-rate", redeliverRate);
+        rate("-supersede-rate", supersedeRate);
+        rate("-veo-ratio", veoRatio);
+        rate("-lnk-rate", lnkRate);
+        rate("-annotate-rate", annotateRate);
+        if (fileSize < 0) {
+            throw new AppError("File size must not be negative");
+        }
+    }
+
+    private static void rate(String option, double r) throws AppError {
+        if (r < 0 || r > 1) {
+            throw new AppError("Value of " + option + " must be between 0 and 1 (was " + r + ")");
+        }
+    }
+
+    /**
+     * Internal function that actually does the work.
+     *
+     * @throws AppFatal
+     * @throws AppError
+     */
+    private void doIt() throws AppFatal, AppError {
+        List<Path> leaves;
+        BitSet inDelivery;
+        Path delivery, dir, other;
+        int d, i, item, version;
+        boolean redelivered;
+
+        try {
+            if (Files.isDirectory(outputDir)) {
+                try (Stream<Path> s = Files.list(outputDir)) {
+                    if (s.findAny().isPresent()) {
+                        throw new AppError("Directory '" + outputDir.toString() + "' is not empty");
+                    }
+                }
+            }
+            Files.createDirectories(outputDir);
+        } catch (IOException ioe) {
+            throw new AppFatal("Failed creating '" + outputDir.toString() + "': " + ioe.getMessage());
+        }
+
+        rnd = new Random(seed);
+        numItems = 0;
+        numFiles = 0;
+        numDuplicates = 0;
+        numRedelivered = 0;
+        numSuperseding = 0;
+        numShortcuts = 0;
+        numAnnotated = 0;
+        numBytes = 0;
+        written = new BitSet();
+        leaves = new ArrayList<>();
+        inDelivery = new BitSet();
+        try {
+            for (d = 1; d <= deliveries; d++) {
+                delivery = outputDir.resolve("delivery-" + d);
+                leaves.clear();
+                inDelivery.clear();
+                tree(delivery, depth, leaves);
+                for (Path leaf : leaves) {
+                    Files.createDirectories(leaf);
+                }
+                for (i = 0; i < files; i++) {
+
+                    // an Item from an earlier delivery (not already in this
+                    // one, which would overwrite it), or a new one
+                    item = d > 1 && numItems > 0 && rnd.nextDouble() < redeliverRate ? rnd.nextInt(numItems) : -1;
+                    redelivered = item != -1 && !inDelivery.get(item);
+                    if (redelivered) {
+                        version = rnd.nextDouble() < supersedeRate ? d : 1;
+                        numRedelivered++;
+                        if (version != 1) {
+                            numSuperseding++;
+                        }
+                    } else {
+                        item = numItems++;
+                        version = 1;
+                    }
+                    inDelivery.set(item);
+                    dir = leaves.get(rnd.nextInt(leaves.size()));
+                    write(dir, item, version);
+
+                    // a duplicate elsewhere in the delivery
+                    if (i + 1 < files && rnd.nextDouble() < dupRate) {
+                        other = leaves.get(rnd.nextInt(leaves.size()));
+                        if (other.equals(dir)) {
+                            other = dir.resolve("copy");
+                            Files.createDirectories(other);
+                        }
+                        write(other, item, version);
+                        numDuplicates++;
+                        i++;
+                    }
+                }
+                LOG.log(Level.INFO, "Generated delivery {0}", d);
+            }
+            annotations(outputDir.resolve("annotate.csv"));
+        } catch (IOException ioe) {
+            throw new AppFatal("Failed generating transfer in '" + outputDir.toString() + "': " + ioe.getMessage());
+        }
+    }
+
+    /**
+     * List the directories at the bottom of a directory tree.
+     *
+     * @param dir the root of the tree
+     * @param levels the levels below the root
+     * @param leaves the list of directories at the bottom
+     */
+    private void tree(Path dir, int levels, List<Path> leaves) {
+        int i;
+
+        if (levels == 0) {
+            leaves.add(dir);
+            return;
+        }
+        for (i = 1; i <= fanout; i++) {
+            tree(dir.resolve("S" + levels + "-" + i), levels - 1, leaves);
+        }
+    }
+
+    /**
+     * Get the name of an Item. Whether it is a VEO depends only on the Item,
+     * so each delivery of it has the same name.
+     *
+     * @param item the Item
+     * @return its name
+     */
+    private String itemName(int item) {
+        long h;
+
+        h = (item * 0x9E3779B97F4A7C15L) >>> 11;
+        return String.format("R%07d", item) + ((h % 10000) < veoRatio * 10000 ? ".veo.zip" : ".pdf");
+    }
+
+    /**
+     * Write a file for an instance of an Item. The content depends only on
+     * the Item and its version, so identical instances have identical
+     * content.
+     *
+     * @param dir the directory to write it in
+     * @param item the Item
+     * @param version the version of its content
+     * @throws IOException
+     */
+    private void write(Path dir, int item, int version) throws IOException {
+        Random content;
+        String name;
+        Path p;
+        byte[] b;
+
+        name = itemName(item);
+        if (rnd.nextDouble() < lnkRate) {
+            p = dir.resolve(name + ".lnk");
+            b = ("Shortcut to " + name + "\r\n").getBytes(StandardCharsets.UTF_8);
+            Files.write(p, b);
+            numShortcuts++;
+        } else {
+            written.set(item);
+            p = dir.resolve(name);
+            content = new Random(((long) item << 20) ^ version ^ seed);
+            b = new byte[fileSize];
+            content.nextBytes(b);
+            if (VeoZip.isVeoZip(name)) {
+                try (OutputStream os = new BufferedOutputStream(Files.newOutputStream(p)); ZipOutputStream zos = new ZipOutputStream(os)) {
+                    entry(zos, name.substring(0, name.length() - 4) + "/VEOContent.xml", ("<vers:VEOContent><vers:Version>" + version + "</vers:Version></vers:VEOContent>").getBytes(StandardCharsets.UTF_8));
+                    entry(zos, name.substring(0, name.length() - 4) + "/VEOHistory.xml", "<vers:VEOHistory/>".getBytes(StandardCharsets.UTF_8));
+                    entry(zos, name.substring(0, name.length() - 4) + "/RecordContent/document.bin", b);
+                }
+            } else {
+                Files.write(p, b);
+            }
+        }
+        numFiles++;
+        numBytes += Files.size(p);
+    }
+
+    private static void entry(ZipOutputStream zos, String name, byte[] b) throws IOException {
+        zos.putNextEntry(new ZipEntry(name));
+        zos.write(b);
+        zos.closeEntry();
+    }
+
+    /**
+     * Write the annotation file, listing a proportion of the Items, each in
+     * one of three groups. Items only ever delivered as shortcuts are not
+     * listed, as they are not in the transfer under their own name.
+     *
+     * @param file the annotation file
+     * @throws IOException
+     */
+    private void annotations(Path file) throws IOException {
+        int i;
+
+        try (BufferedWriter w = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            w.write("Item,Group\r\n");
+            for (i = 0; i < numItems; i++) {
+                if (written.get(i) && rnd.nextDouble() < annotateRate) {
+                    w.write(itemName(i));
+                    w.write(',');
+                    w.write("ABC".charAt(rnd.nextInt(3)));
+                    w.write("\r\n");
+                    numAnnotated++;
+                }
+            }
+        }
+    }
+
+    /**
+     * Process command line arguments specific to this command. Passed the array
+     * of command line arguments, and the current position in the array. Returns
+     * the number of arguments consumed (0 = nothing matched)
+     *
+     * @param args command line arguments
+     * @param i position in command line arguments
+     * @return command line arguments consumed
+     * @throws AppError
+     * @throws ArrayIndexOutOfBoundsException
+     */
+    @Override
+    int specificConfig(String[] args, int i) throws AppError, ArrayIndexOutOfBoundsException {
+        String option;
+
+        option = args[i].toLowerCase();
+        switch (option) {
+            case "-o":
+                outputDir = Paths.get(args[i + 1]);
+                break;
+            case "-deliveries":
+                deliveries = number(option, args[i + 1]);
+                break;
+            case "-files":
+                files = number(option, args[i + 1]);
+                break;
+            case "-depth":
+                depth = number(option, args[i + 1]);
+                break;
+            case "-fanout":
+                fanout = number(option, args[i + 1]);
+                break;
+            case "-dup-rate":
+                dupRate = fraction(option, args[i + 1]);
+                break;
+            case "-redeliver-rate":
+                redeliverRate = fraction(option, args[i + 1]);
+                break;
+            case "-supersede-rate":
+                supersedeRate = fraction(option, args[i + 1]);
+                break;
+            case "-veo-ratio":
+                veoRatio = fraction(option, args[i + 1]);
+                break;
+            case "-lnk-rate":
+                lnkRate = fraction(option, args[i + 1]);
+                break;
+            case "-annotate-rate":
+                annotateRate = fraction(option, args[i + 1]);
+                break;
+            case "-size":
+                fileSize = number(option, args[i + 1]);
+                break;
+            case "-seed":
+                try {
+                    seed = Long.parseLong(args[i + 1]);
+                } catch (NumberFormatException nfe) {
+                    throw new AppError("Value of -seed must be a number, not '" + args[i + 1] + "'");
+                }
+                break;
+            // otherwise complain
+            default:
+                return 0;
+        }
+        return 2;
+    }
+
+    private static int number(String option, String s) throws AppError {
+        try {
+            return Integer.parseInt(s);
+        } catch (NumberFormatException nfe) {
+            throw new AppError("Value of " + option + " must be a number, not '" + s + "'");
+        }
+    }
+
+    private static double fraction(String option, String s) throws AppError {
+        try {
+            return Double.parseDouble(s);
+        } catch (NumberFormatException nfe) {
+            throw new AppError("Value of " + option + " must be a number between 0 and 1, not '" + s + "'");
+        }
+    }
+}
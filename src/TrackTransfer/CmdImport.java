@@ -0,0 +1,254 @@
+package TrackTransfer;
+
+import VERSCommon.AppError;
+import VERSCommon.AppFatal;
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Import a snapshot (see Snapshot and CmdExport) into a new database. The
+ * tables are created as for a new transfer, and the rows are then loaded in
+ * batches with the referential constraints switched off, keeping the keys
+ * they had in the exported transfer. The identity columns are then set to
+ * carry on from the largest key loaded.
+ *
+ * The snapshot may have been exported by an earlier version of TrackTransfer;
+ * columns it does not have are given their default values.
+ *
+ * @author Andrew Waugh
+ */
+public class CmdImport extends Command {
+
+    private final static Logger LOG = Logger.getLogger("TrackTransfer.CmdImport");
+    private Path inputFile;     // snapshot to import
+    private long rows;          // number of rows imported
+    private final static int BATCH_SIZE = 1000;     // rows inserted in each batch
+    private final static int COMMIT_EVERY = 50000;  // rows inserted in each transaction
+    private final String usage = "-db <database> -in <file> [-v] [-d] [-help]";
+
+    public CmdImport() throws AppFatal {
+        super();
+    }
+
+    /**
+     * Import a snapshot into a new database. API version.
+     *
+     * Do not call this method directly, use the wrapper in the TrackTransfer
+     * class.
+     *
+     * @param database the database to create
+     * @param inputFile the snapshot
+     * @return the number of rows imported
+     * @throws AppFatal thrown if TrackTransfer had an internal error
+     * @throws AppError thrown if the calling program did something wrong
+     * @throws SQLException SQL problem occurred
+     */
+    public long importSnapshot(String database, Path inputFile) throws AppFatal, AppError, SQLException {
+        assert database != null;
+        assert inputFile != null;
+
+        this.database = database;
+        this.inputFile = inputFile;
+        doIt();
+        return rows;
+    }
+
+    /**
+     * Import a snapshot into a new database. Command line version.
+     *
+     * @param args
+     * @throws AppFatal thrown if TrackTransfer had an internal error
+     * @throws AppError thrown if the calling program did something wrong
+     * @throws SQLException SQL problem occurred
+     */
+    public void importSnapshot(String args[]) throws AppFatal, AppError, SQLException {
+        inputFile = null;
+        config(args, usage);
+
+        // just asked for help?
+        if (help) {
+            LOG.setLevel(Level.INFO);
+            LOG.info("'Import' command line arguments:");
+            LOG.info(" Mandatory:");
+            LOG.info("  -db <database>: Database to create");
+            LOG.info("  -in <file>: snapshot to import (written by 'export')");
+            LOG.info("");
+            LOG.info(" Optional:");
+            genericHelp();
+            return;
+        }
+
+        // check necessary fields have been specified
+        if (database == null) {
+            throw new AppError("URL for database has not been specified (-db)");
+        }
+        if (inputFile == null) {
+            throw new AppError("No snapshot to import has been specified (-in)");
+        }
+
+        // say what we are doing
+        LOG.info("Requested:");
+        LOG.info(" Import a snapshot into a new database");
+        LOG.log(Level.INFO, " Database: {0}", database);
+        LOG.log(Level.INFO, " Snapshot: {0}", inputFile.toString());
+        genericStatus();
+
+        doIt();
+
+        // acknowledge import
+        LOG.log(Level.INFO, "{0} rows imported from ''{1}'' to ({2})", new Object[]{rows, inputFile.toString(), database});
+    }
+
+    /**
+     * Internal function that actually does the work.
+     *
+     * @throws AppFatal
+     * @throws AppError
+     * @throws SQLException
+     */
+    private void doIt() throws AppFatal, AppError, SQLException {
+        String table;
+
+        connectDB();
+        rows = 0;
+        try (Snapshot.Reader r = new Snapshot.Reader(new BufferedInputStream(new FileInputStream(inputFile.toFile())))) {
+            CmdCreateTransfer.createTables(database);
+            SQLTable.update("set REFERENTIAL_INTEGRITY false");
+            try {
+                while ((table = r.table()) != null) {
+                    if (!Arrays.asList(Snapshot.TABLES).contains(table)) {
+                        throw new AppError("Snapshot contains an unknown table (" + table + ")");
+                    }
+                    loadTable(r, table);
+                    restartIdentity(table);
+                }
+            } catch (AppError | SQLException e) {
+                throw new AppError("Failed importing snapshot (drop the database before trying again): " + e.getMessage());
+            } finally {
+                SQLTable.update("set REFERENTIAL_INTEGRITY true");
+            }
+        } catch (IOException ioe) {
+            throw new AppError("Failed reading snapshot '" + inputFile.toString() + "' (drop the database before trying again): " + ioe.getMessage());
+        } finally {
+            disconnectDB();
+        }
+    }
+
+    /**
+     * Load the rows of a table from the snapshot, in batches. The keys of
+     * the rows are kept, overriding the identity columns.
+     *
+     * @param r the snapshot, positioned at the table
+     * @param table the name of the table
+     * @throws IOException
+     * @throws AppError
+     * @throws SQLException
+     */
+    private void loadTable(Snapshot.Reader r, String table) throws IOException, AppError, SQLException {
+        StringBuilder sb = new StringBuilder();
+        String[] columns;
+        Object[] values;
+        int i, n;
+
+        columns = r.columns();
+        sb.append("insert into ");
+        sb.append(table);
+        sb.append(" (");
+        sb.append(String.join(", ", columns));
+        sb.append(") overriding system value values (");
+        for (i = 0; i < columns.length; i++) {
+            sb.append(i == 0 ? "?" : ", ?");
+        }
+        sb.append(");");
+        values = new Object[columns.length];
+        n = 0;
+        try (PreparedStatement ps = SQLTable.prepare(sb.toString())) {
+            SQLTable.beginTransaction();
+            while (r.row(values)) {
+                for (i = 0; i < values.length; i++) {
+                    ps.setObject(i + 1, values[i]);
+                }
+                ps.addBatch();
+                n++;
+                if (n % BATCH_SIZE == 0) {
+                    ps.executeBatch();
+                }
+                if (n % COMMIT_EVERY == 0) {
+                    SQLTable.commit();
+                    SQLTable.beginTransaction();
+                    LOG.log(Level.INFO, "Imported: {0} rows into {1}", new Object[]{n, table});
+                }
+            }
+            ps.executeBatch();
+            SQLTable.commit();
+        } catch (AppError | IOException | SQLException e) {
+            SQLTable.rollback();
+            throw e;
+        }
+        LOG.log(Level.FINE, "Imported {0} rows into {1}", new Object[]{n, table});
+        rows += n;
+    }
+
+    /**
+     * Set the identity column of a table (if it has one) to carry on from
+     * the largest key loaded.
+     *
+     * @param table the name of the table
+     * @throws SQLException
+     */
+    private void restartIdentity(String table) throws SQLException {
+        String column;
+        int next;
+
+        try (ResultSet rs = SQLTable.query("select COLUMN_NAME from INFORMATION_SCHEMA.COLUMNS where TABLE_SCHEMA='PUBLIC' and TABLE_NAME='" + table + "' and IS_IDENTITY='YES';")) {
+            if (!rs.next()) {
+                return;
+            }
+            column = rs.getString("COLUMN_NAME");
+        }
+        try (ResultSet rs = SQLTable.query("select coalesce(max(" + column + "), 0) + 1 from " + table + ";")) {
+            rs.next();
+            next = rs.getInt(1);
+        }
+        SQLTable.update("alter table " + table + " alter column " + column + " restart with " + next + ";");
+    }
+
+    /**
+     * Process command line arguments specific to this command. Passed the array
+     * of command line arguments, and the current position in the array. Returns
+     * the number of arguments consumed (0 = nothing matched)
+     *
+     * @param args command line arguments
+     * @param i position in command line arguments
+     * @return command line arguments consumed
+     * @throws AppError
+     * @throws ArrayIndexOutOfBoundsException
+     */
+    @Override
+    int specificConfig(String[] args, int i) throws AppError, ArrayIndexOutOfBoundsException {
+        int j;
+
+        switch (args[i].toLowerCase()) {
+            // snapshot to import
+            case "-in":
+                i++;
+                inputFile = Paths.get(args[i]);
+                i++;
+                j = 2;
+                break;
+            // otherwise complain
+            default:
+                j = 0;
+        }
+        return j;
+    }
+}
@@ -0,0 +1,246 @@
+package TrackTransfer;
+
+import VERSCommon.AppError;
+import VERSCommon.AppFatal;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Maintain the database. After many deliveries and deletions (e.g. of dead
+ * keywords) the database file grows and becomes fragmented, which slows the
+ * reports that scan it. This command rebuilds the indexes, refreshes the
+ * statistics used by the query optimiser (ANALYZE), and compacts the file,
+ * reporting its size before and after.
+ *
+ * Compacting the file needs the database to itself (it is closed to do so).
+ * If other commands may be using the database (e.g. it is being served, see
+ * CmdServe), the maintenance can be run online: the statistics are refreshed
+ * and the changes are written to the file, but the indexes are not rebuilt
+ * and the file is not compacted.
+ *
+ * If the transfer is sharded, each shard is maintained in turn.
+ *
+ * @author Andrew Waugh
+ */
+public class CmdMaintain extends Command {
+
+    private final static Logger LOG = Logger.getLogger("TrackTransfer.CmdMaintain");
+    private boolean online;     // true if other commands may be using the database
+    private long sizeBefore;    // size of the database file(s) before maintenance
+    private long sizeAfter;     // size of the database file(s) after maintenance
+    private final String usage = "[-db <database>] [-online] [-v] [-d] [-help]";
+
+    public CmdMaintain() throws AppFatal {
+        super();
+    }
+
+    /**
+     * Maintain the database. API version.
+     *
+     * Do not call this method directly, use the wrapper in the TrackTransfer
+     * class.
+     *
+     * @param database database to maintain (may be null)
+     * @param online true if other commands may be using the database
+     * @return the size of the database file(s) in bytes after maintenance
+     * @throws AppFatal thrown if TrackTransfer had an internal error
+     * @throws AppError thrown if the calling program did something wrong
+     * @throws SQLException SQL problem occurred
+     */
+    public long maintain(String database, boolean online) throws AppFatal, AppError, SQLException {
+        this.database = database;
+        this.online = online;
+        doIt();
+        return sizeAfter;
+    }
+
+    /**
+     * Maintain the database. Command line version.
+     *
+     * @param args
+     * @throws AppFatal thrown if TrackTransfer had an internal error
+     * @throws AppError thrown if the calling program did something wrong
+     * @throws SQLException SQL problem occurred
+     */
+    public void maintain(String args[]) throws AppFatal, AppError, SQLException {
+        maintain(args, false);
+    }
+
+    /**
+     * Maintain the database. Command line version, used by the server, which
+     * always maintains the database online.
+     *
+     * @param args
+     * @param forceOnline true if the maintenance must be online
+     * @throws AppFatal thrown if TrackTransfer had an internal error
+     * @throws AppError thrown if the calling program did something wrong
+     * @throws SQLException SQL problem occurred
+     */
+    void maintain(String args[], boolean forceOnline) throws AppFatal, AppError, SQLException {
+        online = false;
+        config(args, usage);
+        online |= forceOnline;
+
+        // just asked for help?
+        if (help) {
+            LOG.setLevel(Level.INFO);
+            LOG.info("'Maintain' command line arguments:");
+            LOG.info(" Optional:");
+            LOG.info("  -db <database>: Database name (default based on .mv.db file in current working directory)");
+            LOG.info("  -online: other commands may be using the database; refresh the statistics but don't rebuild the indexes or compact the file");
+            genericHelp();
+            return;
+        }
+
+        // say what we are doing
+        LOG.info("Requested:");
+        LOG.info(" Maintain the database");
+        LOG.log(Level.INFO, " Database: {0}", database == null ? "Derived from .mv.db filename" : database);
+        if (online) {
+            LOG.info(" Online (statistics only; indexes not rebuilt, file not compacted)");
+        }
+        genericStatus();
+
+        doIt();
+
+        // acknowledge maintenance
+        LOG.log(Level.INFO, "Database ({0}) maintained: {1} bytes before, {2} bytes after", new Object[]{database, sizeBefore, sizeAfter});
+    }
+
+    /**
+     * Internal function that actually does the work.
+     *
+     * @throws AppFatal
+     * @throws AppError
+     * @throws SQLException
+     */
+    private void doIt() throws AppFatal, AppError, SQLException {
+        String transfer;
+        int i, shards;
+
+        sizeBefore = 0;
+        sizeAfter = 0;
+        transfer = connectDB();
+        try {
+            shards = TblTransfer.getShards();
+            maintainShard();
+        } finally {
+            disconnectDB();
+        }
+        for (i = 1; i < shards; i++) {
+            database = Shards.url(transfer, i);
+            connectDB();
+            try {
+                maintainShard();
+            } finally {
+                disconnectDB();
+            }
+        }
+        database = transfer;
+    }
+
+    /**
+     * Maintain the connected database.
+     *
+     * @throws AppFatal
+     * @throws AppError
+     * @throws SQLException
+     */
+    private void maintainShard() throws AppFatal, AppError, SQLException {
+        long before, after;
+
+        before = fileSize();
+        if (!online) {
+            rebuildIndexes();
+        }
+        SQLTable.update("analyze;");
+        if (online) {
+            SQLTable.update("checkpoint sync;");
+        } else {
+
+            // compacting closes the database (for every connection), so the
+            // keyword index must be saved first. Then reconnect to measure it
+            KeywordIndex.close();
+            SQLTable.shutdownCompact();
+            disconnectDB();
+            connectDB();
+        }
+        after = fileSize();
+        LOG.log(Level.INFO, " {0}: {1} bytes before, {2} bytes after", new Object[]{database, before, after});
+        sizeBefore += before;
+        sizeAfter += after;
+    }
+
+    /**
+     * Rebuild the secondary indexes created by TrackTransfer (those named
+     * 'IDX_...') by dropping and recreating them. The indexes behind the
+     * primary keys and constraints are rebuilt when the file is compacted.
+     *
+     * @throws SQLException
+     */
+    private void rebuildIndexes() throws SQLException {
+        List<String[]> indexes = new ArrayList<>();
+        List<String> columns = new ArrayList<>();
+
+        try (ResultSet rs = SQLTable.query("select TABLE_NAME, INDEX_NAME, INDEX_TYPE_NAME from INFORMATION_SCHEMA.INDEXES where TABLE_SCHEMA='PUBLIC' and INDEX_NAME like 'IDX\\_%' order by INDEX_NAME;")) {
+            while (rs.next()) {
+                indexes.add(new String[]{rs.getString("TABLE_NAME"), rs.getString("INDEX_NAME"), rs.getString("INDEX_TYPE_NAME")});
+            }
+        }
+        for (String[] index : indexes) {
+            columns.clear();
+            try (ResultSet rs = SQLTable.query("select COLUMN_NAME from INFORMATION_SCHEMA.INDEX_COLUMNS where TABLE_SCHEMA='PUBLIC' and INDEX_NAME='" + index[1] + "' order by ORDINAL_POSITION;")) {
+                while (rs.next()) {
+                    columns.add(rs.getString("COLUMN_NAME"));
+                }
+            }
+            LOG.log(Level.FINE, "Rebuilding index {0} on {1} ({2})", new Object[]{index[1], index[0], String.join(", ", columns)});
+            SQLTable.update("drop index " + index[1] + ";");
+            SQLTable.update("create " + (index[2].startsWith("UNIQUE") ? "unique " : "") + "index " + index[1] + " on " + index[0] + " (" + String.join(", ", columns) + ");");
+        }
+    }
+
+    /**
+     * Get the size of the file holding the connected database.
+     *
+     * @return the size in bytes (0 if not known, e.g. an in memory database)
+     * @throws SQLException
+     */
+    private long fileSize() throws SQLException {
+        try (ResultSet rs = SQLTable.query("select SETTING_VALUE from INFORMATION_SCHEMA.SETTINGS where SETTING_NAME='info.FILE_SIZE';")) {
+            return rs.next() ? Long.parseLong(rs.getString(1)) : 0;
+        }
+    }
+
+    /**
+     * Process command line arguments specific to this command. Passed the array
+     * of command line arguments, and the current position in the array. Returns
+     * the number of arguments consumed (0 = nothing matched)
+     *
+     * @param args command line arguments
+     * @param i position in command line arguments
+     * @return command line arguments consumed
+     * @throws AppError
+     * @throws ArrayIndexOutOfBoundsException
+     */
+    @Override
+    int specificConfig(String[] args, int i) throws AppError, ArrayIndexOutOfBoundsException {
+        int j;
+
+        switch (args[i].toLowerCase()) {
+            // other commands may be using the database
+            case "-online":
+                online = true;
+                j = 1;
+                break;
+            // otherwise complain
+            default:
+                j = 0;
+        }
+        return j;
+    }
+}
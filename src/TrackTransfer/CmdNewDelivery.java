@@ -3,19 +3,82 @@ package TrackTransfer;
 import VERSCommon.AppError;
 import VERSCommon.AppFatal;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
 import java.nio.file.DirectoryIteratorException;
 import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.NoSuchAlgorithmException;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
  * Create a new Delivery within the Transfer. Multiple deliveries can be added
  * to a transfer; they represent tranches of Items received.
+ *
+ * If asked, the delivery directory is then watched, and files that are added
+ * or changed later (e.g. because the agency is copying the delivery over
+ * several days) are registered in the same delivery as they arrive. A file is
+ * only registered once it has been quiet for a few seconds, and the files are
+ * registered in small transactions. A file that changes after it has been
+ * registered is registered again, and the new instance supersedes the earlier
+ * one (rather than being reported as a duplicate in the delivery). If a
+ * transaction conflicts with another command, it is rolled back and its files
+ * are registered later.
+ *
+ * Normally an instance belongs to the Item with the same file name. If asked,
+ * an instance whose file name has not been seen before, but whose content is
+ * identical to an existing Item, is treated as an instance of that Item (i.e.
+ * a renamed resubmission). To avoid reading every byte of every file, this is
+ * a two stage check. The size and partial hash (the hash of the first and
+ * last MB, see Hasher) of each instance are recorded, and a file is only
+ * hashed in full if these match the active instance of an existing Item. If
+ * asked, the full hash of every instance is also recorded in its Item as the
+ * fixity baseline for 'verify'.
+ *
+ * If asked, each VEO zip file is introspected as it is received: its central
+ * directory is read (see VeoZip) on a pool of threads, and the number of
+ * entries, their uncompressed size, and a digest of the entries are recorded
+ * in the instance. A VEO that is truncated or corrupt has an event recorded
+ * against it. The instances are still registered in the order they are found.
+ *
+ * If the transfer is sharded (see Shards), the delivery is registered in
+ * each shard by its own thread and connection. The delivery is walked once,
+ * by another thread, which passes each file to the thread of the shard its
+ * name belongs to (see Feed). Files cannot be identified by content in a
+ * sharded transfer, as the Item with the same content could be in any shard.
+ *
+ * If asked, the delivery is only planned: the directory is walked and each
+ * file is resolved against the database (and the files already found in the
+ * delivery) to count the items that would be created, superseded, duplicated,
+ * or received too late, and the run time is estimated from the throughput of
+ * recent deliveries (see TblRunMetric). Nothing is written to the database.
  * 
  * @author Andrew Waugh
  */
@@ -37,12 +100,49 @@ public class CmdNewDelivery extends Command {
     private int replacesDuplPrevDeliveryEvent; // event stating that this instance duplicates an instance in a previous delivery
     private int replacedByDuplThisDeliveryEvent; // event stating that this instance was duplicated in a delivery
     private int replacesDuplThisDeliveryEvent; // event stating that this instance duplicates an instance in this delivery
+    private int supersededThisDeliveryEvent; // event stating that this instance was replaced by a changed copy in this delivery
+    private int supersedesThisDeliveryEvent; // event stating that this instance is a changed copy of an instance in this delivery
     private int notRecordEvent;  // event stating that this instance was judged to be not a record
     private int tooLateEvent;    // event stating that this instance was received after record had had custody accepted
-    private String usage = "[-db <database>] -desc <text> -dir <directory> [-veo]";
+    private boolean watch;       // if true, watch the delivery for new or changed files after registering it
+    private int idleMinutes;     // stop watching after this many minutes without a change
+    private Map<Path, FileStamp> registered; // files registered in this delivery (only kept when watching)
+    private Set<Path> changed;   // files being registered again because they changed (only kept when watching)
+    private boolean byContent;   // if true, identify items by their content as well as their file name
+    private Hasher hasher;       // used to hash instances when identifying by content
+    private boolean fixity;      // if true, record the full hash of each instance in its item
+    private Map<String, Integer> contentSeen; // items found or created in this delivery, by size and partial hash
+    private int numSameContent;  // number of instances identified by their content
+    private int numFullHashes;   // number of files hashed in full
+    private boolean introspect;  // if true, look inside VEO zip files
+    private ExecutorService introspector; // pool introspecting VEO zip files (null if not introspecting)
+    private ArrayDeque<Queued> queued; // files waiting to be registered while they are introspected
+    private int numBadVeos;      // number of VEO zip files that failed introspection
+    private long allocated;      // bytes allocated by this thread while registering (-1 if not measurable)
+    private long elapsed;        // milliseconds spent registering
+    private boolean plan;        // if true, only count what registering the delivery would do
+    private int numNewItems;     // planned: number of items that would be created
+    private int numSuperseding;  // planned: number of instances that would supersede an instance in a previous delivery
+    private int numDuplPrev;     // planned: number of instances that would duplicate an instance in a previous delivery
+    private int numDuplThis;     // planned: number of instances that would duplicate an instance in this delivery
+    private int numTooLate;      // planned: number of instances of items that have been finalised
+    private int shard;           // shard this command registers (-1 if the command as invoked)
+    private int shards;          // number of shards in the transfer
+    private Feed feed;           // files found by walking the delivery once (null if this command walks it)
+    private final TblItem.Row item = new TblItem.Row(); // item an instance belongs to (reused for each instance)
+    private final TblInstance.Row prevInstance = new TblInstance.Row(); // previous active instance of the item (reused)
+    private String usage = "[-db <database>] -desc <text> -dir <directory> [-veo] [-content] [-fixity] [-introspect] [-watch [-idle <minutes>]] [-plan]";
+    private final static int DEFAULT_IDLE = 60;      // default minutes to watch without a change
+    private final static long DEBOUNCE_MS = 5000;    // a file must be quiet this long before it is registered
+    private final static long POLL_MS = 1000;        // how often to look for quiet files
+    private final static int WATCH_BATCH = 100;      // files registered in one transaction when watching
+    private final static int READ_AHEAD = 4;         // files queued per introspecting thread
+    private final static int FEED_SIZE = 1000;       // files queued for each shard by the thread walking the delivery
 
     public CmdNewDelivery() throws AppFatal {
         super();
+        shard = -1;
+        shards = 1;
     }
     
     /**
@@ -71,9 +171,50 @@ public class CmdNewDelivery extends Command {
         this.rootDir = rootDir;
         this.veo = veoOnly;
         this.supersedePrevious = supersedePrevious;
+        this.byContent = false;
+        this.fixity = false;
+        this.introspect = false;
+        this.watch = false;
         
         doIt();
     }
+
+    /**
+     * Add a new delivery, and then watch the delivery for files that are added
+     * or changed, registering them in the delivery. Returns when nothing has
+     * changed for idleMinutes. API version.
+     *
+     * Do not call this method directly, use the wrapper in the TrackTransfer
+     * class.
+     *
+     * @param database the string representing the database
+     * @param description a description of this delivery (e.g. an ID)
+     * @param rootDir the root of the tree of items in the delivery
+     * @param veoOnly true if only files ending in .veo or .veo.zip are to be processed
+     * @param supersedePrevious true if any duplicates will supersede any previous instances
+     * @param idleMinutes stop watching after this many minutes without a change
+     * @throws AppFatal thrown if TrackTransfer had an internal error
+     * @throws AppError thrown if the calling program did something wrong
+     * @throws SQLException SQL problem occurred
+     */
+    public void newDelivery(String database, String description, Path rootDir, boolean veoOnly, boolean supersedePrevious, int idleMinutes) throws AppFatal, AppError, SQLException {
+        assert description != null;
+        assert rootDir != null;
+        assert idleMinutes > 0;
+
+        this.database = database;
+        this.desc = description;
+        this.rootDir = rootDir;
+        this.veo = veoOnly;
+        this.supersedePrevious = supersedePrevious;
+        this.byContent = false;
+        this.fixity = false;
+        this.introspect = false;
+        this.watch = true;
+        this.idleMinutes = idleMinutes;
+
+        doIt();
+    }
     
     /**
      * Add a new delivery. Command line version.
@@ -86,6 +227,13 @@ public class CmdNewDelivery extends Command {
     public void newDelivery(String args[]) throws AppFatal, AppError, SQLException {
         int key;
 
+        supersedePrevious = true;
+        byContent = false;
+        fixity = false;
+        introspect = false;
+        watch = false;
+        idleMinutes = DEFAULT_IDLE;
+        plan = false;
         config(args, usage);
 
         // just asked for help?
@@ -99,6 +247,12 @@ public class CmdNewDelivery extends Command {
             LOG.info(" Optional:");
             LOG.info("  -ignore-dups: any duplicate records are to be ignored (default is to supersede)");
             LOG.info("  -veo: items are only files that end in .veo or .veo.zip");
+            LOG.info("  -content: treat a file with a new name but the same content as an existing item as an instance of that item (not in a sharded transfer)");
+            LOG.info("  -fixity: record the hash of each file as the fixity baseline for 'verify'");
+            LOG.info("  -introspect: look inside each .veo.zip file, recording its contents and flagging any that are truncated or corrupt");
+            LOG.info("  -watch: keep watching the directory, registering files as they are added or changed");
+            LOG.info("  -idle <minutes>: stop watching after this many minutes without a change (default " + DEFAULT_IDLE + ")");
+            LOG.info("  -plan: count what registering the delivery would do, and estimate how long it would take, without changing the database");
             LOG.info("  -db <database>: Database name (default based on .mv.db file in current working directory)");
             genericHelp();
             LOG.info("");
@@ -129,6 +283,21 @@ public class CmdNewDelivery extends Command {
         } else {
             LOG.info(" Any records that duplicate those in previous deliveries will be ignored as duplicates");
         }
+        if (byContent) {
+            LOG.log(Level.INFO, " Identify items by content ({0}) as well as file name", Hasher.DEFAULT_ALG);
+        }
+        if (fixity) {
+            LOG.log(Level.INFO, " Record the hash ({0}) of each file", Hasher.DEFAULT_ALG);
+        }
+        if (introspect) {
+            LOG.info(" Look inside each VEO zip file");
+        }
+        if (watch) {
+            LOG.log(Level.INFO, " Watch the directory for new or changed files until nothing has changed for {0} minutes", idleMinutes);
+        }
+        if (plan) {
+            LOG.info(" Only plan the delivery; nothing will be written to the database");
+        }
         genericStatus();
 
         // check if the root directory is a directory and exists
@@ -138,11 +307,29 @@ public class CmdNewDelivery extends Command {
         if (!rootDir.toFile().isDirectory()) {
             throw new AppError("New Delivery: directory '" + rootDir.toString() + "' is not a directory");
         }
-        
+
+        if (plan) {
+            planDelivery();
+            return;
+        }
+
         key = doIt();
 
         // acknowledge creation
         LOG.log(Level.INFO, " Delivery added to ''{0}''; found: {1} (records: {2}, not records: {3})", new Object[]{database, noFiles, numRecords, numNotRecords});
+        if (byContent) {
+            LOG.log(Level.INFO, " Files with a new name but the same content as an existing item: {0}", numSameContent);
+        }
+        if (byContent || fixity) {
+            LOG.log(Level.INFO, " Files hashed in full: {0}", numFullHashes);
+        }
+        if (introspect) {
+            LOG.log(Level.INFO, " VEO zip files that are truncated or corrupt: {0}", numBadVeos);
+        }
+        if (allocated >= 0 && noFiles > 0) {
+            LOG.log(Level.INFO, " Memory allocated while registering: {0} bytes per file ({1} MB/s)",
+                    new Object[]{allocated / noFiles, elapsed == 0 ? 0 : allocated * 1000 / elapsed / (1024 * 1024)});
+        }
         LOG.log(Level.INFO, " Delivery row (key={0})", key);
     }
     
@@ -155,22 +342,47 @@ public class CmdNewDelivery extends Command {
      * @throws SQLException 
      */
     private int doIt() throws AppFatal, AppError, SQLException {
-        int transferKey, deliveryKey, deliveryEvent;
-        ResultSet rs;
-        
         noFiles = 0;
         numNotRecords = 0;
         numRecords = 0;
-        supersedePrevious = true;
-        receivedEvent = 0;
-        newRecordEvent = 0;
-        supersededEvent = 0;
-        replacedByDuplNewDeliveryEvent = 0;
-        notRecordEvent = 0;
-        tooLateEvent = 0;
+        forgetEvents();
+        registered = watch ? new HashMap<>() : null;
+        changed = watch ? new HashSet<>() : null;
+        hasher = (byContent || fixity) ? new Hasher(0) : null;
+        contentSeen = byContent ? new HashMap<>() : null;
+        numSameContent = 0;
+        numFullHashes = 0;
+        numBadVeos = 0;
+        queued = new ArrayDeque<>();
 
         // connect to the database and create the tables
         database = connectDB();
+        try {
+
+            // if the transfer is sharded, register the delivery in each shard
+            shards = TblTransfer.getShards();
+            checkShardable();
+            if (shards <= 1 || shard >= 0) {
+                return register();
+            }
+        } finally {
+            disconnectDB();
+        }
+        return registerShards();
+    }
+
+    /**
+     * Register the delivery in the connected database.
+     *
+     * @return the key of the delivery
+     * @throws AppFatal
+     * @throws AppError
+     * @throws SQLException
+     */
+    private int register() throws AppFatal, AppError, SQLException {
+        int transferKey, deliveryKey, deliveryEvent;
+        long allocStart, start;
+        ResultSet rs;
 
         // get the key for the one transfer
         transferKey = 0;
@@ -182,17 +394,377 @@ public class CmdNewDelivery extends Command {
         // add the details about the delivery
         deliveryKey = TblDelivery.add(transferKey, desc, rootDir);
 
-        // add the delivery event
-        deliveryEvent = TblEvent.add(desc);
+        // add the delivery event (the description is the parameter, so each
+        // delivery does not add its own template)
+        deliveryEvent = TblEvent.add("{0}", desc);
 
-        // process instances in the root directory
-        registerInstances(deliveryKey, desc, rootDir, deliveryEvent);
+        // process instances in the root directory, and then keep registering
+        // files as they arrive
+        introspector = introspect ? Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors()) : null;
+        allocStart = allocatedBytes();
+        start = System.currentTimeMillis();
+        try {
+            if (feed != null) {
+                registerFed(deliveryKey, deliveryEvent);
+            } else {
+                registerInstances(deliveryKey, desc, rootDir, deliveryEvent);
+            }
+            registerQueued(deliveryKey, deliveryEvent);
+            if (watch) {
+                watchDelivery(deliveryKey, deliveryEvent);
+            }
+        } finally {
+            if (introspector != null) {
+                introspector.shutdownNow();
+                introspector = null;
+            }
+            queued.clear();
+            registered = null;
+            elapsed = System.currentTimeMillis() - start;
+            allocated = allocStart < 0 ? -1 : allocatedBytes() - allocStart;
+        }
 
-        disconnectDB();
-        
+        // record the throughput (unless the time includes watching, or this
+        // is one of the shards)
+        if (!watch && shard < 0) {
+            TblRunMetric.add("newDelivery", noFiles, elapsed);
+        }
         return deliveryKey;
     }
     
+    /**
+     * Register the delivery in each shard of the transfer, each in its own
+     * thread, and total what was found.
+     *
+     * @return the key of the delivery in the first shard
+     * @throws AppFatal
+     * @throws AppError
+     * @throws SQLException
+     */
+    private int registerShards() throws AppFatal, AppError, SQLException {
+        List<CmdNewDelivery> workers;
+        List<Callable<Integer>> tasks;
+        List<Integer> keys;
+        long start;
+        int i;
+
+        LOG.log(Level.INFO, "Registering the delivery in {0} shards", shards);
+        workers = new ArrayList<>();
+        tasks = new ArrayList<>();
+        feed = new Feed(shards);
+        for (i = 0; i < shards; i++) {
+            workers.add(forShard(i));
+        }
+        for (CmdNewDelivery cnd : workers) {
+            tasks.add(() -> {
+                try {
+                    return cnd.doIt();
+                } catch (AppFatal | AppError | SQLException | RuntimeException e) {
+                    cnd.feed.stop();
+                    throw e;
+                }
+            });
+        }
+        tasks.add(() -> {
+            feed.walk(rootDir);
+            return 0;
+        });
+        start = System.currentTimeMillis();
+        keys = Shards.run(tasks);
+        feed = null;
+        elapsed = System.currentTimeMillis() - start;
+
+        allocated = 0;
+        for (CmdNewDelivery cnd : workers) {
+            noFiles += cnd.noFiles;
+            numNotRecords += cnd.numNotRecords;
+            numRecords += cnd.numRecords;
+            numSameContent += cnd.numSameContent;
+            numFullHashes += cnd.numFullHashes;
+            numBadVeos += cnd.numBadVeos;
+            allocated = (allocated < 0 || cnd.allocated < 0) ? -1 : allocated + cnd.allocated;
+        }
+
+        // record the throughput of the shards together
+        if (!watch) {
+            connectDB();
+            try {
+                TblRunMetric.add("newDelivery", noFiles, elapsed);
+            } finally {
+                disconnectDB();
+            }
+        }
+        return keys.get(0);
+    }
+
+    /**
+     * Check that the delivery can be registered in a sharded transfer. An
+     * Item is found by content by searching the connected database, so a
+     * file with the same content as an Item in another shard would not be
+     * found.
+     *
+     * @throws AppError if the transfer is sharded and -content was given
+     */
+    private void checkShardable() throws AppError {
+        if (shards > 1 && byContent) {
+            throw new AppError("Files cannot be identified by content (-content) in a sharded transfer");
+        }
+    }
+
+    /**
+     * Make a copy of this command to register the delivery in one shard.
+     *
+     * @param i the shard
+     * @return the copy
+     * @throws AppFatal
+     */
+    private CmdNewDelivery forShard(int i) throws AppFatal {
+        CmdNewDelivery w;
+
+        w = new CmdNewDelivery();
+        w.database = Shards.url(database, i);
+        w.desc = desc;
+        w.rootDir = rootDir;
+        w.veo = veo;
+        w.supersedePrevious = supersedePrevious;
+        w.byContent = byContent;
+        w.fixity = fixity;
+        w.introspect = introspect;
+        w.watch = watch;
+        w.idleMinutes = idleMinutes;
+        w.shard = i;
+        w.shards = shards;
+        w.feed = feed;
+        return w;
+    }
+
+    /**
+     * Does a file belong to the shard this command is registering?
+     *
+     * @param p the file
+     * @return true if the file is to be registered
+     */
+    private boolean inShard(Path p) {
+        return shard < 0 || Shards.of(p.getFileName().toString(), shards) == shard;
+    }
+
+    /**
+     * Plan the delivery. The files are found and resolved against the
+     * database exactly as if they were being registered, but only read from
+     * the database. If the transfer is sharded, each shard is planned in its
+     * own thread. The counts are logged.
+     *
+     * @throws AppFatal
+     * @throws AppError
+     * @throws SQLException
+     */
+    private void planDelivery() throws AppFatal, AppError, SQLException {
+        List<CmdNewDelivery> workers;
+        List<Callable<Object>> tasks;
+        int i;
+
+        database = connectDB();
+        try {
+            shards = TblTransfer.getShards();
+            checkShardable();
+        } finally {
+            disconnectDB();
+        }
+        if (shards > 1) {
+            workers = new ArrayList<>();
+            tasks = new ArrayList<>();
+            feed = new Feed(shards);
+            for (i = 0; i < shards; i++) {
+                workers.add(forShard(i));
+            }
+            for (CmdNewDelivery cnd : workers) {
+                tasks.add(() -> {
+                    try {
+                        cnd.planShard();
+                    } catch (AppFatal | AppError | SQLException | RuntimeException e) {
+                        cnd.feed.stop();
+                        throw e;
+                    }
+                    return null;
+                });
+            }
+            tasks.add(() -> {
+                feed.walk(rootDir);
+                return null;
+            });
+            Shards.run(tasks);
+            feed = null;
+            noFiles = 0;
+            numNotRecords = 0;
+            numNewItems = 0;
+            numSuperseding = 0;
+            numDuplPrev = 0;
+            numDuplThis = 0;
+            numTooLate = 0;
+            for (CmdNewDelivery cnd : workers) {
+                noFiles += cnd.noFiles;
+                numNotRecords += cnd.numNotRecords;
+                numNewItems += cnd.numNewItems;
+                numSuperseding += cnd.numSuperseding;
+                numDuplPrev += cnd.numDuplPrev;
+                numDuplThis += cnd.numDuplThis;
+                numTooLate += cnd.numTooLate;
+            }
+        } else {
+            planShard();
+        }
+
+        database = connectDB();
+        try {
+            LOG.info("Plan (nothing has been written to the database):");
+            LOG.log(Level.INFO, " Files found: {0} (records: {1}, not records: {2})", new Object[]{noFiles, noFiles - numNotRecords, numNotRecords});
+            LOG.log(Level.INFO, " Items that would be created: {0}", numNewItems);
+            if (supersedePrevious) {
+                LOG.log(Level.INFO, " Instances that would supersede an instance in a previous delivery: {0}", numSuperseding);
+            } else {
+                LOG.log(Level.INFO, " Instances that would duplicate an instance in a previous delivery: {0}", numDuplPrev);
+            }
+            LOG.log(Level.INFO, " Instances that would duplicate an instance in this delivery: {0}", numDuplThis);
+            LOG.log(Level.INFO, " Instances of items that have been finalised (too late): {0}", numTooLate);
+            if (byContent) {
+                LOG.info(" Files are not hashed when planning, so files with the same content as an existing item are counted as new items");
+            }
+            LOG.log(Level.INFO, " Estimated run time: {0}", TblRunMetric.estimate("newDelivery", noFiles));
+        } finally {
+            disconnectDB();
+        }
+    }
+
+    /**
+     * Plan the registration of the files that belong to the shard this
+     * command is registering (or all the files if the transfer is not
+     * sharded).
+     *
+     * @throws AppFatal
+     * @throws AppError
+     * @throws SQLException
+     */
+    private void planShard() throws AppFatal, AppError, SQLException {
+        Map<String, Boolean> seen = new HashMap<>();
+        Path entry;
+
+        noFiles = 0;
+        numNotRecords = 0;
+        numNewItems = 0;
+        numSuperseding = 0;
+        numDuplPrev = 0;
+        numDuplThis = 0;
+        numTooLate = 0;
+
+        connectDB();
+        try {
+            if (feed != null) {
+                while ((entry = feed.take(shard)) != null) {
+                    planFile(entry, seen);
+                }
+            } else {
+                planInstances(rootDir, seen);
+            }
+        } finally {
+            disconnectDB();
+        }
+    }
+
+    /**
+     * Plan the registration of the instances in this directory and the
+     * directories below it.
+     *
+     * @param dir the directory being planned
+     * @param seen the names of the items already found in the delivery, and
+     * whether they have been finalised
+     * @throws AppFatal something went fatally wrong
+     * @throws SQLException a database problem (should never occur)
+     */
+    private void planInstances(Path dir, Map<String, Boolean> seen) throws AppFatal, SQLException {
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir)) {
+            for (Path entry : ds) {
+                if (entry.toFile().isDirectory()) {
+                    planInstances(entry, seen);
+                } else if (inShard(entry)) {
+                    planFile(entry, seen);
+                }
+            }
+        } catch (DirectoryIteratorException | IOException e) {
+            throw new AppFatal(e.getMessage());
+        }
+    }
+
+    /**
+     * Plan the registration of one instance.
+     *
+     * @param entry the instance in the delivery
+     * @param seen the names of the items already found in the delivery, and
+     * whether they have been finalised
+     * @throws SQLException a database problem (should never occur)
+     */
+    private void planFile(Path entry, Map<String, Boolean> seen) throws SQLException {
+        String filename, itemName;
+        Boolean finalised;
+
+        noFiles++;
+        filename = entry.getFileName().toString();
+        if (veo && !VeoZip.isVeoZip(filename) && !filename.regionMatches(true, filename.length() - 4, ".veo", 0, 4)) {
+            numNotRecords++;
+        }
+
+        // an item found earlier in this delivery is duplicated, otherwise
+        // look for the item in the database. As in registerInstance(), the
+        // item is looked for by its name without any '.lnk', but a new item
+        // is named after the file
+        itemName = TblItem.itemName(filename);
+        if ((finalised = seen.get(itemName)) != null) {
+            if (finalised) {
+                numTooLate++;
+            } else {
+                numDuplThis++;
+            }
+            return;
+        }
+        try (ResultSet rs = TblItem.findItem(itemName, null)) {
+            finalised = rs.next() ? TblItem.isFinalised(rs) : null;
+            if (finalised == null) {
+                seen.put(filename, false);
+                numNewItems++;
+                return;
+            } else if (finalised) {
+                numTooLate++;
+            } else if (supersedePrevious) {
+                numSuperseding++;
+            } else {
+                numDuplPrev++;
+            }
+        }
+        seen.put(itemName, finalised);
+    }
+
+    /**
+     * Get the number of bytes allocated so far by the calling thread, so the
+     * garbage produced by registering files can be reported. Only allocations
+     * by the calling thread are counted (not those made by the threads
+     * introspecting VEOs).
+     *
+     * @return bytes allocated, or -1 if the JVM cannot measure this
+     */
+    private static long allocatedBytes() {
+        ThreadMXBean tmx;
+        com.sun.management.ThreadMXBean stmx;
+
+        tmx = ManagementFactory.getThreadMXBean();
+        if (!(tmx instanceof com.sun.management.ThreadMXBean)) {
+            return -1;
+        }
+        stmx = (com.sun.management.ThreadMXBean) tmx;
+        if (!stmx.isThreadAllocatedMemorySupported() || !stmx.isThreadAllocatedMemoryEnabled()) {
+            return -1;
+        }
+        return stmx.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
     /**
      * Process command line arguments specific to this command. Passed the array
      * of command line arguments, and the current position in the array. Returns
@@ -229,6 +801,50 @@ public class CmdNewDelivery extends Command {
                 supersedePrevious = false;
                 j = 1;
                 break;
+            // identify items by content as well as file name
+            case "-content":
+                i++;
+                byContent = true;
+                j = 1;
+                break;
+            // record the hash of each file
+            case "-fixity":
+                i++;
+                fixity = true;
+                j = 1;
+                break;
+            // look inside VEO zip files
+            case "-introspect":
+                i++;
+                introspect = true;
+                j = 1;
+                break;
+            // watch the delivery for new or changed files
+            case "-watch":
+                i++;
+                watch = true;
+                j = 1;
+                break;
+            // only plan the delivery
+            case "-plan":
+                i++;
+                plan = true;
+                j = 1;
+                break;
+            // minutes without a change before watching stops
+            case "-idle":
+                i++;
+                try {
+                    idleMinutes = Integer.parseInt(args[i]);
+                } catch (NumberFormatException nfe) {
+                    throw new AppError("Idle time (-idle) must be a number of minutes, not '" + args[i] + "'");
+                }
+                if (idleMinutes < 1) {
+                    throw new AppError("Idle time (-idle) must be at least one minute");
+                }
+                i++;
+                j = 2;
+                break;
             // otherwise complain
             default:
                 j = 0;
@@ -257,10 +873,9 @@ public class CmdNewDelivery extends Command {
                 if (entry.toFile().isDirectory()) {
                     registerInstances(deliveryKey, desc, entry, deliveryEvent);
 
-                    // otherwise register the item
-                } else {
-                    noFiles++;
-                    registerInstance(entry, deliveryKey, deliveryEvent);
+                    // otherwise register the item (if it is in this shard)
+                } else if (inShard(entry)) {
+                    registerFile(entry, deliveryKey, deliveryEvent);
                 }
             }
         } catch (DirectoryIteratorException | IOException e) {
@@ -268,63 +883,776 @@ public class CmdNewDelivery extends Command {
         }
     }
 
+    /**
+     * Register the item instances passed to this shard by the thread walking
+     * the delivery (see Feed).
+     *
+     * @param deliveryKey the delivery this item belongs to
+     * @param deliveryEvent the key of the event documenting the delivery
+     * @throws AppFatal something went fatally wrong
+     * @throws SQLException a database problem (should never occur)
+     */
+    private void registerFed(int deliveryKey, int deliveryEvent) throws AppFatal, SQLException {
+        Path entry;
+
+        while ((entry = feed.take(shard)) != null) {
+            registerFile(entry, deliveryKey, deliveryEvent);
+        }
+    }
+
+    /**
+     * Register a file found in the delivery, noting it if the delivery is to
+     * be watched.
+     *
+     * @param entry the instance in the delivery
+     * @param deliveryKey the delivery this item belongs to
+     * @param deliveryEvent the key of the event documenting the delivery
+     * @throws AppFatal something went fatally wrong
+     * @throws SQLException a database problem (should never occur)
+     */
+    private void registerFile(Path entry, int deliveryKey, int deliveryEvent) throws AppFatal, SQLException {
+        noFiles++;
+        register(entry, deliveryKey, deliveryEvent);
+        if (registered != null) {
+            registered.put(entry, FileStamp.of(entry));
+        }
+    }
+
+    /**
+     * Watch the delivery for files that are added or changed, and register
+     * them in the delivery. Every directory in the delivery is watched
+     * (including directories created while watching). A changed file is only
+     * registered once it has not changed for DEBOUNCE_MS, so a file being
+     * copied is registered once when the copy has finished. Watching stops
+     * when nothing has changed for idleMinutes.
+     *
+     * @param deliveryKey the delivery the files belong to
+     * @param deliveryEvent the key of the event documenting the delivery
+     * @throws AppFatal something went fatally wrong
+     * @throws SQLException a database problem (should never occur)
+     */
+    private void watchDelivery(int deliveryKey, int deliveryEvent) throws AppFatal, SQLException {
+        Map<WatchKey, Path> dirs;   // directories being watched
+        Map<Path, Long> pending;    // files that have changed, and when they last changed
+        List<Path> ready;           // files that have been quiet long enough
+        WatchKey wk;
+        Path dir, p;
+        long now, lastChange;
+
+        LOG.log(Level.INFO, "Watching ''{0}'' for new or changed files (stops after {1} minutes without a change)", new Object[]{rootDir.toString(), idleMinutes});
+        dirs = new HashMap<>();
+        pending = new HashMap<>();
+        ready = new ArrayList<>();
+        try (WatchService ws = rootDir.getFileSystem().newWatchService()) {
+            watchTree(ws, rootDir, dirs, null, 0);
+            lastChange = System.currentTimeMillis();
+            while (true) {
+                try {
+                    wk = ws.poll(POLL_MS, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+                now = System.currentTimeMillis();
+
+                // note the files that have changed
+                while (wk != null) {
+                    dir = dirs.get(wk);
+                    for (WatchEvent<?> we : wk.pollEvents()) {
+                        if (we.kind() == StandardWatchEventKinds.OVERFLOW) {
+                            // events were lost, so look at every file again
+                            watchTree(ws, rootDir, dirs, pending, now);
+                        } else if (dir != null) {
+                            p = dir.resolve((Path) we.context());
+                            if (!Files.isDirectory(p)) {
+                                pending.put(p, now);
+                            } else if (we.kind() == StandardWatchEventKinds.ENTRY_CREATE) {
+                                watchTree(ws, p, dirs, pending, now);
+                            }
+                        }
+                    }
+                    if (!wk.reset()) {
+                        dirs.remove(wk);
+                    }
+                    lastChange = now;
+                    wk = ws.poll();
+                }
+
+                // register the files that have been quiet long enough
+                ready.clear();
+                for (Map.Entry<Path, Long> e : pending.entrySet()) {
+                    if (now - e.getValue() >= DEBOUNCE_MS) {
+                        ready.add(e.getKey());
+                    }
+                }
+                if (!ready.isEmpty()) {
+                    for (Path r : ready) {
+                        pending.remove(r);
+                    }
+                    registerChanges(ready, pending, now, deliveryKey, deliveryEvent);
+                }
+
+                // stop if nothing has happened for a while
+                if (pending.isEmpty() && now - lastChange >= idleMinutes * 60000L) {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            throw new AppFatal("Failed watching '" + rootDir.toString() + "': " + e.getMessage());
+        }
+        LOG.log(Level.INFO, "Stopped watching ''{0}''", rootDir.toString());
+    }
+
+    /**
+     * Watch a directory and all the directories below it. If pending is not
+     * null, the files found are noted as changed (e.g. because they were
+     * copied in with a new directory).
+     *
+     * @param ws the watch service
+     * @param dir the root of the directories to watch
+     * @param dirs the directories being watched
+     * @param pending the files changed (may be null)
+     * @param now the time the files were found
+     * @throws IOException if a directory could not be watched
+     */
+    private void watchTree(WatchService ws, Path dir, Map<WatchKey, Path> dirs, Map<Path, Long> pending, long now) throws IOException {
+        Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path d, BasicFileAttributes attrs) throws IOException {
+                dirs.put(d.register(ws, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY), d);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path f, BasicFileAttributes attrs) {
+                if (pending != null && attrs.isRegularFile()) {
+                    pending.put(f, now);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path f, IOException e) {
+                // the file may have been removed while we were looking
+                LOG.log(Level.FINE, "Could not look at ''{0}'': {1}", new Object[]{f.toString(), e.getMessage()});
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * Register files that have been added or changed since the delivery was
+     * registered. Files that have not changed since they were last registered
+     * (or which have since disappeared) are ignored. The files are registered
+     * WATCH_BATCH at a time, each batch in a transaction; if a batch fails it
+     * is rolled back, and its files are forgotten as registered. If it failed
+     * because it conflicted with another command, it and the remaining files
+     * are put back to be registered later; otherwise the failure is thrown.
+     *
+     * @param files the files to register
+     * @param pending the files waiting to be registered
+     * @param now the time the files are registered
+     * @param deliveryKey the delivery the files belong to
+     * @param deliveryEvent the key of the event documenting the delivery
+     * @throws AppFatal something went fatally wrong
+     * @throws SQLException a database problem (should never occur)
+     */
+    private void registerChanges(List<Path> files, Map<Path, Long> pending, long now, int deliveryKey, int deliveryEvent) throws AppFatal, SQLException {
+        Map<Path, FileStamp> before; // files registered in the batch, and their previous stamps
+        FileStamp fs;
+        int i, n;
+
+        n = 0;
+        before = new HashMap<>();
+        for (i = 0; i < files.size(); i += WATCH_BATCH) {
+            before.clear();
+            SQLTable.beginTransaction();
+            try {
+                for (Path p : files.subList(i, Math.min(i + WATCH_BATCH, files.size()))) {
+                    fs = FileStamp.of(p);
+                    if (fs == null || fs.equals(registered.get(p)) || !inShard(p)) {
+                        continue;
+                    }
+                    before.put(p, registered.get(p));
+                    if (registered.containsKey(p)) {
+                        changed.add(p);
+                    }
+                    noFiles++;
+                    register(p, deliveryKey, deliveryEvent);
+                    registered.put(p, fs);
+                }
+                registerQueued(deliveryKey, deliveryEvent);
+                SQLTable.commit();
+                n += before.size();
+            } catch (AppFatal | SQLException | RuntimeException e) {
+                SQLTable.rollback();
+
+                // nothing in the batch was registered
+                for (Map.Entry<Path, FileStamp> b : before.entrySet()) {
+                    if (b.getValue() == null) {
+                        registered.remove(b.getKey());
+                    } else {
+                        registered.put(b.getKey(), b.getValue());
+                    }
+                }
+                noFiles -= before.size();
+                queued.clear();
+                forgetEvents();
+                if (!(e instanceof SQLException) || !SQLTable.isConflict((SQLException) e)) {
+                    throw e;
+                }
+                LOG.log(Level.FINE, "Registering {0} files later after conflict ({1})", new Object[]{files.size() - i, e.getMessage()});
+                for (Path p : files.subList(i, files.size())) {
+                    pending.put(p, now);
+                }
+                break;
+            } finally {
+                changed.clear();
+            }
+        }
+        if (n > 0) {
+            LOG.log(Level.INFO, "Registered {0} new or changed files (total {1})", new Object[]{n, noFiles});
+        }
+    }
+
+    /**
+     * Is an instance a changed copy of a file already registered in this
+     * delivery (while watching it)? It is if the previous instance is of the
+     * same file.
+     *
+     * @param entry the file being registered
+     * @param prev the previous active instance of the item
+     * @return true if the file changed after it was registered
+     * @throws SQLException
+     */
+    private boolean isChanged(Path entry, TblInstance.Row prev) throws SQLException {
+        if (changed == null || !changed.contains(entry) || entry.getParent() == null) {
+            return false;
+        }
+        return prev.name.equals(entry.getFileName().toString()) && prev.directoryId == TblDirectory.find(entry.getParent());
+    }
+
+    /**
+     * Forget the events created to document the instances registered, so that
+     * they are created again when next needed (e.g. because the transaction
+     * that created them was rolled back).
+     */
+    private void forgetEvents() {
+        receivedEvent = 0;
+        newItemEvent = 0;
+        newRecordEvent = 0;
+        supersededEvent = 0;
+        supersedesEvent = 0;
+        replacedByDuplNewDeliveryEvent = 0;
+        replacesDuplPrevDeliveryEvent = 0;
+        replacedByDuplThisDeliveryEvent = 0;
+        replacesDuplThisDeliveryEvent = 0;
+        supersededThisDeliveryEvent = 0;
+        supersedesThisDeliveryEvent = 0;
+        notRecordEvent = 0;
+        tooLateEvent = 0;
+    }
+
+    /**
+     * Find the item that has the same content as an instance with a new file
+     * name. The candidates are the items whose active instance has the same
+     * size and partial hash (an item found or created in this delivery is
+     * remembered, otherwise the index on the instances is used); the
+     * instance is only hashed in full if there is a candidate. Items whose
+     * instances were registered before sizes and partial hashes were recorded
+     * are found by their hash if the instance has been hashed in full anyway.
+     * If an item is found, the instance is linked to an event recording the
+     * match.
+     *
+     * @param c the content of the instance
+     * @param instanceKey the instance
+     * @return the item, positioned on its row and decoded into item (null if
+     * not found)
+     * @throws AppFatal if a file could not be hashed
+     * @throws SQLException
+     */
+    private ResultSet findItemByContent(Content c, int instanceKey) throws AppFatal, SQLException {
+        ResultSet rs;
+        Integer key;
+        String filename;
+        boolean same;
+
+        rs = null;
+        key = contentSeen.get(c.key());
+        if (key != null) {
+            rs = TblItem.query("*", "ITEM_ID=" + key, null);
+            if (!item.next(rs) || !sameContent(c, item)) {
+                rs.close();
+                rs = null;
+            }
+        }
+        if (rs == null) {
+            rs = TblItem.findItemsByStamp(c.size, c.partial);
+            same = false;
+            while (!same && item.next(rs)) {
+                same = sameContent(c, item);
+            }
+            if (!same) {
+                rs.close();
+                rs = null;
+            }
+        }
+        if (rs == null && c.hasDigest()) {
+            rs = TblItem.findItem(null, c.digest());
+            if (!item.next(rs)) {
+                rs.close();
+                rs = null;
+            }
+        }
+        if (rs != null) {
+            numSameContent++;
+            filename = item.filename;
+            TblInstanceEvent.add(instanceKey, TblEvent.add("Instance has a new name but the same content as item '{0}'", filename));
+            LOG.log(Level.WARNING, "Instance ''{0}'' has the same content as item ''{1}''", new Object[]{c.entry.toString(), filename});
+        }
+        return rs;
+    }
+
+    /**
+     * Does an instance have the same content as an item? The full hash of the
+     * instance is compared with the hash of the item; if the item has not been
+     * hashed, its active instance is hashed (if it can still be read) and the
+     * hash recorded in the item.
+     *
+     * @param c the content of the instance
+     * @param item the item
+     * @return true if the content is the same
+     * @throws AppFatal if the instance could not be hashed
+     * @throws SQLException
+     */
+    private boolean sameContent(Content c, TblItem.Row item) throws AppFatal, SQLException {
+        ResultSet rs;
+        String h;
+        Path p;
+
+        h = item.hash;
+        if (h == null) {
+            rs = TblInstance.getInstance(item.activeInstanceId);
+            rs.next();
+            p = Paths.get(TblInstance.getFilepath(rs));
+            rs.close();
+            try {
+                numFullHashes++;
+                h = hasher.hash(p, Hasher.DEFAULT_ALG);
+            } catch (IOException e) {
+                LOG.log(Level.FINE, "Could not hash ''{0}'': {1}", new Object[]{p.toString(), e.getMessage()});
+                return false;
+            } catch (NoSuchAlgorithmException e) {
+                throw new AppFatal("Failed hashing '" + p.toString() + "': " + e.getMessage());
+            }
+            TblItem.setHash(item.itemId, Hasher.DEFAULT_ALG, h);
+            item.hash = h;
+        }
+        return h.equals(c.digest());
+    }
+
+    /**
+     * The size and hashes of an instance. The size and partial hash are
+     * calculated when the instance is registered; the full hash is only
+     * calculated when it is needed (except for small files, where the partial
+     * hash covers the whole file).
+     */
+    private final class Content {
+
+        final Path entry;
+        final long size;
+        final String partial;
+        private String digest;
+
+        Content(Path entry) throws AppFatal {
+            this.entry = entry;
+            try {
+                size = Files.size(entry);
+                partial = hasher.partialHash(entry, size, Hasher.DEFAULT_ALG);
+            } catch (IOException | NoSuchAlgorithmException e) {
+                throw new AppFatal("Failed hashing '" + entry.toString() + "': " + e.getMessage());
+            }
+            digest = Hasher.isWhole(size) ? partial : null;
+        }
+
+        /**
+         * Has the full hash been calculated?
+         */
+        boolean hasDigest() {
+            return digest != null;
+        }
+
+        /**
+         * Get the full hash, calculating it if necessary.
+         */
+        String digest() throws AppFatal {
+            if (digest == null) {
+                try {
+                    numFullHashes++;
+                    digest = hasher.hash(entry, Hasher.DEFAULT_ALG);
+                } catch (IOException | NoSuchAlgorithmException e) {
+                    throw new AppFatal("Failed hashing '" + entry.toString() + "': " + e.getMessage());
+                }
+            }
+            return digest;
+        }
+
+        /**
+         * Does an instance in a result set have the same size and partial
+         * hash?
+         */
+        boolean sameStamp(TblInstance.Row instance) {
+            return size == instance.filesize && partial.equals(instance.partialHash);
+        }
+
+        /**
+         * Key identifying the size and partial hash.
+         */
+        String key() {
+            return size + ":" + partial;
+        }
+    }
+
+    /**
+     * The size and modification time of a file when it was registered. Used
+     * to tell if a file has really changed.
+     */
+    private static final class FileStamp {
+
+        final long size;
+        final long modified;
+
+        private FileStamp(long size, long modified) {
+            this.size = size;
+            this.modified = modified;
+        }
+
+        /**
+         * Get the stamp of a file, or null if the file no longer exists or is
+         * not a regular file.
+         */
+        static FileStamp of(Path p) {
+            BasicFileAttributes attrs;
+
+            try {
+                attrs = Files.readAttributes(p, BasicFileAttributes.class);
+            } catch (IOException e) {
+                return null;
+            }
+            if (!attrs.isRegularFile()) {
+                return null;
+            }
+            return new FileStamp(attrs.size(), attrs.lastModifiedTime().toMillis());
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            FileStamp fs;
+
+            if (!(o instanceof FileStamp)) {
+                return false;
+            }
+            fs = (FileStamp) o;
+            return size == fs.size && modified == fs.modified;
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(size) * 31 + Long.hashCode(modified);
+        }
+    }
+
+    /**
+     * Register an item instance, or, if VEO zip files are being introspected,
+     * queue it to be registered. VEO zip files are handed to the pool to be
+     * introspected while they wait in the queue. The queue is kept short so
+     * the pool is kept busy without holding many results.
+     *
+     * @param entry the instance in the delivery
+     * @param deliveryKey the delivery this item belongs to
+     * @param deliveryEvent the event documenting the delivery
+     * @throws AppFatal something went fatally wrong
+     * @throws SQLException a database problem (should never occur)
+     */
+    private void register(Path entry, int deliveryKey, int deliveryEvent) throws AppFatal, SQLException {
+        Future<VeoZip> f;
+
+        if (introspector == null) {
+            registerInstance(entry, deliveryKey, deliveryEvent, null);
+            return;
+        }
+        f = VeoZip.isVeoZip(entry.getFileName().toString()) ? introspector.submit(() -> VeoZip.inspect(entry)) : null;
+        queued.add(new Queued(entry, f));
+        while (queued.size() > READ_AHEAD * Runtime.getRuntime().availableProcessors()) {
+            registerNext(deliveryKey, deliveryEvent);
+        }
+    }
+
+    /**
+     * Register all the queued instances.
+     *
+     * @param deliveryKey the delivery this item belongs to
+     * @param deliveryEvent the event documenting the delivery
+     * @throws AppFatal something went fatally wrong
+     * @throws SQLException a database problem (should never occur)
+     */
+    private void registerQueued(int deliveryKey, int deliveryEvent) throws AppFatal, SQLException {
+        while (!queued.isEmpty()) {
+            registerNext(deliveryKey, deliveryEvent);
+        }
+    }
+
+    /**
+     * Register the instance at the head of the queue, waiting for it to be
+     * introspected if necessary.
+     */
+    private void registerNext(int deliveryKey, int deliveryEvent) throws AppFatal, SQLException {
+        Queued q;
+        VeoZip vz;
+
+        q = queued.poll();
+        try {
+            vz = q.contents != null ? q.contents.get() : null;
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new AppFatal("Interrupted while introspecting '" + q.entry.toString() + "'");
+        } catch (ExecutionException ee) {
+            throw new AppFatal("Failed introspecting '" + q.entry.toString() + "': " + ee.getCause().getMessage());
+        }
+        registerInstance(q.entry, deliveryKey, deliveryEvent, vz);
+    }
+
+    /**
+     * The files found by walking a delivery, sorted into the shards their
+     * names belong to. The delivery is walked once (walk()), and the thread
+     * registering each shard takes its files from its own queue (take()), in
+     * the order they were found. The queues are bounded, so the walk keeps
+     * only a little ahead of the shards. If a shard fails it stops taking
+     * files, and the walk is abandoned.
+     */
+    private static class Feed {
+
+        private final static Path END = Paths.get(""); // marks the end of the files for a shard
+        private final List<BlockingQueue<Path>> queues; // files waiting to be taken by each shard
+        private volatile boolean stopped; // true if a shard has stopped taking files
+
+        Feed(int shards) {
+            int i;
+
+            queues = new ArrayList<>();
+            for (i = 0; i < shards; i++) {
+                queues.add(new ArrayBlockingQueue<>(FEED_SIZE));
+            }
+            stopped = false;
+        }
+
+        /**
+         * Walk the delivery, passing each file to its shard. Each shard is
+         * told when there are no more files, even if the walk failed.
+         *
+         * @param dir the root of the delivery
+         * @throws AppFatal if the delivery could not be read
+         */
+        void walk(Path dir) throws AppFatal {
+            try {
+                walkDir(dir);
+            } finally {
+                for (BlockingQueue<Path> q : queues) {
+                    // a shard that failed will never empty its queue; the
+                    // files left in the others do not matter as the
+                    // command has failed
+                    while (!offer(q, END)) {
+                        if (stopped) {
+                            q.clear();
+                        }
+                    }
+                }
+            }
+        }
+
+        private boolean walkDir(Path dir) throws AppFatal {
+            try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir)) {
+                for (Path entry : ds) {
+                    if (entry.toFile().isDirectory()) {
+                        if (!walkDir(entry)) {
+                            return false;
+                        }
+                    } else {
+                        while (!offer(queues.get(Shards.of(entry.getFileName().toString(), queues.size())), entry)) {
+                            if (stopped) {
+                                return false;
+                            }
+                        }
+                    }
+                }
+            } catch (DirectoryIteratorException | IOException e) {
+                throw new AppFatal(e.getMessage());
+            }
+            return true;
+        }
+
+        /**
+         * Add a file to a queue, waiting a short while if it is full.
+         *
+         * @return false if the queue is still full
+         */
+        private boolean offer(BlockingQueue<Path> q, Path p) throws AppFatal {
+            try {
+                return q.offer(p, POLL_MS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new AppFatal("Interrupted while walking the delivery");
+            }
+        }
+
+        /**
+         * Take the next file for a shard, waiting until one is found.
+         *
+         * @param shard the shard
+         * @return the file, or null if there are no more
+         * @throws AppFatal if interrupted while waiting
+         */
+        Path take(int shard) throws AppFatal {
+            Path p;
+
+            try {
+                p = queues.get(shard).take();
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new AppFatal("Interrupted while waiting for files from the delivery");
+            }
+            return p == END ? null : p;
+        }
+
+        /**
+         * A shard has failed, and will take no more files.
+         */
+        void stop() {
+            stopped = true;
+        }
+    }
+
+    /**
+     * A file waiting to be registered, and (if a VEO zip file) its contents.
+     */
+    private static class Queued {
+
+        final Path entry;
+        final Future<VeoZip> contents;
+
+        Queued(Path entry, Future<VeoZip> contents) {
+            this.entry = entry;
+            this.contents = contents;
+        }
+    }
+
     /**
      * Register an item instance.
      *
      * @param entry the instance in the delivery
      * @param deliveryKey the delivery this item belongs to
      * @param deliveryEvent the event documenting the delivery
+     * @param vz the contents of a VEO zip file (null if not introspected)
      * @throws AppFatal something went fatally wrong
      * @throws SQLException a database problem (should never occur)
      */
-    private void registerInstance(Path entry, int deliveryKey, int deliveryEvent) throws AppFatal, SQLException {
+    private void registerInstance(Path entry, int deliveryKey, int deliveryEvent, VeoZip vz) throws AppFatal, SQLException {
         int instanceKey, itemKey, prevInstanceKey;
-        String filename;
-        boolean isRecord, isFinalised;
+        String filename, path, digest, itemHash;
+        boolean isRecord, isFinalised, isNew, found;
         ResultSet rsItem, rsPrevInstance;
+        Content c;
 
-        // get identifier
+        // get identifiers. This is done for every file, so each string is
+        // only created once, and the suffixes are checked in place rather than
+        // on lower case copies
         filename = entry.getFileName().toString();
+        path = entry.toString();
+        c = (byContent || fixity) ? new Content(entry) : null;
 
         // determine if this instance is not a record
         isRecord = true;
-        if (veo && !filename.toLowerCase().endsWith(".veo.zip") && !filename.toLowerCase().endsWith(".veo")) {
-            LOG.log(Level.FINE, "Eliminated ignoreNotRecord file ''{0}''", entry.toString());
+        if (veo && !VeoZip.isVeoZip(filename) && !filename.regionMatches(true, filename.length() - 4, ".veo", 0, 4)) {
+            LOG.log(Level.FINE, "Eliminated ignoreNotRecord file ''{0}''", path);
             numNotRecords++;
             isRecord = false;
         }
 
         // add instance to Instance table
-        instanceKey = TblInstance.add(deliveryKey, 0, entry.toString(), false, 0);
+        if (c != null) {
+            instanceKey = TblInstance.add(deliveryKey, 0, entry, false, 0, c.size, c.partial);
+        } else {
+            instanceKey = TblInstance.add(deliveryKey, 0, entry, false, 0);
+        }
         assert instanceKey != 0;
         
         // add delivery event to the new instance
         TblInstanceEvent.add(instanceKey, deliveryEvent);
 
+        // record the contents of a VEO zip file, or why it couldn't be read
+        if (vz != null) {
+            if (vz.problem == null) {
+                TblInstance.setZipContents(instanceKey, vz.entries, vz.size, vz.manifestHash);
+            } else {
+                numBadVeos++;
+                TblInstanceEvent.add(instanceKey, TblEvent.add("VEO failed introspection: {0}", vz.problem));
+                LOG.log(Level.WARNING, "VEO ''{0}'' failed introspection: {1}", new Object[]{path, vz.problem});
+            }
+        }
+
         // if we have already seen this item, this new instance must either
         // supersede or duplicate an earlier instance (duplicates may either be
         // within this delivery or an earlier delivery). A special case is where
         // the item has already been finalised.
         rsItem = TblItem.findItem(filename, null);
-        if (rsItem.next()) {
-            itemKey = TblItem.getItemId(rsItem);
-            isFinalised = TblItem.isFinalised(rsItem);
+        found = item.next(rsItem);
+        if (!found && byContent) {
+            rsItem.close();
+            rsItem = findItemByContent(c, instanceKey);
+            found = rsItem != null;
+        }
+        isNew = !found;
+        if (found) {
+            rsItem.close();
+            itemKey = item.itemId;
+            isFinalised = item.isFinalised();
+            itemHash = item.hash;
 
             // Duplicate handling. It's a duplicate if we have already seen
             // this instance in this delivery, or if we saw it in a previous
             // delivery & the user hasn't said that the instances supersede
             // previous ones.
-            prevInstanceKey = TblItem.getActiveInstanceId(rsItem);
+            prevInstanceKey = item.activeInstanceId;
             assert prevInstanceKey != 0;
             rsPrevInstance = TblInstance.getInstance(prevInstanceKey);
             assert rsPrevInstance != null;
-            rsPrevInstance.next();
+            prevInstance.next(rsPrevInstance);
+            rsPrevInstance.close();
+
+            // only hash the new instance in full if asked, or if it might be
+            // identical to the active instance (so the item's hash stays valid)
+            if (c != null && (fixity || (itemHash != null && c.sameStamp(prevInstance)))) {
+                c.digest();
+            }
 
             // If the item is not finalised, mark the previous instance as
             // duplicated or superseded. If it is finalised, this instances
             // will be marked as 'too late' further down
             if (!isFinalised) {
-                if (TblInstance.getDeliveryId(rsPrevInstance) == deliveryKey) { // duplicate in this delivery
+                if (prevInstance.deliveryId == deliveryKey && isChanged(entry, prevInstance)) { // changed since registered in this delivery
+                    TblInstance.setIsSuperseded(prevInstanceKey);
+                    if (supersededThisDeliveryEvent == 0) {
+                        supersededThisDeliveryEvent = TblEvent.add("Instance superseded by a changed copy received in this delivery");
+                    }
+                    assert supersededThisDeliveryEvent != 0;
+                    TblInstanceEvent.add(prevInstanceKey, supersededThisDeliveryEvent);
+                    if (supersedesThisDeliveryEvent == 0) {
+                        supersedesThisDeliveryEvent = TblEvent.add("Instance is a changed copy of that received earlier in this delivery");
+                    }
+                    assert supersedesThisDeliveryEvent != 0;
+                    TblInstanceEvent.add(instanceKey, supersedesThisDeliveryEvent);
+                    LOG.log(Level.INFO, "Instance ''{0}'' ({1}) changed and was registered again", new Object[]{filename, path});
+                } else if (prevInstance.deliveryId == deliveryKey) { // duplicate in this delivery
                     TblInstance.setIsDuplicated(prevInstanceKey);
                     if (replacedByDuplThisDeliveryEvent == 0) {
                         replacedByDuplThisDeliveryEvent = TblEvent.add("Instance replaced by a duplicate received in this delivery");
@@ -336,24 +1664,24 @@ public class CmdNewDelivery extends Command {
                     }
                     assert replacesDuplThisDeliveryEvent != 0;
                     TblInstanceEvent.add(instanceKey, replacesDuplThisDeliveryEvent);
-                    LOG.log(Level.WARNING, "Item ''{0}'' ({1}) already appears in this delivery", new Object[]{filename, entry.toString()});
+                    LOG.log(Level.WARNING, "Item ''{0}'' ({1}) already appears in this delivery", new Object[]{filename, path});
                 } else if (!supersedePrevious) { // duplicate in a previous delivery
                     TblInstance.setIsDuplicated(prevInstanceKey);
                     if (replacedByDuplNewDeliveryEvent == 0) {
-                        replacedByDuplNewDeliveryEvent = TblEvent.add("Instance replaced by a duplicate received in a later delivery (" + desc + ")");
+                        replacedByDuplNewDeliveryEvent = TblEvent.add("Instance replaced by a duplicate received in a later delivery ({0})", desc);
                     }
                     assert replacedByDuplNewDeliveryEvent != 0;
                     TblInstanceEvent.add(prevInstanceKey, replacedByDuplNewDeliveryEvent);
                     if (replacesDuplPrevDeliveryEvent == 0) {
-                        replacedByDuplNewDeliveryEvent = TblEvent.add("Instance replaces duplicate received in a previous delivery");
+                        replacesDuplPrevDeliveryEvent = TblEvent.add("Instance replaces duplicate received in a previous delivery");
                     }
                     assert replacesDuplPrevDeliveryEvent != 0;
                     TblInstanceEvent.add(instanceKey, replacesDuplPrevDeliveryEvent);
-                    LOG.log(Level.WARNING, "Instance ''{0}'' ({1}) duplicated instance in previous delivery", new Object[]{filename, entry.toString()});
+                    LOG.log(Level.WARNING, "Instance ''{0}'' ({1}) duplicated instance in previous delivery", new Object[]{filename, path});
                 } else { //supersedes previous instance
                     TblInstance.setIsSuperseded(prevInstanceKey);
                     if (supersededEvent == 0) {
-                        supersededEvent = TblEvent.add("Instance superseded by a duplicate received in a later delivery (" + desc + ")");
+                        supersededEvent = TblEvent.add("Instance superseded by a duplicate received in a later delivery ({0})", desc);
                     }
                     assert replacedByDuplNewDeliveryEvent != 0;
                     TblInstanceEvent.add(prevInstanceKey, supersededEvent);
@@ -362,39 +1690,63 @@ public class CmdNewDelivery extends Command {
                     }
                     assert supersedesEvent != 0;
                     TblInstanceEvent.add(instanceKey, supersedesEvent);
-                    LOG.log(Level.WARNING, "Instance ''{0}'' ({1}) superseded instance in previous delivery", new Object[]{filename, entry.toString()});
+                    LOG.log(Level.WARNING, "Instance ''{0}'' ({1}) superseded instance in previous delivery", new Object[]{filename, path});
                 }
             } else {
-                LOG.log(Level.FINE, "Finalised item ''{0}'' ({1}) received new instance", new Object[]{filename, entry.toString()});
+                LOG.log(Level.FINE, "Finalised item ''{0}'' ({1}) received new instance", new Object[]{filename, path});
             }
         } else { // seen for the first time, create the item
-            LOG.log(Level.FINE, "Created item ''{0}'' from instance ''{1}''", new Object[]{filename, entry.toString()});
-            itemKey = TblItem.add(filename, null, null, isRecord, instanceKey);
+            if (LOG.isLoggable(Level.FINE)) {
+                LOG.log(Level.FINE, "Created item ''{0}'' from instance ''{1}''", new Object[]{filename, path});
+            }
+            if (fixity) {
+                c.digest();
+            }
+            digest = (c != null && c.hasDigest()) ? c.digest() : null;
+            itemKey = TblItem.add(filename, digest == null ? null : Hasher.DEFAULT_ALG, digest, isRecord, instanceKey);
+            itemHash = digest;
             isFinalised = false;
             if (newItemEvent == 0) {
-                newItemEvent = TblEvent.add("Received for the first time in a delivery (" + desc + ")");
+                newItemEvent = TblEvent.add("Received for the first time in a delivery ({0})", desc);
             }
             assert newItemEvent != 0;
             TblInstanceEvent.add(instanceKey, newItemEvent);
         }
 
+        if (byContent) {
+            contentSeen.put(c.key(), itemKey);
+        }
+        digest = (c != null && c.hasDigest()) ? c.digest() : null;
+
         // set item id in the new instance
         TblInstance.setItemId(instanceKey, itemKey);
 
-        // make this instance the current instance
-        TblItem.setCurrentInstance(itemKey, instanceKey);
+        // make this instance the current instance (a new item was created
+        // with this instance as its current and active instance)
+        if (!isNew) {
+            TblItem.setCurrentInstance(itemKey, instanceKey);
+        }
 
         // is this item already finalised? If so, generate a 'too late' event,
         // otherwise make this instance the active instance
         if (!isFinalised) {
-            TblItem.setActiveInstance(itemKey, instanceKey);
+            if (!isNew) {
+                TblItem.setActiveInstance(itemKey, instanceKey);
+            }
+
+            // the hash of the item is that of the active instance
+            if (digest != null && !digest.equals(itemHash)) {
+                TblItem.setHash(itemKey, Hasher.DEFAULT_ALG, digest);
+            } else if (digest == null && itemHash != null) {
+                TblItem.setHash(itemKey, null, null);
+            }
         } else {
             if (tooLateEvent == 0) {
-                tooLateEvent = TblEvent.add("Item resubmitted in delivery " + deliveryKey + " but item has been finalised (marked as custody-accepted or abandoned)");
+                tooLateEvent = TblEvent.add("Item resubmitted in delivery {0} but item has been finalised (marked as custody-accepted or abandoned)", Integer.toString(deliveryKey));
             }
             assert tooLateEvent != 0;
             TblInstanceEvent.add(instanceKey, tooLateEvent);
-            LOG.log(Level.WARNING, "Item ''{0}'' ({1}) resubmitted in delivery, but item has been finalised (marked as custody-accepted or abandoned)", new Object[]{filename, entry.toString()});
+            LOG.log(Level.WARNING, "Item ''{0}'' ({1}) resubmitted in delivery, but item has been finalised (marked as custody-accepted or abandoned)", new Object[]{filename, path});
         }
     }
 }
@@ -3,35 +3,58 @@ package TrackTransfer;
 import VERSCommon.AppError;
 import VERSCommon.AppFatal;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.OffsetDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.ChronoUnit;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
- * This command generates a Report on the Items in a Transfer. Currently five
+ * This command generates a Report on the Items in a Transfer. Currently six
  * reports are available:
  * 1) A full report of all received Items, Instances, and Events
  * 2) A report listing all Items that have specific Keywords set
  * 3) A report listing all Items for which custody has been accepted
  * 4) A report listing all Items that have been abandoned
  * 5) A report listing all Items for which processing is incomplete
+ * 6) A report listing all Items matching a query combining Keywords with AND,
+ * OR, and NOT
+ * 
+ * The full report can be restricted to the Items that have changed since a
+ * given time, or since a given delivery was received.
  * 
  * The reports can be generated as human readable text, or a CSV/TSV file. The
  * format is automatically selected depending on the requested file extension
  * (.txt = human readable text, .csv = CSV, .tsv = TSV
  *
+ * If the transfer is sharded, the report is generated from all the shards,
+ * with the Items from each merged by name. The report on duplicate content
+ * cannot be generated from a sharded transfer.
+ *
  * @author Andrew Waugh
  */
 public class CmdReport extends Command {
     private final static Logger LOG = Logger.getLogger("TrackTransfer.CmdAnnotate");
     private Path outputFile;      // report file
+    private OutputStream stream;  // stream to send the report to instead of the file (null if none)
+    private Report.ReportFormat streamFormat; // format of the report sent to the stream
     private ReportType type;          // report requested
+    private Shards shards;            // connections to the shards of the transfer (null if not sharded)
     private ArrayList<String> keywords; // keywords requested
-    private final String usage = "[-db <databaseURL>] -o <file> [-v] [-d] [-help]";
+    private String since;         // only report changes since this timestamp or delivery id (null if all)
+    private KeywordQuery query;   // keyword query requested (-query)
+    private NameSelector selection; // only report items whose names match this (null if all)
+    private final String usage = "[-db <databaseURL>] -o <file> [-since <timestamp|deliveryId>] [-select <glob|regex:expression>] [-v] [-d] [-help]";
 
     public CmdReport() throws AppFatal {
         super();
@@ -45,7 +68,10 @@ public class CmdReport extends Command {
         KEYWORD,        // all items with specific keyword set
         CUSTODY_ACCEPTED, // all items for which custody has been accepted
         ABANDONED,      // all items which have been abandoned
-        INCOMPLETE      // all items for which processing is incomplete
+        INCOMPLETE,     // all items for which processing is incomplete
+        QUERY,          // all items matching a keyword query
+        SELECT,         // all items whose names match a glob or regular expression
+        DUPLICATE_CONTENT // items with different names but identical content
     }
     
     /**
@@ -65,17 +91,206 @@ public class CmdReport extends Command {
         this.type = type;
         this.keywords = keywords;
         this.outputFile = outputFile;
+        this.since = null;
+        this.selection = null;
         
         testParameters();
         doIt();
     }
 
+    /**
+     * Generate a report of the Items selected by a keyword query (e.g. 'QA AND
+     * NOT (Rejected OR Duplicate)').
+     *
+     * @param database database to connect to (may be null)
+     * @param query the keyword query
+     * @param outputFile where to put the generated report
+     * @throws AppFatal an internal error occurred
+     * @throws AppError an external (user) error occurred
+     * @throws SQLException an SQL error occurred
+     */
+    public void queryReport(String database, String query, Path outputFile) throws AppFatal, AppError, SQLException {
+        assert query != null;
+
+        this.database = database;
+        this.type = ReportType.QUERY;
+        this.keywords = null;
+        this.query = KeywordQuery.parse(query);
+        this.outputFile = outputFile;
+        this.since = null;
+        this.selection = null;
+
+        testParameters();
+        doIt();
+    }
+
+    /**
+     * Generate a report of the Items whose names match a selection: a glob
+     * (e.g. 'A123*.veo.zip'), or a regular expression prefixed by 'regex:'
+     * (see NameSelector).
+     *
+     * @param database database to connect to (may be null)
+     * @param selection the glob or regular expression
+     * @param outputFile where to put the generated report
+     * @throws AppFatal an internal error occurred
+     * @throws AppError an external (user) error occurred
+     * @throws SQLException an SQL error occurred
+     */
+    public void selectReport(String database, String selection, Path outputFile) throws AppFatal, AppError, SQLException {
+        assert selection != null;
+
+        this.database = database;
+        this.type = ReportType.SELECT;
+        this.keywords = null;
+        this.query = null;
+        this.selection = NameSelector.parse(selection);
+        this.outputFile = outputFile;
+        this.since = null;
+
+        testParameters();
+        doIt();
+    }
+
+    /**
+     * Generate a report of the Items that have changed since a particular
+     * time. Since is either a timestamp (e.g. '2023-04-01' or
+     * '2023-04-01T09:00:00+10:00'), or the id of a delivery, in which case the
+     * report contains the Items touched by that delivery and anything since.
+     *
+     * @param database database to connect to (may be null)
+     * @param since a timestamp or a delivery id
+     * @param outputFile where to put the generated report
+     * @throws AppFatal an internal error occurred
+     * @throws AppError an external (user) error occurred
+     * @throws SQLException an SQL error occurred
+     */
+    public void changesReport(String database, String since, Path outputFile) throws AppFatal, AppError, SQLException {
+        assert since != null;
+
+        this.database = database;
+        this.type = ReportType.COMPLETE;
+        this.keywords = null;
+        this.outputFile = outputFile;
+        this.since = since;
+        this.selection = null;
+
+        testParameters();
+        doIt();
+    }
+
+    /**
+     * Get a page of Items, with their Keywords and Instances. Pages are
+     * requested in filename order using the next key returned by the previous
+     * page (keyset pagination).
+     *
+     * Do not call this method directly, use the wrapper in the TrackTransfer
+     * class.
+     *
+     * @param database database to connect to (may be null)
+     * @param keywords select Items with any of these keywords or states (null
+     * or empty selects all Items)
+     * @param after next key returned with the previous page (null for the first
+     * page)
+     * @param pageSize maximum number of Items to return
+     * @return the page of Items
+     * @throws AppFatal an internal error occurred
+     * @throws AppError an external (user) error occurred
+     * @throws SQLException an SQL error occurred
+     */
+    public ItemPage itemPage(String database, ArrayList<String> keywords, String after, int pageSize) throws AppFatal, AppError, SQLException {
+        return itemPage(database, keywords == null || keywords.isEmpty() ? null : KeywordQuery.anyOf(keywords), after, pageSize);
+    }
+
+    /**
+     * Get a page of the Items selected by a keyword query, with their Keywords
+     * and Instances.
+     *
+     * Do not call this method directly, use the wrapper in the TrackTransfer
+     * class.
+     *
+     * @param database database to connect to (may be null)
+     * @param query select Items matching this query (null selects all Items)
+     * @param after next key returned with the previous page (null for the first
+     * page)
+     * @param pageSize maximum number of Items to return
+     * @return the page of Items
+     * @throws AppFatal an internal error occurred
+     * @throws AppError an external (user) error occurred
+     * @throws SQLException an SQL error occurred
+     */
+    public ItemPage itemPage(String database, KeywordQuery query, String after, int pageSize) throws AppFatal, AppError, SQLException {
+        List<ItemPage> pages;
+        ItemPage page;
+        int i;
+
+        if (pageSize < 1) {
+            throw new AppError("Page size must be at least one (was " + pageSize + ")");
+        }
+        this.database = database;
+        connectDB();
+        shards = null;
+        try {
+            page = ItemPage.read(query, after, pageSize);
+
+            // if the transfer is sharded, read the page from each shard
+            if ((i = TblTransfer.getShards()) > 1) {
+                shards = Shards.connect(this.database, i);
+                pages = new ArrayList<>();
+                pages.add(page);
+                for (i = 1; i < shards.count(); i++) {
+                    shards.use(i);
+                    pages.add(ItemPage.read(query, after, pageSize));
+                }
+                page = ItemPage.merge(pages, pageSize);
+            }
+        } finally {
+            if (shards != null) {
+                shards.disconnect();
+                shards = null;
+            }
+            disconnectDB();
+        }
+        return page;
+    }
+
+    /**
+     * Generate a report from command line arguments, sending it to a stream
+     * rather than the output file. Used by the server (CmdServe) to stream
+     * reports back to the client. The output file (-o) need not be given.
+     *
+     * @param args the command line arguments
+     * @param out the stream to send the report to (closed on completion)
+     * @param format the format of the report
+     * @throws AppFatal an internal error occurred
+     * @throws AppError an external (user) error occurred
+     * @throws SQLException an SQL error occurred
+     */
+    public void streamReport(String args[], OutputStream out, Report.ReportFormat format) throws AppFatal, AppError, SQLException {
+        stream = out;
+        streamFormat = format;
+        try {
+            generateReport(args);
+        } finally {
+            stream = null;
+            streamFormat = null;
+        }
+    }
+
     public void generateReport(String args[]) throws AppFatal, AppError, SQLException {
         type = ReportType.COMPLETE;
         keywords = new ArrayList<>();
+        since = null;
+        query = null;
+        selection = null;
+        outputFile = null;
 
         config(args, usage);
 
+        // a selection on its own reports all the matching items
+        if (selection != null && type == ReportType.COMPLETE && since == null) {
+            type = ReportType.SELECT;
+        }
+
         // just asked for help?
         if (help) {
             LOG.setLevel(Level.INFO);
@@ -86,12 +301,17 @@ public class CmdReport extends Command {
             LOG.info("  -custody-accepted: report of all items for which custody has been accepted");
             LOG.info("  -abandoned: report of all items which have been abandoned");
             LOG.info("  -incomplete: report of all items for which processing is incomplete");
+            LOG.info("  -query <query>: report of all items matching a query, e.g. \"QA AND NOT (Rejected OR Duplicate)\" (keywords containing spaces must be in double quotes)");
+            LOG.info("  -duplicate-content: report of items with different names but identical content, grouped by hash");
+            LOG.info("  -select <glob>: report of items whose names match a glob (e.g. 'A123*.veo.zip'), or a regular expression prefixed by 'regex:'");
             LOG.info("");
             LOG.info(" Mandatory:");
             LOG.info("  -o <filename>: output file for the report");
             LOG.info("");
             LOG.info(" Optional:");
             LOG.info("  -db <database>: Database name (default based on .mv.db file in current working directory)");
+            LOG.info("  -since <timestamp|deliveryId>: only report items changed since this time (e.g. 2023-04-01 or 2023-04-01T09:00:00+10:00) or delivery (complete report only)");
+            LOG.info("  -select <glob>: with -keyword, -query, -custody-accepted, -abandoned, or -incomplete, only report items whose names match");
             LOG.info("  -tsv: Generate report as a TSV file (default is plain text)");
             LOG.info("  -csv: Generate report as a CSV file (default is plain text)");
             genericHelp();
@@ -105,7 +325,11 @@ public class CmdReport extends Command {
         LOG.info("Requested:");
         switch (type) {
             case COMPLETE:
-                LOG.info(" Generate Complete report");
+                if (since == null) {
+                    LOG.info(" Generate Complete report");
+                } else {
+                    LOG.log(Level.INFO, " Generate report of Items changed since {0}", since);
+                }
                 break;
             case KEYWORD:
                 LOG.log(Level.INFO, " Generate report for keywords: {0}", keywords);
@@ -119,12 +343,24 @@ public class CmdReport extends Command {
             case INCOMPLETE:
                 LOG.info(" Generate Items not finalised report");
                 break;
+            case QUERY:
+                LOG.log(Level.INFO, " Generate report for query: {0}", query);
+                break;
+            case DUPLICATE_CONTENT:
+                LOG.info(" Generate Duplicate Content report");
+                break;
+            case SELECT:
+                LOG.log(Level.INFO, " Generate report for items whose names match ''{0}''", selection);
+                break;
             default:
                 LOG.info(" Generate Unknown report");
                 break;
         }
+        if (selection != null && type != ReportType.SELECT) {
+            LOG.log(Level.INFO, " Only report items whose names match ''{0}''", selection);
+        }
         LOG.log(Level.INFO, " Database: {0}", database == null ? "Derived from .mv.db filename" : database);
-        LOG.log(Level.INFO, " Report: {0}", outputFile.toString());
+        LOG.log(Level.INFO, " Report: {0}", stream != null ? "(streamed)" : outputFile.toString());
         genericStatus();
         
         doIt();
@@ -133,62 +369,106 @@ public class CmdReport extends Command {
     
     private void doIt() throws AppFatal, AppError, SQLException {
         Report report;
+        int n;
+
+        // connect to the database and create the tables
+        connectDB();
+        shards = null;
 
         // open the output file for writing
         try {
 
-            // connect to the database and create the tables
-            connectDB();
-            
             // get transfer information
             ResultSet transfer = TblTransfer.query("DESC", null, null);
+            transfer.next();
             String transferDesc = TblTransfer.getDescription(transfer);
             System.out.println("***"+transferDesc);
 
+            // if the transfer is sharded, connect to the other shards
+            n = TblTransfer.getShards();
+            if (n > 1) {
+                if (type == ReportType.DUPLICATE_CONTENT) {
+                    throw new AppError("A report on duplicate content cannot be generated from a sharded transfer");
+                }
+                shards = Shards.connect(database, n);
+            }
+
             //System.out.println(TblItem.printTable());
             //System.out.println(TblInstance.printTable());
             //System.out.println(TblInstanceEvent.printTable());
             //System.out.println(TblEvent.printTable());
             switch (type) {
                 case COMPLETE:
-                    report = new RptComplete();
-                    ((RptComplete) report).generate(outputFile);
+                    report = target(new RptComplete());
+                    ((RptComplete) report).generate(outputFile, since == null ? null : sinceTime(since));
                     break;
                 case KEYWORD:
-                    report = new RptOnItems();
-                    ((RptOnItems) report).generate(outputFile, "with keywords", keywords, "FILENAME");
+                    report = target(new RptOnItems());
+                    ((RptOnItems) report).generate(outputFile, "with keywords", KeywordQuery.anyOf(keywords), selection, "FILENAME");
                     break;
                 case CUSTODY_ACCEPTED:
-                    report = new RptOnItems();
+                    report = target(new RptOnItems());
                     keywords.clear();
                     keywords.add("Custody-accepted");
-                    ((RptOnItems) report).generate(outputFile, "with status Custody Accepted", keywords, "FILENAME");
+                    ((RptOnItems) report).generate(outputFile, "with status Custody Accepted", KeywordQuery.anyOf(keywords), selection, "FILENAME");
                     break;
                 case ABANDONED:
-                    report = new RptOnItems();
+                    report = target(new RptOnItems());
                     keywords.clear();
                     keywords.add("Abandoned");
-                    ((RptOnItems) report).generate(outputFile, "with status Abandoned", keywords, "FILENAME");
+                    ((RptOnItems) report).generate(outputFile, "with status Abandoned", KeywordQuery.anyOf(keywords), selection, "FILENAME");
                     break;
                 case INCOMPLETE:
-                    report = new RptOnItems();
+                    report = target(new RptOnItems());
                     keywords.clear();
                     keywords.add("Incomplete");
-                    ((RptOnItems) report).generate(outputFile, "for which processing is incomplete", keywords, "FILENAME");
+                    ((RptOnItems) report).generate(outputFile, "for which processing is incomplete", KeywordQuery.anyOf(keywords), selection, "FILENAME");
+                    break;
+                case QUERY:
+                    report = target(new RptOnItems());
+                    ((RptOnItems) report).generate(outputFile, "matching query", query, selection, "FILENAME");
+                    break;
+                case SELECT:
+                    report = target(new RptOnItems());
+                    ((RptOnItems) report).generate(outputFile, "with names matching", null, selection, "FILENAME");
+                    break;
+                case DUPLICATE_CONTENT:
+                    report = target(new RptDuplicateContent());
+                    ((RptDuplicateContent) report).generate(outputFile);
                     break;
                 default:
                     LOG.info(" Requested to generate an unknown type of report");
                     break;
             }
-
-            // for each item, list the events
-            disconnectDB();
         } catch (IOException ioe) {
             throw new AppError(ioe.getMessage());
+        } finally {
+            if (shards != null) {
+                shards.disconnect();
+                shards = null;
+            }
+            disconnectDB();
         }
 
         // acknowledge creation
-        LOG.log(Level.INFO, "Report generated from ({0}) to ''{1}''", new Object[]{database, outputFile.toString()});
+        LOG.log(Level.INFO, "Report generated from ({0}) to ''{1}''", new Object[]{database, stream != null ? "(streamed)" : outputFile.toString()});
+    }
+
+    /**
+     * Direct a report to the stream, if the report is being streamed, and
+     * across the shards, if the transfer is sharded.
+     *
+     * @param report the report
+     * @return the report
+     */
+    private <T extends Report> T target(T report) {
+        if (stream != null) {
+            report.streamTo(stream, streamFormat);
+        }
+        if (shards != null) {
+            report.across(shards);
+        }
+        return report;
     }
 
     /**
@@ -228,6 +508,21 @@ public class CmdReport extends Command {
                 i++;
                 j = 2;
                 break;
+            // report on items matching a keyword query
+            case "-query":
+                type = ReportType.QUERY;
+                i++;
+                query = KeywordQuery.parse(args[i]);
+                i++;
+                j = 2;
+                break;
+            // only report items changed since a time or delivery
+            case "-since":
+                i++;
+                since = args[i];
+                i++;
+                j = 2;
+                break;
             // report of all items abandoned
             case "-abandoned":
                 type = ReportType.ABANDONED;
@@ -246,6 +541,19 @@ public class CmdReport extends Command {
                 i++;
                 j = 1;
                 break;
+            // report of items whose names match a glob or regular expression
+            case "-select":
+                i++;
+                selection = NameSelector.parse(args[i]);
+                i++;
+                j = 2;
+                break;
+            // report of items with identical content
+            case "-duplicate-content":
+                type = ReportType.DUPLICATE_CONTENT;
+                i++;
+                j = 1;
+                break;
             // otherwise complain
             default:
                 j = 0;
@@ -254,11 +562,67 @@ public class CmdReport extends Command {
     }
     
     private void testParameters() throws AppFatal, AppError {
-        if (outputFile == null) {
+        if (outputFile == null && stream == null) {
             throw new AppError("Output file is not specified (-o)");
         }
         if (type == ReportType.KEYWORD && keywords == null) {
             throw new AppError("No keywords specified (-keyword)");
         }
+        if (type == ReportType.QUERY && query == null) {
+            throw new AppError("No keyword query specified (-query)");
+        }
+        if (since != null && type != ReportType.COMPLETE) {
+            throw new AppError("Changes since a time (-since) can only be reported in a complete report");
+        }
+        if (type == ReportType.SELECT && selection == null) {
+            throw new AppError("No selection specified (-select)");
+        }
+        if (selection != null && (type == ReportType.COMPLETE || type == ReportType.DUPLICATE_CONTENT)) {
+            throw new AppError("A selection (-select) can only be used in a report on items (e.g. -keyword or -query)");
+        }
+    }
+
+    /**
+     * Work out the time from which changes are to be reported. If since is an
+     * integer, it is the id of a delivery and the time the delivery was
+     * received is returned. Otherwise since is a timestamp; this may be a date,
+     * or a date and time (optionally with a time zone). Dates and times
+     * without a time zone are in the local time zone. The time is truncated to
+     * seconds, the precision to which Events are timestamped. Must be
+     * connected to the database.
+     *
+     * @param since a timestamp or a delivery id
+     * @return the time from which changes are reported
+     * @throws AppError if since was not a valid delivery or timestamp
+     * @throws SQLException
+     */
+    private OffsetDateTime sinceTime(String since) throws AppError, SQLException {
+        String s;
+
+        s = since.trim();
+        if (s.matches("[0-9]+")) {
+            try (ResultSet rs = TblDelivery.query("WHEN_RECEIVED", "DELIVERY_ID=" + s, null)) {
+                if (!rs.next()) {
+                    throw new AppError("Delivery '" + s + "' (-since) does not exist");
+                }
+                return rs.getObject("WHEN_RECEIVED", OffsetDateTime.class);
+            }
+        }
+        s = s.replace(' ', 'T');
+        try {
+            return OffsetDateTime.parse(s).truncatedTo(ChronoUnit.SECONDS);
+        } catch (DateTimeParseException dtpe) {
+            // try the next format
+        }
+        try {
+            return LocalDateTime.parse(s).atZone(ZoneId.systemDefault()).toOffsetDateTime().truncatedTo(ChronoUnit.SECONDS);
+        } catch (DateTimeParseException dtpe) {
+            // try the next format
+        }
+        try {
+            return LocalDate.parse(s).atStartOfDay(ZoneId.systemDefault()).toOffsetDateTime();
+        } catch (DateTimeParseException dtpe) {
+            throw new AppError("Since (-since) must be a delivery id, a date (e.g. 2023-04-01), or a date and time (e.g. 2023-04-01T09:00:00+10:00): '" + since + "'");
+        }
     }
 }
@@ -0,0 +1,647 @@
+package TrackTransfer;
+
+import VERSCommon.AppError;
+import VERSCommon.AppFatal;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+import java.util.logging.SimpleFormatter;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+/**
+ * Serve Track Transfer commands over HTTP. The server keeps one JVM running
+ * with the database open, so a command costs a request rather than starting
+ * a JVM and opening the database. The server only listens on the loopback
+ * interface (i.e. it can only be used from the same machine).
+ *
+ * As any program on the machine (including a web page open in a browser) can
+ * send requests to the loopback interface, every request must carry the
+ * token printed when the server starts in an 'X-TrackTransfer-Token' header.
+ * Requests from a web page of another site (i.e. with an Origin header naming
+ * anything but this server) are refused, and the body of a POST must be JSON,
+ * which a browser will not send to another site without asking first.
+ *
+ * The operations are:
+ * <ul>
+ * <li>POST /newDelivery - register a new delivery</li>
+ * <li>POST /annotate - annotate Items</li>
+ * <li>POST /report - generate a report, which is streamed back as the
+ * response (the format is chosen by the extension of the -o argument; text if
+ * not given)</li>
+ * <li>GET /summary - a JSON summary of the transfer</li>
+ * <li>POST /maintain - refresh the optimiser statistics between commands
+ * (always online, see CmdMaintain)</li>
+ * <li>POST /shutdown - stop the server</li>
+ * </ul>
+ * The arguments of newDelivery, annotate, report, and maintain are the
+ * command line arguments of the command as a JSON object ({"args":
+ * ["-desc", "Delivery 3", ...]}) sent with the content type
+ * 'application/json'. The database is always the one the server was started
+ * with. File names should be absolute,
+ * as they are interpreted relative to the directory the server was started in.
+ *
+ * Except for reports, the response is a JSON object: {"ok": true|false,
+ * "error": message, "log": [lines logged by the command]}.
+ *
+ * @author Andrew Waugh
+ */
+public class CmdServe extends Command {
+
+    private final static Logger LOG = Logger.getLogger("TrackTransfer.CmdServe");
+    static final int DEFAULT_PORT = 8765;
+    static final String TOKEN_HEADER = "X-TrackTransfer-Token";
+    private int port;                   // port to listen on
+    private byte[] token;               // token every request must carry (see TOKEN_HEADER)
+    private List<String> origins;       // Origin headers accepted (i.e. this server)
+    private CountDownLatch stopped;     // released when the server is asked to shut down
+    private final String usage = "[-db <databaseURL>] [-port <port>] [-v] [-d] [-help]";
+
+    public CmdServe() throws AppFatal {
+        super();
+    }
+
+    /**
+     * Run the server. API version. Does not return until the server is shut
+     * down.
+     *
+     * Do not call this method directly, use the wrapper in the TrackTransfer
+     * class.
+     *
+     * @param database database to serve (may be null)
+     * @param port port to listen on
+     * @throws AppFatal thrown if TrackTransfer had an internal error
+     * @throws AppError thrown if the calling program did something wrong
+     * @throws SQLException SQL problem occurred
+     */
+    public void serve(String database, int port) throws AppFatal, AppError, SQLException {
+        this.database = database;
+        this.port = port;
+        doIt();
+    }
+
+    /**
+     * Run the server. Command line version.
+     *
+     * @param args
+     * @throws AppFatal thrown if TrackTransfer had an internal error
+     * @throws AppError thrown if the calling program did something wrong
+     * @throws SQLException SQL problem occurred
+     */
+    public void serve(String args[]) throws AppFatal, AppError, SQLException {
+        port = DEFAULT_PORT;
+        config(args, usage);
+
+        // just asked for help?
+        if (help) {
+            LOG.setLevel(Level.INFO);
+            LOG.info("'Serve' command line arguments:");
+            LOG.info(" Optional:");
+            LOG.info("  -db <database>: Database name (default based on .mv.db file in current working directory)");
+            LOG.info("  -port <port>: port to listen on (default " + DEFAULT_PORT + ")");
+            genericHelp();
+            return;
+        }
+
+        // say what we are doing
+        LOG.info("Requested:");
+        LOG.info(" Serve commands over HTTP");
+        LOG.log(Level.INFO, " Database: {0}", database == null ? "Derived from .mv.db filename" : database);
+        LOG.log(Level.INFO, " Port: {0}", Integer.toString(port));
+        genericStatus();
+
+        doIt();
+    }
+
+    /**
+     * Internal function that actually does the work.
+     *
+     * @throws AppFatal
+     * @throws AppError
+     * @throws SQLException
+     */
+    private void doIt() throws AppFatal, AppError, SQLException {
+        HttpServer server;
+        ExecutorService workers;
+        Capture capture;
+        Logger root;
+        SecureRandom random;
+        byte[] b;
+        StringBuilder sb;
+        String t;
+        int p;
+
+        // open the database (upgrading it if necessary) and check that it
+        // holds a transfer. The connection is held open in the pool while
+        // serving, so each request does not have to open the database
+        connectDB();
+        SQLTable.holdOpen(database, true);
+        try {
+            if (!SQLTable.tableExists("TRANSFER")) {
+                throw new AppError("Database '" + database + "' does not contain a transfer");
+            }
+        } catch (AppError | SQLException | RuntimeException e) {
+            SQLTable.holdOpen(database, false);
+            throw e;
+        } finally {
+            disconnectDB();
+        }
+
+        try {
+            server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        } catch (IOException ioe) {
+            SQLTable.holdOpen(database, false);
+            throw new AppError("Could not listen on port " + port + ": " + ioe.getMessage());
+        }
+        p = server.getAddress().getPort();
+        origins = Arrays.asList("http://127.0.0.1:" + p, "http://localhost:" + p, "http://[::1]:" + p);
+
+        // a new token each time the server is started
+        random = new SecureRandom();
+        b = new byte[16];
+        random.nextBytes(b);
+        sb = new StringBuilder();
+        for (byte x : b) {
+            sb.append(String.format("%02x", x & 0xff));
+        }
+        t = sb.toString();
+        token = t.getBytes(StandardCharsets.US_ASCII);
+
+        workers = Executors.newFixedThreadPool(ConnectionPool.MAX_CONNECTIONS);
+        server.setExecutor(workers);
+        server.createContext("/newDelivery", ex -> handle(ex, "newDelivery"));
+        server.createContext("/annotate", ex -> handle(ex, "annotate"));
+        server.createContext("/report", ex -> handle(ex, "report"));
+        server.createContext("/summary", ex -> handle(ex, "summary"));
+        server.createContext("/maintain", ex -> handle(ex, "maintain"));
+        server.createContext("/shutdown", ex -> handle(ex, "shutdown"));
+
+        // capture what each command logs to return it to the client
+        capture = new Capture();
+        root = Logger.getLogger("TrackTransfer");
+        root.addHandler(capture);
+
+        stopped = new CountDownLatch(1);
+        server.start();
+        LOG.log(Level.INFO, "Serving ''{0}'' on http://{1}:{2}/", new Object[]{database, server.getAddress().getHostString(), Integer.toString(p)});
+        LOG.log(Level.INFO, "Requests must include the header ''{0}: {1}''", new Object[]{TOKEN_HEADER, t});
+        try {
+            stopped.await();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        } finally {
+            server.stop(1);
+            workers.shutdown();
+            root.removeHandler(capture);
+            SQLTable.holdOpen(database, false);
+        }
+        LOG.info("Server stopped");
+    }
+
+    /**
+     * Handle a request. Each request runs in a worker thread with its own
+     * connection to the database.
+     *
+     * @param ex the request
+     * @param op the operation requested
+     */
+    private void handle(HttpExchange ex, String op) throws IOException {
+        List<String> log;
+        boolean isGet;
+        String s;
+
+        log = Capture.start();
+        try {
+            isGet = ex.getRequestMethod().equalsIgnoreCase("GET");
+            if (!isGet && !ex.getRequestMethod().equalsIgnoreCase("POST")) {
+                respond(ex, 405, false, "Use GET or POST", log);
+                return;
+            }
+            if (isGet && !op.equals("summary")) {
+                respond(ex, 405, false, "Use POST for '" + op + "'", log);
+                return;
+            }
+
+            // refuse requests from web pages of other sites, and from anyone
+            // who does not know the token
+            s = ex.getRequestHeaders().getFirst("Origin");
+            if (s != null && !origins.contains(s.toLowerCase())) {
+                respond(ex, 403, false, "Requests from '" + s + "' are not accepted", log);
+                return;
+            }
+            s = ex.getRequestHeaders().getFirst(TOKEN_HEADER);
+            if (s == null || !MessageDigest.isEqual(token, s.trim().getBytes(StandardCharsets.US_ASCII))) {
+                respond(ex, 401, false, "Missing or wrong '" + TOKEN_HEADER + "' header (the token is printed when the server starts)", log);
+                return;
+            }
+            s = ex.getRequestHeaders().getFirst("Content-Type");
+            if (!isGet && (s == null || !s.toLowerCase().startsWith("application/json"))) {
+                respond(ex, 415, false, "Content type must be 'application/json'", log);
+                return;
+            }
+            switch (op) {
+                case "newDelivery":
+                    new CmdNewDelivery().newDelivery(arguments(ex, op));
+                    break;
+                case "annotate":
+                    new CmdAnnotate().annotateItems(arguments(ex, op));
+                    break;
+                case "report":
+                    report(ex, arguments(ex, op), log);
+                    return;
+                case "summary":
+                    summary(ex, log);
+                    return;
+                case "maintain":
+                    new CmdMaintain().maintain(arguments(ex, op), true);
+                    break;
+                case "shutdown":
+                    respond(ex, 200, true, null, log);
+                    stopped.countDown();
+                    return;
+                default:
+                    respond(ex, 404, false, "Unknown operation", log);
+                    return;
+            }
+            respond(ex, 200, true, null, log);
+        } catch (AppError ae) {
+            respond(ex, 400, false, ae.getMessage(), log);
+        } catch (AppFatal | SQLException | RuntimeException e) {
+            LOG.log(Level.WARNING, "Request ''{0}'' failed: {1}", new Object[]{op, e.toString()});
+            respond(ex, 500, false, e.toString(), log);
+        } finally {
+            Capture.stop();
+            releaseConnection();
+            ex.close();
+        }
+    }
+
+    /**
+     * Generate a report, streaming it back as the response. The response is
+     * only started when the report writes its first output, so an error in
+     * the arguments is still returned as a JSON error.
+     */
+    private void report(HttpExchange ex, String[] args, List<String> log) throws AppFatal, AppError, SQLException, IOException {
+        Report.ReportFormat format;
+        ResponseStream out;
+        String type;
+        int i;
+
+        format = Report.ReportFormat.TEXT;
+        for (i = 1; i < args.length - 1; i++) {
+            if (args[i].equalsIgnoreCase("-o")) {
+                format = Report.formatOf(args[i + 1]);
+            }
+        }
+        switch (format) {
+            case CSV:
+                type = "text/csv; charset=utf-8";
+                break;
+            case TSV:
+                type = "text/tab-separated-values; charset=utf-8";
+                break;
+            default:
+                type = "text/plain; charset=utf-8";
+                break;
+        }
+        out = new ResponseStream(ex, type);
+        try {
+            new CmdReport().streamReport(args, out, format);
+        } catch (AppError | AppFatal | SQLException e) {
+            if (!out.started) {
+                throw e;
+            }
+            // too late to tell the client properly; the report is truncated
+            LOG.log(Level.WARNING, "Report failed after it was started: {0}", e.getMessage());
+        }
+        out.close();
+    }
+
+    /**
+     * Return a summary of the transfer: its description, the number of
+     * deliveries, the number of Items in each state, and the number of Items
+     * with each keyword. If the transfer is sharded, the Items in each shard
+     * are added up (every shard records every delivery).
+     */
+    @SuppressWarnings("unchecked")
+    private void summary(HttpExchange ex, List<String> log) throws AppFatal, SQLException, IOException {
+        Map<String, Object> m = new LinkedHashMap<>();
+        Map<String, Long> items = new LinkedHashMap<>();
+        Map<String, Long> keywords = new TreeMap<>();
+        Shards shards;
+        String state;
+        long total;
+        int i;
+
+        SQLTable.connect(database);
+        shards = null;
+        try {
+            try (ResultSet rs = TblTransfer.query("DESC", null, null)) {
+                m.put("transfer", rs.next() ? TblTransfer.getDescription(rs) : null);
+            }
+            try (ResultSet rs = SQLTable.query("select count(*) from DELIVERY;")) {
+                rs.next();
+                m.put("deliveries", rs.getLong(1));
+            }
+            items.put("processing", 0L);
+            items.put("custodyAccepted", 0L);
+            items.put("abandoned", 0L);
+            total = 0;
+            if ((i = TblTransfer.getShards()) > 1) {
+                shards = Shards.connect(database, i);
+            }
+            for (i = 0; i < (shards == null ? 1 : shards.count()); i++) {
+                if (shards != null) {
+                    shards.use(i);
+                }
+                try (ResultSet rs = SQLTable.query("select STATE, count(*) from ITEM group by STATE;")) {
+                    while (rs.next()) {
+                        switch (rs.getString(1)) {
+                            case "C":
+                                state = "custodyAccepted";
+                                break;
+                            case "A":
+                                state = "abandoned";
+                                break;
+                            default:
+                                state = "processing";
+                                break;
+                        }
+                        items.put(state, items.get(state) + rs.getLong(2));
+                        total += rs.getLong(2);
+                    }
+                }
+                try (ResultSet rs = SQLTable.query("select KEYWORD.KEYWORD, count(ITEM_KEYWORD.ITEM_ID) from KEYWORD left join ITEM_KEYWORD on KEYWORD.KEYWORD_ID=ITEM_KEYWORD.KEYWORD_ID group by KEYWORD.KEYWORD;")) {
+                    while (rs.next()) {
+                        keywords.merge(rs.getString(1), rs.getLong(2), Long::sum);
+                    }
+                }
+            }
+        } finally {
+            if (shards != null) {
+                shards.disconnect();
+            }
+            SQLTable.disconnect();
+        }
+        items.put("total", total);
+        m.put("items", items);
+        m.put("keywords", keywords);
+
+        send(ex, 200, JSONValue.toJSONString(m));
+    }
+
+    /**
+     * Build the command line arguments for a command from the request. Any
+     * database given by the client is ignored; the command is always run
+     * against the database being served.
+     */
+    private String[] arguments(HttpExchange ex, String op) throws AppError, IOException {
+        List<String> l = new ArrayList<>();
+        List<String> in;
+        String body;
+        Object o;
+        int i;
+
+        body = readBody(ex.getRequestBody());
+        in = new ArrayList<>();
+        try {
+            o = new JSONParser().parse(body);
+        } catch (ParseException pe) {
+            throw new AppError("Request is not valid JSON: " + pe.toString());
+        }
+        if (!(o instanceof JSONObject) || !(((JSONObject) o).get("args") instanceof JSONArray)) {
+            throw new AppError("Request must be a JSON object with an 'args' array");
+        }
+        for (Object a : (JSONArray) ((JSONObject) o).get("args")) {
+            in.add(String.valueOf(a));
+        }
+
+        l.add(op);
+        l.add("-db");
+        l.add(database);
+        for (i = 0; i < in.size(); i++) {
+            if (in.get(i).equalsIgnoreCase("-db")) {
+                i++;
+                continue;
+            }
+            l.add(in.get(i));
+        }
+        return l.toArray(new String[0]);
+    }
+
+    private static String readBody(InputStream is) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        byte[] b = new byte[4096];
+        int n;
+
+        while ((n = is.read(b)) != -1) {
+            baos.write(b, 0, n);
+        }
+        return new String(baos.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Send the JSON response to a command.
+     */
+    @SuppressWarnings("unchecked")
+    private static void respond(HttpExchange ex, int status, boolean ok, String error, List<String> log) throws IOException {
+        JSONObject j = new JSONObject();
+        JSONArray a = new JSONArray();
+
+        j.put("ok", ok);
+        if (error != null) {
+            j.put("error", error);
+        }
+        a.addAll(log);
+        j.put("log", a);
+        send(ex, status, j.toJSONString());
+    }
+
+    private static void send(HttpExchange ex, int status, String json) throws IOException {
+        byte[] b;
+
+        b = (json + "\n").getBytes(StandardCharsets.UTF_8);
+        ex.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        ex.sendResponseHeaders(status, b.length);
+        try (OutputStream os = ex.getResponseBody()) {
+            os.write(b);
+        }
+    }
+
+    /**
+     * Make sure the worker thread is no longer connected to the database. A
+     * command that failed part way through may not have disconnected; the
+     * connection is returned to the pool so the thread can be reused.
+     */
+    private static void releaseConnection() {
+        if (!SQLTable.isConnected()) {
+            return;
+        }
+        try {
+            KeywordIndex.close();
+        } catch (SQLException e) {
+            LOG.log(Level.WARNING, "Failed closing keyword index: {0}", e.getMessage());
+        }
+        try {
+            SQLTable.disconnect();
+        } catch (SQLException e) {
+            LOG.log(Level.WARNING, "Failed disconnecting: {0}", e.getMessage());
+        }
+    }
+
+    /**
+     * Process command line arguments specific to this command. Passed the array
+     * of command line arguments, and the current position in the array. Returns
+     * the number of arguments consumed (0 = nothing matched)
+     *
+     * @param args command line arguments
+     * @param i position in command line arguments
+     * @return command line arguments consumed
+     * @throws AppError
+     * @throws ArrayIndexOutOfBoundsException
+     */
+    @Override
+    int specificConfig(String[] args, int i) throws AppError, ArrayIndexOutOfBoundsException {
+        int j;
+
+        switch (args[i].toLowerCase()) {
+            // port to listen on
+            case "-port":
+                i++;
+                try {
+                    port = Integer.parseInt(args[i]);
+                } catch (NumberFormatException nfe) {
+                    throw new AppError("Port (-port) must be a number, not '" + args[i] + "'");
+                }
+                i++;
+                j = 2;
+                break;
+            // otherwise complain
+            default:
+                j = 0;
+        }
+        return j;
+    }
+
+    /**
+     * The response to a report request. The response headers are sent when
+     * the first byte of the report is written; the length is not known, so
+     * the response is chunked.
+     */
+    private static class ResponseStream extends OutputStream {
+
+        private final HttpExchange ex;
+        private final String contentType;
+        private OutputStream os;
+        boolean started;
+        private boolean closed;
+
+        ResponseStream(HttpExchange ex, String contentType) {
+            this.ex = ex;
+            this.contentType = contentType;
+            started = false;
+            closed = false;
+        }
+
+        private void start() throws IOException {
+            if (!started) {
+                started = true;
+                ex.getResponseHeaders().set("Content-Type", contentType);
+                ex.sendResponseHeaders(200, 0);
+                os = ex.getResponseBody();
+            }
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            start();
+            os.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            start();
+            os.write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (started) {
+                os.flush();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!closed) {
+                closed = true;
+                start();
+                os.close();
+            }
+        }
+    }
+
+    /**
+     * Log handler that collects the messages logged by the thread handling
+     * a request, so they can be returned to the client.
+     */
+    private static class Capture extends Handler {
+
+        private final static ThreadLocal<List<String>> LINES = new ThreadLocal<>();
+        private final SimpleFormatter formatter = new SimpleFormatter();
+
+        static List<String> start() {
+            List<String> l = new ArrayList<>();
+
+            LINES.set(l);
+            return l;
+        }
+
+        static void stop() {
+            LINES.remove();
+        }
+
+        @Override
+        public void publish(LogRecord record) {
+            List<String> l;
+
+            if ((l = LINES.get()) != null) {
+                l.add(formatter.formatMessage(record));
+            }
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,370 @@
+package TrackTransfer;
+
+import VERSCommon.AppError;
+import VERSCommon.AppFatal;
+import java.io.IOException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Paths;
+import java.security.NoSuchAlgorithmException;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Verify the fixity of the Items. The active instance of each Item is
+ * re-hashed and the digest compared with that recorded in the Item. An
+ * instance that has changed, or can no longer be read, has a failure event
+ * recorded against it.
+ *
+ * The instances are hashed by a pool of threads. The database is only read
+ * and updated by the thread running the command; it reads ahead of the pool
+ * by a few instances so the pool is kept busy. The combined rate at which
+ * the pool reads can be limited so that verification can run alongside
+ * other work. If the transfer is sharded, the shards are verified one after
+ * the other.
+ *
+ * Items without a recorded hash are skipped unless a baseline is asked for,
+ * in which case the hash of the active instance is recorded in the Item.
+ *
+ * @author Andrew Waugh
+ */
+public class CmdVerify extends Command {
+
+    private final static Logger LOG = Logger.getLogger("TrackTransfer.CmdVerify");
+    private final static int DEFAULT_THREADS = 2;
+    private int threads;        // number of instances hashed at once
+    private int mbPerSecond;    // limit on the rate instances are read (0 = unlimited)
+    private boolean baseline;   // if true, record the hash of items that do not have one
+    private int numChecked;     // number of instances hashed
+    private int numPassed;      // number of instances that matched their item's hash
+    private int numChanged;     // number of instances that did not match
+    private int numUnreadable;  // number of instances that could not be read
+    private int numBaselined;   // number of items whose hash was recorded
+    private int numNoHash;      // number of items skipped as they have no hash
+    private int changedEvent;   // event recording that an instance no longer matches its hash
+    private int unreadableEvent; // event recording that an instance could not be read
+    private int baselineEvent;  // event recording that the hash of an item was recorded
+    private final String usage = "[-db <databaseURL>] [-threads <n>] [-limit <MB/s>] [-baseline] [-v] [-d] [-help]";
+
+    public CmdVerify() throws AppFatal {
+        super();
+    }
+
+    /**
+     * Verify the fixity of the Items. API version.
+     *
+     * Do not call this method directly, use the wrapper in the TrackTransfer
+     * class.
+     *
+     * @param database database to connect to (may be null)
+     * @param threads number of instances to hash at once (must be > 0)
+     * @param mbPerSecond limit on the rate instances are read in MB/s (0 = unlimited)
+     * @param baseline true if the hash is to be recorded for items without one
+     * @return the number of instances that failed verification
+     * @throws AppFatal thrown if TrackTransfer had an internal error
+     * @throws AppError thrown if the calling program did something wrong
+     * @throws SQLException SQL problem occurred
+     */
+    public int verify(String database, int threads, int mbPerSecond, boolean baseline) throws AppFatal, AppError, SQLException {
+        assert threads > 0;
+        assert mbPerSecond >= 0;
+
+        this.database = database;
+        this.threads = threads;
+        this.mbPerSecond = mbPerSecond;
+        this.baseline = baseline;
+        doIt();
+        return numChanged + numUnreadable;
+    }
+
+    /**
+     * Verify the fixity of the Items. Command line version.
+     *
+     * @param args
+     * @throws AppFatal thrown if TrackTransfer had an internal error
+     * @throws AppError thrown if the calling program did something wrong
+     * @throws SQLException SQL problem occurred
+     */
+    public void verify(String args[]) throws AppFatal, AppError, SQLException {
+        threads = DEFAULT_THREADS;
+        mbPerSecond = 0;
+        baseline = false;
+        config(args, usage);
+
+        // just asked for help?
+        if (help) {
+            LOG.setLevel(Level.INFO);
+            LOG.info("'Verify' command line arguments:");
+            LOG.info(" Optional:");
+            LOG.info("  -threads <n>: number of instances to hash at once (default " + DEFAULT_THREADS + ")");
+            LOG.info("  -limit <MB/s>: limit the rate at which instances are read (default no limit)");
+            LOG.info("  -baseline: record the hash of items that do not have one");
+            LOG.info("  -db <database>: Database name (default based on .mv.db file in current working directory)");
+            genericHelp();
+            return;
+        }
+
+        // say what we are doing
+        LOG.info("Requested:");
+        LOG.info(" Verify the fixity of the active instance of each item");
+        LOG.log(Level.INFO, " Database: {0}", database == null ? "Derived from .mv.db filename" : database);
+        LOG.log(Level.INFO, " Instances hashed at once: {0}", threads);
+        if (mbPerSecond > 0) {
+            LOG.log(Level.INFO, " Read at most {0} MB/s", mbPerSecond);
+        }
+        if (baseline) {
+            LOG.log(Level.INFO, " Record the hash ({0}) of items that do not have one", Hasher.DEFAULT_ALG);
+        } else {
+            LOG.info(" Skip items that do not have a hash");
+        }
+        genericStatus();
+
+        doIt();
+
+        LOG.log(Level.INFO, "Checked {0} instances: {1} passed, {2} changed, {3} could not be read, {4} hashes recorded", new Object[]{numChecked, numPassed, numChanged, numUnreadable, numBaselined});
+        if (numNoHash > 0) {
+            LOG.log(Level.INFO, "{0} items were not checked as they do not have a hash (use -baseline)", numNoHash);
+        }
+    }
+
+    /**
+     * Internal function that actually does the work. The active instances are
+     * read in order, and handed to the pool; the results are recorded as they
+     * come back. At most threads*2 instances are outstanding at any time.
+     *
+     * @throws AppFatal
+     * @throws AppError
+     * @throws SQLException
+     */
+    private void doIt() throws AppFatal, AppError, SQLException {
+        ExecutorService pool;
+        CompletionService<Check> cs;
+        Shards shards;
+        Hasher hasher;
+        int i;
+
+        numChecked = 0;
+        numPassed = 0;
+        numChanged = 0;
+        numUnreadable = 0;
+        numBaselined = 0;
+        numNoHash = 0;
+
+        hasher = new Hasher(mbPerSecond * 1024L * 1024L);
+        connectDB();
+        pool = null;
+        shards = null;
+        try {
+            pool = Executors.newFixedThreadPool(threads);
+            cs = new ExecutorCompletionService<>(pool);
+            if ((i = TblTransfer.getShards()) > 1) {
+                shards = Shards.connect(database, i);
+            }
+            for (i = 0; i < (shards == null ? 1 : shards.count()); i++) {
+                if (shards != null) {
+                    shards.use(i);
+                }
+                verify(hasher, cs);
+            }
+        } finally {
+            if (pool != null) {
+                pool.shutdownNow();
+            }
+            if (shards != null) {
+                shards.disconnect();
+            }
+            disconnectDB();
+        }
+    }
+
+    /**
+     * Verify the Items in the database (or shard) the thread is using. All
+     * the instances are recorded before returning, as the events are added
+     * to this database.
+     *
+     * @param hasher hashes the instances
+     * @param cs the pool hashing the instances
+     * @throws AppFatal
+     * @throws SQLException
+     */
+    private void verify(Hasher hasher, CompletionService<Check> cs) throws AppFatal, SQLException {
+        TblItem.Row item = new TblItem.Row();
+        TblInstance.Row instance = new TblInstance.Row();
+        Check c;
+        int inFlight;
+
+        // the events are added to each database separately
+        changedEvent = 0;
+        unreadableEvent = 0;
+        baselineEvent = 0;
+
+        inFlight = 0;
+        try (ResultSet rs = SQLTable.query("select ITEM.ITEM_ID, ITEM.FILENAME, ITEM.HASHALG, ITEM.HASH, INSTANCE.INSTANCE_ID, INSTANCE.DIRECTORY_ID, INSTANCE.NAME from ITEM join INSTANCE on INSTANCE.INSTANCE_ID=ITEM.ACTIVE_INSTANCE_ID order by ITEM.ITEM_ID;")) {
+            while (item.next(rs)) {
+                c = new Check(hasher, item, instance.read(rs));
+                if (c.expected == null && !baseline) {
+                    numNoHash++;
+                    continue;
+                }
+                cs.submit(c);
+                inFlight++;
+                if (inFlight >= threads * 2) {
+                    record(cs);
+                    inFlight--;
+                }
+            }
+            for (; inFlight > 0; inFlight--) {
+                record(cs);
+            }
+        }
+    }
+
+    /**
+     * Wait for the next instance to be hashed, and record the result.
+     *
+     * @param cs the pool hashing the instances
+     * @throws AppFatal
+     * @throws SQLException
+     */
+    private void record(CompletionService<Check> cs) throws AppFatal, SQLException {
+        Check c;
+
+        try {
+            c = cs.take().get();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new AppFatal("Interrupted while verifying instances");
+        } catch (ExecutionException ee) {
+            throw new AppFatal("Failed hashing instance: " + ee.getCause().getMessage());
+        }
+        numChecked++;
+        if (c.failure != null) {
+            numUnreadable++;
+            if (unreadableEvent == 0) {
+                unreadableEvent = TblEvent.add("Fixity check failed: instance could not be read");
+            }
+            TblInstanceEvent.add(c.instanceId, unreadableEvent);
+            LOG.log(Level.WARNING, "Item ''{0}'': instance ''{1}'' could not be read: {2}", new Object[]{c.filename, c.filepath, c.failure});
+        } else if (c.expected == null) {
+            numBaselined++;
+            TblItem.setHash(c.itemId, c.alg, c.actual);
+            if (baselineEvent == 0) {
+                baselineEvent = TblEvent.add("Fixity baseline recorded ({0})", c.alg);
+            }
+            TblInstanceEvent.add(c.instanceId, baselineEvent);
+            LOG.log(Level.FINE, "Item ''{0}'': recorded hash {1}", new Object[]{c.filename, c.actual});
+        } else if (c.expected.equalsIgnoreCase(c.actual)) {
+            numPassed++;
+            LOG.log(Level.FINE, "Item ''{0}'': passed", c.filename);
+        } else {
+            numChanged++;
+            if (changedEvent == 0) {
+                changedEvent = TblEvent.add("Fixity check failed: instance has changed since its hash was recorded");
+            }
+            TblInstanceEvent.add(c.instanceId, changedEvent);
+            LOG.log(Level.WARNING, "Item ''{0}'': instance ''{1}'' has changed (expected {2}, found {3})", new Object[]{c.filename, c.filepath, c.expected, c.actual});
+        }
+    }
+
+    /**
+     * Process command line arguments specific to this command. Passed the array
+     * of command line arguments, and the current position in the array. Returns
+     * the number of arguments consumed (0 = nothing matched)
+     *
+     * @param args command line arguments
+     * @param i position in command line arguments
+     * @return command line arguments consumed
+     * @throws AppError
+     * @throws ArrayIndexOutOfBoundsException
+     */
+    @Override
+    int specificConfig(String[] args, int i) throws AppError, ArrayIndexOutOfBoundsException {
+        int j;
+
+        switch (args[i].toLowerCase()) {
+            // number of instances hashed at once
+            case "-threads":
+                i++;
+                threads = number("-threads", args[i]);
+                if (threads < 1) {
+                    throw new AppError("Number of threads (-threads) must be at least one");
+                }
+                i++;
+                j = 2;
+                break;
+            // limit on the rate instances are read
+            case "-limit":
+                i++;
+                mbPerSecond = number("-limit", args[i]);
+                if (mbPerSecond < 0) {
+                    throw new AppError("Read limit (-limit) cannot be negative");
+                }
+                i++;
+                j = 2;
+                break;
+            // record the hash of items that do not have one
+            case "-baseline":
+                i++;
+                baseline = true;
+                j = 1;
+                break;
+            // otherwise complain
+            default:
+                j = 0;
+        }
+        return j;
+    }
+
+    private static int number(String option, String s) throws AppError {
+        try {
+            return Integer.parseInt(s);
+        } catch (NumberFormatException nfe) {
+            throw new AppError("Value of " + option + " must be a number, not '" + s + "'");
+        }
+    }
+
+    /**
+     * Hash one active instance. Run in the pool; does not touch the database.
+     */
+    private static class Check implements Callable<Check> {
+
+        final Hasher hasher;
+        final int itemId;
+        final int instanceId;
+        final String filename;
+        final String filepath;
+        final String alg;       // algorithm used to hash the item
+        final String expected;  // hash recorded in the item (null if none)
+        String actual;          // hash of the instance
+        String failure;         // why the instance could not be hashed (null if it was)
+
+        Check(Hasher hasher, TblItem.Row item, TblInstance.Row instance) throws SQLException {
+            this.hasher = hasher;
+            itemId = item.itemId;
+            instanceId = instance.instanceId;
+            filename = item.filename;
+            filepath = instance.filepath();
+            expected = item.hash;
+            alg = (expected == null || item.hashAlg == null) ? Hasher.DEFAULT_ALG : item.hashAlg;
+        }
+
+        @Override
+        public Check call() {
+            try {
+                actual = hasher.hash(Paths.get(filepath), alg);
+            } catch (NoSuchFileException nsfe) {
+                failure = "file not found";
+            } catch (IOException | NoSuchAlgorithmException | RuntimeException e) {
+                failure = e.getMessage();
+            }
+            return this;
+        }
+    }
+}
@@ -91,17 +91,65 @@ public abstract class Command {
         }
         LOG.log(Level.FINE, " Connecting to database: {0}", database);
 
+        // the database is upgraded by the first command to connect to it
         SQLTable.connect(database);
+        try {
+            SQLTable.upgradeOnce(this::upgradeDB);
+            KeywordIndex.open(database);
+        } catch (SQLException | RuntimeException e) {
+            disconnectDB();
+            throw e;
+        }
+
+        // all the rows added by this command share the same timestamp
+        SQLTable.startBatch();
         return database;
     }
 
     /**
-     * Disconnect from the database
+     * Bring the tables in a database created by an earlier version of Track
+     * Transfer up to date. Nothing is done if the transfer has not yet been
+     * created (i.e. we are connecting in order to create the tables).
+     *
+     * @return true if the tables were brought up to date
+     * @throws SQLException
+     */
+    private boolean upgradeDB() throws SQLException {
+        if (!SQLTable.tableExists("TRANSFER")) {
+            return false;
+        }
+        TblTransfer.upgradeTable();
+        TblDirectory.upgradeTable();
+        TblInstance.upgradeTable();
+        TblItem.upgradeTable();
+        TblEvent.upgradeTable();
+        TblInstanceEvent.upgradeTable();
+        TblItemKeyword.upgradeTable();
+        TblAnnotationProgress.upgradeTable();
+        TblRunMetric.upgradeTable();
+        TblIndexChange.upgradeTable();
+        return true;
+    }
+
+    /**
+     * Disconnect from the database. The connection is returned to the pool
+     * even if the keyword index could not be saved. Commands call this in a
+     * finally block, so that a command that fails does not keep its
+     * connection. Nothing happens if the command is not connected (e.g. it
+     * has already disconnected).
      *
      * @throws SQLException
      */
     protected void disconnectDB() throws SQLException {
-        SQLTable.disconnect();
+        if (!SQLTable.isConnected()) {
+            return;
+        }
+        try {
+            KeywordIndex.close();
+        } finally {
+            SQLTable.endBatch();
+            SQLTable.disconnect();
+        }
     }
 
     /**
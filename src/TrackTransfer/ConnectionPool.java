@@ -0,0 +1,219 @@
+package TrackTransfer;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A small bounded pool of connections to each database. Each command takes a
+ * connection from the pool when it connects to the database, and returns it
+ * when it disconnects, so several commands (each in its own thread) can run
+ * against the same database at the same time. Returned connections are kept
+ * open for the next command while any command is using the database; when the
+ * last command returns its connection, they are closed, so the database file
+ * is not held open between commands (e.g. by a program using the API). A
+ * program running many short commands against a database (e.g. the server)
+ * can hold the connections open with hold() instead. closeAll() closes any
+ * connections still open when the program exits.
+ *
+ * @author Andrew Waugh
+ */
+final class ConnectionPool {
+
+    private final static Logger LOG = Logger.getLogger("TrackTransfer.ConnectionPool");
+    final static int MAX_CONNECTIONS = 8; // most connections open to one database
+    private final static long WAIT_MINUTES = 10; // how long to wait for a free connection
+    private final static Map<String, ConnectionPool> POOLS = new HashMap<>();
+
+    private final Semaphore available;          // connections that may be handed out
+    private final ArrayDeque<Connection> idle;  // open connections not in use
+    private int holds;                          // number of holds keeping idle connections open (see hold())
+    private final Object upgrading;             // held while the database is upgraded (see upgrade())
+    private boolean upgraded;                   // true once the database has been upgraded
+
+    private ConnectionPool() {
+        available = new Semaphore(MAX_CONNECTIONS, true);
+        idle = new ArrayDeque<>();
+        holds = 0;
+        upgrading = new Object();
+        upgraded = false;
+    }
+
+    /**
+     * Get the pool for a database, creating it if necessary.
+     *
+     * @param url the URL of the database
+     * @return the pool
+     */
+    private static ConnectionPool pool(String url) {
+        ConnectionPool pool;
+
+        synchronized (POOLS) {
+            pool = POOLS.get(url);
+            if (pool == null) {
+                pool = new ConnectionPool();
+                POOLS.put(url, pool);
+            }
+        }
+        return pool;
+    }
+
+    /**
+     * Get a connection to a database, waiting if all the connections to the
+     * database are in use.
+     *
+     * @param url the URL of the database
+     * @return the connection
+     * @throws SQLException if a connection could not be opened
+     */
+    static Connection acquire(String url) throws SQLException {
+        ConnectionPool pool;
+        Connection c;
+
+        pool = pool(url);
+        try {
+            if (!pool.available.tryAcquire(WAIT_MINUTES, TimeUnit.MINUTES)) {
+                throw new SQLException("Timed out waiting for a free connection to " + url);
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted waiting for a free connection to " + url);
+        }
+        try {
+            synchronized (pool) {
+                c = pool.idle.poll();
+            }
+            if (c == null || c.isClosed()) {
+                c = DriverManager.getConnection(url);
+            }
+        } catch (SQLException e) {
+            pool.available.release();
+            throw e;
+        }
+        return c;
+    }
+
+    /**
+     * Return a connection to the pool. Any uncommitted work is rolled back,
+     * and the connection returned to the default isolation level. If no other
+     * command is using the database (and it is not held open), the idle
+     * connections are closed.
+     *
+     * @param url the URL of the database
+     * @param c the connection obtained from acquire()
+     */
+    static void release(String url, Connection c) {
+        ConnectionPool pool;
+
+        synchronized (POOLS) {
+            pool = POOLS.get(url);
+        }
+        assert pool != null;
+        try {
+            if (!c.isClosed()) {
+                if (!c.getAutoCommit()) {
+                    c.rollback();
+                    c.setAutoCommit(true);
+                }
+                if (c.getTransactionIsolation() != Connection.TRANSACTION_READ_COMMITTED) {
+                    c.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+                }
+                synchronized (pool) {
+                    pool.idle.push(c);
+                }
+            }
+        } catch (SQLException e) {
+            LOG.log(Level.WARNING, "Discarding connection to {0}: {1}", new Object[]{url, e.getMessage()});
+            close(c);
+        }
+        pool.available.release();
+        pool.closeIfUnused();
+    }
+
+    /**
+     * Bring a database created by an earlier version up to date, once for
+     * each database the program uses. The first command to connect runs the
+     * upgrade; commands connecting at the same time wait for it to finish,
+     * so the changes to the tables are never made by two commands at once. If
+     * the upgrade fails, or there was nothing to upgrade (e.g. the transfer
+     * has not been created yet), the next command to connect tries again.
+     *
+     * @param url the URL of the database
+     * @param upgrade the upgrade, returning true if it was done
+     * @throws SQLException if the upgrade failed
+     */
+    static void upgrade(String url, SQLTable.SQLAction<Boolean> upgrade) throws SQLException {
+        ConnectionPool pool;
+
+        pool = pool(url);
+        synchronized (pool.upgrading) {
+            if (!pool.upgraded) {
+                pool.upgraded = upgrade.run();
+            }
+        }
+    }
+
+    /**
+     * Hold the idle connections to a database open (or stop holding them)
+     * even when no command is using the database, so that each command does
+     * not have to open the database again. Each hold must be matched by a
+     * release.
+     *
+     * @param url the URL of the database
+     * @param hold true to hold the connections open, false to release a hold
+     */
+    static void hold(String url, boolean hold) {
+        ConnectionPool pool;
+
+        pool = pool(url);
+        synchronized (pool) {
+            pool.holds += hold ? 1 : -1;
+            assert pool.holds >= 0;
+        }
+        pool.closeIfUnused();
+    }
+
+    /**
+     * Close the idle connections if no command is using the database, and it
+     * is not held open. A command that takes a connection at the same time
+     * either finds the connections still idle, or opens a new one.
+     */
+    private synchronized void closeIfUnused() {
+        if (holds > 0 || available.availablePermits() < MAX_CONNECTIONS) {
+            return;
+        }
+        while (!idle.isEmpty()) {
+            close(idle.pop());
+        }
+    }
+
+    /**
+     * Close all the idle connections to all databases.
+     */
+    static void closeAll() {
+        synchronized (POOLS) {
+            for (ConnectionPool pool : POOLS.values()) {
+                synchronized (pool) {
+                    while (!pool.idle.isEmpty()) {
+                        close(pool.idle.pop());
+                    }
+                }
+            }
+        }
+    }
+
+    private static void close(Connection c) {
+        try {
+            c.close();
+        } catch (SQLException e) {
+            LOG.log(Level.WARNING, "Failed closing connection: {0}", e.getMessage());
+        }
+    }
+}
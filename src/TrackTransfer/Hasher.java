@@ -0,0 +1,165 @@
+package TrackTransfer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Calculates the digests of files. A Hasher may be shared by several threads;
+ * the rate at which all of them read is limited to bytesPerSecond, so hashing
+ * can run alongside other work without saturating the disk.
+ *
+ * A partial digest covers only the first and last PARTIAL_BYTES of a file. It
+ * is a cheap test of whether two files of the same size could be identical;
+ * for files no longer than 2*PARTIAL_BYTES it is the digest of the whole file.
+ *
+ * @author Andrew Waugh
+ */
+final class Hasher {
+
+    final static String DEFAULT_ALG = "SHA-256"; // algorithm used when an item has no hash
+    final static int PARTIAL_BYTES = 1024 * 1024; // bytes hashed at each end of a file for a partial digest
+    private final static int BUFFER_SIZE = 1024 * 1024;
+    private final static ThreadLocal<byte[]> BUFFER = ThreadLocal.withInitial(() -> new byte[BUFFER_SIZE]);
+    private final static char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final long bytesPerSecond;  // read rate limit (0 = unlimited)
+    private long nextRead;              // time (System.nanoTime()) when the next read may start
+
+    /**
+     * Create a Hasher.
+     *
+     * @param bytesPerSecond limit on the combined read rate (0 = unlimited)
+     */
+    Hasher(long bytesPerSecond) {
+        assert bytesPerSecond >= 0;
+        this.bytesPerSecond = bytesPerSecond;
+        nextRead = System.nanoTime();
+    }
+
+    /**
+     * Calculate the digest of a file.
+     *
+     * @param p the file
+     * @param alg the digest algorithm (e.g. 'SHA-256')
+     * @return the digest as lower case hex
+     * @throws IOException if the file could not be read
+     * @throws NoSuchAlgorithmException if the algorithm is not supported
+     */
+    String hash(Path p, String alg) throws IOException, NoSuchAlgorithmException {
+        MessageDigest md;
+        byte[] b;
+        int n;
+
+        md = MessageDigest.getInstance(alg);
+        b = BUFFER.get();
+        try (InputStream is = Files.newInputStream(p)) {
+            while ((n = is.read(b)) > 0) {
+                md.update(b, 0, n);
+                throttle(n);
+            }
+        }
+        return toHex(md.digest());
+    }
+
+    /**
+     * Calculate the partial digest of a file, i.e. the digest of its first
+     * and last PARTIAL_BYTES.
+     *
+     * @param p the file
+     * @param size the size of the file
+     * @param alg the digest algorithm (e.g. 'SHA-256')
+     * @return the partial digest as lower case hex
+     * @throws IOException if the file could not be read
+     * @throws NoSuchAlgorithmException if the algorithm is not supported
+     */
+    String partialHash(Path p, long size, String alg) throws IOException, NoSuchAlgorithmException {
+        MessageDigest md;
+
+        if (isWhole(size)) {
+            return hash(p, alg);
+        }
+        md = MessageDigest.getInstance(alg);
+        try (SeekableByteChannel ch = Files.newByteChannel(p)) {
+            digestRange(ch, md, 0);
+            digestRange(ch, md, size - PARTIAL_BYTES);
+        }
+        return toHex(md.digest());
+    }
+
+    /**
+     * Does the partial digest of a file of this size cover the whole file (so
+     * it is the same as the full digest)?
+     *
+     * @param size the size of the file
+     * @return true if the partial digest is the full digest
+     */
+    static boolean isWhole(long size) {
+        return size <= 2L * PARTIAL_BYTES;
+    }
+
+    /**
+     * Add PARTIAL_BYTES of a file, starting at a position, to a digest.
+     */
+    private void digestRange(SeekableByteChannel ch, MessageDigest md, long pos) throws IOException {
+        ByteBuffer bb;
+        int n;
+
+        bb = ByteBuffer.wrap(BUFFER.get(), 0, PARTIAL_BYTES);
+        ch.position(pos);
+        while (bb.hasRemaining() && (n = ch.read(bb)) > 0) {
+            throttle(n);
+        }
+        md.update(bb.array(), 0, bb.position());
+    }
+
+    /**
+     * Wait until n more bytes may be read without exceeding the read rate.
+     * Each caller reserves its slot under the lock, then sleeps outside it.
+     *
+     * @param n the number of bytes read
+     * @throws IOException if interrupted while waiting
+     */
+    private void throttle(int n) throws IOException {
+        long now, start;
+
+        if (bytesPerSecond == 0) {
+            return;
+        }
+        now = System.nanoTime();
+        synchronized (this) {
+            start = Math.max(now, nextRead);
+            nextRead = start + n * 1000000000L / bytesPerSecond;
+        }
+        if (start > now) {
+            try {
+                Thread.sleep((start - now) / 1000000, (int) ((start - now) % 1000000));
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while hashing");
+            }
+        }
+    }
+
+    /**
+     * Convert a digest to lower case hex.
+     *
+     * @param b the digest
+     * @return the hex string
+     */
+    static String toHex(byte[] b) {
+        char[] c = new char[b.length * 2];
+        int i;
+
+        for (i = 0; i < b.length; i++) {
+            c[i * 2] = HEX[(b[i] >> 4) & 0xf];
+            c[i * 2 + 1] = HEX[b[i] & 0xf];
+        }
+        return new String(c);
+    }
+}
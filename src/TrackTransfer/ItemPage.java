@@ -0,0 +1,237 @@
+package TrackTransfer;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A page of Items (with their Keywords and Instances) returned by the paged
+ * report API. Pages are read using keyset pagination on the Item filename:
+ * the caller passes the filename of the last Item on the previous page (the
+ * 'next key' of that page) and gets the following Items in filename order.
+ * Reading a page uses the filename index, so the cost of a page depends on
+ * the page size, not on the size of the transfer. If the transfer is
+ * sharded, a page is read from each shard and the pages merged (see
+ * merge()).
+ *
+ * @author Andrew Waugh
+ */
+public class ItemPage {
+
+    private final List<Item> items; // the items on this page (in filename order)
+    private String nextKey;         // key to request the following page (null if this is the last page)
+
+    private ItemPage() {
+        items = new ArrayList<>();
+        nextKey = null;
+    }
+
+    /**
+     * Get the Items on this page.
+     *
+     * @return list of Items in filename order (may be empty)
+     */
+    public List<Item> getItems() {
+        return items;
+    }
+
+    /**
+     * Get the key to pass to request the next page.
+     *
+     * @return the key, or null if there are no more pages
+     */
+    public String getNextKey() {
+        return nextKey;
+    }
+
+    /**
+     * Read a page of Items from the connected database.
+     *
+     * @param query select Items matching this keyword query (null selects all
+     * Items)
+     * @param after the next key returned by the previous page (null for the
+     * first page)
+     * @param pageSize the maximum number of Items on the page (must be > 0)
+     * @return the page
+     * @throws SQLException if something happened that can't be handled
+     */
+    static ItemPage read(KeywordQuery query, String after, int pageSize) throws SQLException {
+        ItemPage page;
+        StringBuilder sb = new StringBuilder();
+        Map<Integer, Item> byId;
+        StringBuilder ids;
+        TblItem.Row row = new TblItem.Row();
+        TblInstance.Row instanceRow = new TblInstance.Row();
+        Item item;
+        Instance instance;
+        int i;
+
+        assert pageSize > 0;
+
+        page = new ItemPage();
+        byId = new HashMap<>();
+
+        // get the items on this page. One more than the page size is asked
+        // for to find out if there is a following page
+        sb.append("select ITEM_ID, FILENAME, IS_RECORD, STATE from ITEM where ");
+        if (after != null) {
+            sb.append("FILENAME > ? and ");
+        }
+        if (query != null) {
+            sb.append("(");
+            sb.append(query.resolve().toSQL());
+            sb.append(")");
+        } else {
+            sb.append("TRUE");
+        }
+        sb.append(" order by FILENAME limit ?;");
+        try (PreparedStatement ps = SQLTable.prepare(sb.toString())) {
+            i = 1;
+            if (after != null) {
+                ps.setString(i, after);
+                i++;
+            }
+            ps.setInt(i, pageSize + 1);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (row.next(rs)) {
+                    if (page.items.size() == pageSize) {
+                        page.nextKey = page.items.get(pageSize - 1).filename;
+                        break;
+                    }
+                    item = new Item(row.filename, row.state, row.isRecord);
+                    page.items.add(item);
+                    byId.put(row.itemId, item);
+                }
+            }
+        }
+        if (byId.isEmpty()) {
+            return page;
+        }
+
+        // get the keywords and instances of just the items on this page
+        ids = new StringBuilder();
+        for (Integer id : byId.keySet()) {
+            if (ids.length() > 0) {
+                ids.append(", ");
+            }
+            ids.append(id);
+        }
+        try (ResultSet rs = SQLTable.query("ITEM_KEYWORD join KEYWORD on ITEM_KEYWORD.KEYWORD_ID=KEYWORD.KEYWORD_ID", "ITEM_KEYWORD.ITEM_ID, KEYWORD.KEYWORD", "ITEM_KEYWORD.ITEM_ID in (" + ids + ")", "KEYWORD.KEYWORD")) {
+            while (rs.next()) {
+                byId.get(TblItemKeyword.getItemId(rs)).keywords.add(TblKeyword.getKeyword(rs));
+            }
+        }
+        try (ResultSet rs = TblInstance.query("*", "ITEM_ID in (" + ids + ")", "INSTANCE_ID")) {
+            while (instanceRow.next(rs)) {
+                instance = new Instance(instanceRow.deliveryId, instanceRow.status(), instanceRow.filepath());
+                byId.get(instanceRow.itemId).instances.add(instance);
+            }
+        }
+        return page;
+    }
+
+    /**
+     * Merge the pages read from each shard of a transfer into one page. Each
+     * shard's page holds the first Items in that shard following the same
+     * key, so the first pageSize Items of the merged pages are the first
+     * pageSize Items in the whole transfer.
+     *
+     * @param pages the page read from each shard
+     * @param pageSize the maximum number of Items on the page (must be > 0)
+     * @return the merged page
+     */
+    static ItemPage merge(List<ItemPage> pages, int pageSize) {
+        ItemPage page;
+        boolean more;
+
+        assert pageSize > 0;
+
+        page = new ItemPage();
+        more = false;
+        for (ItemPage p : pages) {
+            page.items.addAll(p.items);
+            more |= p.nextKey != null;
+        }
+        page.items.sort((a, b) -> a.filename.compareTo(b.filename));
+        if (page.items.size() > pageSize) {
+            page.items.subList(pageSize, page.items.size()).clear();
+            more = true;
+        }
+        if (more) {
+            page.nextKey = page.items.get(pageSize - 1).filename;
+        }
+        return page;
+    }
+
+    /**
+     * An Item on a page.
+     */
+    public static class Item {
+
+        private final String filename;      // name of the item
+        private final String state;         // 'P'=processing, 'A'=abandoned, 'C'=custody accepted
+        private final boolean isRecord;     // true if the item is a record
+        private final List<String> keywords; // keywords set on the item
+        private final List<Instance> instances; // instances of the item (in order received)
+
+        private Item(String filename, String state, boolean isRecord) {
+            this.filename = filename;
+            this.state = state;
+            this.isRecord = isRecord;
+            keywords = new ArrayList<>();
+            instances = new ArrayList<>();
+        }
+
+        public String getFilename() {
+            return filename;
+        }
+
+        public String getState() {
+            return state;
+        }
+
+        public boolean isRecord() {
+            return isRecord;
+        }
+
+        public List<String> getKeywords() {
+            return keywords;
+        }
+
+        public List<Instance> getInstances() {
+            return instances;
+        }
+    }
+
+    /**
+     * An Instance of an Item on a page.
+     */
+    public static class Instance {
+
+        private final int deliveryId;   // delivery in which the instance was received
+        private final String status;    // 'LATEST', 'SUPERSEDED', or 'DUPLICATE'
+        private final String filepath;  // original location of the instance
+
+        private Instance(int deliveryId, String status, String filepath) {
+            this.deliveryId = deliveryId;
+            this.status = status;
+            this.filepath = filepath;
+        }
+
+        public int getDeliveryId() {
+            return deliveryId;
+        }
+
+        public String getStatus() {
+            return status;
+        }
+
+        public String getFilepath() {
+            return filepath;
+        }
+    }
+}
@@ -0,0 +1,801 @@
+package TrackTransfer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * An in memory index of the Items that have each Keyword and each State. Each
+ * keyword (and state) has a bitmap over ITEM_ID, so keyword queries (e.g.
+ * 'Custody-accepted AND NOT Rejected') are answered by bitmap operations
+ * rather than by joins over the database.
+ *
+ * The index is optional. It is built from the database the first time a
+ * query asks for it, and from then on is kept in step by the methods that
+ * change keywords and states (TblItemKeyword.add() and remove(),
+ * TblItem.add() and setState()). It is saved in a deflate compressed file
+ * next to the database ('&lt;database&gt;.kwidx') when the database is
+ * disconnected. The file is deleted as soon as the database is changed, so
+ * if a command fails before disconnecting the index is rebuilt when next
+ * needed rather than being out of date. The file also records the last
+ * change to the database that the index reflects. Every transaction that
+ * changes the Items, their states, or their keywords counts the change in
+ * the database (see TblIndexChange), so if a later change has been counted
+ * the saved index is out of date. The file records the number of Items and
+ * Item/Keyword links as well, which catches changes made by an older
+ * version of Track Transfer that did not count them. These are checked when
+ * a command connects, before it has changed anything, and the file is
+ * deleted if they no longer match the database.
+ *
+ * There is one index for each database connected to, shared by all the
+ * commands (threads) connected to it. Each thread finds the index through the
+ * database it connected to, in the same way as SQLTable finds the
+ * connection. All access to an index is synchronized on it. Changes made in
+ * a transaction (see SQLTable.beginTransaction()) are kept with the
+ * connection and only applied to the shared index when the transaction is
+ * committed; until then only the command making them sees them.
+ *
+ * @author Andrew Waugh
+ */
+public class KeywordIndex {
+
+    private final static Logger LOG = Logger.getLogger("TrackTransfer.KeywordIndex");
+    private final static int MAGIC = 0x54544b49; // 'TTKI'
+    private final static int VERSION = 3;
+    private final static Map<String, KeywordIndex> OPEN = new HashMap<>(); // indexes of the databases currently connected to
+    private final static ThreadLocal<KeywordIndex> CURRENT = new ThreadLocal<>(); // index of the database the calling thread is connected to
+    private final String name;      // name of the database
+    private final Path file;        // file holding the saved index (null if the database is not a file)
+    private int users;              // number of commands connected to the database
+    private boolean loaded;         // true if the index is in memory
+    private boolean dirty;          // true if the index has changed since it was saved
+    private int changeId;           // last change the index reflects (see TblIndexChange)
+    private Map<Integer, BitSet> keywords; // items with each keyword (by KEYWORD_ID)
+    private Map<String, BitSet> states; // items in each state ('P', 'A', 'C')
+
+    private KeywordIndex(String name, Path file) {
+        this.name = name;
+        this.file = file;
+        users = 0;
+        reset();
+    }
+
+    /**
+     * Note the database that the calling thread has connected to. Commands
+     * running concurrently against the same database share one index.
+     * If the index was saved by an earlier command, the saved copy is checked
+     * against the database now, before this command changes anything, and is
+     * deleted if out of date. Nothing else is read until the index is needed.
+     *
+     * @param url the URL of the database (e.g. 'jdbc:h2:/data/transfer')
+     * @throws SQLException
+     */
+    public static void open(String url) throws SQLException {
+        KeywordIndex ki;
+        String s;
+        Path file;
+        int i;
+
+        assert CURRENT.get() == null;
+        s = url;
+        file = null;
+        if (s.startsWith(Command.DB_PREFIX)) {
+            s = s.substring(Command.DB_PREFIX.length());
+            if ((i = s.indexOf(';')) != -1) {
+                s = s.substring(0, i);
+            }
+            if (s.startsWith("file:")) {
+                s = s.substring(5);
+            }
+            if (!(s.startsWith("mem:") || s.startsWith("tcp:") || s.startsWith("ssl:") || s.startsWith("zip:"))) {
+                file = Paths.get(s + ".kwidx");
+            }
+        }
+        synchronized (OPEN) {
+            ki = OPEN.get(s);
+            if (ki == null) {
+                ki = new KeywordIndex(s, file);
+                OPEN.put(s, ki);
+            }
+            ki.users++;
+            CURRENT.set(ki);
+
+            // check while holding OPEN, as close() saves while holding it (if
+            // the check fails, close() still releases the index)
+            synchronized (ki) {
+                if (!ki.loaded && file != null && Files.exists(file)) {
+                    ki.check();
+                }
+            }
+        }
+    }
+
+    /**
+     * Finish with the index. Must be called before the database is
+     * disconnected. When the last command using the database closes the index
+     * it is saved (if it has changed) and forgotten. The index is not saved if
+     * the transfer no longer exists (i.e. the database has been dropped).
+     *
+     * @throws SQLException
+     */
+    public static void close() throws SQLException {
+        KeywordIndex ki;
+
+        ki = CURRENT.get();
+        if (ki == null) {
+            return;
+        }
+        CURRENT.remove();
+
+        // changes in a transaction that was never finished are abandoned
+        if (SQLTable.inTransaction()) {
+            abandon(ki);
+        }
+        synchronized (OPEN) {
+            ki.users--;
+            if (ki.users > 0) {
+                return;
+            }
+            OPEN.remove(ki.name);
+
+            // save while holding OPEN so that the next command to connect
+            // does not read the file while it is being written
+            synchronized (ki) {
+                if (ki.loaded && ki.dirty && ki.file != null && SQLTable.tableExists("TRANSFER")) {
+                    ki.save();
+                }
+                ki.reset();
+            }
+        }
+    }
+
+    /**
+     * Set aside the index used by the calling thread when its connection is
+     * set aside (see SQLTable.detach()).
+     *
+     * @return the index
+     */
+    static KeywordIndex detach() {
+        KeywordIndex ki;
+
+        ki = CURRENT.get();
+        CURRENT.remove();
+        return ki;
+    }
+
+    /**
+     * Make an index set aside by detach() the one used by the calling thread.
+     *
+     * @param ki the index (may be null)
+     */
+    static void attach(KeywordIndex ki) {
+        assert CURRENT.get() == null;
+        if (ki != null) {
+            CURRENT.set(ki);
+        }
+    }
+
+    /**
+     * The calling thread's transaction has been committed (see
+     * SQLTable.commit()), so apply the changes it made to the shared index.
+     * If the index is not loaded the changes are simply forgotten, as it will
+     * be built from the (now committed) database when needed.
+     */
+    static void commit() {
+        KeywordIndex ki;
+        Changes changes;
+
+        changes = SQLTable.indexChanges();
+        if ((ki = CURRENT.get()) != null) {
+            synchronized (ki) {
+                if (ki.loaded) {
+                    for (Change c : changes.list) {
+                        ki.apply(c);
+                    }
+                    if (!changes.list.isEmpty()) {
+                        ki.changeId = Math.max(ki.changeId, changes.changeId);
+                        ki.markDirty();
+                    }
+                }
+            }
+        }
+        changes.list.clear();
+        changes.built = false;
+        changes.changeId = 0;
+    }
+
+    /**
+     * The calling thread's transaction has been rolled back (see
+     * SQLTable.rollback()), so forget the changes it made. The changes made
+     * by other commands are unaffected.
+     */
+    static void rollback() {
+        KeywordIndex ki;
+
+        if ((ki = CURRENT.get()) != null) {
+            abandon(ki);
+        } else {
+            SQLTable.indexChanges().list.clear();
+            SQLTable.indexChanges().changeId = 0;
+        }
+    }
+
+    /**
+     * Forget the changes made in the calling thread's transaction. If the
+     * index was built from the database within the transaction it reflects
+     * rows that were never committed, so it is thrown away to be built again
+     * when next needed.
+     */
+    private static void abandon(KeywordIndex ki) {
+        Changes changes;
+
+        changes = SQLTable.indexChanges();
+        if (changes.built) {
+            synchronized (ki) {
+                ki.reset();
+            }
+        }
+        changes.list.clear();
+        changes.built = false;
+        changes.changeId = 0;
+    }
+
+    /**
+     * Is the index in use for the connected database? It is in use if it has
+     * been loaded, or was saved by an earlier command.
+     *
+     * @return true if the index is in use
+     */
+    public static boolean inUse() {
+        KeywordIndex ki;
+
+        if ((ki = CURRENT.get()) == null) {
+            return false;
+        }
+        synchronized (ki) {
+            return ki.isInUse();
+        }
+    }
+
+    /**
+     * Get the Items that have a keyword. The index is loaded (or built) if
+     * necessary. The caller may change the returned bitmap.
+     *
+     * @param keywordId the key of the keyword
+     * @return the Items with this keyword
+     * @throws SQLException
+     */
+    public static BitSet keyword(int keywordId) throws SQLException {
+        KeywordIndex ki;
+        BitSet b;
+
+        ki = current();
+        synchronized (ki) {
+            ki.need();
+            b = ki.keywords.get(keywordId);
+            b = b == null ? new BitSet() : (BitSet) b.clone();
+        }
+
+        // include the changes made in this command's transaction
+        for (Change c : pending()) {
+            switch (c.op) {
+                case Change.ADD_KEYWORD:
+                    if (c.keywordId == keywordId) {
+                        b.set(c.itemId);
+                    }
+                    break;
+                case Change.REMOVE_KEYWORD:
+                    if (c.keywordId == keywordId) {
+                        b.clear(c.itemId);
+                    }
+                    break;
+                case Change.DROP_KEYWORD:
+                    if (c.keywordId == keywordId) {
+                        b.clear();
+                    }
+                    break;
+                default:
+            }
+        }
+        return b;
+    }
+
+    /**
+     * Get the Items in a state. The index is loaded (or built) if necessary.
+     * The caller may change the returned bitmap.
+     *
+     * @param state 'P', 'A', or 'C'
+     * @return the Items in this state
+     * @throws SQLException
+     */
+    public static BitSet state(String state) throws SQLException {
+        KeywordIndex ki;
+        BitSet b;
+
+        ki = current();
+        synchronized (ki) {
+            ki.need();
+            b = ki.states.get(state);
+            b = b == null ? new BitSet() : (BitSet) b.clone();
+        }
+
+        // include the changes made in this command's transaction
+        for (Change c : pending()) {
+            switch (c.op) {
+                case Change.ADD_ITEM:
+                case Change.SET_STATE:
+                    b.set(c.itemId, state.equals(c.state));
+                    break;
+                default:
+            }
+        }
+        return b;
+    }
+
+    /**
+     * Get all the Items. Every Item is in exactly one state, so this is the
+     * union of the states. The caller may change the returned bitmap.
+     *
+     * @return all the Items
+     * @throws SQLException
+     */
+    public static BitSet all() throws SQLException {
+        KeywordIndex ki;
+        BitSet b;
+
+        ki = current();
+        b = new BitSet();
+        synchronized (ki) {
+            ki.need();
+            for (BitSet s : ki.states.values()) {
+                b.or(s);
+            }
+        }
+
+        // include the Items added in this command's transaction
+        for (Change c : pending()) {
+            if (c.op == Change.ADD_ITEM) {
+                b.set(c.itemId);
+            }
+        }
+        return b;
+    }
+
+    /**
+     * Record that a new Item has been added (in the Processing state).
+     *
+     * @param itemId the key of the item
+     * @throws SQLException
+     */
+    static void addItem(int itemId) throws SQLException {
+        change(new Change(Change.ADD_ITEM, itemId, 0, "P"));
+    }
+
+    /**
+     * Record a change in the state of an Item.
+     *
+     * @param itemId the key of the item
+     * @param state the new state ('P', 'A', or 'C')
+     * @throws SQLException
+     */
+    static void setState(int itemId, String state) throws SQLException {
+        change(new Change(Change.SET_STATE, itemId, 0, state));
+    }
+
+    /**
+     * Record that a keyword has been set on an Item.
+     *
+     * @param itemId the key of the item
+     * @param keywordId the key of the keyword
+     * @throws SQLException
+     */
+    static void addKeyword(int itemId, int keywordId) throws SQLException {
+        change(new Change(Change.ADD_KEYWORD, itemId, keywordId, null));
+    }
+
+    /**
+     * Record that a keyword has been removed from an Item.
+     *
+     * @param itemId the key of the item
+     * @param keywordId the key of the keyword
+     * @throws SQLException
+     */
+    static void removeKeyword(int itemId, int keywordId) throws SQLException {
+        change(new Change(Change.REMOVE_KEYWORD, itemId, keywordId, null));
+    }
+
+    /**
+     * Record that a keyword has been deleted.
+     *
+     * @param keywordId the key of the keyword
+     * @throws SQLException
+     */
+    static void dropKeyword(int keywordId) throws SQLException {
+        change(new Change(Change.DROP_KEYWORD, 0, keywordId, null));
+    }
+
+    /**
+     * Record a change to the database. The change is counted in the database
+     * (once for each transaction), in the same transaction as the change.
+     * Outside a transaction the change has already been committed, so it is
+     * applied to the shared index (if in use). In a transaction it is kept
+     * with the connection until the transaction is committed or rolled back.
+     * It is kept even if the index is not yet in use, as another command may
+     * load the index before the transaction is committed.
+     */
+    private static void change(Change c) throws SQLException {
+        KeywordIndex ki;
+        Changes changes;
+        boolean inUse;
+        int id;
+
+        if ((ki = CURRENT.get()) == null) {
+            return;
+        }
+        changes = null;
+        if (SQLTable.inTransaction()) {
+            changes = SQLTable.indexChanges();
+            if (changes.changeId == 0) {
+                changes.changeId = TblIndexChange.add();
+            }
+            id = changes.changeId;
+        } else {
+            id = TblIndexChange.add();
+        }
+        synchronized (ki) {
+            inUse = ki.changing();
+            if (changes != null) {
+                changes.list.add(c);
+            } else if (inUse) {
+                ki.apply(c);
+                ki.changeId = Math.max(ki.changeId, id);
+            }
+        }
+    }
+
+    /**
+     * Get the changes made in the calling thread's current transaction.
+     */
+    private static List<Change> pending() {
+        if (!SQLTable.inTransaction()) {
+            return new ArrayList<>();
+        }
+        return SQLTable.indexChanges().list;
+    }
+
+    /**
+     * Apply a change to the shared index.
+     */
+    private void apply(Change c) {
+        BitSet b;
+
+        switch (c.op) {
+            case Change.SET_STATE:
+                for (BitSet s : states.values()) {
+                    s.clear(c.itemId);
+                }
+                set(states, c.state, c.itemId);
+                break;
+            case Change.ADD_ITEM:
+                set(states, c.state, c.itemId);
+                break;
+            case Change.ADD_KEYWORD:
+                set(keywords, c.keywordId, c.itemId);
+                break;
+            case Change.REMOVE_KEYWORD:
+                if ((b = keywords.get(c.keywordId)) != null) {
+                    b.clear(c.itemId);
+                }
+                break;
+            case Change.DROP_KEYWORD:
+                keywords.remove(c.keywordId);
+                break;
+            default:
+        }
+    }
+
+    /**
+     * Get the index of the database the calling thread is connected to.
+     */
+    private static KeywordIndex current() {
+        KeywordIndex ki;
+
+        ki = CURRENT.get();
+        assert ki != null : "Not connected to database";
+        return ki;
+    }
+
+    /**
+     * Set a bit in the bitmap with the given key, creating it if necessary.
+     */
+    private static <K> void set(Map<K, BitSet> m, K key, int itemId) {
+        BitSet b;
+
+        if ((b = m.get(key)) == null) {
+            b = new BitSet();
+            m.put(key, b);
+        }
+        b.set(itemId);
+    }
+
+    /**
+     * The database is about to be changed. If the index is in use make sure
+     * it is loaded and delete the saved copy, which would then be out of date.
+     *
+     * @return true if the index is in use and must be updated
+     */
+    private boolean changing() throws SQLException {
+        if (!isInUse()) {
+            return false;
+        }
+        need();
+        markDirty();
+        return true;
+    }
+
+    private boolean isInUse() {
+        return loaded || (file != null && Files.exists(file));
+    }
+
+    private void markDirty() {
+        if (dirty) {
+            return;
+        }
+        dirty = true;
+        if (file != null) {
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException ioe) {
+                LOG.log(Level.WARNING, "Failed deleting keyword index ''{0}'': {1}", new Object[]{file, ioe.getMessage()});
+            }
+        }
+    }
+
+    private void reset() {
+        loaded = false;
+        dirty = false;
+        changeId = 0;
+        keywords = null;
+        states = null;
+    }
+
+    /**
+     * Make sure the index is in memory, reading the saved copy if there is
+     * one (it was checked when the database was connected to), otherwise
+     * building it from the database. An index built in a transaction
+     * reflects the rows added in that transaction, so this is noted in case
+     * the transaction is rolled back.
+     */
+    private void need() throws SQLException {
+        if (loaded) {
+            return;
+        }
+        if (file != null && Files.exists(file)) {
+            try {
+                read();
+                loaded = true;
+                return;
+            } catch (IOException ioe) {
+                LOG.log(Level.WARNING, "Failed reading keyword index ''{0}'' (it will be rebuilt): {1}", new Object[]{file, ioe.getMessage()});
+            }
+        }
+        build();
+        loaded = true;
+        dirty = true;
+        if (SQLTable.inTransaction()) {
+            SQLTable.indexChanges().built = true;
+        }
+    }
+
+    /**
+     * Check that the saved index matches the database, deleting it if not.
+     * Called when a command connects, before it changes anything.
+     */
+    private void check() throws SQLException {
+        long[] l;
+        boolean current;
+
+        current = false;
+        if (SQLTable.tableExists("ITEM") && SQLTable.tableExists("ITEM_KEYWORD") && SQLTable.tableExists("INDEX_CHANGE")) {
+            l = stamp();
+            try (DataInputStream dis = new DataInputStream(new BufferedInputStream(new InflaterInputStream(Files.newInputStream(file))))) {
+                current = dis.readInt() == MAGIC && dis.readInt() == VERSION && dis.readLong() == l[0] && dis.readLong() == l[1]
+                        && dis.readInt() == TblIndexChange.last();
+            } catch (IOException ioe) {
+                LOG.log(Level.WARNING, "Failed reading keyword index ''{0}'' (it will be rebuilt): {1}", new Object[]{file, ioe.getMessage()});
+            }
+        }
+        if (current) {
+            return;
+        }
+        LOG.log(Level.INFO, "Keyword index ''{0}'' is out of date and will be rebuilt", file);
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException ioe) {
+            LOG.log(Level.WARNING, "Failed deleting keyword index ''{0}'': {1}", new Object[]{file, ioe.getMessage()});
+        }
+    }
+
+    /**
+     * Build the index from the database
+     */
+    private void build() throws SQLException {
+        TblItem.Row item = new TblItem.Row();
+        ResultSet rs;
+
+        keywords = new HashMap<>();
+        states = new HashMap<>();
+        changeId = TblIndexChange.last();
+        rs = TblItemKeyword.query("ITEM_ID, KEYWORD_ID", null, null);
+        while (rs.next()) {
+            set(keywords, TblItemKeyword.getKeywordId(rs), TblItemKeyword.getItemId(rs));
+        }
+        rs.close();
+        rs = TblItem.query("ITEM_ID, STATE", null, null);
+        while (item.next(rs)) {
+            set(states, item.state, item.itemId);
+        }
+        rs.close();
+    }
+
+    /**
+     * Get the counts used (with the last change) to check that a saved index
+     * matches the database: the number of Items, and the number of
+     * Item/Keyword links.
+     */
+    private static long[] stamp() throws SQLException {
+        long[] l = new long[2];
+        ResultSet rs;
+
+        rs = SQLTable.query("select (select count(*) from ITEM), (select count(*) from ITEM_KEYWORD);");
+        rs.next();
+        l[0] = rs.getLong(1);
+        l[1] = rs.getLong(2);
+        rs.close();
+        return l;
+    }
+
+    /**
+     * Save the index. The format is the magic number, version, counts, the
+     * last change the index reflects, then the state bitmaps, then the
+     * keyword bitmaps, each as its key and the words of the bitmap. The whole
+     * is deflate compressed, which shrinks the runs of zero words in sparse
+     * bitmaps. The changes before the last are no longer needed, and are
+     * forgotten.
+     */
+    private void save() throws SQLException {
+        long[] l;
+
+        l = stamp();
+        try (DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new DeflaterOutputStream(Files.newOutputStream(file))))) {
+            dos.writeInt(MAGIC);
+            dos.writeInt(VERSION);
+            dos.writeLong(l[0]);
+            dos.writeLong(l[1]);
+            dos.writeInt(changeId);
+            dos.writeInt(states.size());
+            for (Map.Entry<String, BitSet> e : states.entrySet()) {
+                dos.writeUTF(e.getKey());
+                writeBitmap(dos, e.getValue());
+            }
+            dos.writeInt(keywords.size());
+            for (Map.Entry<Integer, BitSet> e : keywords.entrySet()) {
+                dos.writeInt(e.getKey());
+                writeBitmap(dos, e.getValue());
+            }
+        } catch (IOException ioe) {
+            LOG.log(Level.WARNING, "Failed saving keyword index ''{0}'': {1}", new Object[]{file, ioe.getMessage()});
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                // ignore; will be found to be corrupt when read
+            }
+            return;
+        }
+        dirty = false;
+        TblIndexChange.prune(changeId);
+    }
+
+    /**
+     * Read the saved index. The counts are skipped, as they were checked when
+     * the database was connected to (see check()).
+     */
+    private void read() throws IOException {
+        int i, n;
+        String state;
+        int key;
+
+        keywords = new HashMap<>();
+        states = new HashMap<>();
+        try (DataInputStream dis = new DataInputStream(new BufferedInputStream(new InflaterInputStream(Files.newInputStream(file))))) {
+            if (dis.readInt() != MAGIC || dis.readInt() != VERSION) {
+                throw new IOException("not a keyword index");
+            }
+            dis.readLong();
+            dis.readLong();
+            changeId = dis.readInt();
+            n = dis.readInt();
+            for (i = 0; i < n; i++) {
+                state = dis.readUTF();
+                states.put(state, readBitmap(dis));
+            }
+            n = dis.readInt();
+            for (i = 0; i < n; i++) {
+                key = dis.readInt();
+                keywords.put(key, readBitmap(dis));
+            }
+        }
+    }
+
+    private static void writeBitmap(DataOutputStream dos, BitSet b) throws IOException {
+        long[] words;
+
+        words = b.toLongArray();
+        dos.writeInt(words.length);
+        for (long w : words) {
+            dos.writeLong(w);
+        }
+    }
+
+    private static BitSet readBitmap(DataInputStream dis) throws IOException {
+        long[] words;
+        int i;
+
+        words = new long[dis.readInt()];
+        for (i = 0; i < words.length; i++) {
+            words[i] = dis.readLong();
+        }
+        return BitSet.valueOf(words);
+    }
+
+    /**
+     * The changes made to an index in one transaction. These are kept with
+     * the connection (see SQLTable.indexChanges()) and applied to the shared
+     * index when the transaction is committed.
+     */
+    static final class Changes {
+
+        private final List<Change> list = new ArrayList<>(); // changes in the order they were made
+        private boolean built;      // true if the shared index was built from the database in the transaction
+        private int changeId;       // the change counted for the transaction (0 if not yet counted)
+    }
+
+    /**
+     * One change to an index.
+     */
+    private static final class Change {
+
+        static final int ADD_ITEM = 1;
+        static final int SET_STATE = 2;
+        static final int ADD_KEYWORD = 3;
+        static final int REMOVE_KEYWORD = 4;
+        static final int DROP_KEYWORD = 5;
+        final int op;               // what changed (one of the above)
+        final int itemId;           // the item changed (0 if DROP_KEYWORD)
+        final int keywordId;        // the keyword changed (0 if ADD_ITEM or SET_STATE)
+        final String state;         // the new state (null unless ADD_ITEM or SET_STATE)
+
+        Change(int op, int itemId, int keywordId, String state) {
+            this.op = op;
+            this.itemId = itemId;
+            this.keywordId = keywordId;
+            this.state = state;
+        }
+    }
+}
@@ -0,0 +1,448 @@
+package TrackTransfer;
+
+import VERSCommon.AppError;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * A query selecting Items by their Keywords and State. A query is an
+ * expression over keywords combined with AND, OR, NOT, and parentheses, e.g.
+ *
+ * <pre>
+ *   QA AND NOT (Rejected OR "Needs review") AND Custody-accepted
+ * </pre>
+ *
+ * The operators are case insensitive; NOT binds tightest, then AND, then OR.
+ * A keyword containing spaces or parentheses must be enclosed in double
+ * quotes. The special keywords 'Custody-accepted', 'Abandoned', and
+ * 'Incomplete' (or 'Processing') test the State of the Item rather than the
+ * Keyword table.
+ *
+ * The query is compiled into a conditional clause over the ITEM table. Each
+ * keyword becomes a semi-join against the Item/Keyword index on (KEYWORD_ID,
+ * ITEM_ID), so an Item is selected at most once and only the Items linked to
+ * the keyword are visited. The keywords must be resolved against the Keyword
+ * table (resolve()) before the query is compiled.
+ *
+ * Alternatively, the query can be evaluated against the in memory keyword
+ * index (evaluate()), giving the set of matching Items directly.
+ *
+ * @author Andrew Waugh
+ */
+public class KeywordQuery {
+
+    private final Node root;    // root of the parsed expression
+    private final String text;  // the query as given by the user
+
+    private KeywordQuery(Node root, String text) {
+        this.root = root;
+        this.text = text;
+    }
+
+    /**
+     * Parse a query.
+     *
+     * @param query the text of the query
+     * @return the parsed query
+     * @throws AppError if the query was not syntactically correct
+     */
+    public static KeywordQuery parse(String query) throws AppError {
+        Parser p;
+        Node n;
+
+        assert query != null;
+        p = new Parser(query);
+        n = p.parseOr();
+        if (p.peek() != null) {
+            throw new AppError("Unexpected '" + p.peek() + "' in keyword query: '" + query + "'");
+        }
+        return new KeywordQuery(n, query);
+    }
+
+    /**
+     * Build a query that selects Items having any of a list of keywords (or
+     * states). This is what the keyword reports have always done.
+     *
+     * @param keywords the list of keywords (must not be empty)
+     * @return the query
+     */
+    public static KeywordQuery anyOf(List<String> keywords) {
+        StringBuilder sb = new StringBuilder();
+        Node n;
+        int i;
+
+        assert keywords != null && !keywords.isEmpty();
+
+        n = null;
+        for (i = 0; i < keywords.size(); i++) {
+            n = (n == null) ? term(keywords.get(i)) : new Or(n, term(keywords.get(i)));
+            if (i > 0) {
+                sb.append(" OR ");
+            }
+            sb.append('"');
+            sb.append(keywords.get(i));
+            sb.append('"');
+        }
+        return new KeywordQuery(n, sb.toString());
+    }
+
+    /**
+     * Look up the keywords in the Keyword table. Must be connected to the
+     * database. Keywords that do not exist will never match an Item.
+     *
+     * @return this query
+     * @throws SQLException
+     */
+    public KeywordQuery resolve() throws SQLException {
+        List<Keyword> l = new ArrayList<>();
+        ResultSet rs;
+
+        root.keywords(l);
+        for (Keyword k : l) {
+            rs = TblKeyword.query("KEYWORD_ID", "KEYWORD='" + SQLTable.encode(k.keyword) + "'", null);
+            if (rs.next()) {
+                k.key = TblKeyword.getKeywordId(rs);
+            } else {
+                k.key = -1;
+            }
+            rs.close();
+        }
+        return this;
+    }
+
+    /**
+     * Compile the query into a conditional clause over the ITEM table. The
+     * query must have been resolved.
+     *
+     * @return the clause
+     */
+    public String toSQL() {
+        StringBuilder sb = new StringBuilder();
+
+        root.toSQL(sb);
+        return sb.toString();
+    }
+
+    /**
+     * Evaluate the query against the keyword index (KeywordIndex), returning
+     * the ITEM_IDs of the Items selected. The query must have been resolved.
+     * The index is built if it is not already in use.
+     *
+     * @return the selected Items
+     * @throws SQLException
+     */
+    public BitSet evaluate() throws SQLException {
+        return root.evaluate();
+    }
+
+    @Override
+    public String toString() {
+        return text;
+    }
+
+    /**
+     * Create a leaf node for a keyword, recognising the special state
+     * keywords.
+     */
+    private static Node term(String keyword) {
+        if (keyword.equalsIgnoreCase("Custody-accepted")) {
+            return new State("C");
+        } else if (keyword.equalsIgnoreCase("Abandoned")) {
+            return new State("A");
+        } else if (keyword.equalsIgnoreCase("Incomplete") || keyword.equalsIgnoreCase("Processing")) {
+            return new State("P");
+        }
+        return new Keyword(keyword);
+    }
+
+    /**
+     * A node in the parsed expression.
+     */
+    abstract static class Node {
+
+        /**
+         * Append the conditional clause for this node
+         */
+        abstract void toSQL(StringBuilder sb);
+
+        /**
+         * Evaluate this node against the keyword index
+         */
+        abstract BitSet evaluate() throws SQLException;
+
+        /**
+         * Collect the keyword leaves below this node
+         */
+        abstract void keywords(List<Keyword> l);
+    }
+
+    static class And extends Node {
+
+        final Node left, right;
+
+        And(Node left, Node right) {
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        void toSQL(StringBuilder sb) {
+            sb.append("(");
+            left.toSQL(sb);
+            sb.append(" AND ");
+            right.toSQL(sb);
+            sb.append(")");
+        }
+
+        @Override
+        BitSet evaluate() throws SQLException {
+            BitSet b = left.evaluate();
+
+            b.and(right.evaluate());
+            return b;
+        }
+
+        @Override
+        void keywords(List<Keyword> l) {
+            left.keywords(l);
+            right.keywords(l);
+        }
+    }
+
+    static class Or extends Node {
+
+        final Node left, right;
+
+        Or(Node left, Node right) {
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        void toSQL(StringBuilder sb) {
+            sb.append("(");
+            left.toSQL(sb);
+            sb.append(" OR ");
+            right.toSQL(sb);
+            sb.append(")");
+        }
+
+        @Override
+        BitSet evaluate() throws SQLException {
+            BitSet b = left.evaluate();
+
+            b.or(right.evaluate());
+            return b;
+        }
+
+        @Override
+        void keywords(List<Keyword> l) {
+            left.keywords(l);
+            right.keywords(l);
+        }
+    }
+
+    static class Not extends Node {
+
+        final Node child;
+
+        Not(Node child) {
+            this.child = child;
+        }
+
+        @Override
+        void toSQL(StringBuilder sb) {
+            sb.append("NOT ");
+            child.toSQL(sb);
+        }
+
+        @Override
+        BitSet evaluate() throws SQLException {
+            BitSet b = KeywordIndex.all();
+
+            b.andNot(child.evaluate());
+            return b;
+        }
+
+        @Override
+        void keywords(List<Keyword> l) {
+            child.keywords(l);
+        }
+    }
+
+    static class State extends Node {
+
+        final String state; // 'P', 'A', or 'C'
+
+        State(String state) {
+            this.state = state;
+        }
+
+        @Override
+        void toSQL(StringBuilder sb) {
+            sb.append("ITEM.STATE='");
+            sb.append(state);
+            sb.append("'");
+        }
+
+        @Override
+        BitSet evaluate() throws SQLException {
+            return KeywordIndex.state(state);
+        }
+
+        @Override
+        void keywords(List<Keyword> l) {
+        }
+    }
+
+    static class Keyword extends Node {
+
+        final String keyword;
+        int key;    // key in Keyword table (0 = not resolved, -1 = not present)
+
+        Keyword(String keyword) {
+            this.keyword = keyword;
+            key = 0;
+        }
+
+        @Override
+        void toSQL(StringBuilder sb) {
+            assert key != 0 : "Keyword query not resolved";
+            if (key < 0) {
+                sb.append("FALSE");
+            } else {
+                sb.append("ITEM.ITEM_ID in (select ITEM_ID from ITEM_KEYWORD where KEYWORD_ID=");
+                sb.append(key);
+                sb.append(")");
+            }
+        }
+
+        @Override
+        BitSet evaluate() throws SQLException {
+            assert key != 0 : "Keyword query not resolved";
+            if (key < 0) {
+                return new BitSet();
+            }
+            return KeywordIndex.keyword(key);
+        }
+
+        @Override
+        void keywords(List<Keyword> l) {
+            l.add(this);
+        }
+    }
+
+    /**
+     * Recursive descent parser for queries.
+     */
+    private static class Parser {
+
+        private final String s;   // query being parsed
+        private int pos;          // current position in query
+        private String token;     // current token (null at end)
+        private boolean quoted;   // true if current token was a quoted keyword
+
+        Parser(String s) throws AppError {
+            this.s = s;
+            pos = 0;
+            next();
+        }
+
+        String peek() {
+            return token;
+        }
+
+        Node parseOr() throws AppError {
+            Node n;
+
+            n = parseAnd();
+            while (isOperator("OR")) {
+                next();
+                n = new Or(n, parseAnd());
+            }
+            return n;
+        }
+
+        Node parseAnd() throws AppError {
+            Node n;
+
+            n = parseNot();
+            while (isOperator("AND")) {
+                next();
+                n = new And(n, parseNot());
+            }
+            return n;
+        }
+
+        Node parseNot() throws AppError {
+            Node n;
+
+            if (token == null) {
+                throw new AppError("Keyword query ended unexpectedly: '" + s + "'");
+            }
+            if (isOperator("NOT")) {
+                next();
+                return new Not(parseNot());
+            }
+            if (!quoted && token.equals("(")) {
+                next();
+                n = parseOr();
+                if (token == null || quoted || !token.equals(")")) {
+                    throw new AppError("Missing ')' in keyword query: '" + s + "'");
+                }
+                next();
+                return n;
+            }
+            if (!quoted && (token.equals(")") || isOperator("AND") || isOperator("OR"))) {
+                throw new AppError("Expected a keyword but found '" + token + "' in keyword query: '" + s + "'");
+            }
+            n = term(token);
+            next();
+            return n;
+        }
+
+        private boolean isOperator(String op) {
+            return token != null && !quoted && token.equalsIgnoreCase(op);
+        }
+
+        /**
+         * Move to the next token
+         */
+        private void next() throws AppError {
+            char c;
+            int start;
+
+            while (pos < s.length() && Character.isWhitespace(s.charAt(pos))) {
+                pos++;
+            }
+            quoted = false;
+            if (pos >= s.length()) {
+                token = null;
+                return;
+            }
+            c = s.charAt(pos);
+            if (c == '(' || c == ')') {
+                token = String.valueOf(c);
+                pos++;
+            } else if (c == '"') {
+                start = pos + 1;
+                pos = s.indexOf('"', start);
+                if (pos < 0) {
+                    throw new AppError("Unterminated quote in keyword query: '" + s + "'");
+                }
+                token = s.substring(start, pos);
+                quoted = true;
+                pos++;
+            } else {
+                start = pos;
+                while (pos < s.length() && !Character.isWhitespace(s.charAt(pos)) && s.charAt(pos) != '(' && s.charAt(pos) != ')' && s.charAt(pos) != '"') {
+                    pos++;
+                }
+                token = s.substring(start, pos);
+            }
+        }
+    }
+}
@@ -0,0 +1,270 @@
+package TrackTransfer;
+
+import VERSCommon.AppError;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * A selection of Items by their name (FILENAME). The selection is either a
+ * glob (e.g. 'A123*.veo.zip'), or a Java regular expression prefixed by
+ * 'regex:' (e.g. 'regex:^A12[0-9]+\.veo'). A glob may be prefixed by 'glob:'.
+ *
+ * A glob matches the whole name. '*' matches any sequence of characters, '?'
+ * any one character, '[...]' any one of the characters in the brackets
+ * ('[!...]' any character not in the brackets), '{a,b}' either of the
+ * alternatives, and '\' quotes the following character. A regular
+ * expression matches if it is found anywhere in the name (use '^' and '$' to
+ * anchor it).
+ *
+ * The selection is compiled into a conditional clause over the ITEM table
+ * that can use the index on FILENAME. The literal prefix of the selection
+ * (the characters before the first wildcard) becomes a range on FILENAME. The
+ * rest of a glob becomes a LIKE, and only a glob that LIKE cannot express
+ * ('[...]' or '{...}'), or a regular expression, is tested with REGEXP_LIKE,
+ * which is applied to the rows in the range.
+ *
+ * @author Andrew Waugh
+ */
+public class NameSelector {
+
+    private final String text;      // the selection as given by the user
+    private final String prefix;    // characters every selected name starts with ("" if none)
+    private final String exact;     // the name if the selection has no wildcards (null otherwise)
+    private final String like;      // LIKE pattern testing the whole name (null if none)
+    private final String regex;     // regular expression testing the name (null if none)
+
+    private NameSelector(String text, String prefix, String exact, String like, String regex) {
+        this.text = text;
+        this.prefix = prefix;
+        this.exact = exact;
+        this.like = like;
+        this.regex = regex;
+    }
+
+    /**
+     * Parse a selection.
+     *
+     * @param selection the glob, or a regular expression prefixed by 'regex:'
+     * @return the parsed selection
+     * @throws AppError if the selection is not a valid glob or regular
+     * expression
+     */
+    public static NameSelector parse(String selection) throws AppError {
+        assert selection != null;
+
+        if (selection.startsWith("regex:")) {
+            return parseRegex(selection, selection.substring(6));
+        } else if (selection.startsWith("glob:")) {
+            return parseGlob(selection, selection.substring(5));
+        }
+        return parseGlob(selection, selection);
+    }
+
+    /**
+     * Parse a glob. The glob is converted to a LIKE pattern if it only uses
+     * '*' and '?', otherwise to an anchored regular expression.
+     */
+    private static NameSelector parseGlob(String text, String glob) throws AppError {
+        StringBuilder literal, likePat, re;
+        boolean inPrefix, likeable, wild;
+        char c;
+        int i, end;
+
+        literal = new StringBuilder();
+        likePat = new StringBuilder();
+        re = new StringBuilder("^");
+        inPrefix = true;
+        likeable = true;
+        wild = false;
+        for (i = 0; i < glob.length(); i++) {
+            c = glob.charAt(i);
+            switch (c) {
+                case '\\':
+                    i++;
+                    if (i == glob.length()) {
+                        throw new AppError("Selection ends with '\\': '" + text + "'");
+                    }
+                    c = glob.charAt(i);
+                    if (inPrefix) {
+                        literal.append(c);
+                    }
+                    appendLike(likePat, c);
+                    re.append(Pattern.quote(String.valueOf(c)));
+                    break;
+                case '*':
+                    inPrefix = false;
+                    wild = true;
+                    likePat.append('%');
+                    re.append(".*");
+                    break;
+                case '?':
+                    inPrefix = false;
+                    wild = true;
+                    likePat.append('_');
+                    re.append('.');
+                    break;
+                case '[':
+                    if ((end = glob.indexOf(']', i + 2)) == -1) {
+                        throw new AppError("Unclosed '[' in selection: '" + text + "'");
+                    }
+                    inPrefix = false;
+                    wild = true;
+                    likeable = false;
+                    re.append('[');
+                    i++;
+                    if (glob.charAt(i) == '!') {
+                        re.append('^');
+                        i++;
+                    }
+                    for (; i < end; i++) {
+                        c = glob.charAt(i);
+                        if (c == '\\' || c == '[' || c == '&' || (c == '^' && re.charAt(re.length() - 1) == '[')) {
+                            re.append('\\');
+                        }
+                        re.append(c);
+                    }
+                    re.append(']');
+                    break;
+                case '{':
+                    if ((end = glob.indexOf('}', i + 1)) == -1) {
+                        throw new AppError("Unclosed '{' in selection: '" + text + "'");
+                    }
+                    inPrefix = false;
+                    wild = true;
+                    likeable = false;
+                    re.append("(?:");
+                    for (String alt : glob.substring(i + 1, end).split(",", -1)) {
+                        if (re.charAt(re.length() - 1) != ':') {
+                            re.append('|');
+                        }
+                        re.append(Pattern.quote(alt));
+                    }
+                    re.append(')');
+                    i = end;
+                    break;
+                default:
+                    if (inPrefix) {
+                        literal.append(c);
+                    }
+                    appendLike(likePat, c);
+                    re.append(Pattern.quote(String.valueOf(c)));
+                    break;
+            }
+        }
+        re.append('$');
+        if (!wild) {
+            return new NameSelector(text, literal.toString(), literal.toString(), null, null);
+        }
+        if (likeable) {
+            return new NameSelector(text, literal.toString(), null, likePat.toString(), null);
+        }
+        return new NameSelector(text, literal.toString(), null, null, compile(text, re.toString()));
+    }
+
+    /**
+     * Add a literal character to a LIKE pattern, quoting the characters that
+     * LIKE treats specially.
+     */
+    private static void appendLike(StringBuilder sb, char c) {
+        if (c == '%' || c == '_' || c == '\\') {
+            sb.append('\\');
+        }
+        sb.append(c);
+    }
+
+    /**
+     * Parse a regular expression. If it is anchored at the start by '^', the
+     * literal characters that follow are the prefix of every name it can
+     * match (unless the expression has alternatives).
+     */
+    private static NameSelector parseRegex(String text, String regex) throws AppError {
+        StringBuilder literal;
+        char c;
+        int i;
+
+        compile(text, regex);
+        literal = new StringBuilder();
+        if (regex.startsWith("^") && regex.indexOf('|') == -1) {
+            for (i = 1; i < regex.length(); i++) {
+                c = regex.charAt(i);
+                if (".[]{}()*+?^$|\\".indexOf(c) != -1) {
+                    // a quantifier makes the preceding character optional
+                    if ((c == '*' || c == '?' || c == '{') && literal.length() > 0) {
+                        literal.setLength(literal.length() - 1);
+                    }
+                    break;
+                }
+                literal.append(c);
+            }
+        }
+        return new NameSelector(text, literal.toString(), null, null, regex);
+    }
+
+    /**
+     * Check that a regular expression is valid.
+     */
+    private static String compile(String text, String regex) throws AppError {
+        try {
+            Pattern.compile(regex);
+        } catch (PatternSyntaxException pse) {
+            throw new AppError("Invalid selection '" + text + "': " + pse.getDescription());
+        }
+        return regex;
+    }
+
+    /**
+     * Compile the selection into a conditional clause over the ITEM table.
+     *
+     * @return the clause
+     */
+    public String toSQL() {
+        StringBuilder sb = new StringBuilder();
+        char last;
+
+        if (exact != null) {
+            return "FILENAME='" + SQLTable.encode(exact) + "'";
+        }
+
+        // the range of names starting with the prefix
+        if (!prefix.isEmpty()) {
+            sb.append("FILENAME>='");
+            sb.append(SQLTable.encode(prefix));
+            sb.append("'");
+            last = prefix.charAt(prefix.length() - 1);
+            if (last != Character.MAX_VALUE) {
+                sb.append(" AND FILENAME<'");
+                sb.append(SQLTable.encode(prefix.substring(0, prefix.length() - 1)));
+                sb.append(SQLTable.encode(String.valueOf((char) (last + 1))));
+                sb.append("'");
+            }
+        }
+
+        // the test of the remainder of the name
+        if (like != null) {
+            if (sb.length() > 0) {
+                sb.append(" AND ");
+            }
+            sb.append("FILENAME LIKE '");
+            sb.append(SQLTable.encode(like));
+            sb.append("' ESCAPE '\\'");
+        } else if (regex != null) {
+            if (sb.length() > 0) {
+                sb.append(" AND ");
+            }
+            sb.append("REGEXP_LIKE(FILENAME, '");
+            sb.append(SQLTable.encode(regex));
+            sb.append("')");
+        }
+        return sb.length() > 0 ? sb.toString() : "TRUE";
+    }
+
+    /**
+     * Return the selection as given by the user.
+     *
+     * @return the selection
+     */
+    @Override
+    public String toString() {
+        return text;
+    }
+}
@@ -9,6 +9,7 @@ import VERSCommon.AppError;
 import java.io.BufferedWriter;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.nio.file.Path;
 import java.time.ZoneId;
@@ -24,9 +25,14 @@ import java.util.logging.Logger;
 public abstract class Report {
     private final static Logger LOG = Logger.getLogger("TrackTransfer.Report");
     private FileOutputStream fos;
+    private OutputStream out;     // stream to send the report to (null if written to a file)
     private OutputStreamWriter osw;
     protected BufferedWriter w;
+    private char[] cb;            // CSV/TSV output waiting to be written to w (only encode(), tsvCSVSeparator() and writeEOL() use it)
+    private int cbLen;            // number of chars in cb
+    private final static int CB_SIZE = 65536; // size of cb (larger than w's buffer, so chunks bypass it)
     protected ReportFormat format; // type of report to generate (based on file name)
+    protected Shards shards;       // connections to the shards of the transfer (null if not sharded)
 
     /**
      * Types of reports that can be generated
@@ -38,9 +44,56 @@ public abstract class Report {
         JSON        // report as JSON file
     }
 
+    /**
+     * Send the report to a stream (e.g. the response to a request to the
+     * server) rather than a file. Must be called before generating the
+     * report; the stream is closed when the report is complete.
+     *
+     * @param out the stream to write the report to
+     * @param format the format of the report
+     */
+    public void streamTo(OutputStream out, ReportFormat format) {
+        assert out != null;
+        assert format != null;
+        this.out = out;
+        this.format = format;
+    }
+
+    /**
+     * Generate the report across all the shards of a sharded transfer. Must be
+     * called before generating the report. The Items in each shard are merged
+     * by name.
+     *
+     * @param shards the connections to the shards
+     */
+    void across(Shards shards) {
+        assert shards != null;
+        this.shards = shards;
+    }
+
+    /**
+     * Work out the format of a report from the file extension of its name.
+     *
+     * @param filename the name of the report file
+     * @return the format
+     * @throws AppError if the extension was not recognised
+     */
+    public static ReportFormat formatOf(String filename) throws AppError {
+        filename = filename.toLowerCase();
+        if (filename.endsWith(".txt")) {
+            return ReportFormat.TEXT;
+        } else if (filename.endsWith(".csv")) {
+            return ReportFormat.CSV;
+        } else if (filename.endsWith(".tsv")) {
+            return ReportFormat.TSV;
+        }
+        throw new AppError("Report file name does not end with '.txt', '.tsv', or '.csv'");
+    }
+
     /**
      * Open the Writer for output of the report. The format of the required
      * report is decided upon based on the file extension of the output file.
+     * If the report is being streamed (streamTo()) the output file is ignored.
      *
      * @param output file name of the report
      * @throws IOException
@@ -48,17 +101,16 @@ public abstract class Report {
     protected void open(Path output) throws IOException, AppError {
         String filename;
         
+        cb = new char[CB_SIZE];
+        cbLen = 0;
+        if (out != null) {
+            osw = new OutputStreamWriter(out, "UTF-8");
+            w = new BufferedWriter(osw);
+            return;
+        }
         filename = output.getFileName().toString().toLowerCase();
         System.out.println("File: '"+filename+"'");
-        if (filename.endsWith(".txt")) {
-            format = ReportFormat.TEXT;
-        } else if (filename.endsWith(".csv")) {
-            format = ReportFormat.CSV;
-        } else if (filename.endsWith(".tsv")) {
-            format = ReportFormat.TSV;
-        } else {
-            throw new AppError("Report file name does not end with '.txt', '.tsv', or '.csv'");
-        }
+        format = formatOf(filename);
         
         fos = new FileOutputStream(output.toFile());
         osw = new OutputStreamWriter(fos, "UTF-8");
@@ -70,9 +122,12 @@ public abstract class Report {
      */
     protected void close() {
         try {
+            flush();
             w.close();
             osw.close();
-            fos.close();
+            if (fos != null) {
+                fos.close();
+            }
         } catch (IOException ioe) {
         }
     }
@@ -102,11 +157,7 @@ public abstract class Report {
         int i;
 
         for (i = 0; i < args.length; i++) {
-            if (format == ReportFormat.CSV) {
-                encode2CSV(args[i]);
-            } else {
-                encode2TSV(args[i]);
-            }
+            encode(args[i]);
             if (i < args.length - 1) {
                 tsvCSVSeparator();
             }
@@ -114,49 +165,113 @@ public abstract class Report {
     }
 
     /**
-     * Encode a string value to sit inside a CSV file (see RFC4180). If the
-     * value contains a comma, double quote, or end of line, it is enclosed in
-     * double quotes. Any double quotes inside the value are escaped by being
-     * doubled.
+     * Encode a value according to the specific encoding rules for the format.
+     * The value is escaped straight into the output buffer in one pass, so
+     * rows can be written a column at a time without allocating anything.
+     *
+     * CSV values follow RFC4180. If the value contains a comma, double quote,
+     * or end of line, it is enclosed in double quotes. Any double quotes
+     * inside the value are escaped by being doubled.
      *
-     * @param value
+     * In TSV values, a '\', '\t', '\n', or a '\r' character is replaced by
+     * the string "\\", "\t", "\n", or "\r" respectively.
+     *
+     * @param value the value (null is written as an empty value)
+     * @throws java.io.IOException
      */
-    private void encode2CSV(String value) throws IOException {
-        if (value.contains(",") || value.contains("\"") || value.contains("\r\n")) {
-            w.write('"');
-            w.write(value.replace("\"", "\"\""));
-            w.write('"');
+    protected void encode(String value) throws IOException {
+        int i, start, len;
+        boolean quote;
+        char c;
+
+        if (value == null) {
+            return;
+        }
+        len = value.length();
+        reserve(2 * len + 2);
+        start = cbLen;
+        if (format == ReportFormat.CSV) {
+            quote = false;
+            for (i = 0; i < len; i++) {
+                c = value.charAt(i);
+                if (c == '"') {
+                    cb[cbLen++] = '"';
+                    quote = true;
+                } else if (c == ',' || (c == '\r' && i + 1 < len && value.charAt(i + 1) == '\n')) {
+                    quote = true;
+                }
+                cb[cbLen++] = c;
+            }
+
+            // only now is it known whether the value needs quotes
+            if (quote) {
+                System.arraycopy(cb, start, cb, start + 1, cbLen - start);
+                cb[start] = '"';
+                cbLen++;
+                cb[cbLen++] = '"';
+            }
         } else {
-            w.write(value);
+            for (i = 0; i < len; i++) {
+                c = value.charAt(i);
+                switch (c) {
+                    case '\\':
+                        cb[cbLen++] = '\\';
+                        break;
+                    case '\t':
+                        cb[cbLen++] = '\\';
+                        c = 't';
+                        break;
+                    case '\n':
+                        cb[cbLen++] = '\\';
+                        c = 'n';
+                        break;
+                    case '\r':
+                        cb[cbLen++] = '\\';
+                        c = 'r';
+                        break;
+                    default:
+                        break;
+                }
+                cb[cbLen++] = c;
+            }
+        }
+    }
+
+    /**
+     * Make sure there is room in the output buffer, writing what is already
+     * in it if necessary.
+     *
+     * @param n the number of chars needed
+     * @throws IOException
+     */
+    private void reserve(int n) throws IOException {
+        if (cbLen + n <= cb.length) {
+            return;
+        }
+        flush();
+        if (n > cb.length) {
+            cb = new char[Math.max(n, cb.length * 2)];
         }
     }
 
     /**
-     * Encode a string value to sit inside a TSV file. If the value contains a
-     * '\', '\t', '\n', or a '\r' character, it is replaced by the string "\\",
-     * "\t", "\n", or "\r" respectively.
+     * Write the output buffer to the Writer.
      *
-     * @param value
+     * @throws IOException
      */
-    private void encode2TSV(String value) throws IOException {
-        String s;
-
-        s = value.replace("\\", "\\\\");
-        s = s.replace("\t", "\\t");
-        s = s.replace("\n", "\\n");
-        s = s.replace("\r", "\\r");
-        w.write(s);
+    private void flush() throws IOException {
+        if (cbLen > 0) {
+            w.write(cb, 0, cbLen);
+            cbLen = 0;
+        }
     }
 
     /**
      * Return the correct tsvCSVSeparator for a TSV or CSV file
      */
     protected void tsvCSVSeparator() throws IOException {
-        if (format == ReportFormat.CSV) {
-            w.write(",");
-        } else {
-            w.write("\t");
-        }
+        reserve(1);
+        cb[cbLen++] = format == ReportFormat.CSV ? ',' : '\t';
     }
 
     /**
@@ -166,8 +281,16 @@ public abstract class Report {
     protected void writeEOL() throws IOException {
         switch (format) {
             case CSV:
-                w.write("\r\n");
+                reserve(2);
+                cb[cbLen++] = '\r';
+                cb[cbLen++] = '\n';
+                break;
+            case TSV:
+                reserve(1);
+                cb[cbLen++] = '\n';
                 break;
+
+            // other formats are written directly to w, not via the buffer
             default:
                 w.write("\n");
                 break;
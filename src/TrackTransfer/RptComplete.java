@@ -8,14 +8,24 @@ package TrackTransfer;
 import VERSCommon.AppError;
 import java.io.IOException;
 import java.nio.file.Path;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.time.OffsetDateTime;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
  * This generates a complete report of all Items in a Transfer. All Instances
  * and Events relating to each Item are listed. The Items are sorted by name.
+ * 
+ * Optionally, the report can be restricted to the Items that have been touched
+ * (i.e. an Event has been linked to one of their Instances) since a given
+ * time. The time is that of the link, not of the Event, so the Items changed
+ * by a command that is still running are reported as they are committed. This allows daily changes to be extracted without reporting on the
+ * whole transfer. The complete history of each touched Item is listed.
+ *
+ * If the transfer is sharded, the Items from each shard are merged by name.
  *
  * @author Andrew Waugh
  */
@@ -23,6 +33,18 @@ public class RptComplete extends Report {
 
     private final static Logger LOG = Logger.getLogger("TrackTransfer.RptComplete");
 
+    // CSV/TSV rows: the columns of the current Item and Instance are decoded
+    // once and repeated on each Event row
+    private TblItem.Row item;
+    private final TblInstance.Row instance = new TblInstance.Row();
+    private String instancePath;
+
+    // the columns of the Event query in generate()
+    private final static String EVENT_COLUMNS = "EVENT.OCCURRED, EVENT.PARAM, EVENT_TEMPLATE.TEMPLATE";
+    private final static int COL_OCCURRED = 1;
+    private final static int COL_PARAM = 2;
+    private final static int COL_TEMPLATE = 3;
+
     public RptComplete() {
     }
 
@@ -36,62 +58,110 @@ public class RptComplete extends Report {
      * @throws VERSCommon.AppError
      */
     public void generate(Path output) throws SQLException, IOException, AppError {
-        int itemKey, instanceKey;
-        ResultSet items, keywords, instances, events;
+        generate(output, null);
+    }
+
+    /**
+     * Generate a report of the items touched since a particular time. All
+     * instances for each item, and all events for each instance, are listed.
+     * The Instance/Event links are searched using the index on when they were
+     * made and joined back to the Items, so only the touched Items are read.
+     *
+     * @param output file name of the report
+     * @param since only report Items with events linked at or after this time (null
+     * reports all Items)
+     * @throws SQLException
+     * @throws IOException
+     * @throws VERSCommon.AppError
+     */
+    public void generate(Path output, OffsetDateTime since) throws SQLException, IOException, AppError {
+        ResultSet keywords, instances, events;
         int i;
 
         open(output);
 
         // write the header
-        writeHeader();
+        writeHeader(since);
 
         // go through the items
         i = 0;
-        items = TblItem.query("*", null, "FILENAME");
-        while (items.next()) {
+        try (Shards.Merge m = Shards.merge(shards, () -> selectItems(since))) {
+            while (m.next()) {
+                item = m.row();
 
-            // write a heartbeat on stdout to show the progress
-            i++;
-            if (i % 100 == 0) {
-                LOG.log(Level.INFO, "Processed: {0}", i);
-            }
+                // write a heartbeat on stdout to show the progress
+                i++;
+                if (i % 100 == 0) {
+                    LOG.log(Level.INFO, "Processed: {0}", i);
+                }
 
-            // write current item (if separating out items)
-            writeItem(items);
-            itemKey = TblItem.getItemId(items);
-
-            // get keywords for this item
-            keywords = SQLTable.query("ITEM_KEYWORD join KEYWORD on ITEM_KEYWORD.KEYWORD_ID=KEYWORD.KEYWORD_ID", "*", "ITEM_KEYWORD.ITEM_ID=" + itemKey, "KEYWORD");
-            writeKeywords(keywords, TblItem.getState(items));
-
-            // get instances of this item
-            instances = TblInstance.query("*", "ITEM_ID=" + itemKey, "ITEM_ID");
-            // instances = SQLTable.query("select * from INSTANCE where ITEM_ID="+itemKey+" ORDER BY ITEM_ID");
-            while (instances.next()) {
-                writeInstance(instances);
-
-                // get events related to this instance
-                instanceKey = TblInstance.getInstanceId(instances);
-                events = SQLTable.query("INSTANCE_EVENT join EVENT on INSTANCE_EVENT.EVENT_ID=EVENT.EVENT_ID", "*", "INSTANCE_EVENT.INSTANCE_ID=" + instanceKey, "EVENT_ID");
-                while (events.next()) {
-                    writeEvent(items, instances, events);
+                // write current item (if separating out items)
+                writeItem();
+
+                // get keywords for this item
+                keywords = SQLTable.query("ITEM_KEYWORD join KEYWORD on ITEM_KEYWORD.KEYWORD_ID=KEYWORD.KEYWORD_ID", "*", "ITEM_KEYWORD.ITEM_ID=" + item.itemId, "KEYWORD");
+                writeKeywords(keywords, item.state);
+
+                // get instances of this item
+                instances = TblInstance.query("*", "ITEM_ID=" + item.itemId, "ITEM_ID");
+                // instances = SQLTable.query("select * from INSTANCE where ITEM_ID="+itemKey+" ORDER BY ITEM_ID");
+                while (instance.next(instances)) {
+                    writeInstance();
+
+                    // get events related to this instance
+                    events = SQLTable.query("INSTANCE_EVENT join EVENT on INSTANCE_EVENT.EVENT_ID=EVENT.EVENT_ID join EVENT_TEMPLATE on EVENT.TEMPLATE_ID=EVENT_TEMPLATE.TEMPLATE_ID", EVENT_COLUMNS, "INSTANCE_EVENT.INSTANCE_ID=" + instance.instanceId, "EVENT.EVENT_ID");
+                    while (events.next()) {
+                        writeEvent(events);
+                    }
+                    events.close();
                 }
+                instances.close();
+                keywords.close();
             }
         }
         close();
     }
 
+    /**
+     * Select the Items to report on from the database the thread is using,
+     * sorted by name.
+     *
+     * @param since only select Items with events linked at or after this time (null
+     * selects all Items)
+     * @return the Items
+     * @throws SQLException
+     */
+    private ResultSet selectItems(OffsetDateTime since) throws SQLException {
+        PreparedStatement ps;
+
+        if (since == null) {
+            return TblItem.query("*", null, "FILENAME");
+        }
+        ps = SQLTable.prepare("select * from ITEM where ITEM_ID in ("
+                + "select INSTANCE.ITEM_ID from INSTANCE_EVENT "
+                + "join INSTANCE on INSTANCE_EVENT.INSTANCE_ID=INSTANCE.INSTANCE_ID "
+                + "where INSTANCE_EVENT.CHANGED >= ?) order by FILENAME;");
+        ps.setObject(1, since);
+        ps.closeOnCompletion();
+        return ps.executeQuery();
+    }
+
     /**
      * Write the header depending on the format
      *
+     * @param since the time changes are reported from (null if all Items)
      * @throws IOException
      * @throws SQLException
      */
-    private void writeHeader() throws IOException, SQLException {
+    private void writeHeader(OffsetDateTime since) throws IOException, SQLException {
         switch (format) {
             case TEXT:
-                w.append("COMPLETE REPORT (all Items/Instances/Events)\n");
-                w.append("Run \n");
+                if (since == null) {
+                    w.append("COMPLETE REPORT (all Items/Instances/Events)\n");
+                } else {
+                    w.append("CHANGES REPORT (Items/Instances/Events for Items touched since " + since + ")\n");
+                }
+                w.append("Run at " + getDateTime() + "\n");
                 w.append("\n");
                 break;
             case CSV:
@@ -109,13 +179,11 @@ public class RptComplete extends Report {
     }
 
     /**
-     * Write an Item
+     * Write the current Item
      *
-     * @param item
      * @throws IOException
-     * @throws SQLException
      */
-    private void writeItem(ResultSet item) throws IOException, SQLException {
+    private void writeItem() throws IOException {
         switch (format) {
             case TEXT:
                 w.append(TblItem.reportItem(item));
@@ -167,13 +235,12 @@ public class RptComplete extends Report {
     }
 
     /**
-     * Write an Instance
+     * Write the current Instance
      *
-     * @param item
      * @throws IOException
      * @throws SQLException
      */
-    private void writeInstance(ResultSet instance) throws IOException, SQLException {
+    private void writeInstance() throws IOException, SQLException {
         switch (format) {
             case TEXT:
                 w.append("  ");
@@ -182,19 +249,22 @@ public class RptComplete extends Report {
                 break;
             case CSV:
             case TSV:
+                instancePath = instance.filepath();
+                break;
             default:
                 break;
         }
     }
 
     /**
-     * Write an Instance
+     * Write an Event. In a CSV or TSV report this writes a row, repeating the
+     * columns of the Item and Instance it belongs to.
      *
-     * @param item
+     * @param event
      * @throws IOException
      * @throws SQLException
      */
-    private void writeEvent(ResultSet item, ResultSet instance, ResultSet event) throws IOException, SQLException {
+    private void writeEvent(ResultSet event) throws IOException, SQLException {
         switch (format) {
             case TEXT:
                 w.append("    ");
@@ -203,11 +273,17 @@ public class RptComplete extends Report {
                 break;
             case CSV:
             case TSV:
-                encode(TblItem.tableOut(item));
+                encode(item.filename);
+                tsvCSVSeparator();
+                encode(item.status());
+                tsvCSVSeparator();
+                encode(instance.status());
+                tsvCSVSeparator();
+                encode(instancePath);
                 tsvCSVSeparator();
-                encode(TblInstance.tableOut(instance));
+                encode(event.getString(COL_OCCURRED));
                 tsvCSVSeparator();
-                encode(TblEvent.tableOut(event));
+                encode(TblEventTemplate.expand(event.getString(COL_TEMPLATE), event.getString(COL_PARAM)));
                 writeEOL();
                 break;
             default:
@@ -0,0 +1,167 @@
+package TrackTransfer;
+
+import VERSCommon.AppError;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Objects;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Report on the Items that have identical content (i.e. the same hash) but
+ * different names. The Items are grouped by their hash (and the algorithm
+ * that calculated it, as the same value from two algorithms does not mean
+ * the content is the same). Only Items whose hash
+ * has been recorded (by 'newDelivery -content' or 'verify -baseline') can be
+ * reported.
+ *
+ * @author Andrew Waugh
+ */
+public class RptDuplicateContent extends Report {
+
+    private final static Logger LOG = Logger.getLogger("TrackTransfer.RptDuplicateContent");
+
+    public RptDuplicateContent() {
+    }
+
+    /**
+     * Generate the report. The hashes shared by more than one Item are found
+     * by grouping on the hash and its algorithm, and the Items are then read
+     * in hash order using the index on the hash.
+     *
+     * @param output the file to write the report to
+     * @throws SQLException
+     * @throws IOException
+     * @throws AppError
+     */
+    public void generate(Path output) throws SQLException, IOException, AppError {
+        ResultSet items;
+        TblItem.Row item = new TblItem.Row();
+        String hash, prevHash, hashAlg, prevHashAlg;
+        int i, groups;
+
+        open(output);
+
+        // write the header
+        writeHeader();
+
+        // go through the items that share their hash with another item
+        i = 0;
+        groups = 0;
+        prevHash = null;
+        prevHashAlg = null;
+        items = TblItem.query("*", "(HASH, HASHALG) in (select HASH, HASHALG from ITEM where HASH is not null and HASH<>'null' group by HASH, HASHALG having count(*)>1)", "HASH, HASHALG, FILENAME");
+        while (item.next(items)) {
+
+            // write a heartbeat on stdout to show how far we've come
+            i++;
+            if (i % 100 == 0) {
+                LOG.log(Level.INFO, "Processed: {0}", i);
+            }
+
+            // start a new group when the hash (or its algorithm) changes
+            hash = item.hash;
+            hashAlg = item.hashAlg;
+            if (!hash.equals(prevHash) || !Objects.equals(hashAlg, prevHashAlg)) {
+                groups++;
+                writeGroup(hashAlg, hash);
+                prevHash = hash;
+                prevHashAlg = hashAlg;
+            }
+            writeItem(item);
+        }
+        items.close();
+        if (format == ReportFormat.TEXT) {
+            w.append("\n");
+            w.append(groups + " groups of items with identical content (" + i + " items)\n");
+        }
+
+        close();
+    }
+
+    /**
+     * Write the header depending on the format
+     *
+     * @throws IOException
+     * @throws SQLException
+     */
+    private void writeHeader() throws IOException, SQLException {
+        switch (format) {
+            case TEXT:
+                w.append("Report on Items with identical content\n");
+                w.append("Run at " + getDateTime() + "\n");
+                w.append("\n");
+                break;
+            case CSV:
+            case TSV:
+                encode(withHash("Hash", TblItem.tableOut(null)));
+                writeEOL();
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Write the start of a group of Items with the same hash. Only the text
+     * report has group headings; in the CSV and TSV reports the first column
+     * (the hash) identifies the group.
+     *
+     * @param hashAlg the algorithm that calculated the hash
+     * @param hash the hash shared by the group
+     * @throws IOException
+     */
+    private void writeGroup(String hashAlg, String hash) throws IOException {
+        if (format == ReportFormat.TEXT) {
+            w.append("\n");
+            w.append("Content ");
+            w.append(hash);
+            if (hashAlg != null) {
+                w.append(" (");
+                w.append(hashAlg);
+                w.append(")");
+            }
+            w.append(":\n");
+        }
+    }
+
+    /**
+     * Write an Item
+     *
+     * @param item
+     * @throws IOException
+     */
+    private void writeItem(TblItem.Row item) throws IOException {
+        switch (format) {
+            case TEXT:
+                w.append(" ");
+                w.append(TblItem.reportItem(item));
+                w.append("\n");
+                break;
+            case CSV:
+            case TSV:
+                encode(item.hash);
+                tsvCSVSeparator();
+                encode(item.filename);
+                tsvCSVSeparator();
+                encode(item.status());
+                writeEOL();
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Put the hash in front of the columns describing an Item.
+     */
+    private static String[] withHash(String hash, String[] columns) {
+        String[] s = new String[columns.length + 1];
+
+        s[0] = hash;
+        System.arraycopy(columns, 0, s, 1, columns.length);
+        return s;
+    }
+}
@@ -8,93 +8,176 @@ package TrackTransfer;
 import VERSCommon.AppError;
 import java.io.IOException;
 import java.nio.file.Path;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
  * Report on all Items that satisfy a particular criteria. The criteria are:
- * State (Processing, Custody-accepted, Abandoned), or whether a particular
- * keyword is set.
+ * State (Processing, Custody-accepted, Abandoned), or whether particular
+ * keywords are set, combined using a KeywordQuery.
+ *
+ * If the transfer is sharded, the query is run in each shard and the Items
+ * are merged by name (so they must be sorted by FILENAME).
  *
  * @author Andrew Waugh
  */
 public class RptOnItems extends Report {
 
     private final static Logger LOG = Logger.getLogger("TrackTransfer.RptOnItems");
+    private final static int MAX_ID_LIST = 50000; // most items to fetch by key using the keyword index
 
     public RptOnItems() {
     }
 
+    /**
+     * Generate a report on the Items that have any of a list of keywords (or
+     * states).
+     *
+     * @param output the file to write the report to
+     * @param header the title of the output
+     * @param keywords the keywords or states to select
+     * @param sortby how to order the Items
+     * @throws SQLException
+     * @throws IOException
+     * @throws AppError
+     */
     public void generate(Path output, String header, ArrayList<String> keywords, String sortby) throws SQLException, IOException, AppError {
-        ResultSet items;
+        generate(output, header, KeywordQuery.anyOf(keywords), sortby);
+    }
+
+    /**
+     * Generate a report on the Items selected by a keyword query. Each Item is
+     * reported once, however many of the keywords it has.
+     *
+     * @param output the file to write the report to
+     * @param header the title of the output
+     * @param query the query selecting the Items
+     * @param sortby how to order the Items
+     * @throws SQLException
+     * @throws IOException
+     * @throws AppError
+     */
+    public void generate(Path output, String header, KeywordQuery query, String sortby) throws SQLException, IOException, AppError {
+        generate(output, header, query, null, sortby);
+    }
+
+    /**
+     * Generate a report on the Items selected by a keyword query and/or by
+     * their names. Each Item is reported once, however many of the keywords
+     * it has. If a selection by name is given, the plan chosen for the query
+     * is logged so that it can be checked that the index on FILENAME is used.
+     *
+     * @param output the file to write the report to
+     * @param header the title of the output
+     * @param query the query selecting the Items (null if selecting by name
+     * alone)
+     * @param selection the selection of Items by name (null if all names)
+     * @param sortby how to order the Items
+     * @throws SQLException
+     * @throws IOException
+     * @throws AppError
+     */
+    public void generate(Path output, String header, KeywordQuery query, NameSelector selection, String sortby) throws SQLException, IOException, AppError {
         int i;
-        StringBuilder where = new StringBuilder();
+
+        assert query != null || selection != null;
+        assert shards == null || "FILENAME".equals(sortby);
 
         open(output);
 
         // write the header
-        writeHeader(header, keywords);
-
-        // get the items with the specified keywords
-        for (i = 0; i < keywords.size(); i++) {
-            if (keywords.get(i).equalsIgnoreCase("Custody-accepted")) {
-                where.append("ITEM.STATE='C'");
-            } else if (keywords.get(i).equalsIgnoreCase("Abandoned")) {
-                where.append("ITEM.STATE='A'");
-            } else if (keywords.get(i).equalsIgnoreCase("Incomplete")) {
-                where.append("ITEM.STATE='P'");
-            } else {
-                where.append("KEYWORD.KEYWORD='" + keywords.get(i) + "'");
-            }
-            if (i < keywords.size() - 1) {
-                where.append(" OR ");
-            }
-        }
+        writeHeader(header, query, selection);
+
+        // go through the items selected
         i = 0;
-        items = SQLTable.query("ITEM left join ITEM_KEYWORD on ITEM.ITEM_ID=ITEM_KEYWORD.ITEM_ID left join KEYWORD on ITEM_KEYWORD.KEYWORD_ID=KEYWORD.KEYWORD_ID", "*", where.toString(), sortby);
-        while (items.next()) {
+        try (Shards.Merge m = Shards.merge(shards, () -> selectItems(query, selection, sortby))) {
+            while (m.next()) {
+                // write a heartbeat on stdout to show how far we've come
+                i++;
+                if (i % 100 == 0) {
+                    LOG.log(Level.INFO, "Processed: {0}", i);
+                }
 
-            // write a heartbeat on stdout to show how far we've come
-            i++;
-            if (i % 100 == 0) {
-                LOG.log(Level.INFO, "Processed: {0}", i);
+                // write current item (if separating out items)
+                writeItem(m.row());
             }
-
-            // write current item (if separating out items)
-            writeItem(items);
         }
 
         close();
     }
 
+    /**
+     * Select the Items from the database the thread is using. If the keyword
+     * index is in use and the query selects a modest number of items, they
+     * are fetched directly by key, otherwise the query is run as SQL. The
+     * query is resolved here as the keys of the keywords differ between
+     * shards.
+     *
+     * @param query the query selecting the Items (may be null)
+     * @param selection the selection of Items by name (may be null)
+     * @param sortby how to order the Items
+     * @return the Items
+     * @throws SQLException
+     */
+    private ResultSet selectItems(KeywordQuery query, NameSelector selection, String sortby) throws SQLException {
+        PreparedStatement ps;
+        BitSet ids;
+        String where;
+
+        ids = null;
+        if (query != null) {
+            query.resolve();
+            ids = KeywordIndex.inUse() ? query.evaluate() : null;
+        }
+        if (ids != null && ids.cardinality() <= MAX_ID_LIST) {
+            ps = SQLTable.prepare("select * from ITEM where ITEM_ID = ANY(?)" + (selection != null ? " and " + selection.toSQL() : "") + (sortby != null ? " order by " + sortby : "") + ";");
+            ps.setObject(1, ids.stream().boxed().toArray(Integer[]::new));
+            ps.closeOnCompletion();
+            return ps.executeQuery();
+        }
+        if (query == null) {
+            where = selection.toSQL();
+        } else if (selection == null) {
+            where = query.toSQL();
+        } else {
+            where = "(" + query.toSQL() + ") and " + selection.toSQL();
+        }
+        if (selection != null) {
+            LOG.log(Level.INFO, "Query plan for selecting items: {0}", SQLTable.explain("select * from ITEM where " + where));
+        }
+        return TblItem.query("*", where, sortby);
+    }
+
     /**
      * Write the header depending on the format
      *
      * @param header the title of the output
+     * @param query the query selecting the Items (may be null)
+     * @param selection the selection of Items by name (may be null)
      * @throws IOException
      * @throws SQLException
      */
-    private void writeHeader(String header, ArrayList<String> keywords) throws IOException, SQLException {
-        int i;
+    private void writeHeader(String header, KeywordQuery query, NameSelector selection) throws IOException, SQLException {
         switch (format) {
             case TEXT:
                 w.append("Report on Items ");
                 w.append(header);
                 w.append(": ");
-                for (i = 0; i < keywords.size(); i++) {
+                if (query != null) {
+                    w.append(query.toString());
+                    if (selection != null) {
+                        w.append(" and names matching ");
+                    }
+                }
+                if (selection != null) {
                     w.append("'");
-                    w.append(keywords.get(i));
+                    w.append(selection.toString());
                     w.append("'");
-                    if (keywords.size() > 1) {
-                        if (i < keywords.size() - 2) {
-                            w.append(", ");
-                        } else if (i < keywords.size()-1) {
-                            w.append(", or ");
-                        }
-                    }
                 }
                 w.append("\n");
                 w.append("Run at " + getDateTime() + "\n");
@@ -115,9 +198,8 @@ public class RptOnItems extends Report {
      *
      * @param item
      * @throws IOException
-     * @throws SQLException
      */
-    private void writeItem(ResultSet item) throws IOException, SQLException {
+    private void writeItem(TblItem.Row item) throws IOException {
         switch (format) {
             case TEXT:
                 w.append(TblItem.reportItem(item));
@@ -125,7 +207,9 @@ public class RptOnItems extends Report {
                 break;
             case CSV:
             case TSV:
-                encode(TblItem.tableOut(item));
+                encode(item.filename);
+                tsvCSVSeparator();
+                encode(item.status());
                 writeEOL();
                 break;
             default:
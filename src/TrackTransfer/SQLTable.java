@@ -7,14 +7,18 @@ package TrackTransfer;
 
 import VERSCommon.AppFatal;
 import java.sql.Connection;
-import java.sql.DriverManager;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.sql.Statement;
-import java.text.SimpleDateFormat;
-import java.util.Date;
-import java.util.TimeZone;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -26,8 +30,10 @@ import java.util.logging.Logger;
 public abstract class SQLTable {
 
     private final static Logger LOG = Logger.getLogger("TrackTransfer.SQLTable");
-    private static Connection con = null;  // the connection to the database, this is shared among all instances of SQLTable (and its subclasses)
-    
+    private final static ThreadLocal<Handle> HANDLE = new ThreadLocal<>(); // the connection used by the command running in this thread
+    private final static int MAX_RETRIES = 5; // times an update is retried after conflicting with another command
+    private final static DateTimeFormatter SQL_TIMESTAMP = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ssxxx");
+
     // constants for common fields
     protected static final int MAX_DESC_LEN = 200;
     protected static final int MAX_FILEPATH_LEN = 2560;
@@ -40,15 +46,18 @@ public abstract class SQLTable {
 
     /**
      * Connect to the SQL database. This can be done on a static object before
-     * creating any instances of a subclass (tables).
+     * creating any instances of a subclass (tables). The connection is taken
+     * from a pool (ConnectionPool) and is used by all the tables in the
+     * calling thread until disconnect() is called, so each thread can run its
+     * own command against the database.
      *
      * @param url the URL to connect to (e.g. "jdbc:h2:./test/testDB")
      * @throws AppFatal
      */
     public static void connect(String url) throws AppFatal {
-        assert con == null;
+        assert HANDLE.get() == null;
         try {
-            con = DriverManager.getConnection(url);
+            HANDLE.set(new Handle(url, ConnectionPool.acquire(url)));
         } catch (SQLException sqle) {
             throw createAppFatal("Failed opening connection to database: ", sqle, "SQL.connect");
         }
@@ -57,14 +66,263 @@ public abstract class SQLTable {
 
     /**
      * Disconnect from the SQL database. This can be done on a static object.
-     * Can later reconnect if desired.
+     * Can later reconnect if desired. The connection is returned to the pool.
      *
      * @throws SQLException if something happened that can't be handled
      */
     public static void disconnect() throws SQLException {
-        assert con != null;
-        con.close();
-        con = null;
+        Handle h;
+
+        h = HANDLE.get();
+        assert h != null;
+        HANDLE.remove();
+        for (PreparedStatement ps : h.statements.values()) {
+            try {
+                ps.close();
+            } catch (SQLException sqle) {
+                LOG.log(Level.WARNING, "Failed closing statement: {0}", sqle.getMessage());
+            }
+        }
+        ConnectionPool.release(h.url, h.con);
+    }
+
+    /**
+     * Set aside the connection used by the calling thread, so that the thread
+     * can connect to another database (e.g. another shard of a transfer, see
+     * Shards). The connection stays open until it is attached again and
+     * disconnected.
+     *
+     * @return the connection set aside
+     */
+    static Handle detach() {
+        Handle h;
+
+        h = HANDLE.get();
+        assert h != null : "Not connected to database";
+        HANDLE.remove();
+        return h;
+    }
+
+    /**
+     * Make a connection set aside by detach() the one used by the calling
+     * thread.
+     *
+     * @param h the connection
+     */
+    static void attach(Handle h) {
+        assert h != null;
+        assert HANDLE.get() == null;
+        HANDLE.set(h);
+    }
+
+    /**
+     * Is the calling thread connected to a database?
+     *
+     * @return true if connected
+     */
+    public static boolean isConnected() {
+        return HANDLE.get() != null;
+    }
+
+    /**
+     * Bring the database the calling thread is connected to up to date, once
+     * for each database the program uses (see ConnectionPool.upgrade()).
+     *
+     * @param upgrade the upgrade, returning true if it was done
+     * @throws SQLException if something happened that can't be handled
+     */
+    static void upgradeOnce(SQLAction<Boolean> upgrade) throws SQLException {
+        ConnectionPool.upgrade(HANDLE.get().url, upgrade);
+    }
+
+    /**
+     * Keep the connections to a database open between commands (or stop doing
+     * so). Normally they are closed when the last command using the database
+     * disconnects (see ConnectionPool).
+     *
+     * @param url the URL of the database
+     * @param hold true to keep the connections open, false to stop
+     */
+    public static void holdOpen(String url, boolean hold) {
+        ConnectionPool.hold(url, hold);
+    }
+
+    /**
+     * Close all the connections held in the connection pool. Should be called
+     * when the program has finished with the databases.
+     */
+    public static void closeAll() {
+        ConnectionPool.closeAll();
+    }
+
+    /**
+     * Start a transaction. The statements executed until commit() or
+     * rollback() is called succeed or fail together. Statements executed in a
+     * transaction are not retried if they conflict with another command.
+     *
+     * @throws SQLException if something happened that can't be handled
+     */
+    public static void beginTransaction() throws SQLException {
+        con().setAutoCommit(false);
+        HANDLE.get().inTransaction = true;
+    }
+
+    /**
+     * Start a transaction that reads a consistent snapshot of the whole
+     * database: rows committed by other commands after the transaction starts
+     * are not seen in any table. Used by commands that must read several
+     * tables as of one moment (e.g. CmdExport) while other commands may be
+     * changing them. Other commands are not blocked. End the transaction with
+     * commit() or rollback().
+     *
+     * (H2's REPEATABLE READ only fixes each table when it is first read, so
+     * SERIALIZABLE is used.)
+     *
+     * @throws SQLException if something happened that can't be handled
+     */
+    public static void beginSnapshot() throws SQLException {
+        con().setTransactionIsolation(Connection.TRANSACTION_SERIALIZABLE);
+        HANDLE.get().snapshot = true;
+        beginTransaction();
+    }
+
+    /**
+     * Is the calling thread in a transaction (see beginTransaction())?
+     *
+     * @return true if in a transaction
+     */
+    static boolean inTransaction() {
+        Handle h;
+
+        h = HANDLE.get();
+        return h != null && h.inTransaction;
+    }
+
+    /**
+     * Get the changes to the keyword index made in the calling thread's
+     * current transaction (see KeywordIndex).
+     *
+     * @return the changes
+     */
+    static KeywordIndex.Changes indexChanges() {
+        Handle h;
+
+        h = HANDLE.get();
+        assert h != null : "Not connected to database";
+        if (h.indexChanges == null) {
+            h.indexChanges = new KeywordIndex.Changes();
+        }
+        return h.indexChanges;
+    }
+
+    /**
+     * Commit the current transaction, and return to committing each statement
+     * as it is executed.
+     *
+     * @throws SQLException if something happened that can't be handled
+     */
+    public static void commit() throws SQLException {
+        Connection c;
+
+        c = con();
+        c.commit();
+        c.setAutoCommit(true);
+        HANDLE.get().inTransaction = false;
+        endSnapshot();
+
+        // the changes to the keyword index can now be seen by other commands
+        KeywordIndex.commit();
+    }
+
+    /**
+     * Abandon the current transaction, and return to committing each
+     * statement as it is executed.
+     *
+     * @throws SQLException if something happened that can't be handled
+     */
+    public static void rollback() throws SQLException {
+        Connection c;
+
+        c = con();
+        c.rollback();
+        c.setAutoCommit(true);
+        HANDLE.get().inTransaction = false;
+        endSnapshot();
+        KeywordIndex.rollback();
+
+        // the caches may hold rows that were never committed
+        HANDLE.get().caches.clear();
+    }
+
+    /**
+     * Return to the default isolation level after a transaction started by
+     * beginSnapshot().
+     *
+     * @throws SQLException if something happened that can't be handled
+     */
+    private static void endSnapshot() throws SQLException {
+        Handle h;
+
+        h = HANDLE.get();
+        if (h.snapshot) {
+            h.con.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+            h.snapshot = false;
+        }
+    }
+
+    /**
+     * Get the connection used by the calling thread.
+     */
+    private static Connection con() {
+        Handle h;
+
+        h = HANDLE.get();
+        assert h != null : "Not connected to database";
+        return h.con;
+    }
+
+    /**
+     * Execute a statement, retrying it if it failed because it conflicted
+     * with a command running concurrently in another thread (e.g. both
+     * changing the same Item). Each statement is committed as it is executed,
+     * so a statement that failed has had no effect and can simply be run
+     * again.
+     *
+     * @param action the statement to execute
+     * @return the result of the statement
+     * @throws SQLException if something happened that can't be handled
+     */
+    protected static <T> T retry(SQLAction<T> action) throws SQLException {
+        int i;
+
+        for (i = 1;; i++) {
+            try {
+                return action.run();
+            } catch (SQLException sqle) {
+                if (i >= MAX_RETRIES || !isConflict(sqle) || !con().getAutoCommit()) {
+                    throw sqle;
+                }
+                LOG.log(Level.FINE, "Retrying statement after conflict ({0})", sqle.getMessage());
+                try {
+                    Thread.sleep(50L * i);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw sqle;
+                }
+            }
+        }
+    }
+
+    /**
+     * Was an exception caused by a conflict with another connection? These
+     * are lock timeouts (HYT00), deadlocks (40001), and concurrent updates
+     * of the same row (H2 error 90131).
+     */
+    static boolean isConflict(SQLException sqle) {
+        String state;
+
+        state = sqle.getSQLState();
+        return "HYT00".equals(state) || "40001".equals(state) || sqle.getErrorCode() == 90131;
     }
 
     /**
@@ -77,16 +335,27 @@ public abstract class SQLTable {
     public static final ResultSet update(String command) throws SQLException {
         ResultSet rs;
 
-        assert con != null;
-        try (Statement stmt = con.createStatement()) {
+        try (Statement stmt = con().createStatement()) {
             stmt.closeOnCompletion();
-            stmt.executeUpdate(command, Statement.RETURN_GENERATED_KEYS);
+            retry(() -> stmt.executeUpdate(command, Statement.RETURN_GENERATED_KEYS));
             rs = stmt.getGeneratedKeys();
             assert rs != null;
         }
         return rs;
     }
 
+    /**
+     * Close the database, compacting its file. The database is closed for
+     * every connection to it, so the calling thread must then disconnect.
+     *
+     * @throws SQLException if something happened that can't be handled
+     */
+    static void shutdownCompact() throws SQLException {
+        try (Statement stmt = con().createStatement()) {
+            stmt.execute("shutdown compact;");
+        }
+    }
+
     /**
      * Add a single row to a table, returning an integer primary key.
      *
@@ -98,9 +367,9 @@ public abstract class SQLTable {
     public static final int addSingleRow(String command, String primaryKey) throws SQLException {
         int key;
 
-        try (Statement stmt = con.createStatement()) {
+        try (Statement stmt = con().createStatement()) {
             stmt.closeOnCompletion();
-            stmt.executeUpdate(command, Statement.RETURN_GENERATED_KEYS);
+            retry(() -> stmt.executeUpdate(command, Statement.RETURN_GENERATED_KEYS));
             try (ResultSet rs = stmt.getGeneratedKeys()) {
                 rs.next();
                 // assert rs.next() : "No primary key returned after adding a row (SQLTable.addSingleRow)";
@@ -111,6 +380,129 @@ public abstract class SQLTable {
         return key;
     }
 
+    /**
+     * Add a single row to a table using a prepared statement (with its
+     * parameters already bound), returning an integer primary key. The
+     * statement must have been created by prepare() or prepareCached().
+     *
+     * @param ps the prepared statement updating the database
+     * @param primaryKey the column name of the integer primary key
+     * @return the primary key of the added row
+     * @throws java.sql.SQLException
+     */
+    public static final int addSingleRow(PreparedStatement ps, String primaryKey) throws SQLException {
+        int key;
+
+        retry(() -> ps.executeUpdate());
+        try (ResultSet rs = ps.getGeneratedKeys()) {
+            rs.next();
+            key = rs.getInt(primaryKey);
+        }
+        return key;
+    }
+
+    /**
+     * Prepare a statement that will have its parameters bound by the caller.
+     * Generated keys are returned so that the statement can be passed to
+     * addSingleRow(). The statement must be closed by the caller.
+     *
+     * @param command the SQLTable command with '?' for each parameter
+     * @return the prepared statement
+     * @throws SQLException if something happened that can't be handled
+     */
+    protected static PreparedStatement prepare(String command) throws SQLException {
+        return con().prepareStatement(command, Statement.RETURN_GENERATED_KEYS);
+    }
+
+    /**
+     * Get a prepared statement that is kept, and reused, for as long as the
+     * calling thread is connected. This is for the statements executed for
+     * every file (e.g. when registering a delivery), so that they are only
+     * parsed once and their values are bound rather than escaped into the
+     * SQL. The statement must not be closed by the caller. Executing a query
+     * on the statement again closes the previous result set.
+     *
+     * @param command the SQLTable command with '?' for each parameter
+     * @return the prepared statement
+     * @throws SQLException if something happened that can't be handled
+     */
+    protected static PreparedStatement prepareCached(String command) throws SQLException {
+        PreparedStatement ps;
+        Handle h;
+
+        h = HANDLE.get();
+        assert h != null : "Not connected to database";
+        ps = h.statements.get(command);
+        if (ps == null) {
+            ps = h.con.prepareStatement(command, Statement.RETURN_GENERATED_KEYS);
+            h.statements.put(command, ps);
+        }
+        return ps;
+    }
+
+    /**
+     * Get a cache of values read from the database that is kept for as long
+     * as the calling thread is connected (e.g. the paths of directories). The
+     * caches are emptied if a transaction is rolled back, as they may then
+     * hold rows that no longer exist.
+     *
+     * @param name the name of the cache
+     * @return the cache (created empty if necessary)
+     */
+    @SuppressWarnings("unchecked")
+    protected static <K, V> Map<K, V> cache(String name) {
+        Handle h;
+
+        h = HANDLE.get();
+        assert h != null : "Not connected to database";
+        return (Map<K, V>) h.caches.computeIfAbsent(name, k -> new HashMap<>());
+    }
+
+    /**
+     * Execute a prepared update statement (with its parameters already bound).
+     *
+     * @param ps the prepared statement updating the database
+     * @throws SQLException if something happened that can't be handled
+     */
+    protected static void update(PreparedStatement ps) throws SQLException {
+        retry(() -> ps.executeUpdate());
+    }
+
+    /**
+     * Test if a table exists in the database.
+     *
+     * @param table name of the table (upper case)
+     * @return true if the table exists
+     * @throws SQLException if something happened that can't be handled
+     */
+    protected static boolean tableExists(String table) throws SQLException {
+        try (PreparedStatement ps = con().prepareStatement("select TABLE_NAME from INFORMATION_SCHEMA.TABLES where TABLE_SCHEMA='PUBLIC' and TABLE_NAME=?;")) {
+            ps.setString(1, table);
+            try (ResultSet rs = ps.executeQuery()) {
+                return rs.next();
+            }
+        }
+    }
+
+    /**
+     * Test if a column exists in a table. Used to decide if a table created
+     * by an earlier version needs to be upgraded.
+     *
+     * @param table name of the table (upper case)
+     * @param column name of the column (upper case)
+     * @return true if the column exists
+     * @throws SQLException if something happened that can't be handled
+     */
+    protected static boolean columnExists(String table, String column) throws SQLException {
+        try (PreparedStatement ps = con().prepareStatement("select COLUMN_NAME from INFORMATION_SCHEMA.COLUMNS where TABLE_SCHEMA='PUBLIC' and TABLE_NAME=? and COLUMN_NAME=?;")) {
+            ps.setString(1, table);
+            ps.setString(2, column);
+            try (ResultSet rs = ps.executeQuery()) {
+                return rs.next();
+            }
+        }
+    }
+
     /**
      * Add a single row to a table, without returning an integer primary key.
      *
@@ -119,9 +511,9 @@ public abstract class SQLTable {
      */
     public static final void addSingleRow(String command) throws SQLException {
 
-        try (Statement stmt = con.createStatement()) {
+        try (Statement stmt = con().createStatement()) {
             stmt.closeOnCompletion();
-            stmt.executeUpdate(command);
+            retry(() -> stmt.executeUpdate(command));
         }
     }
     
@@ -133,9 +525,9 @@ public abstract class SQLTable {
      */
     public static final void removeRows(String command) throws SQLException {
 
-        try (Statement stmt = con.createStatement()) {
+        try (Statement stmt = con().createStatement()) {
             stmt.closeOnCompletion();
-            stmt.executeUpdate(command);
+            retry(() -> stmt.executeUpdate(command));
         }
     }
 
@@ -183,7 +575,7 @@ public abstract class SQLTable {
         ResultSet rs;
         Statement stmt;
 
-        stmt = con.createStatement();
+        stmt = con().createStatement();
         stmt.closeOnCompletion();
         rs = stmt.executeQuery(command);
         assert rs != null;
@@ -191,29 +583,98 @@ public abstract class SQLTable {
     }
     
     /**
-     * Get an SQL TIMESTAMP. If ms is 0, get the current date/time, otherwise
-     * convert the ms since the Java epoch. Note that SQL wants a ':' between
-     * the hours and minutes of a time zone, whereas Java doesn't have anything
+     * Find the columns of a result set by name, so that rows can then be read
+     * by position (see TblItem.Row and TblInstance.Row). If a name occurs more
+     * than once (e.g. in a join) the first is found, as for findColumn().
+     *
+     * @param rs the result set
+     * @param names the names of the columns
+     * @return the index of each column (0 if it is not in the result set)
+     * @throws SQLException if something happened that can't be handled
+     */
+    static int[] columns(ResultSet rs, String[] names) throws SQLException {
+        ResultSetMetaData md;
+        int[] cols = new int[names.length];
+        int i, j;
+
+        md = rs.getMetaData();
+        for (i = md.getColumnCount(); i > 0; i--) {
+            for (j = 0; j < names.length; j++) {
+                if (names[j].equalsIgnoreCase(md.getColumnLabel(i))) {
+                    cols[j] = i;
+                }
+            }
+        }
+        return cols;
+    }
+
+    /**
+     * Get the plan the database will use to execute a query (e.g. which
+     * indexes it will use).
+     *
+     * @param command the SQL query
+     * @return the plan
+     * @throws SQLException if something happened that can't be handled
+     */
+    public static String explain(String command) throws SQLException {
+        StringBuilder sb = new StringBuilder();
+
+        try (Statement stmt = con().createStatement(); ResultSet rs = stmt.executeQuery("explain " + command)) {
+            while (rs.next()) {
+                sb.append(rs.getString(1));
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Start a batch. All the rows added until the batch is ended share the
+     * same timestamp (e.g. all the events generated by one command carry the
+     * time the command was run). The timestamp is truncated to seconds to
+     * match the precision of the timestamp columns.
+     */
+    public static void startBatch() {
+        HANDLE.get().batchTime = OffsetDateTime.now().truncatedTo(ChronoUnit.SECONDS);
+    }
+
+    /**
+     * End a batch. Subsequent rows get the time they are added.
+     */
+    public static void endBatch() {
+        HANDLE.get().batchTime = null;
+    }
+
+    /**
+     * Get the timestamp to be bound to a 'timestamp with time zone' column.
+     * This is the batch timestamp if a batch has been started, otherwise the
+     * current date/time. The same object is returned for the whole batch.
+     *
+     * @return the timestamp
+     */
+    protected static OffsetDateTime getTimeStamp() {
+        Handle h;
+
+        h = HANDLE.get();
+        if (h != null && h.batchTime != null) {
+            return h.batchTime;
+        }
+        return OffsetDateTime.now().truncatedTo(ChronoUnit.SECONDS);
+    }
+
+    /**
+     * Get an SQL TIMESTAMP. If ms is 0, get the batch (or current) date/time,
+     * otherwise convert the ms since the Java epoch. Note that SQL wants a ':'
+     * between the hours and minutes of a time zone. Where possible bind
+     * getTimeStamp() as a parameter rather than using this string.
      *
      * @param ms the timestamp in milliseconds
      * @return
      */
     protected static String getSQLTimeStamp(long ms) {
-        Date d;
-        SimpleDateFormat sdf;
-        TimeZone tz;
-        String s1;
-
-        tz = TimeZone.getDefault();
-        sdf = new SimpleDateFormat("yyyy-MM-dd' 'HH:mm:ssZ");
-        sdf.setTimeZone(tz);
         if (ms == 0) {
-            d = new Date();
-        } else {
-            d = new Date(ms);
+            return getTimeStamp().format(SQL_TIMESTAMP);
         }
-        s1 = sdf.format(d);
-        return s1.substring(0, 22) + ":" + s1.substring(22, 24);
+        return Instant.ofEpochMilli(ms).atZone(ZoneId.systemDefault()).format(SQL_TIMESTAMP);
     }
     
     /**
@@ -317,4 +778,36 @@ public abstract class SQLTable {
             System.out.println(rsm.getColumnTypeName(i));
         }
     }
+
+    /**
+     * The connection used by a thread, and the state of the command using it.
+     */
+    static final class Handle {
+
+        final String url;           // database connected to
+        final Connection con;       // connection from the pool
+        OffsetDateTime batchTime;   // timestamp shared by all rows added in the current batch (null if no batch)
+        boolean inTransaction;      // true if in a transaction (see beginTransaction())
+        boolean snapshot;           // true if the transaction reads a snapshot (see beginSnapshot())
+        KeywordIndex.Changes indexChanges; // changes to the keyword index in the current transaction (null if none yet)
+        final Map<String, PreparedStatement> statements; // statements kept for reuse (see prepareCached())
+        final Map<String, Map<?, ?>> caches; // values read from the database (see cache())
+
+        Handle(String url, Connection con) {
+            this.url = url;
+            this.con = con;
+            batchTime = null;
+            statements = new HashMap<>();
+            caches = new HashMap<>();
+        }
+    }
+
+    /**
+     * A statement that can be retried (see retry()).
+     */
+    @FunctionalInterface
+    protected interface SQLAction<T> {
+
+        T run() throws SQLException;
+    }
 }
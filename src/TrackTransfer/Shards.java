@@ -0,0 +1,410 @@
+package TrackTransfer;
+
+import VERSCommon.AppError;
+import VERSCommon.AppFatal;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A transfer whose Items are partitioned across several databases (shards).
+ * An Item, and all its Instances, Events, and Keywords, are kept in the shard
+ * chosen by the hash of its name (FILENAME), so each shard is a complete
+ * database in its own right. The first shard is the database named by the
+ * user; the others are named after it ('&lt;database&gt;-shard1' etc). Every
+ * shard holds a copy of the Transfer row, which records the number of shards.
+ *
+ * Deliveries and annotations are processed by one thread for each shard,
+ * each with its own connection, and each considering only the Items that
+ * belong to its shard. Reports are generated by one thread connected to all
+ * the shards, which merges the Items from each shard by name (see merge()).
+ *
+ * @author Andrew Waugh
+ */
+final class Shards {
+
+    private final static Logger LOG = Logger.getLogger("TrackTransfer.Shards");
+    private final SQLTable.Handle[] handles;    // connection to each shard
+    private final KeywordIndex[] indexes;       // keyword index of each shard
+    private int current;                        // shard the thread is using
+
+    private Shards(int count) {
+        handles = new SQLTable.Handle[count];
+        indexes = new KeywordIndex[count];
+        current = 0;
+    }
+
+    /**
+     * Which shard holds an Item? The name is that of the Item or of a file
+     * that is an Instance of it; it is normalised as when the Item is looked
+     * up (see TblItem.itemName()), so that a short cut ('X.lnk') is sent to
+     * the same shard as the Item ('X').
+     *
+     * @param filename the name of the Item or file
+     * @param count the number of shards
+     * @return the shard (0 to count-1)
+     */
+    static int of(String filename, int count) {
+        assert filename != null;
+        assert count > 0;
+        return Math.floorMod(TblItem.itemName(filename).hashCode(), count);
+    }
+
+    /**
+     * Get the URL of a shard.
+     *
+     * @param database the URL of the transfer (i.e. the first shard)
+     * @param shard the shard
+     * @return the URL of the shard
+     */
+    static String url(String database, int shard) {
+        int i;
+
+        assert database != null;
+        if (shard == 0) {
+            return database;
+        }
+        // any settings (e.g. ';AUTO_SERVER=TRUE') follow the name
+        if ((i = database.indexOf(';')) != -1) {
+            return database.substring(0, i) + "-shard" + shard + database.substring(i);
+        }
+        return database + "-shard" + shard;
+    }
+
+    /**
+     * Connect the calling thread to all the shards of a transfer. The thread
+     * must already be connected to the first shard; it is left using it.
+     *
+     * @param database the URL of the transfer (i.e. the first shard)
+     * @param count the number of shards
+     * @return the connections
+     * @throws AppFatal if a shard could not be connected to
+     */
+    static Shards connect(String database, int count) throws AppFatal {
+        Shards s;
+        int i;
+
+        assert count > 0;
+        s = new Shards(count);
+        s.handles[0] = SQLTable.detach();
+        s.indexes[0] = KeywordIndex.detach();
+        try {
+            for (i = 1; i < count; i++) {
+                SQLTable.connect(url(database, i));
+                KeywordIndex.open(url(database, i));
+                s.handles[i] = SQLTable.detach();
+                s.indexes[i] = KeywordIndex.detach();
+            }
+        } catch (SQLException sqle) {
+            s.release();
+            throw SQLTable.createAppFatal("Failed opening keyword index of shard: ", sqle, "Shards.connect");
+        } catch (AppFatal | RuntimeException e) {
+            s.release();
+            throw e;
+        } finally {
+            SQLTable.attach(s.handles[0]);
+            KeywordIndex.attach(s.indexes[0]);
+        }
+        return s;
+    }
+
+    /**
+     * Disconnect from the shards connected to so far when connect() fails,
+     * including the shard that failed if the thread got as far as connecting
+     * to it. Failures here are only logged, as it is the original failure
+     * that is reported.
+     */
+    private void release() {
+        int i;
+
+        close();
+        for (i = 1; i < handles.length; i++) {
+            if (handles[i] != null) {
+                SQLTable.attach(handles[i]);
+                KeywordIndex.attach(indexes[i]);
+                handles[i] = null;
+                indexes[i] = null;
+                close();
+            }
+        }
+    }
+
+    /**
+     * Close the keyword index and connection the calling thread is using (if
+     * any), logging any failure.
+     */
+    private static void close() {
+        if (!SQLTable.isConnected()) {
+            return;
+        }
+        try {
+            KeywordIndex.close();
+        } catch (SQLException sqle) {
+            LOG.log(Level.WARNING, "Failed closing keyword index of shard: {0}", sqle.getMessage());
+        }
+        try {
+            SQLTable.disconnect();
+        } catch (SQLException sqle) {
+            LOG.log(Level.WARNING, "Failed disconnecting from shard: {0}", sqle.getMessage());
+        }
+    }
+
+    /**
+     * Get the number of shards.
+     *
+     * @return the number of shards
+     */
+    int count() {
+        return handles.length;
+    }
+
+    /**
+     * Switch the calling thread to using one of the shards.
+     *
+     * @param shard the shard
+     */
+    void use(int shard) {
+        if (shard == current) {
+            return;
+        }
+        SQLTable.detach();
+        KeywordIndex.detach();
+        SQLTable.attach(handles[shard]);
+        KeywordIndex.attach(indexes[shard]);
+        current = shard;
+    }
+
+    /**
+     * Disconnect from all but the first shard, which the calling thread is
+     * left using.
+     *
+     * @throws SQLException if something happened that can't be handled
+     */
+    void disconnect() throws SQLException {
+        int i;
+
+        for (i = 1; i < handles.length; i++) {
+            if (handles[i] != null) {
+                use(i);
+                KeywordIndex.close();
+                SQLTable.disconnect();
+                KeywordIndex.attach(indexes[0]);
+                SQLTable.attach(handles[0]);
+                current = 0;
+                handles[i] = null;
+            }
+        }
+        use(0);
+    }
+
+    /**
+     * A query over the Items in a shard. It is run while the thread is
+     * using the shard.
+     */
+    interface ItemQuery {
+
+        ResultSet run() throws SQLException;
+    }
+
+    /**
+     * Run a query over the Items in each shard, and merge the results by
+     * name. The query in each shard must return the Items sorted by FILENAME.
+     * If the connections are null (i.e. the transfer is not sharded), the
+     * query is just run against the connected database.
+     *
+     * @param shards the connections to the shards (may be null)
+     * @param query the query
+     * @return the merged Items
+     * @throws SQLException if something happened that can't be handled
+     */
+    static Merge merge(Shards shards, ItemQuery query) throws SQLException {
+        return new Merge(shards, query);
+    }
+
+    /**
+     * The Items from each shard, merged by name (a k-way merge). Each shard's
+     * result set is positioned on its next Item; next() chooses the smallest
+     * and switches the thread to the shard that holds it, so that the
+     * Instances and Events of the Item can be read.
+     */
+    static final class Merge implements AutoCloseable {
+
+        private final Shards shards;
+        private final PriorityQueue<Cursor> heads; // the next Item in each shard that has not been read to the end
+        private final List<Cursor> cursors;
+        private Cursor current;     // the shard positioned on the current Item
+
+        private Merge(Shards shards, ItemQuery query) throws SQLException {
+            Cursor c;
+            int i;
+
+            this.shards = shards;
+            heads = new PriorityQueue<>((a, b) -> a.item.filename.compareTo(b.item.filename));
+            cursors = new ArrayList<>();
+            current = null;
+            if (shards == null) {
+                c = new Cursor(0, query.run());
+                cursors.add(c);
+                current = c;
+                return;
+            }
+            for (i = 0; i < shards.count(); i++) {
+                shards.use(i);
+                c = new Cursor(i, query.run());
+                cursors.add(c);
+                if (c.advance()) {
+                    heads.add(c);
+                }
+            }
+        }
+
+        /**
+         * Move to the next Item (the first Item on the first call).
+         *
+         * @return false if there are no more Items
+         * @throws SQLException if something happened that can't be handled
+         */
+        boolean next() throws SQLException {
+            if (shards == null) {
+                return current.advance();
+            }
+            if (current != null) {
+                shards.use(current.shard);
+                if (current.advance()) {
+                    heads.add(current);
+                }
+            }
+            if ((current = heads.poll()) == null) {
+                return false;
+            }
+            shards.use(current.shard);
+            return true;
+        }
+
+        /**
+         * Get the current Item.
+         *
+         * @return the result set positioned on the current Item
+         */
+        ResultSet item() {
+            assert current != null;
+            return current.rs;
+        }
+
+        /**
+         * Get the current Item, decoded.
+         *
+         * @return the decoded row of the current Item
+         */
+        TblItem.Row row() {
+            assert current != null;
+            return current.item;
+        }
+
+        /**
+         * Close the result sets, leaving the thread using the first shard.
+         *
+         * @throws SQLException if something happened that can't be handled
+         */
+        @Override
+        public void close() throws SQLException {
+            for (Cursor c : cursors) {
+                if (shards != null) {
+                    shards.use(c.shard);
+                }
+                c.rs.close();
+            }
+            if (shards != null) {
+                shards.use(0);
+            }
+        }
+    }
+
+    /**
+     * A result set over the Items in one shard.
+     */
+    private static final class Cursor {
+
+        final int shard;
+        final ResultSet rs;
+        final TblItem.Row item; // the Item the result set is positioned on
+
+        Cursor(int shard, ResultSet rs) {
+            this.shard = shard;
+            this.rs = rs;
+            item = new TblItem.Row();
+        }
+
+        boolean advance() throws SQLException {
+            return item.next(rs);
+        }
+    }
+
+    /**
+     * Run a task for each shard, each in its own thread, and wait for them
+     * all to finish. If any task fails, the first failure is thrown once the
+     * others have finished.
+     *
+     * @param <T> the result of each task
+     * @param tasks the task for each shard
+     * @return the results, in the order of the tasks
+     * @throws AppFatal if a task had an internal error
+     * @throws AppError if a task found the calling program did something
+     * wrong
+     * @throws SQLException if a task had a database problem
+     */
+    static <T> List<T> run(List<Callable<T>> tasks) throws AppFatal, AppError, SQLException {
+        ExecutorService pool;
+        List<Future<T>> futures;
+        List<T> results;
+        Throwable failure;
+        int i;
+
+        pool = Executors.newFixedThreadPool(tasks.size());
+        futures = new ArrayList<>();
+        results = new ArrayList<>();
+        failure = null;
+        try {
+            for (Callable<T> task : tasks) {
+                futures.add(pool.submit(task));
+            }
+            for (i = 0; i < futures.size(); i++) {
+                try {
+                    results.add(futures.get(i).get());
+                } catch (ExecutionException ee) {
+                    LOG.log(Level.WARNING, "Shard {0} failed: {1}", new Object[]{i, ee.getCause().getMessage()});
+                    if (failure == null) {
+                        failure = ee.getCause();
+                    }
+                    results.add(null);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw new AppFatal("Interrupted while waiting for the shards to finish");
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+        if (failure instanceof AppFatal) {
+            throw (AppFatal) failure;
+        } else if (failure instanceof AppError) {
+            throw (AppError) failure;
+        } else if (failure instanceof SQLException) {
+            throw (SQLException) failure;
+        } else if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        } else if (failure != null) {
+            throw new AppFatal("Shard failed: " + failure.toString());
+        }
+        return results;
+    }
+}
@@ -0,0 +1,441 @@
+package TrackTransfer;
+
+import VERSCommon.AppError;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A snapshot of a transfer: the contents of every table in a compact binary
+ * format (see CmdExport and CmdImport). Unlike a copy of the '.mv.db' file, a
+ * snapshot carries no free pages or fragmentation.
+ *
+ * The snapshot is compressed (GZIP). It starts with the characters 'TTSNAP'
+ * and a format version, and then holds each table in turn:
+ * <pre>
+ *  name of the table
+ *  number of columns, then the name and type of each column
+ *  each row: its length in bytes, then a bitmap of the columns that are null,
+ *            then the value of each column that is not null
+ *  0 (the end of the rows)
+ * </pre>
+ * The snapshot ends with an empty table name. Numbers (including lengths and
+ * keys) are variable length integers (7 bits per byte, least significant
+ * first), signed numbers being zig-zag encoded so small negative numbers are
+ * short. Strings are their length and UTF-8 bytes, booleans a byte, and
+ * timestamps the seconds since the epoch, the nanoseconds, and the offset in
+ * seconds from UTC.
+ *
+ * @author Andrew Waugh
+ */
+final class Snapshot {
+
+    /**
+     * The tables in a transfer, in the order they are written.
+     */
+    static final String[] TABLES = {"TRANSFER", "DELIVERY", "DIRECTORY", "EVENT_TEMPLATE", "EVENT", "ITEM", "INSTANCE", "INSTANCE_EVENT", "KEYWORD", "ITEM_KEYWORD", "ANNOTATION_PROGRESS", "RUN_METRIC"};
+
+    private final static byte[] MAGIC = "TTSNAP".getBytes(StandardCharsets.US_ASCII);
+    private final static int VERSION = 1;
+
+    // types of column
+    private final static byte INT = 'I';
+    private final static byte LONG = 'J';
+    private final static byte BOOL = 'Z';
+    private final static byte STRING = 'S';
+    private final static byte BINARY = 'X';
+    private final static byte TIMESTAMP = 'T';
+
+    private Snapshot() {
+    }
+
+    /**
+     * Writes a snapshot. Call table() to start each table, row() for each
+     * row, and close() at the end.
+     */
+    static final class Writer implements AutoCloseable {
+
+        private final DataOutputStream out;
+        private final Buffer row;       // the row being encoded
+        private byte[] types;           // type of each column in the current table
+        private boolean inTable;        // true if a table has been started
+
+        Writer(OutputStream os) throws IOException {
+            out = new DataOutputStream(new GZIPOutputStream(os, 65536));
+            row = new Buffer();
+            inTable = false;
+            out.write(MAGIC);
+            writeVarint(out, VERSION);
+        }
+
+        /**
+         * Start a table, describing its columns.
+         *
+         * @param name the name of the table
+         * @param md the description of the columns
+         * @throws IOException
+         * @throws SQLException
+         * @throws AppError if a column cannot be exported
+         */
+        void table(String name, ResultSetMetaData md) throws IOException, SQLException, AppError {
+            int i;
+
+            endTable();
+            writeString(out, name);
+            types = new byte[md.getColumnCount()];
+            writeVarint(out, types.length);
+            for (i = 0; i < types.length; i++) {
+                types[i] = typeOf(name, md, i + 1);
+                writeString(out, md.getColumnName(i + 1));
+                out.writeByte(types[i]);
+            }
+            inTable = true;
+        }
+
+        /**
+         * Write the row the result set is positioned on.
+         *
+         * @param rs the result set
+         * @throws IOException
+         * @throws SQLException
+         */
+        void row(ResultSet rs) throws IOException, SQLException {
+            OffsetDateTime odt;
+            byte[] nulls;
+            Object v;
+            int i;
+
+            assert inTable;
+            nulls = new byte[(types.length + 7) / 8];
+            row.reset();
+            row.write(nulls);
+            for (i = 0; i < types.length; i++) {
+                switch (types[i]) {
+                    case INT:
+                    case LONG:
+                        v = rs.getLong(i + 1);
+                        break;
+                    case BOOL:
+                        v = rs.getBoolean(i + 1);
+                        break;
+                    case STRING:
+                        v = rs.getString(i + 1);
+                        break;
+                    case BINARY:
+                        v = rs.getBytes(i + 1);
+                        break;
+                    default:
+                        v = rs.getObject(i + 1, OffsetDateTime.class);
+                        break;
+                }
+                if (rs.wasNull() || v == null) {
+                    nulls[i / 8] |= 1 << (i % 8);
+                    continue;
+                }
+                switch (types[i]) {
+                    case INT:
+                    case LONG:
+                        writeVarint(row, zigzag((Long) v));
+                        break;
+                    case BOOL:
+                        row.write((Boolean) v ? 1 : 0);
+                        break;
+                    case STRING:
+                        writeString(row, (String) v);
+                        break;
+                    case BINARY:
+                        writeVarint(row, ((byte[]) v).length);
+                        row.write((byte[]) v);
+                        break;
+                    default:
+                        odt = (OffsetDateTime) v;
+                        writeVarint(row, zigzag(odt.toEpochSecond()));
+                        writeVarint(row, odt.getNano());
+                        writeVarint(row, zigzag(odt.getOffset().getTotalSeconds()));
+                        break;
+                }
+            }
+            row.set(0, nulls);
+            writeVarint(out, row.size());
+            row.writeTo(out);
+        }
+
+        /**
+         * End the current table (if any).
+         */
+        private void endTable() throws IOException {
+            if (inTable) {
+                writeVarint(out, 0);
+                inTable = false;
+            }
+        }
+
+        /**
+         * End the snapshot and close the stream.
+         *
+         * @throws IOException
+         */
+        @Override
+        public void close() throws IOException {
+            endTable();
+            writeString(out, "");
+            out.close();
+        }
+    }
+
+    /**
+     * Reads a snapshot. Call table() to move to each table, and row() to read
+     * each row of it.
+     */
+    static final class Reader implements AutoCloseable {
+
+        private final DataInputStream in;
+        private String[] columns;       // names of the columns in the current table
+        private byte[] types;           // type of each column in the current table
+        private byte[] row;             // the row being decoded
+        private int pos;                // position in the row
+
+        Reader(InputStream is) throws IOException, AppError {
+            byte[] magic;
+
+            in = new DataInputStream(new GZIPInputStream(is, 65536));
+            magic = new byte[MAGIC.length];
+            try {
+                in.readFully(magic);
+            } catch (EOFException eofe) {
+                throw new AppError("File is not a TrackTransfer snapshot");
+            }
+            if (!Arrays.equals(magic, MAGIC)) {
+                throw new AppError("File is not a TrackTransfer snapshot");
+            }
+            if (readVarint(in) != VERSION) {
+                throw new AppError("Snapshot was written by a later version of TrackTransfer");
+            }
+            row = new byte[256];
+        }
+
+        /**
+         * Move to the next table.
+         *
+         * @return the name of the table, or null if there are no more
+         * @throws IOException
+         * @throws AppError if a column has an unknown type
+         */
+        String table() throws IOException, AppError {
+            String name;
+            int i;
+
+            if ((name = readString(in)).isEmpty()) {
+                return null;
+            }
+            columns = new String[(int) readVarint(in)];
+            types = new byte[columns.length];
+            for (i = 0; i < columns.length; i++) {
+                columns[i] = readString(in);
+                types[i] = in.readByte();
+                if ("IJZSXT".indexOf(types[i]) == -1) {
+                    throw new AppError("Column " + name + "." + columns[i] + " in snapshot has an unknown type (" + types[i] + ")");
+                }
+            }
+            return name;
+        }
+
+        /**
+         * Get the names of the columns in the current table.
+         *
+         * @return the names
+         */
+        String[] columns() {
+            return columns;
+        }
+
+        /**
+         * Read the next row of the current table.
+         *
+         * @param values the value of each column (null if the column is null)
+         * @return false if there are no more rows in the table
+         * @throws IOException
+         * @throws AppError if the row is corrupt
+         */
+        boolean row(Object[] values) throws IOException, AppError {
+            int len, nullBytes, i, n;
+
+            assert values.length == columns.length;
+            if ((len = (int) readVarint(in)) == 0) {
+                return false;
+            }
+            if (len > row.length) {
+                row = new byte[Math.max(len, row.length * 2)];
+            }
+            in.readFully(row, 0, len);
+            nullBytes = (columns.length + 7) / 8;
+            pos = nullBytes;
+            for (i = 0; i < columns.length; i++) {
+                if ((row[i / 8] & (1 << (i % 8))) != 0) {
+                    values[i] = null;
+                    continue;
+                }
+                switch (types[i]) {
+                    case INT:
+                        values[i] = (int) unzigzag(varint());
+                        break;
+                    case LONG:
+                        values[i] = unzigzag(varint());
+                        break;
+                    case BOOL:
+                        values[i] = row[pos++] != 0;
+                        break;
+                    case STRING:
+                        n = (int) varint();
+                        values[i] = new String(row, pos, n, StandardCharsets.UTF_8);
+                        pos += n;
+                        break;
+                    case BINARY:
+                        n = (int) varint();
+                        values[i] = Arrays.copyOfRange(row, pos, pos + n);
+                        pos += n;
+                        break;
+                    default:
+                        values[i] = OffsetDateTime.ofInstant(Instant.ofEpochSecond(unzigzag(varint()), varint()), ZoneOffset.ofTotalSeconds((int) unzigzag(varint())));
+                        break;
+                }
+            }
+            if (pos != len) {
+                throw new AppError("Row in snapshot is corrupt (decoded " + pos + " bytes of " + len + ")");
+            }
+            return true;
+        }
+
+        /**
+         * Decode a variable length integer from the row.
+         */
+        private long varint() {
+            long v;
+            int shift;
+            byte b;
+
+            v = 0;
+            shift = 0;
+            do {
+                b = row[pos++];
+                v |= (long) (b & 0x7f) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            return v;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    /**
+     * Work out how a column is to be written.
+     */
+    private static byte typeOf(String table, ResultSetMetaData md, int column) throws SQLException, AppError {
+        switch (md.getColumnType(column)) {
+            case Types.TINYINT:
+            case Types.SMALLINT:
+            case Types.INTEGER:
+                return INT;
+            case Types.BIGINT:
+                return LONG;
+            case Types.BOOLEAN:
+            case Types.BIT:
+                return BOOL;
+            case Types.CHAR:
+            case Types.VARCHAR:
+            case Types.LONGVARCHAR:
+            case Types.NCHAR:
+            case Types.NVARCHAR:
+            case Types.CLOB:
+                return STRING;
+            case Types.BINARY:
+            case Types.VARBINARY:
+            case Types.LONGVARBINARY:
+                return BINARY;
+            case Types.TIMESTAMP_WITH_TIMEZONE:
+                return TIMESTAMP;
+            default:
+                throw new AppError("Column " + table + "." + md.getColumnName(column) + " cannot be exported (type " + md.getColumnTypeName(column) + ")");
+        }
+    }
+
+    private static long zigzag(long v) {
+        return (v << 1) ^ (v >> 63);
+    }
+
+    private static long unzigzag(long v) {
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    private static void writeVarint(OutputStream out, long v) throws IOException {
+        while ((v & ~0x7fL) != 0) {
+            out.write((int) ((v & 0x7f) | 0x80));
+            v >>>= 7;
+        }
+        out.write((int) v);
+    }
+
+    private static long readVarint(InputStream in) throws IOException {
+        long v;
+        int shift, b;
+
+        v = 0;
+        shift = 0;
+        do {
+            if ((b = in.read()) == -1) {
+                throw new EOFException("Snapshot ends unexpectedly");
+            }
+            v |= (long) (b & 0x7f) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return v;
+    }
+
+    private static void writeString(OutputStream out, String s) throws IOException {
+        byte[] b;
+
+        b = s.getBytes(StandardCharsets.UTF_8);
+        writeVarint(out, b.length);
+        out.write(b);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] b;
+
+        b = new byte[(int) readVarint(in)];
+        in.readFully(b);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * A byte buffer that can be reused, and patched once written.
+     */
+    private static final class Buffer extends ByteArrayOutputStream {
+
+        Buffer() {
+            super(256);
+        }
+
+        void set(int off, byte[] b) {
+            System.arraycopy(b, 0, buf, off, b.length);
+        }
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package TrackTransfer;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.logging.Logger;
+
+/**
+ * This class encapsulates the Annotation Progress table in the SQL database.
+ * Each row records how far an annotate run has got, so that a run that failed
+ * part way through can be resumed. A run is identified by a key derived from
+ * the Items it selects and the annotation it makes. The row records the name
+ * of the last Item selected that has been annotated and committed (not its
+ * position, which changes if Items are added to the selection); it is updated
+ * in the same transaction as the annotations, so it is never ahead of or
+ * behind the database. The row is removed when the run completes.
+ *
+ * @author Andrew
+ */
+public class TblAnnotationProgress extends SQLTable {
+
+    private final static Logger LOG = Logger.getLogger("TrackTransfer.TblAnnotationProgress");
+
+    private final static String CREATE_ANNOTATION_PROGRESS_TABLE
+            = "create table if not exists ANNOTATION_PROGRESS ("
+            + "RUN_KEY char(64) PRIMARY KEY, " // identifies the run (hex SHA-256)
+            + "LAST_ITEM varchar(" + MAX_FILEPATH_LEN + ") NOT NULL, " // name of the last Item selected that has been committed
+            + "DESCRIPTION varchar(" + MAX_DESC_LEN + "), " // description of the annotation being made
+            + "UPDATED timestamp(0) with time zone NOT NULL" // when the position was last recorded
+            + ");";
+
+    /**
+     * Initialise the Annotation Progress Table
+     *
+     * @throws SQLException if something happened that can't be handled
+     */
+    public TblAnnotationProgress() throws SQLException {
+        super();
+    }
+
+    /**
+     * Create the table. Only needs to be done once when the database is being
+     * created.
+     *
+     * @throws SQLException
+     */
+    public static void createTable() throws SQLException {
+        update(CREATE_ANNOTATION_PROGRESS_TABLE);
+    }
+
+    /**
+     * Bring a database created by an earlier version up to date. Earlier
+     * versions did not record the progress of annotations, or recorded it as
+     * a position; a run recorded by position must be started again.
+     *
+     * @throws SQLException
+     */
+    public static void upgradeTable() throws SQLException {
+        if (tableExists("ANNOTATION_PROGRESS") && !columnExists("ANNOTATION_PROGRESS", "LAST_ITEM")) {
+            LOG.info("Upgrading ANNOTATION_PROGRESS table: runs in progress must be started again");
+            dropTable();
+        }
+        createTable();
+    }
+
+    /**
+     * Record how far a run has got, replacing any position previously
+     * recorded for the run.
+     *
+     * @param runKey the key identifying the run
+     * @param lastItem the name of the last Item selected that has been
+     * annotated
+     * @param desc description of the annotation being made
+     * @throws SQLException if something happened that can't be handled
+     */
+    public static void set(String runKey, String lastItem, String desc) throws SQLException {
+        PreparedStatement ps;
+
+        assert runKey != null;
+        assert lastItem != null;
+
+        ps = prepareCached("merge into ANNOTATION_PROGRESS (RUN_KEY, LAST_ITEM, DESCRIPTION, UPDATED) key (RUN_KEY) values (?, ?, ?, ?);");
+        ps.setString(1, runKey);
+        ps.setString(2, lastItem);
+        ps.setString(3, truncate("Annotation description", desc, MAX_DESC_LEN));
+        ps.setObject(4, getTimeStamp());
+        update(ps);
+    }
+
+    /**
+     * Get how far a run has got.
+     *
+     * @param runKey the key identifying the run
+     * @return the name of the last Item selected that has been annotated (null
+     * if the run has not been started, or has completed)
+     * @throws SQLException if something happened that can't be handled
+     */
+    public static String get(String runKey) throws SQLException {
+        PreparedStatement ps;
+
+        assert runKey != null;
+
+        ps = prepareCached("select LAST_ITEM from ANNOTATION_PROGRESS where RUN_KEY=?;");
+        ps.setString(1, runKey);
+        try (ResultSet rs = ps.executeQuery()) {
+            return rs.next() ? rs.getString("LAST_ITEM") : null;
+        }
+    }
+
+    /**
+     * Forget a run (because it has completed).
+     *
+     * @param runKey the key identifying the run
+     * @throws SQLException if something happened that can't be handled
+     */
+    public static void remove(String runKey) throws SQLException {
+        PreparedStatement ps;
+
+        assert runKey != null;
+
+        ps = prepareCached("delete from ANNOTATION_PROGRESS where RUN_KEY=?;");
+        ps.setString(1, runKey);
+        update(ps);
+    }
+
+    /**
+     * Drop the table and all data.
+     *
+     * @throws SQLException if something happened that can't be handled
+     */
+    public static void dropTable() throws SQLException {
+        update("drop table if exists ANNOTATION_PROGRESS");
+    }
+}
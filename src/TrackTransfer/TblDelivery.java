@@ -7,6 +7,7 @@ package TrackTransfer;
 
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.logging.Logger;
@@ -59,7 +60,6 @@ public class TblDelivery extends SQLTable {
      * @throws SQLException if something happened that can't be handled
      */
     public static int add(int transferId, String desc, Path root) throws SQLException {
-        StringBuilder sb = new StringBuilder();
         String s;
         
         assert transferId > 0;
@@ -69,16 +69,13 @@ public class TblDelivery extends SQLTable {
         desc = truncate("Description", desc, MAX_DESC_LEN);
         s = truncate("Filepath", root.toString(), MAX_FILEPATH_LEN);
 
-        sb.append("insert into DELIVERY (TRANSFER_ID, FILEPATH, DESC, WHEN_RECEIVED) values (");
-        sb.append(transferId);
-        sb.append(", '");
-        sb.append(encode(s));
-        sb.append("', '");
-        sb.append(encode(desc));
-        sb.append("', '");
-        sb.append(getSQLTimeStamp(0));
-        sb.append("');");
-        return addSingleRow(sb.toString(), "DELIVERY_ID");
+        try (PreparedStatement ps = prepare("insert into DELIVERY (TRANSFER_ID, FILEPATH, DESC, WHEN_RECEIVED) values (?, ?, ?, ?);")) {
+            ps.setInt(1, transferId);
+            ps.setString(2, s);
+            ps.setString(3, desc);
+            ps.setObject(4, getTimeStamp());
+            return addSingleRow(ps, "DELIVERY_ID");
+        }
     }
 
     /**
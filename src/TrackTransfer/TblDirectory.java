@@ -0,0 +1,271 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package TrackTransfer;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * This class encapsulates the Directory table in the SQL database. Each row is
+ * a directory that contains instances, identified by its parent directory and
+ * its name, so that the (often long) path of a directory in a delivery is
+ * stored once rather than in every instance. A directory with no parent (i.e.
+ * the root of a path) has a PARENT_ID of 0, and its name is the root itself
+ * (e.g. '/' or 'C:\').
+ *
+ * Directories are never changed or removed once added, so the paths and keys
+ * looked up are cached for as long as the thread is connected.
+ *
+ * @author Andrew
+ */
+public class TblDirectory extends SQLTable {
+
+    private final static Logger LOG = Logger.getLogger("TrackTransfer.TblDirectory");
+    private final static String KEY_CACHE = "TblDirectory.keys"; // directory path -> key
+    private final static String PATH_CACHE = "TblDirectory.paths"; // key -> directory path
+
+    private final static String CREATE_DIRECTORY_TABLE
+            = "create table if not exists DIRECTORY ("
+            + "DIRECTORY_ID integer GENERATED ALWAYS AS IDENTITY PRIMARY KEY, " // primary key
+            + "PARENT_ID integer NOT NULL, " // directory containing this one (0 if none)
+            + "NAME varchar(" + MAX_FILEPATH_LEN + ") NOT NULL" // name of the directory within its parent
+            + ");";
+    private final static String CREATE_DIRECTORY_INDEX
+            = "create unique index if not exists IDX_DIRECTORY on DIRECTORY (PARENT_ID, NAME);";
+
+    /**
+     * Initialise the Directory Table
+     *
+     * @throws SQLException if something happened that can't be handled
+     */
+    public TblDirectory() throws SQLException {
+        super();
+    }
+
+    /**
+     * Create the table. Only needs to be done once when the database is being
+     * created.
+     *
+     * @throws SQLException
+     */
+    public static void createTable() throws SQLException {
+        update(CREATE_DIRECTORY_TABLE);
+        update(CREATE_DIRECTORY_INDEX);
+    }
+
+    /**
+     * Bring a database created by an earlier version up to date. Earlier
+     * versions stored the full path of each instance, and had no directory
+     * table.
+     *
+     * @throws SQLException
+     */
+    public static void upgradeTable() throws SQLException {
+        createTable();
+    }
+
+    /**
+     * Get the key of a directory, adding it (and any of its parents that are
+     * not already present) to the table if necessary.
+     *
+     * @param dir the directory
+     * @return the primary key of the directory
+     * @throws SQLException if something happened that can't be handled
+     */
+    public static int add(Path dir) throws SQLException {
+        Map<Path, Integer> keys;
+        Integer key;
+        Path parent;
+        int parentId, k;
+        String name;
+
+        assert dir != null;
+
+        keys = cache(KEY_CACHE);
+        if ((key = keys.get(dir)) != null) {
+            return key;
+        }
+        parent = dir.getParent();
+        if (parent == null) {
+            parentId = 0;
+            name = dir.toString();
+        } else {
+            parentId = add(parent);
+            name = dir.getFileName().toString();
+        }
+        name = truncate("Directory", name, MAX_FILEPATH_LEN);
+        if ((k = find(parentId, name)) == 0) {
+            k = insert(parentId, name);
+        }
+        keys.put(dir, k);
+        return k;
+    }
+
+    /**
+     * Get the key of a directory, without adding it.
+     *
+     * @param dir the directory
+     * @return the primary key of the directory, or 0 if it is not present
+     * @throws SQLException if something happened that can't be handled
+     */
+    public static int find(Path dir) throws SQLException {
+        Map<Path, Integer> keys;
+        Integer key;
+        Path parent;
+        int parentId, k;
+
+        assert dir != null;
+
+        keys = cache(KEY_CACHE);
+        if ((key = keys.get(dir)) != null) {
+            return key;
+        }
+        parent = dir.getParent();
+        if (parent == null) {
+            k = find(0, dir.toString());
+        } else if ((parentId = find(parent)) == 0) {
+            return 0;
+        } else {
+            k = find(parentId, dir.getFileName().toString());
+        }
+        if (k != 0) {
+            keys.put(dir, k);
+        }
+        return k;
+    }
+
+    /**
+     * Find a directory in its parent.
+     *
+     * @return the primary key of the directory, or 0 if it is not present
+     */
+    private static int find(int parentId, String name) throws SQLException {
+        PreparedStatement ps;
+
+        ps = prepareCached("select DIRECTORY_ID from DIRECTORY where PARENT_ID=? and NAME=?;");
+        ps.setInt(1, parentId);
+        ps.setString(2, name);
+        try (ResultSet rs = ps.executeQuery()) {
+            return rs.next() ? getDirectoryId(rs) : 0;
+        }
+    }
+
+    /**
+     * Add a directory to its parent.
+     *
+     * @return the primary key of the added directory
+     */
+    private static int insert(int parentId, String name) throws SQLException {
+        PreparedStatement ps;
+        int key;
+
+        ps = prepareCached("insert into DIRECTORY (PARENT_ID, NAME) values (?, ?);");
+        ps.setInt(1, parentId);
+        ps.setString(2, name);
+        try {
+            return addSingleRow(ps, "DIRECTORY_ID");
+        } catch (SQLException sqe) {
+            // 23505 is adding a duplicate value; another command running
+            // concurrently has just added the same directory, so use that one
+            if (!"23505".equals(sqe.getSQLState())) {
+                throw sqe;
+            }
+        }
+        if ((key = find(parentId, name)) == 0) {
+            throw new SQLException("Directory '" + name + "' was neither added nor found");
+        }
+        return key;
+    }
+
+    /**
+     * Get the path of a directory.
+     *
+     * @param key the primary key of the directory
+     * @return the path of the directory
+     * @throws SQLException if something happened that can't be handled
+     */
+    public static String getPath(int key) throws SQLException {
+        Map<Integer, String> paths;
+        PreparedStatement ps;
+        String path, name;
+        int parentId;
+
+        assert key > 0;
+
+        paths = cache(PATH_CACHE);
+        if ((path = paths.get(key)) != null) {
+            return path;
+        }
+        ps = prepareCached("select PARENT_ID, NAME from DIRECTORY where DIRECTORY_ID=?;");
+        ps.setInt(1, key);
+        try (ResultSet rs = ps.executeQuery()) {
+            if (!rs.next()) {
+                throw new SQLException("Directory " + key + " does not exist");
+            }
+            parentId = rs.getInt("PARENT_ID");
+            name = rs.getString("NAME");
+        }
+        path = parentId == 0 ? name : join(getPath(parentId), name);
+        paths.put(key, path);
+        return path;
+    }
+
+    /**
+     * Join a name to the path of the directory that contains it.
+     *
+     * @param dir the path of the directory (which may be a root, e.g. '/')
+     * @param name the name within the directory
+     * @return the joined path
+     */
+    static String join(String dir, String name) {
+        if (dir.endsWith(File.separator)) {
+            return dir + name;
+        }
+        return dir + File.separator + name;
+    }
+
+    /**
+     * Get the primary key for a row in a result set.
+     *
+     * @param rs
+     * @return
+     * @throws SQLException if something happened that can't be handled
+     */
+    public static int getDirectoryId(ResultSet rs) throws SQLException {
+        assert rs != null;
+        return rs.getInt("DIRECTORY_ID");
+    }
+
+    /**
+     * Query the directory table returning a result set. The result set must
+     * be closed by the caller when processing the set is complete to release
+     * resources.
+     *
+     * @param what what columns to be returned in the result set
+     * @param where the conditional clause
+     * @param orderBy how to order the results
+     * @return a Result Set containing the rows
+     * @throws SQLException if something happened that can't be handled
+     */
+    public static ResultSet query(String what, String where, String orderBy) throws SQLException {
+        assert what != null;
+        return query("DIRECTORY", what, where, orderBy);
+    }
+
+    /**
+     * Drop the table and all data.
+     *
+     * @throws SQLException if something happened that can't be handled
+     */
+    public static void dropTable() throws SQLException {
+        update("drop table if exists DIRECTORY");
+    }
+}
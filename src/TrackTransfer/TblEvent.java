@@ -5,13 +5,17 @@
  */
 package TrackTransfer;
 
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.logging.Logger;
 
 /**
  * This class encapsulates the Event table in the SQL database. It allows the
- * table to be created, rows added, queried, and dropped.
+ * table to be created, rows added, queried, and dropped. The description of
+ * an Event is not stored in the Event itself; it refers to a template in the
+ * Event Template table and an optional parameter that is substituted into the
+ * template when the description is read.
  *
  * @author Andrew
  */
@@ -22,9 +26,13 @@ public class TblEvent extends SQLTable {
     static String CREATE_EVENT_TABLE
             = "create table EVENT ("
             + "EVENT_ID integer GENERATED ALWAYS AS IDENTITY PRIMARY KEY, " // primary key
-            + "DESC varchar(" + MAX_DESC_LEN + ") NOT NULL," // description of event
-            + "OCCURRED timestamp(0) with time zone NOT NULL" // date/time of event
+            + "TEMPLATE_ID integer NOT NULL, " // template describing the event
+            + "PARAM varchar(" + MAX_DESC_LEN + "), " // parameter substituted into template (may be null)
+            + "OCCURRED timestamp(0) with time zone NOT NULL, " // date/time of event
+            + "constraint TEMPLATE_FK foreign key (TEMPLATE_ID) references EVENT_TEMPLATE(TEMPLATE_ID)"
             + ")";
+    static String CREATE_EVENT_OCCURRED_INDEX
+            = "create index if not exists IDX_EVENT_OCCURRED on EVENT (OCCURRED);";
 
     /**
      * Initialise the Delivery Table
@@ -43,34 +51,84 @@ public class TblEvent extends SQLTable {
      */
     public static void createTable() throws SQLException {
         update(CREATE_EVENT_TABLE);
+        update(CREATE_EVENT_OCCURRED_INDEX);
     }
 
     /**
-     * Add an event to the event table
+     * Bring an Event table created by an earlier version up to date. Earlier
+     * versions stored the description in each Event; these are moved into
+     * the Event Template table. Each step only does what an earlier attempt
+     * left undone, and DESC is only dropped once every Event refers to its
+     * template, so an upgrade that is interrupted is simply done again.
+     * Earlier versions also did not index when the Events occurred.
      *
-     * @param desc arbitrary description
+     * @throws SQLException
+     */
+    public static void upgradeTable() throws SQLException {
+        update(CREATE_EVENT_OCCURRED_INDEX);
+        if (!columnExists("EVENT", "DESC")) {
+            return;
+        }
+        LOG.info("Upgrading EVENT table to use event templates");
+        if (!tableExists("EVENT_TEMPLATE")) {
+            TblEventTemplate.createTable();
+        } else {
+            update(TblEventTemplate.CREATE_EVENT_TEMPLATE_INDEX);
+        }
+        update("insert into EVENT_TEMPLATE (TEMPLATE) select distinct DESC from EVENT where not exists (select 1 from EVENT_TEMPLATE where TEMPLATE=EVENT.DESC);");
+        update("alter table EVENT add column if not exists TEMPLATE_ID integer;");
+        update("alter table EVENT add column if not exists PARAM varchar(" + MAX_DESC_LEN + ");");
+        update("update EVENT set TEMPLATE_ID=(select TEMPLATE_ID from EVENT_TEMPLATE where TEMPLATE=EVENT.DESC) where TEMPLATE_ID is null;");
+        update("alter table EVENT alter column TEMPLATE_ID set not null;");
+        update("alter table EVENT add constraint if not exists TEMPLATE_FK foreign key (TEMPLATE_ID) references EVENT_TEMPLATE(TEMPLATE_ID);");
+        update("alter table EVENT drop column DESC;");
+    }
+
+    /**
+     * Add an event to the event table. The description becomes a template, so
+     * it must be one of a fixed set of descriptions; text supplied by the
+     * user (e.g. the description of a delivery) must be passed as the
+     * parameter of a template instead (see add(String, String)), or each
+     * different text would add its own template.
+     *
+     * @param desc fixed description
      * @return primary key of the added row
      * @throws SQLException if something happened that can't be handled
      */
     public static int add(String desc) throws SQLException {
-        StringBuilder sb = new StringBuilder();
+        return add(desc, null);
+    }
 
-        assert desc != null;
+    /**
+     * Add an event to the event table. The template is shared by all events
+     * with the same description; the parameter (if any) replaces the '{0}'
+     * in the template when the description is read.
+     *
+     * @param template description of the event (possibly containing '{0}')
+     * @param param parameter for the template (may be null)
+     * @return primary key of the added row
+     * @throws SQLException if something happened that can't be handled
+     */
+    public static int add(String template, String param) throws SQLException {
+        int templateId;
+
+        assert template != null;
 
-        desc = truncate("Description", desc, MAX_DESC_LEN);
+        param = truncate("Event parameter", param, MAX_DESC_LEN);
+        templateId = TblEventTemplate.find(template);
 
-        sb.append("insert into EVENT (DESC, OCCURRED) values ('");
-        sb.append(encode(desc));
-        sb.append("', '");
-        sb.append(getSQLTimeStamp(0));
-        sb.append("');");
-        return addSingleRow(sb.toString(), "EVENT_ID");
+        try (PreparedStatement ps = prepare("insert into EVENT (TEMPLATE_ID, PARAM, OCCURRED) values (?, ?, ?);")) {
+            ps.setInt(1, templateId);
+            ps.setString(2, param);
+            ps.setObject(3, getTimeStamp());
+            return addSingleRow(ps, "EVENT_ID");
+        }
     }
 
     /**
-     * Query the delivery table returning a result set. The result set must be
-     * closed by the caller when processing the set is complete to release
-     * resources.
+     * Query the event table (joined with the event template table) returning
+     * a result set. The result set must be closed by the caller when
+     * processing the set is complete to release resources.
      *
      * @param what what columns to be returned in the result set
      * @param where the conditional clause
@@ -80,7 +138,7 @@ public class TblEvent extends SQLTable {
      */
     public static ResultSet query(String what, String where, String orderBy) throws SQLException {
         assert what != null;
-        return query("EVENT", what, where, orderBy);
+        return query("EVENT join EVENT_TEMPLATE on EVENT.TEMPLATE_ID=EVENT_TEMPLATE.TEMPLATE_ID", what, where, orderBy);
     }
 
     /**
@@ -96,7 +154,8 @@ public class TblEvent extends SQLTable {
     }
 
     /**
-     * Get the description for a row in a result set.
+     * Get the description for a row in a result set. The result set must
+     * include the TEMPLATE column from the Event Template table.
      *
      * @param rs
      * @return
@@ -104,7 +163,7 @@ public class TblEvent extends SQLTable {
      */
     public static String getDescription(ResultSet rs) throws SQLException {
         assert rs != null;
-        return unencode(rs.getString("DESC"));
+        return TblEventTemplate.expand(TblEventTemplate.getTemplate(rs), rs.getString("PARAM"));
     }
 
     /**
@@ -186,6 +245,7 @@ public class TblEvent extends SQLTable {
      * @throws SQLException if something happened that can't be handled
      */
     public static void dropTable() throws SQLException {
+        update("drop index if exists IDX_EVENT_OCCURRED");
         update("drop table if exists EVENT");
     }
 }
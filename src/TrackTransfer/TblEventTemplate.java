@@ -0,0 +1,178 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package TrackTransfer;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.logging.Logger;
+
+/**
+ * This class encapsulates the Event Template table in the SQL database. The
+ * table is a dictionary of event descriptions. The same description (e.g.
+ * 'Instance supersedes that received in a previous delivery') is generated by
+ * many commands, so it is stored once here and each Event refers to it. A
+ * template may contain a '{0}' which is replaced by the parameter stored in
+ * the Event (e.g. the description of the delivery). Text supplied by the user
+ * is always the parameter, never part of the template, so the table only
+ * grows with the number of different kinds of event.
+ *
+ * @author Andrew
+ */
+public class TblEventTemplate extends SQLTable {
+
+    private final static Logger LOG = Logger.getLogger("TrackTransfer.TblEventTemplate");
+
+    static String CREATE_EVENT_TEMPLATE_TABLE
+            = "create table EVENT_TEMPLATE ("
+            + "TEMPLATE_ID integer GENERATED ALWAYS AS IDENTITY PRIMARY KEY, " // primary key
+            + "TEMPLATE varchar(" + MAX_DESC_LEN + ") NOT NULL" // description of event (possibly containing '{0}')
+            + ")";
+    static String CREATE_EVENT_TEMPLATE_INDEX
+            = "create unique index if not exists IDX_EVENT_TEMPLATE on EVENT_TEMPLATE (TEMPLATE);";
+
+    /**
+     * Initialise the Event Template Table
+     *
+     * @throws SQLException if something happened that can't be handled
+     */
+    public TblEventTemplate() throws SQLException {
+        super();
+    }
+
+    /**
+     * Create the table. Only needs to be done once when the database is being
+     * created.
+     *
+     * @throws SQLException
+     */
+    public static void createTable() throws SQLException {
+        update(CREATE_EVENT_TEMPLATE_TABLE);
+        update(CREATE_EVENT_TEMPLATE_INDEX);
+    }
+
+    /**
+     * Find a template, adding it to the table if it is not already present.
+     * Templates are only looked up when an event is created, which happens
+     * a handful of times per command, so the lookup is not cached.
+     *
+     * @param template the template to find
+     * @return primary key of the template
+     * @throws SQLException if something happened that can't be handled
+     */
+    public static int find(String template) throws SQLException {
+        assert template != null;
+
+        template = truncate("Event template", template, MAX_DESC_LEN);
+
+        try (PreparedStatement ps = prepare("select TEMPLATE_ID from EVENT_TEMPLATE where TEMPLATE=?;")) {
+            ps.setString(1, template);
+            try (ResultSet rs = ps.executeQuery()) {
+                if (rs.next()) {
+                    return rs.getInt("TEMPLATE_ID");
+                }
+            }
+        }
+        try (PreparedStatement ps = prepare("insert into EVENT_TEMPLATE (TEMPLATE) values (?);")) {
+            ps.setString(1, template);
+            return addSingleRow(ps, "TEMPLATE_ID");
+        } catch (SQLException sqe) {
+            // 23505 is adding a duplicate value; another command running
+            // concurrently has just added the same template, so look again
+            if (!sqe.getSQLState().equals("23505")) {
+                throw sqe;
+            }
+        }
+        return find(template);
+    }
+
+    /**
+     * Get the primary key for a row in a result set.
+     *
+     * @param rs
+     * @return
+     * @throws SQLException if something happened that can't be handled
+     */
+    public static int getTemplateId(ResultSet rs) throws SQLException {
+        assert rs != null;
+        return rs.getInt("TEMPLATE_ID");
+    }
+
+    /**
+     * Get the template for a row in a result set.
+     *
+     * @param rs
+     * @return
+     * @throws SQLException if something happened that can't be handled
+     */
+    public static String getTemplate(ResultSet rs) throws SQLException {
+        assert rs != null;
+        return rs.getString("TEMPLATE");
+    }
+
+    /**
+     * Expand a template by replacing the '{0}' with the parameter. A simple
+     * replacement is used (rather than MessageFormat) as the templates are
+     * often user text containing quotes.
+     *
+     * @param template the template
+     * @param param the parameter (may be null)
+     * @return the expanded description
+     */
+    public static String expand(String template, String param) {
+        if (param == null) {
+            return template;
+        }
+        return template.replace("{0}", param);
+    }
+
+    /**
+     * Query the event template table returning a result set. The result set
+     * must be closed by the caller when processing the set is complete to
+     * release resources.
+     *
+     * @param what what columns to be returned in the result set
+     * @param where the conditional clause
+     * @param orderBy how to order the results
+     * @return a Result Set containing the rows
+     * @throws SQLException if something happened that can't be handled
+     */
+    public static ResultSet query(String what, String where, String orderBy) throws SQLException {
+        assert what != null;
+        return query("EVENT_TEMPLATE", what, where, orderBy);
+    }
+
+    /**
+     * Dump the contents of the table
+     *
+     * @return
+     * @throws SQLException
+     */
+    public static String printTable() throws SQLException {
+        StringBuilder sb = new StringBuilder();
+        ResultSet rs;
+
+        sb.append("TemplateKey Template\n");
+        rs = query("*", null, "TEMPLATE_ID");
+        while (rs.next()) {
+            sb.append(getTemplateId(rs));
+            sb.append(" ");
+            sb.append(getTemplate(rs));
+            sb.append("\n");
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Drop the table and all data.
+     *
+     * @throws SQLException if something happened that can't be handled
+     */
+    public static void dropTable() throws SQLException {
+        update("drop index if exists IDX_EVENT_TEMPLATE");
+        update("drop table if exists EVENT_TEMPLATE");
+    }
+}
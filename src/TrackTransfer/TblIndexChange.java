@@ -0,0 +1,108 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package TrackTransfer;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.logging.Logger;
+
+/**
+ * This class encapsulates the Index Change table in the SQL database. A row
+ * is added in every transaction that changes what the keyword index records
+ * (the Items, their states, and their keywords), so the highest key is a
+ * counter of the changes. It is used to check that a saved keyword index is
+ * up to date (see KeywordIndex). Rows are only ever added (never updated), so
+ * concurrent transactions do not wait for each other.
+ *
+ * @author Andrew
+ */
+public class TblIndexChange extends SQLTable {
+
+    private final static Logger LOG = Logger.getLogger("TrackTransfer.TblIndexChange");
+
+    private final static String CREATE_INDEX_CHANGE_TABLE
+            = "create table if not exists INDEX_CHANGE ("
+            + "CHANGE_ID integer GENERATED ALWAYS AS IDENTITY PRIMARY KEY" // primary key
+            + ");";
+
+    /**
+     * Initialise the Index Change Table
+     *
+     * @throws SQLException if something happened that can't be handled
+     */
+    public TblIndexChange() throws SQLException {
+        super();
+    }
+
+    /**
+     * Create the table. Only needs to be done once when the database is being
+     * created.
+     *
+     * @throws SQLException
+     */
+    public static void createTable() throws SQLException {
+        update(CREATE_INDEX_CHANGE_TABLE);
+    }
+
+    /**
+     * Bring a database created by an earlier version up to date. Earlier
+     * versions did not count the changes.
+     *
+     * @throws SQLException
+     */
+    public static void upgradeTable() throws SQLException {
+        createTable();
+    }
+
+    /**
+     * Count a change. The row is added in the calling thread's transaction (if
+     * any), so it only counts if the change is committed.
+     *
+     * @return the key of the added row
+     * @throws SQLException if something happened that can't be handled
+     */
+    public static int add() throws SQLException {
+        return addSingleRow(prepareCached("insert into INDEX_CHANGE default values;"), "CHANGE_ID");
+    }
+
+    /**
+     * Get the key of the last change.
+     *
+     * @return the key (0 if no changes have been counted)
+     * @throws SQLException if something happened that can't be handled
+     */
+    public static int last() throws SQLException {
+        try (ResultSet rs = query("select max(CHANGE_ID) from INDEX_CHANGE;")) {
+            rs.next();
+            return rs.getInt(1);
+        }
+    }
+
+    /**
+     * Forget the changes before a change. Only the last change is needed to
+     * check an index.
+     *
+     * @param changeId the key of the change to keep
+     * @throws SQLException if something happened that can't be handled
+     */
+    public static void prune(int changeId) throws SQLException {
+        PreparedStatement ps;
+
+        ps = prepareCached("delete from INDEX_CHANGE where CHANGE_ID<?;");
+        ps.setInt(1, changeId);
+        update(ps);
+    }
+
+    /**
+     * Drop the table and all data.
+     *
+     * @throws SQLException if something happened that can't be handled
+     */
+    public static void dropTable() throws SQLException {
+        update("drop table if exists INDEX_CHANGE");
+    }
+}
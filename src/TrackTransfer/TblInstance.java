@@ -5,9 +5,13 @@
  */
 package TrackTransfer;
 
+import java.nio.file.InvalidPathException;
 import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Types;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -37,12 +41,24 @@ public class TblInstance extends SQLTable {
             + "INSTANCE_ID integer GENERATED ALWAYS AS IDENTITY PRIMARY KEY, " // primary key
             + "DELIVERY_ID integer NOT NULL," // transfer delivery belongs to
             + "ITEM_ID integer, " // item instance belongs to (may be 0)
-            + "FILEPATH varchar(" + MAX_FILEPATH_LEN + ") NOT NULL," // pathname of the instance (within a delivery)
+            + "DIRECTORY_ID integer NOT NULL," // directory containing the instance (0 if none, see TblDirectory)
+            + "NAME varchar(" + MAX_FILEPATH_LEN + ") NOT NULL," // name of the instance within its directory
             + "IS_DUPLICATE boolean," // true if this instance is to be ignored as it is a duplicate in this delivery
             + "IS_SUPERSEDED boolean," // true if this instance has been superseded by an instance in a later delivery
             + "PREVIOUS_INSTANCE integer," // previous instance of this record (0 if null)
+            + "FILESIZE bigint," // size of the file (null if not recorded)
+            + "PARTIAL_HASH varchar(" + TblItem.MAX_HASH_LEN + ")," // hash of the start and end of the file (null if not recorded)
+            + "ZIP_ENTRIES integer," // number of entries in a VEO zip file (null if not introspected)
+            + "ZIP_SIZE bigint," // uncompressed size of the entries in a VEO zip file (null if not introspected)
+            + "MANIFEST_HASH varchar(" + TblItem.MAX_HASH_LEN + ")," // hash of the entries in a VEO zip file (null if not introspected)
             + "constraint DELIVERY_FK foreign key (DELIVERY_ID) references DELIVERY(DELIVERY_ID)"
             + ");";
+    static String CREATE_INSTANCE_ITEM_INDEX
+            = "create index if not exists IDX_INSTANCE_ITEM on INSTANCE (ITEM_ID);";
+    static String CREATE_INSTANCE_STAMP_INDEX
+            = "create index if not exists IDX_INSTANCE_STAMP on INSTANCE (FILESIZE, PARTIAL_HASH);";
+    static String CREATE_INSTANCE_DIRECTORY_INDEX
+            = "create index if not exists IDX_INSTANCE_DIRECTORY on INSTANCE (DIRECTORY_ID, NAME);";
 
     /**
      * Initialise the Instance Table
@@ -61,6 +77,101 @@ public class TblInstance extends SQLTable {
      */
     public static void createTable() throws SQLException {
         update(CREATE_INSTANCE_TABLE);
+        update(CREATE_INSTANCE_ITEM_INDEX);
+        update(CREATE_INSTANCE_STAMP_INDEX);
+        update(CREATE_INSTANCE_DIRECTORY_INDEX);
+    }
+
+    /**
+     * Bring an Instance table created by an earlier version up to date.
+     * Earlier versions did not index the instances of an item, did not
+     * record the size and partial hash of the instances, or the contents of
+     * VEO zip files, and stored the full path of each instance rather than
+     * its directory and name. The directory table must already exist.
+     *
+     * @throws SQLException
+     */
+    public static void upgradeTable() throws SQLException {
+        update(CREATE_INSTANCE_ITEM_INDEX);
+        if (!columnExists("INSTANCE", "FILESIZE")) {
+            LOG.info("Upgrading INSTANCE table to record file sizes and partial hashes");
+            update("alter table INSTANCE add column FILESIZE bigint;");
+            update("alter table INSTANCE add column PARTIAL_HASH varchar(" + TblItem.MAX_HASH_LEN + ");");
+        }
+        update(CREATE_INSTANCE_STAMP_INDEX);
+        if (!columnExists("INSTANCE", "ZIP_ENTRIES")) {
+            LOG.info("Upgrading INSTANCE table to record the contents of VEO zip files");
+            update("alter table INSTANCE add column ZIP_ENTRIES integer;");
+            update("alter table INSTANCE add column ZIP_SIZE bigint;");
+            update("alter table INSTANCE add column MANIFEST_HASH varchar(" + TblItem.MAX_HASH_LEN + ");");
+        }
+        if (columnExists("INSTANCE", "FILEPATH")) {
+            splitFilepaths();
+        }
+        update(CREATE_INSTANCE_DIRECTORY_INDEX);
+    }
+
+    /**
+     * Replace the full path of each instance (FILEPATH) by its directory and
+     * name. The paths are moved in one transaction, and FILEPATH is only
+     * dropped once they have all been moved, so an upgrade that is interrupted
+     * is simply done again.
+     *
+     * @throws SQLException
+     */
+    private static void splitFilepaths() throws SQLException {
+        PreparedStatement ps;
+        Path p;
+        String filepath;
+        int i, dirId;
+
+        LOG.info("Upgrading INSTANCE table to store the directory of each instance once (this may take some time)");
+        if (!columnExists("INSTANCE", "DIRECTORY_ID")) {
+            update("alter table INSTANCE add column DIRECTORY_ID integer;");
+            update("alter table INSTANCE add column NAME varchar(" + MAX_FILEPATH_LEN + ");");
+        }
+        i = 0;
+        beginTransaction();
+        try (ResultSet rs = query("INSTANCE", "INSTANCE_ID, FILEPATH", "DIRECTORY_ID is null", "INSTANCE_ID")) {
+            ps = prepareCached("update INSTANCE set DIRECTORY_ID=?, NAME=? where INSTANCE_ID=?;");
+            while (rs.next()) {
+                filepath = rs.getString("FILEPATH");
+
+                // a path that can't be parsed here (e.g. recorded on another
+                // platform) is kept whole as the name
+                try {
+                    p = Paths.get(filepath);
+                } catch (InvalidPathException ipe) {
+                    p = null;
+                }
+                if (p != null && p.getParent() != null && p.getFileName() != null) {
+                    dirId = TblDirectory.add(p.getParent());
+                    ps.setString(2, p.getFileName().toString());
+                } else {
+                    dirId = 0;
+                    ps.setString(2, filepath);
+                }
+                ps.setInt(1, dirId);
+                ps.setInt(3, getInstanceId(rs));
+                ps.addBatch();
+                i++;
+                if (i % 1000 == 0) {
+                    ps.executeBatch();
+                }
+                if (i % 100000 == 0) {
+                    LOG.log(Level.INFO, "Processed: {0}", i);
+                }
+            }
+            ps.executeBatch();
+            commit();
+        } catch (SQLException sqle) {
+            rollback();
+            throw sqle;
+        }
+        update("alter table INSTANCE alter column DIRECTORY_ID set not null;");
+        update("alter table INSTANCE alter column NAME set not null;");
+        update("alter table INSTANCE drop column FILEPATH;");
+        LOG.log(Level.INFO, "Moved the paths of {0} instances into the DIRECTORY table", i);
     }
 
     /**
@@ -76,28 +187,54 @@ public class TblInstance extends SQLTable {
      * @return primary key of the added row
      * @throws SQLException if something happened that can't be handled
      */
-    public static int add(int deliveryId, int itemId, String filepath, boolean duplicate, int prevInstanceId) throws SQLException {
-        StringBuilder sb = new StringBuilder();
+    public static int add(int deliveryId, int itemId, Path filepath, boolean duplicate, int prevInstanceId) throws SQLException {
+        return add(deliveryId, itemId, filepath, duplicate, prevInstanceId, -1, null);
+    }
+
+    /**
+     * Add a new instance to the table, recording its size and partial hash
+     * (the hash of its first and last few MB, see Hasher).
+     *
+     * @param deliveryId the delivery the file is part of
+     * @param itemId the item this instance belongs to
+     * @param filepath the pathname of the file (relative to the root of the
+     * delivery)
+     * @param duplicate true if this file is a duplicate of another in this
+     * delivery
+     * @param prevInstanceId id of previous instance of this item
+     * @param filesize size of the file (-1 if not recorded)
+     * @param partialHash partial hash of the file (null if not recorded)
+     * @return primary key of the added row
+     * @throws SQLException if something happened that can't be handled
+     */
+    public static int add(int deliveryId, int itemId, Path filepath, boolean duplicate, int prevInstanceId, long filesize, String partialHash) throws SQLException {
+        PreparedStatement ps;
+        Path dir;
+        String name;
 
         assert deliveryId > 0;
-        assert filepath != null;
-
-        filepath = truncate("File path", filepath, MAX_FILEPATH_LEN);
-
-        sb.append("insert into INSTANCE (DELIVERY_ID, ITEM_ID, FILEPATH, IS_DUPLICATE, IS_SUPERSEDED, PREVIOUS_INSTANCE) values (");
-        sb.append(deliveryId);
-        sb.append(", ");
-        sb.append(itemId);
-        sb.append(", '");
-        sb.append(encode(filepath));
-        sb.append("', '");
-        sb.append(duplicate ? "Y" : "N");
-        sb.append("', '");
-        sb.append("N");
-        sb.append("', ");
-        sb.append(prevInstanceId);
-        sb.append(");");
-        return addSingleRow(sb.toString(), "INSTANCE_ID");
+        assert filepath != null && filepath.getFileName() != null;
+
+        // the directory is stored once in the directory table
+        dir = filepath.getParent();
+        name = truncate("File name", filepath.getFileName().toString(), MAX_FILEPATH_LEN);
+
+        // an instance is added for every file in a delivery, so the statement is reused
+        ps = prepareCached("insert into INSTANCE (DELIVERY_ID, ITEM_ID, DIRECTORY_ID, NAME, IS_DUPLICATE, IS_SUPERSEDED, PREVIOUS_INSTANCE, FILESIZE, PARTIAL_HASH) values (?, ?, ?, ?, ?, FALSE, ?, ?, ?);");
+        ps.setInt(1, deliveryId);
+        ps.setInt(2, itemId);
+        ps.setInt(3, dir == null ? 0 : TblDirectory.add(dir));
+        ps.setString(4, name);
+        ps.setBoolean(5, duplicate);
+        ps.setInt(6, prevInstanceId);
+        if (filesize < 0 || partialHash == null) {
+            ps.setNull(7, Types.BIGINT);
+            ps.setNull(8, Types.VARCHAR);
+        } else {
+            ps.setLong(7, filesize);
+            ps.setString(8, partialHash);
+        }
+        return addSingleRow(ps, "INSTANCE_ID");
     }
 
     /**
@@ -158,21 +295,21 @@ public class TblInstance extends SQLTable {
      * @throws SQLException
      */
     public static void setItemId(int key, int itemId) throws SQLException {
-        StringBuilder sb = new StringBuilder();
+        PreparedStatement ps;
 
         assert key > 0;
         assert itemId >= 0;
 
-        sb.append("update INSTANCE set ITEM_ID=");
-        sb.append(itemId);
-        sb.append(" where INSTANCE_ID=");
-        sb.append(key);
-        sb.append(";");
-        update(sb.toString());
+        ps = prepareCached("update INSTANCE set ITEM_ID=? where INSTANCE_ID=?;");
+        ps.setInt(1, itemId);
+        ps.setInt(2, key);
+        update(ps);
     }
 
     /**
-     * Get the file path for an instance in a result set.
+     * Get the file path for an instance in a result set. The path is
+     * reconstructed from the directory (DIRECTORY_ID) and the name (NAME),
+     * so both must be in the result set.
      *
      * @param rs
      * @return
@@ -180,7 +317,76 @@ public class TblInstance extends SQLTable {
      */
     public static String getFilepath(ResultSet rs) throws SQLException {
         assert rs != null;
-        return unencode(rs.getString("FILEPATH"));
+        return filepath(rs.getInt("DIRECTORY_ID"), rs.getString("NAME"));
+    }
+
+    /**
+     * Get the file path for an instance from its directory and name.
+     *
+     * @param dirId the key of the directory (0 if none)
+     * @param name the name of the instance
+     * @return the path
+     * @throws SQLException if something happened that can't be handled
+     */
+    public static String filepath(int dirId, String name) throws SQLException {
+        if (dirId == 0) {
+            return name;
+        }
+        return TblDirectory.join(TblDirectory.getPath(dirId), name);
+    }
+
+    /**
+     * Get the size of the file for an instance in a result set.
+     *
+     * @param rs
+     * @return the size (-1 if not recorded)
+     * @throws SQLException if something happened that can't be handled
+     */
+    public static long getFilesize(ResultSet rs) throws SQLException {
+        long l;
+
+        assert rs != null;
+        l = rs.getLong("FILESIZE");
+        return rs.wasNull() ? -1 : l;
+    }
+
+    /**
+     * Get the partial hash for an instance in a result set.
+     *
+     * @param rs
+     * @return the partial hash (null if not recorded)
+     * @throws SQLException if something happened that can't be handled
+     */
+    public static String getPartialHash(ResultSet rs) throws SQLException {
+        assert rs != null;
+        return rs.getString("PARTIAL_HASH");
+    }
+
+    /**
+     * Record the contents of a VEO zip file (see VeoZip).
+     *
+     * @param key key of instance to change (must be > 0)
+     * @param entries number of entries in the zip file
+     * @param size total uncompressed size of the entries
+     * @param manifestHash hash of the entries
+     * @throws SQLException if something happened that can't be handled
+     */
+    public static void setZipContents(int key, int entries, long size, String manifestHash) throws SQLException {
+        StringBuilder sb = new StringBuilder();
+
+        assert key > 0;
+        assert manifestHash != null;
+
+        sb.append("update INSTANCE set ZIP_ENTRIES=");
+        sb.append(entries);
+        sb.append(", ZIP_SIZE=");
+        sb.append(size);
+        sb.append(", MANIFEST_HASH='");
+        sb.append(encode(manifestHash));
+        sb.append("' where INSTANCE_ID=");
+        sb.append(key);
+        sb.append(";");
+        update(sb.toString());
     }
 
     /**
@@ -245,17 +451,57 @@ public class TblInstance extends SQLTable {
      * Get an instance by giving the path
      *
      * @param p
-     * @return
+     * @return the key of the instance, or 0 if there is none
      * @throws SQLException
      */
     public static int getInstanceByFilepath(Path p) throws SQLException {
-        ResultSet rs;
-        String s;
+        PreparedStatement ps;
+        int dirId;
 
-        s = p.toString().replace("'", "''");
-        rs = query("INSTANCE_ID", "FILEPATH = '" + s + "'", null);
-        assert rs != null;
-        return rs.getInt("INSTANCE_ID");
+        assert p != null && p.getFileName() != null;
+
+        if (p.getParent() == null) {
+            dirId = 0;
+        } else if ((dirId = TblDirectory.find(p.getParent())) == 0) {
+            return 0;
+        }
+        ps = prepareCached("select INSTANCE_ID from INSTANCE where DIRECTORY_ID=? and NAME=?;");
+        ps.setInt(1, dirId);
+        ps.setString(2, p.getFileName().toString());
+        try (ResultSet rs = ps.executeQuery()) {
+            return rs.next() ? getInstanceId(rs) : 0;
+        }
+    }
+
+    /**
+     * Get the Items that have an instance in a directory, or in any directory
+     * below it. Each Item is returned once, even if several of its instances
+     * (e.g. 'X' and the short cut 'X.lnk') are in the tree. The tree of
+     * directories is found with a recursive query over the directory table
+     * (using the index on the parent of each directory), so the instances are
+     * found without looking at the file system. The result set must be closed
+     * by the caller.
+     *
+     * @param directoryId the key of the directory at the root of the tree
+     * @return a result set containing the Items (ITEM_ID and FILENAME) in name
+     * order
+     * @throws SQLException
+     */
+    public static ResultSet getItemsInTree(int directoryId) throws SQLException {
+        PreparedStatement ps;
+
+        assert directoryId > 0;
+
+        ps = prepare("with recursive TREE(DIRECTORY_ID) as ("
+                + "select DIRECTORY_ID from DIRECTORY where DIRECTORY_ID=? "
+                + "union all "
+                + "select DIRECTORY.DIRECTORY_ID from DIRECTORY join TREE on DIRECTORY.PARENT_ID=TREE.DIRECTORY_ID) "
+                + "select distinct ITEM.ITEM_ID, ITEM.FILENAME from INSTANCE join TREE on INSTANCE.DIRECTORY_ID=TREE.DIRECTORY_ID "
+                + "join ITEM on INSTANCE.ITEM_ID=ITEM.ITEM_ID "
+                + "order by ITEM.FILENAME;");
+        ps.setInt(1, directoryId);
+        ps.closeOnCompletion();
+        return ps.executeQuery();
     }
 
     /**
@@ -266,18 +512,23 @@ public class TblInstance extends SQLTable {
      * @throws java.sql.SQLException
      */
     public static String reportInstance(ResultSet rs) throws SQLException {
+        return reportInstance(new Row().read(rs));
+    }
+
+    /**
+     * Return a string describing this instance for a report
+     *
+     * @param instance the instance
+     * @return
+     * @throws java.sql.SQLException
+     */
+    static String reportInstance(Row instance) throws SQLException {
         StringBuilder sb = new StringBuilder();
 
         sb.append("Instance: ");
-        if (TblInstance.isDuplicate(rs)) {
-            sb.append("DUPLICATE ");
-        } else if (TblInstance.isSuperseded(rs)) {
-            sb.append("SUPERSEDED ");
-        } else {
-            sb.append("LATEST ");
-        }
-        sb.append("Original location '");
-        sb.append(TblInstance.getFilepath(rs));
+        sb.append(instance.status());
+        sb.append(" Original location '");
+        sb.append(instance.filepath());
         sb.append("'");
 
         return sb.toString();
@@ -297,18 +548,117 @@ public class TblInstance extends SQLTable {
             s[0] = "InstanceStatus";
             s[1] = "OriginalLocation";
         } else {
-            if (TblInstance.isDuplicate(rs)) {
-                s[0] = "DUPLICATE";
-            } else if (TblInstance.isSuperseded(rs)) {
-                s[0] = "SUPERSEDED";
-            } else {
-                s[0] = "LATEST";
-            }
+            s[0] = status(TblInstance.isDuplicate(rs), TblInstance.isSuperseded(rs));
             s[1] = TblInstance.getFilepath(rs);
         }
         return s;
     }
 
+    /**
+     * Return the status of an instance for a table report (see tableOut()).
+     *
+     * @param isDuplicate true if the instance is a duplicate (IS_DUPLICATE)
+     * @param isSuperseded true if the instance has been superseded
+     * (IS_SUPERSEDED)
+     * @return the status
+     */
+    public static String status(boolean isDuplicate, boolean isSuperseded) {
+        if (isDuplicate) {
+            return "DUPLICATE";
+        } else if (isSuperseded) {
+            return "SUPERSEDED";
+        }
+        return "LATEST";
+    }
+
+    /**
+     * A row of the Instance table, decoded from a result set. As for
+     * TblItem.Row, the indexes of the columns are looked up when a result set
+     * is first read, and the Row is reused for every row. Columns that are not
+     * in the result set are left as 0, null, or false.
+     */
+    static final class Row {
+
+        private final static String[] COLUMNS = {"INSTANCE_ID", "DELIVERY_ID", "ITEM_ID", "DIRECTORY_ID", "NAME", "IS_DUPLICATE", "IS_SUPERSEDED", "FILESIZE", "PARTIAL_HASH"};
+        int instanceId;         // primary key
+        int deliveryId;         // delivery the instance was received in
+        int itemId;             // item the instance belongs to (may be 0)
+        int directoryId;        // directory containing the instance (0 if none)
+        String name;            // name of the instance within its directory
+        boolean isDuplicate;    // true if a duplicate in its delivery
+        boolean isSuperseded;   // true if superseded by a later delivery
+        long filesize;          // size of the file (-1 if not recorded)
+        String partialHash;     // hash of the start and end of the file (null if not recorded)
+        private ResultSet mapped; // result set the column indexes were found in
+        private int[] cols;     // index of each of COLUMNS in it
+
+        /**
+         * Decode the row the result set is positioned on.
+         *
+         * @param rs the result set
+         * @return this Row
+         * @throws SQLException if something happened that can't be handled
+         */
+        Row read(ResultSet rs) throws SQLException {
+            assert rs != null;
+            if (rs != mapped) {
+                cols = columns(rs, COLUMNS);
+                mapped = rs;
+            }
+            instanceId = cols[0] == 0 ? 0 : rs.getInt(cols[0]);
+            deliveryId = cols[1] == 0 ? 0 : rs.getInt(cols[1]);
+            itemId = cols[2] == 0 ? 0 : rs.getInt(cols[2]);
+            directoryId = cols[3] == 0 ? 0 : rs.getInt(cols[3]);
+            name = cols[4] == 0 ? null : rs.getString(cols[4]);
+            isDuplicate = cols[5] != 0 && rs.getBoolean(cols[5]);
+            isSuperseded = cols[6] != 0 && rs.getBoolean(cols[6]);
+            filesize = -1;
+            if (cols[7] != 0) {
+                filesize = rs.getLong(cols[7]);
+                if (rs.wasNull()) {
+                    filesize = -1;
+                }
+            }
+            partialHash = cols[8] == 0 ? null : rs.getString(cols[8]);
+            return this;
+        }
+
+        /**
+         * Move to the next row of the result set and decode it.
+         *
+         * @param rs the result set
+         * @return false if there are no more rows
+         * @throws SQLException if something happened that can't be handled
+         */
+        boolean next(ResultSet rs) throws SQLException {
+            if (!rs.next()) {
+                return false;
+            }
+            read(rs);
+            return true;
+        }
+
+        /**
+         * Get the file path of the instance (see TblInstance.filepath()).
+         *
+         * @return the path
+         * @throws SQLException if something happened that can't be handled
+         */
+        String filepath() throws SQLException {
+            return TblInstance.filepath(directoryId, name);
+        }
+
+        /**
+         * Get the status of the instance for a report (see
+         * TblInstance.status()).
+         *
+         * @return the status
+         */
+        String status() {
+            return TblInstance.status(isDuplicate, isSuperseded);
+        }
+    }
+
     /**
      * Dump the contents of the table
      *
@@ -361,6 +711,9 @@ public class TblInstance extends SQLTable {
      * @throws SQLException if something happened that can't be handled
      */
     public static void dropTable() throws SQLException {
+        update("drop index if exists IDX_INSTANCE_ITEM");
+        update("drop index if exists IDX_INSTANCE_STAMP");
+        update("drop index if exists IDX_INSTANCE_DIRECTORY");
         update("drop TABLE if exists INSTANCE");
     }
 }
@@ -5,13 +5,20 @@
  */
 package TrackTransfer;
 
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.time.OffsetDateTime;
+import java.time.temporal.ChronoUnit;
 import java.util.logging.Logger;
 
 /**
  * This class implements a many/many mapping of instances (in a delivery) and
- * events.
+ * events. Each link records when it was made. An Event is created once by a
+ * command and keeps the time the command ran, but the command may link it to
+ * instances over a long run (e.g. annotating a large transfer in many
+ * transactions); the time of the link is when the instance was actually
+ * changed, and is what a report of the changes since a time uses.
  *
  * @author Andrew
  */
@@ -22,8 +29,15 @@ public class TblInstanceEvent extends SQLTable {
     static String CREATE_INSTANCE_EVENT_TABLE
             = "create table INSTANCE_EVENT ("
             + "INSTANCE_ID integer NOT NULL, " // key of item linked to event
-            + "EVENT_ID integer NOT NULL " // key of event linked to item
+            + "EVENT_ID integer NOT NULL, " // key of event linked to item
+            + "CHANGED timestamp(0) with time zone" // when the link was made (null until upgraded, e.g. if imported from an older snapshot)
             + ")";
+    static String CREATE_INSTANCE_EVENT_INSTANCE_INDEX
+            = "create index if not exists IDX_INSTANCE_EVENT_INSTANCE on INSTANCE_EVENT (INSTANCE_ID);";
+    static String CREATE_INSTANCE_EVENT_EVENT_INDEX
+            = "create index if not exists IDX_INSTANCE_EVENT_EVENT on INSTANCE_EVENT (EVENT_ID, INSTANCE_ID);";
+    static String CREATE_INSTANCE_EVENT_CHANGED_INDEX
+            = "create index if not exists IDX_INSTANCE_EVENT_CHANGED on INSTANCE_EVENT (CHANGED);";
 
     /**
      * Initialise the Item/Event Table
@@ -42,27 +56,47 @@ public class TblInstanceEvent extends SQLTable {
      */
     public static void createTable() throws SQLException {
         update(CREATE_INSTANCE_EVENT_TABLE);
+        update(CREATE_INSTANCE_EVENT_INSTANCE_INDEX);
+        update(CREATE_INSTANCE_EVENT_EVENT_INDEX);
+        update(CREATE_INSTANCE_EVENT_CHANGED_INDEX);
     }
 
     /**
-     * Add an instance/event link to the item/event table
+     * Bring an Instance/Event table created by an earlier version up to date.
+     * Earlier versions did not index the table in either direction, and did
+     * not record when each link was made; the links are given the time of
+     * their Event. Each step can be repeated, so an upgrade that was
+     * interrupted is finished the next time.
+     *
+     * @throws SQLException
+     */
+    public static void upgradeTable() throws SQLException {
+        update(CREATE_INSTANCE_EVENT_INSTANCE_INDEX);
+        update(CREATE_INSTANCE_EVENT_EVENT_INDEX);
+        update("alter table INSTANCE_EVENT add column if not exists CHANGED timestamp(0) with time zone;");
+        update("update INSTANCE_EVENT set CHANGED=(select OCCURRED from EVENT where EVENT.EVENT_ID=INSTANCE_EVENT.EVENT_ID) where CHANGED is null;");
+        update(CREATE_INSTANCE_EVENT_CHANGED_INDEX);
+    }
+
+    /**
+     * Add an instance/event link to the item/event table. The link records the
+     * time it is made (not the time of the batch, see SQLTable.startBatch()).
      *
      * @param instanceKey the instance to link
      * @param eventKey the event to link
      * @throws SQLException if something happened that can't be handled
      */
     public static void add(int instanceKey, int eventKey) throws SQLException {
-        StringBuilder sb = new StringBuilder();
-        
+        PreparedStatement ps;
+
         assert instanceKey > 0;
         assert eventKey > 0;
 
-        sb.append("insert into INSTANCE_EVENT (INSTANCE_ID, EVENT_ID) values (");
-        sb.append(instanceKey);
-        sb.append(", ");
-        sb.append(eventKey);
-        sb.append(");");
-        addSingleRow(sb.toString());
+        ps = prepareCached("insert into INSTANCE_EVENT (INSTANCE_ID, EVENT_ID, CHANGED) values (?, ?, ?);");
+        ps.setInt(1, instanceKey);
+        ps.setInt(2, eventKey);
+        ps.setObject(3, OffsetDateTime.now().truncatedTo(ChronoUnit.SECONDS));
+        update(ps);
     }
 
     /**
@@ -131,6 +165,9 @@ public class TblInstanceEvent extends SQLTable {
      * @throws SQLException if something happened that can't be handled
      */
     public static void dropTable() throws SQLException {
+        update("drop index if exists IDX_INSTANCE_EVENT_INSTANCE");
+        update("drop index if exists IDX_INSTANCE_EVENT_EVENT");
+        update("drop index if exists IDX_INSTANCE_EVENT_CHANGED");
         update("drop table if exists INSTANCE_EVENT");
     }
 }
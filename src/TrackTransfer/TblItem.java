@@ -5,6 +5,7 @@
  */
 package TrackTransfer;
 
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.logging.Level;
@@ -47,6 +48,8 @@ public class TblItem extends SQLTable {
             + ");";
     static String CREATE_ITEM_FILENAME_INDEX
             = "create unique index IDX_FILENAME on ITEM (FILENAME);";
+    static String CREATE_ITEM_HASH_INDEX
+            = "create index if not exists IDX_ITEM_HASH on ITEM (HASH);";
 
     /**
      * Initialise the Item Table
@@ -66,6 +69,17 @@ public class TblItem extends SQLTable {
     public static void createTable() throws SQLException {
         update(CREATE_ITEM_TABLE);
         update(CREATE_ITEM_FILENAME_INDEX);
+        update(CREATE_ITEM_HASH_INDEX);
+    }
+
+    /**
+     * Bring an Item table created by an earlier version up to date. Earlier
+     * versions did not index the items by their hash.
+     *
+     * @throws SQLException
+     */
+    public static void upgradeTable() throws SQLException {
+        update(CREATE_ITEM_HASH_INDEX);
     }
 
     /**
@@ -83,7 +97,8 @@ public class TblItem extends SQLTable {
      * @throws SQLException if something happened that can't be handled
      */
     public static int add(String filename, String hashAlg, String hash, boolean isRecord, int instanceId) throws SQLException {
-        StringBuilder sb = new StringBuilder();
+        PreparedStatement ps;
+        int key;
 
         // check invariants
         assert filename != null || (hash != null && hashAlg != null);
@@ -93,20 +108,17 @@ public class TblItem extends SQLTable {
         hashAlg = truncate("Hash algorithm", hashAlg, MAX_HASHALG_LEN);
         hash = truncate("Hash", hash, MAX_HASH_LEN);
 
-        sb.append("insert into ITEM (FILENAME, HASHALG, HASH, IS_RECORD, STATE, CURRENT_INSTANCE_ID, ACTIVE_INSTANCE_ID) values ('");
-        sb.append(encode(filename));
-        sb.append("', '");
-        sb.append(encode(hashAlg));
-        sb.append("', '");
-        sb.append(hash);
-        sb.append("', ");
-        sb.append(isRecord ? "TRUE" : "FALSE");
-        sb.append(", 'P', ");
-        sb.append(instanceId);
-        sb.append(", ");
-        sb.append(instanceId);
-        sb.append(");");
-        return addSingleRow(sb.toString(), "ITEM_ID");
+        // an item is added for almost every file in a delivery, so the statement is reused
+        ps = prepareCached("insert into ITEM (FILENAME, HASHALG, HASH, IS_RECORD, STATE, CURRENT_INSTANCE_ID, ACTIVE_INSTANCE_ID) values (?, ?, ?, ?, 'P', ?, ?);");
+        ps.setString(1, filename);
+        ps.setString(2, hashAlg);
+        ps.setString(3, hash);
+        ps.setBoolean(4, isRecord);
+        ps.setInt(5, instanceId);
+        ps.setInt(6, instanceId);
+        key = addSingleRow(ps, "ITEM_ID");
+        KeywordIndex.addItem(key);
+        return key;
     }
 
     /**
@@ -115,23 +127,29 @@ public class TblItem extends SQLTable {
      * We ignore a trailing ".lnk" in the file name - this idendifies a short
      * cut in Windows.
      *
+     * Looking up a filename alone is done for every file in a delivery, so it
+     * uses a reused statement; the result set must be closed before this
+     * method is called again by the same thread.
+     *
      * @param filename the filename to look for (may be null)
      * @param hash the hash to look for (may be null)
      * @return a result set containing all the columns of the item
      * @throws SQLException
      */
     public static ResultSet findItem(String filename, String hash) throws SQLException {
+        PreparedStatement ps;
         ResultSet rs;
-        int i;
 
         assert filename != null || hash != null;
 
-        if ((filename != null && (i = filename.toLowerCase().lastIndexOf(".lnk")) != -1)) {
-            filename = filename.substring(0, i);
+        if (filename != null) {
+            filename = itemName(filename);
         }
 
         if (filename != null && hash == null) {
-            rs = query("*", "FILENAME = '" + encode(filename) + "'", null);
+            ps = prepareCached("select * from ITEM where FILENAME=?;");
+            ps.setString(1, filename);
+            rs = ps.executeQuery();
         } else if (filename == null && hash != null) {
             rs = query("*", "HASH = '" + hash + "'", null);
         } else {
@@ -140,6 +158,60 @@ public class TblItem extends SQLTable {
         return rs;
     }
 
+    /**
+     * Get the name under which a file is found as an Item. The '.lnk' that
+     * identifies a Windows short cut (and anything after it) is ignored, so a
+     * short cut is an Instance of the Item it points to.
+     *
+     * @param filename the name of the file
+     * @return the name of the Item
+     */
+    static String itemName(String filename) {
+        int i;
+
+        if ((i = lastIndexOfIgnoreCase(filename, ".lnk")) != -1) {
+            return filename.substring(0, i);
+        }
+        return filename;
+    }
+
+    /**
+     * Find the last occurrence of a string in another, ignoring case, without
+     * creating a lower case copy.
+     *
+     * @param s the string to search
+     * @param find the string to look for
+     * @return the index of the last occurrence, or -1 if not found
+     */
+    static int lastIndexOfIgnoreCase(String s, String find) {
+        int i;
+
+        for (i = s.length() - find.length(); i >= 0; i--) {
+            if (s.regionMatches(true, i, find, 0, find.length())) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Find the items whose active instance has a particular size and partial
+     * hash (see Hasher). These are the only items that could have the same
+     * content as a file of that size and partial hash.
+     *
+     * @param filesize the size of the file
+     * @param partialHash the partial hash of the file
+     * @return a result set containing the items
+     * @throws SQLException
+     */
+    public static ResultSet findItemsByStamp(long filesize, String partialHash) throws SQLException {
+        assert filesize >= 0;
+        assert partialHash != null;
+
+        return query("ITEM join INSTANCE on INSTANCE.INSTANCE_ID=ITEM.ACTIVE_INSTANCE_ID", "ITEM.*",
+                "INSTANCE.FILESIZE=" + filesize + " AND INSTANCE.PARTIAL_HASH='" + encode(partialHash) + "'", null);
+    }
+
     /**
      * Get the primary key for a row in a result set.
      *
@@ -172,8 +244,11 @@ public class TblItem extends SQLTable {
      * @throws SQLException if something happened that can't be handled
      */
     public static String getHashAlg(ResultSet rs) throws SQLException {
+        String s;
+
         assert rs != null;
-        return unencode(rs.getString("HASHALG"));
+        s = nullIfMissing(rs.getString("HASHALG"));
+        return s == null ? null : unencode(s);
     }
 
     /**
@@ -185,7 +260,59 @@ public class TblItem extends SQLTable {
      */
     public static String getHash(ResultSet rs) throws SQLException {
         assert rs != null;
-        return rs.getString("HASH");
+        return nullIfMissing(rs.getString("HASH"));
+    }
+
+    /**
+     * Set the hash of an item (e.g. when a fixity baseline is recorded). The
+     * hash describes the active instance of the item, so is cleared (both
+     * parameters null) if an instance that has not been hashed becomes
+     * active.
+     *
+     * @param key key of item to change (must be > 0)
+     * @param hashAlg hash algorithm used to generate the hash (may be null)
+     * @param hash hash value (null if the hash is to be cleared)
+     * @throws SQLException
+     */
+    public static void setHash(int key, String hashAlg, String hash) throws SQLException {
+        StringBuilder sb = new StringBuilder();
+
+        assert key > 0;
+        assert hash == null || hashAlg != null;
+
+        hashAlg = truncate("Hash algorithm", hashAlg, MAX_HASHALG_LEN);
+        hash = truncate("Hash", hash, MAX_HASH_LEN);
+
+        sb.append("update ITEM set HASHALG=");
+        appendString(sb, encode(hashAlg));
+        sb.append(", HASH=");
+        appendString(sb, encode(hash));
+        sb.append(" where ITEM_ID=");
+        sb.append(key);
+        sb.append(";");
+        update(sb.toString());
+    }
+
+    /**
+     * Append a string value to an SQL statement, quoted, or NULL if the value
+     * is null.
+     */
+    private static void appendString(StringBuilder sb, String s) {
+        if (s == null) {
+            sb.append("NULL");
+        } else {
+            sb.append("'");
+            sb.append(s);
+            sb.append("'");
+        }
+    }
+
+    /**
+     * Earlier versions stored a missing hash (and hash algorithm) as the
+     * string 'null'; treat these as missing.
+     */
+    private static String nullIfMissing(String s) {
+        return s == null || s.equals("null") ? null : s;
     }
 
     /**
@@ -230,7 +357,17 @@ public class TblItem extends SQLTable {
      */
     public static boolean isFinalised(ResultSet rs) throws SQLException {
         assert rs != null;
-        return getState(rs).equals("A") || getState(rs).equals("C");
+        return isFinalised(getState(rs));
+    }
+
+    /**
+     * Is an item in this state finalised?
+     *
+     * @param state the state of the item
+     * @return true if custody-accepted or abandoned
+     */
+    static boolean isFinalised(String state) {
+        return "A".equals(state) || "C".equals(state);
     }
 
     /**
@@ -267,6 +404,7 @@ public class TblItem extends SQLTable {
         sb.append(key);
         sb.append(";");
         update(sb.toString());
+        KeywordIndex.setState(key, state);
     }
 
     /**
@@ -289,17 +427,15 @@ public class TblItem extends SQLTable {
      * @throws SQLException
      */
     public static void setCurrentInstance(int key, int currentInstance) throws SQLException {
-        StringBuilder sb = new StringBuilder();
+        PreparedStatement ps;
 
         assert key > 0;
         assert currentInstance > 0;
 
-        sb.append("update ITEM set CURRENT_INSTANCE_ID='");
-        sb.append(currentInstance);
-        sb.append("' where ITEM_ID=");
-        sb.append(key);
-        sb.append(";");
-        update(sb.toString());
+        ps = prepareCached("update ITEM set CURRENT_INSTANCE_ID=? where ITEM_ID=?;");
+        ps.setInt(1, currentInstance);
+        ps.setInt(2, key);
+        update(ps);
     }
 
     /**
@@ -322,17 +458,15 @@ public class TblItem extends SQLTable {
      * @throws SQLException
      */
     public static void setActiveInstance(int key, int activeInstance) throws SQLException {
-        StringBuilder sb = new StringBuilder();
+        PreparedStatement ps;
 
         assert key > 0;
         assert activeInstance > 0;
 
-        sb.append("update ITEM set ACTIVE_INSTANCE_ID='");
-        sb.append(activeInstance);
-        sb.append("' where ITEM_ID=");
-        sb.append(key);
-        sb.append(";");
-        update(sb.toString());
+        ps = prepareCached("update ITEM set ACTIVE_INSTANCE_ID=? where ITEM_ID=?;");
+        ps.setInt(1, activeInstance);
+        ps.setInt(2, key);
+        update(ps);
     }
 
     /**
@@ -343,24 +477,22 @@ public class TblItem extends SQLTable {
      * @throws java.sql.SQLException
      */
     public static String reportItem(ResultSet rs) throws SQLException {
+        return reportItem(new Row().read(rs));
+    }
+
+    /**
+     * Return a string describing this item for a report
+     *
+     * @param item the item
+     * @return
+     */
+    static String reportItem(Row item) {
         StringBuilder sb = new StringBuilder();
 
         sb.append("Item: '");
-        sb.append(TblItem.getFilename(rs));
+        sb.append(item.filename);
         sb.append("' ");
-        if (TblItem.isFinalised(rs)) {
-            sb.append("FINALISED ");
-            if (TblItem.getState(rs).equals("C")) {
-                sb.append("(Custody Accepted) ");
-            } else if (TblItem.getState(rs).equals("A")) {
-                sb.append("(Abandoned) ");
-            }
-        } else if (!TblItem.isRecord(rs)) {
-            sb.append("NOT A RECORD ");
-        } else {
-            sb.append("PROCESSING ");
-        }
-
+        sb.append(item.status());
         return sb.toString();
     }
 
@@ -379,21 +511,105 @@ public class TblItem extends SQLTable {
             s[1] = "Status";
         } else {
             s[0] = TblItem.getFilename(rs);
-            if (TblItem.isFinalised(rs)) {
-                if (TblItem.getState(rs).equals("C")) {
-                    s[1] = "FINALISED (Custody Accepted) ";
-                } else if (TblItem.getState(rs).equals("A")) {
-                    s[1] = "FINALISED (Abandoned) ";
-                }
-            } else if (!TblItem.isRecord(rs)) {
-                s[1] = "NOT A RECORD ";
-            } else {
-                s[1] = "PROCESSING ";
-            }
+            s[1] = status(TblItem.getState(rs), TblItem.isRecord(rs));
         }
         return s;
     }
 
+    /**
+     * Return the status of an item for a table report (see tableOut()). The
+     * strings returned are constants, so rendering a row allocates nothing.
+     *
+     * @param state the state of the item (STATE)
+     * @param isRecord true if the item is a record (IS_RECORD)
+     * @return the status
+     */
+    public static String status(String state, boolean isRecord) {
+        if ("C".equals(state)) {
+            return "FINALISED (Custody Accepted) ";
+        } else if ("A".equals(state)) {
+            return "FINALISED (Abandoned) ";
+        }
+        return isRecord ? "PROCESSING " : "NOT A RECORD ";
+    }
+
+    /**
+     * A row of the Item table, decoded from a result set. The indexes of the
+     * columns are looked up when a result set is first read, so each column
+     * of each row is then read once, by position, into the same Row (which
+     * is reused for every row). Columns that are not in the result set are
+     * left as 0, null, or false.
+     */
+    static final class Row {
+
+        private final static String[] COLUMNS = {"ITEM_ID", "FILENAME", "HASHALG", "HASH", "IS_RECORD", "STATE", "CURRENT_INSTANCE_ID", "ACTIVE_INSTANCE_ID"};
+        int itemId;             // primary key
+        String filename;        // (file) name of the item
+        String hashAlg;         // algorithm used to calculate the hash (null if none)
+        String hash;            // hash of the item (null if none)
+        boolean isRecord;       // true if the item is a record
+        String state;           // 'P'=processing, 'A'=abandoned, 'C'=custody accepted
+        int currentInstanceId;  // last instance of the item seen
+        int activeInstanceId;   // current active instance of the item
+        private ResultSet mapped; // result set the column indexes were found in
+        private int[] cols;     // index of each of COLUMNS in it
+
+        /**
+         * Decode the row the result set is positioned on.
+         *
+         * @param rs the result set
+         * @return this Row
+         * @throws SQLException if something happened that can't be handled
+         */
+        Row read(ResultSet rs) throws SQLException {
+            String s;
+
+            assert rs != null;
+            if (rs != mapped) {
+                cols = columns(rs, COLUMNS);
+                mapped = rs;
+            }
+            itemId = cols[0] == 0 ? 0 : rs.getInt(cols[0]);
+            filename = cols[1] == 0 ? null : unencode(rs.getString(cols[1]));
+            s = cols[2] == 0 ? null : nullIfMissing(rs.getString(cols[2]));
+            hashAlg = s == null ? null : unencode(s);
+            hash = cols[3] == 0 ? null : nullIfMissing(rs.getString(cols[3]));
+            isRecord = cols[4] != 0 && rs.getBoolean(cols[4]);
+            state = cols[5] == 0 ? null : rs.getString(cols[5]);
+            currentInstanceId = cols[6] == 0 ? 0 : rs.getInt(cols[6]);
+            activeInstanceId = cols[7] == 0 ? 0 : rs.getInt(cols[7]);
+            return this;
+        }
+
+        /**
+         * Move to the next row of the result set and decode it.
+         *
+         * @param rs the result set
+         * @return false if there are no more rows
+         * @throws SQLException if something happened that can't be handled
+         */
+        boolean next(ResultSet rs) throws SQLException {
+            if (!rs.next()) {
+                return false;
+            }
+            read(rs);
+            return true;
+        }
+
+        boolean isFinalised() {
+            return TblItem.isFinalised(state);
+        }
+
+        /**
+         * Get the status of the item for a report (see TblItem.status()).
+         *
+         * @return the status
+         */
+        String status() {
+            return TblItem.status(state, isRecord);
+        }
+    }
+
     /**
      * Dump the contents of the table
      *
@@ -448,6 +664,7 @@ public class TblItem extends SQLTable {
      */
     public static void dropTable() throws SQLException {
         update("drop index if exists IDX_FILENAME");
+        update("drop index if exists IDX_ITEM_HASH");
         update("drop TABLE if exists ITEM");
     }
 }
@@ -5,6 +5,7 @@
  */
 package TrackTransfer;
 
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.logging.Logger;
@@ -24,6 +25,8 @@ public class TblItemKeyword extends SQLTable {
             + "KEYWORD_ID integer NOT NULL, " // key of event linked to item
             + "CONSTRAINT ITEM_KEYWORD_U UNIQUE (ITEM_ID, KEYWORD_ID)" // ensure that a keyword can only be mapped once
             + ")";
+    static String CREATE_ITEM_KEYWORD_KEYWORD_INDEX
+            = "create index if not exists IDX_ITEM_KEYWORD_KEYWORD on ITEM_KEYWORD (KEYWORD_ID, ITEM_ID);";
 
     /**
      * Initialise the Item/Keyword Table
@@ -42,6 +45,18 @@ public class TblItemKeyword extends SQLTable {
      */
     public static void createTable() throws SQLException {
         update(CREATE_ITEM_KEYWORD_TABLE);
+        update(CREATE_ITEM_KEYWORD_KEYWORD_INDEX);
+    }
+
+    /**
+     * Bring a table created by an earlier version up to date. The index on
+     * KEYWORD_ID finds the Items with a keyword without scanning the table;
+     * keyword queries (KeywordQuery) depend on it.
+     *
+     * @throws SQLException
+     */
+    public static void upgradeTable() throws SQLException {
+        update(CREATE_ITEM_KEYWORD_KEYWORD_INDEX);
     }
 
     /**
@@ -66,6 +81,7 @@ public class TblItemKeyword extends SQLTable {
         sb.append(");");
         try {
             addSingleRow(sb.toString());
+            KeywordIndex.addKeyword(itemKey, keywordKey);
         } catch (SQLException sqe) {
             // 23505 is adding a duplicate value; the user has attempted to add
             // a duplicate keyword. We ignore this.
@@ -75,6 +91,26 @@ public class TblItemKeyword extends SQLTable {
         }
     }
 
+    /**
+     * Is an item linked to a keyword?
+     *
+     * @param itemKey item
+     * @param keywordKey keyword
+     * @return true if the link exists
+     * @throws SQLException if something happened that can't be handled
+     */
+    public static boolean exists(int itemKey, int keywordKey) throws SQLException {
+        PreparedStatement ps;
+
+        assert itemKey > 0;
+        ps = prepareCached("select 1 from ITEM_KEYWORD where ITEM_ID=? AND KEYWORD_ID=?;");
+        ps.setInt(1, itemKey);
+        ps.setInt(2, keywordKey);
+        try (ResultSet rs = ps.executeQuery()) {
+            return rs.next();
+        }
+    }
+
     /**
      * Remove a link between an item and a keyword
      *
@@ -92,6 +128,7 @@ public class TblItemKeyword extends SQLTable {
         sb.append(keywordKey);
         sb.append(";");
         removeRows(sb.toString());
+        KeywordIndex.removeKeyword(itemKey, keywordKey);
     }
 
     /**
@@ -161,6 +198,7 @@ public class TblItemKeyword extends SQLTable {
      * @throws SQLException if something happened that can't be handled
      */
     public static void dropTable() throws SQLException {
+        update("drop index if exists IDX_ITEM_KEYWORD_KEYWORD");
         update("drop table if exists ITEM_KEYWORD");
     }
 }
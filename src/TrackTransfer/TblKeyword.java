@@ -66,7 +66,21 @@ public class TblKeyword extends SQLTable {
         sb.append("insert into KEYWORD (KEYWORD) values ('");
         sb.append(encode(keyword));
         sb.append("');");
-        return addSingleRow(sb.toString(), "KEYWORD_ID");
+        try {
+            return addSingleRow(sb.toString(), "KEYWORD_ID");
+        } catch (SQLException sqe) {
+            // 23505 is adding a duplicate value; another command running
+            // concurrently has just added the same keyword, so use that one
+            if (!sqe.getSQLState().equals("23505")) {
+                throw sqe;
+            }
+        }
+        try (ResultSet rs = query("KEYWORD_ID", "KEYWORD='" + encode(keyword) + "'", null)) {
+            if (!rs.next()) {
+                throw new SQLException("Keyword '" + keyword + "' was neither added nor found");
+            }
+            return getKeywordId(rs);
+        }
     }
     
     /**
@@ -83,6 +97,7 @@ public class TblKeyword extends SQLTable {
         sb.append(key);
         sb.append(";");
         removeRows(sb.toString());
+        KeywordIndex.dropKeyword(key);
     }
 
     /**
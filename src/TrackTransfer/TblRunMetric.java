@@ -0,0 +1,148 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package TrackTransfer;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.logging.Logger;
+
+/**
+ * This class encapsulates the Run Metric table in the SQL database. Each row
+ * records how many items a run of a command (e.g. 'newDelivery' or
+ * 'annotate') processed, and how long it took. The recent runs of a command
+ * give its throughput, which is used to estimate how long a planned run will
+ * take.
+ *
+ * @author Andrew
+ */
+public class TblRunMetric extends SQLTable {
+
+    private final static Logger LOG = Logger.getLogger("TrackTransfer.TblRunMetric");
+    private final static int RECENT_RUNS = 10; // number of recent runs used to estimate throughput
+
+    private final static String CREATE_RUN_METRIC_TABLE
+            = "create table if not exists RUN_METRIC ("
+            + "RUN_METRIC_ID integer GENERATED ALWAYS AS IDENTITY PRIMARY KEY, " // primary key
+            + "COMMAND varchar(20) NOT NULL, " // command that was run
+            + "ITEMS integer NOT NULL, " // number of files or items processed
+            + "ELAPSED_MS bigint NOT NULL, " // time taken to process them
+            + "OCCURRED timestamp(0) with time zone NOT NULL" // date/time the run finished
+            + ");";
+    private final static String CREATE_RUN_METRIC_INDEX
+            = "create index if not exists IDX_RUN_METRIC_COMMAND on RUN_METRIC (COMMAND, RUN_METRIC_ID);";
+
+    /**
+     * Initialise the Run Metric Table
+     *
+     * @throws SQLException if something happened that can't be handled
+     */
+    public TblRunMetric() throws SQLException {
+        super();
+    }
+
+    /**
+     * Create the table. Only needs to be done once when the database is being
+     * created.
+     *
+     * @throws SQLException
+     */
+    public static void createTable() throws SQLException {
+        update(CREATE_RUN_METRIC_TABLE);
+        update(CREATE_RUN_METRIC_INDEX);
+    }
+
+    /**
+     * Bring a database created by an earlier version up to date. Earlier
+     * versions did not record run metrics.
+     *
+     * @throws SQLException
+     */
+    public static void upgradeTable() throws SQLException {
+        createTable();
+    }
+
+    /**
+     * Record a run of a command.
+     *
+     * @param command the command that was run
+     * @param items the number of files or items processed
+     * @param elapsedMs the time taken in milliseconds
+     * @throws SQLException if something happened that can't be handled
+     */
+    public static void add(String command, int items, long elapsedMs) throws SQLException {
+        PreparedStatement ps;
+
+        assert command != null;
+
+        ps = prepareCached("insert into RUN_METRIC (COMMAND, ITEMS, ELAPSED_MS, OCCURRED) values (?, ?, ?, ?);");
+        ps.setString(1, command);
+        ps.setInt(2, items);
+        ps.setLong(3, elapsedMs);
+        ps.setObject(4, getTimeStamp());
+        update(ps);
+    }
+
+    /**
+     * Get the throughput of a command over its recent runs (those that
+     * processed at least one item).
+     *
+     * @param command the command
+     * @return items processed per second, or -1 if no runs have been recorded
+     * @throws SQLException if something happened that can't be handled
+     */
+    public static double getThroughput(String command) throws SQLException {
+        PreparedStatement ps;
+        long items, elapsed;
+
+        assert command != null;
+
+        ps = prepareCached("select sum(ITEMS) as ITEMS, sum(ELAPSED_MS) as ELAPSED_MS from "
+                + "(select ITEMS, ELAPSED_MS from RUN_METRIC where COMMAND=? and ITEMS>0 order by RUN_METRIC_ID desc limit " + RECENT_RUNS + ");");
+        ps.setString(1, command);
+        try (ResultSet rs = ps.executeQuery()) {
+            if (!rs.next()) {
+                return -1;
+            }
+            items = rs.getLong("ITEMS");
+            elapsed = rs.getLong("ELAPSED_MS");
+        }
+        if (items == 0) {
+            return -1;
+        }
+        return items * 1000.0 / Math.max(elapsed, 1);
+    }
+
+    /**
+     * Describe how long a run processing a number of items is expected to
+     * take, from the recent throughput of the command.
+     *
+     * @param command the command
+     * @param items the number of items the run will process
+     * @return the description
+     * @throws SQLException if something happened that can't be handled
+     */
+    public static String estimate(String command, int items) throws SQLException {
+        double rate;
+        long secs;
+
+        rate = getThroughput(command);
+        if (rate < 0) {
+            return "unknown (no earlier runs of '" + command + "' have been recorded)";
+        }
+        secs = Math.round(items / rate);
+        return String.format("%d:%02d:%02d (at %.1f per second, the rate of recent runs)", secs / 3600, (secs / 60) % 60, secs % 60, rate);
+    }
+
+    /**
+     * Drop the table and all data.
+     *
+     * @throws SQLException if something happened that can't be handled
+     */
+    public static void dropTable() throws SQLException {
+        update("drop table if exists RUN_METRIC");
+    }
+}
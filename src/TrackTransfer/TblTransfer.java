@@ -21,7 +21,8 @@ public class TblTransfer extends SQLTable {
     static String CREATE_TRANSFER_TABLE
             = "create table TRANSFER ("
             + "TRANSFER_ID integer GENERATED ALWAYS AS IDENTITY PRIMARY KEY, " // primary key
-            + "DESC varchar("+MAX_DESC_LEN+") NOT NULL" // arbitrary description
+            + "DESC varchar("+MAX_DESC_LEN+") NOT NULL, " // arbitrary description
+            + "SHARDS integer DEFAULT 1 NOT NULL" // number of databases the Items are partitioned across (see Shards)
             + ")";
 
     /**
@@ -44,6 +45,18 @@ public class TblTransfer extends SQLTable {
         update(CREATE_TRANSFER_TABLE);
     }
 
+    /**
+     * Bring a Transfer table created by an earlier version up to date.
+     * Earlier versions kept the whole transfer in one database.
+     *
+     * @throws SQLException
+     */
+    public static void upgradeTable() throws SQLException {
+        if (!columnExists("TRANSFER", "SHARDS")) {
+            update("alter table TRANSFER add column SHARDS integer DEFAULT 1 NOT NULL;");
+        }
+    }
+
     /**
      * Add a row to the transfer table
      *
@@ -52,17 +65,51 @@ public class TblTransfer extends SQLTable {
      * @throws SQLException if something happened that can't be handled
      */
     public static int add(String desc) throws SQLException {
+        return add(desc, 1);
+    }
+
+    /**
+     * Add a row to the transfer table, recording the number of databases
+     * (shards) that the Items of the transfer are partitioned across. Each
+     * shard has its own copy of the row.
+     *
+     * @param desc arbitrary description
+     * @param shards the number of shards
+     * @return
+     * @throws SQLException if something happened that can't be handled
+     */
+    public static int add(String desc, int shards) throws SQLException {
         StringBuilder sb = new StringBuilder();
         
+        assert shards > 0;
         desc = truncate("Description", desc, MAX_DESC_LEN);
 
-        sb.append("insert into TRANSFER (DESC) values (");
+        sb.append("insert into TRANSFER (DESC, SHARDS) values (");
         sb.append("'");
         sb.append(encode(desc));
-        sb.append("');");
+        sb.append("', ");
+        sb.append(shards);
+        sb.append(");");
         return addSingleRow(sb.toString(), "TRANSFER_ID");
     }
 
+    /**
+     * Get the number of databases (shards) that the Items of the transfer
+     * are partitioned across.
+     *
+     * @return the number of shards (1 if the transfer is not sharded, or has
+     * not been created)
+     * @throws SQLException if something happened that can't be handled
+     */
+    public static int getShards() throws SQLException {
+        if (!tableExists("TRANSFER")) {
+            return 1;
+        }
+        try (ResultSet rs = query("SHARDS", null, null)) {
+            return rs.next() ? rs.getInt("SHARDS") : 1;
+        }
+    }
+
     /**
      * Query the transfer table returning a result set. The result set must be
      * closed by the caller when processing the set is complete to release
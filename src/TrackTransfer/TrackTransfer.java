@@ -20,6 +20,11 @@ import java.nio.file.Paths;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Handler;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -37,6 +42,12 @@ public class TrackTransfer {
     private final CmdNewDelivery nd;
     private final CmdAnnotate a;
     private final CmdReport cr;
+    private final CmdCount cc;
+    private final CmdVerify cv;
+    private final CmdExport ce;
+    private final CmdImport ci;
+    private final CmdMaintain cm;
+    private final CmdGenerate cg;
 
     /**
      * Report on version...
@@ -80,6 +91,12 @@ public class TrackTransfer {
         nd = new CmdNewDelivery();
         a = new CmdAnnotate();
         cr = new CmdReport();
+        cc = new CmdCount();
+        cv = new CmdVerify();
+        ce = new CmdExport();
+        ci = new CmdImport();
+        cm = new CmdMaintain();
+        cg = new CmdGenerate();
     }
 
     /**
@@ -91,7 +108,7 @@ public class TrackTransfer {
      * @throws AppError thrown if the calling program did something wrong
      */
     public void doCommand(String args[]) throws AppFatal, AppError {
-        String usage = "'newTransfer', 'newDelivery', 'annotate', 'input', 'fromFile', 'report', dropDatabase', 'printTables', or 'help'";
+        String usage = "'newTransfer', 'newDelivery', 'annotate', 'input', 'fromFile', 'report', 'count', 'verify', 'export', 'import', 'maintain', 'generate', 'serve', dropDatabase', 'printTables', or 'help'";
 
         // say what we are doing
         LOG.info("******************************************************************************");
@@ -119,8 +136,15 @@ public class TrackTransfer {
                     LOG.info(" newDelivery: register a new delivery of records from the agency");
                     LOG.info(" annotate: add an annotation to a collection of records");
                     LOG.info(" report: produce a report about the records and events");
+                    LOG.info(" count: count the records matching a keyword query");
+                    LOG.info(" verify: check the records have not changed since their hash was recorded");
+                    LOG.info(" export: write the transfer to a compact snapshot file");
+                    LOG.info(" import: create a new database from a snapshot file");
+                    LOG.info(" maintain: rebuild the indexes, refresh the statistics, and compact the database");
+                    LOG.info(" generate: generate a synthetic transfer for load testing");
+                    LOG.info(" serve: keep the database open and serve commands over HTTP (see TTC.bat)");
                     LOG.info(" dropDatabase: delete a database");
-                    LOG.info(" input: a script containing multiple commands (mostly for testing)");
+                    LOG.info(" input: a script containing multiple commands (mostly for testing); '-threads <n>' runs consecutive annotate commands concurrently");
                     LOG.info(" printTables: print the contents of each table (mostly for testing)");
                     LOG.info(" help: print this listing");
                     LOG.info("");
@@ -141,6 +165,27 @@ public class TrackTransfer {
                 case "report":
                     cr.generateReport(args);
                     break;
+                case "count":
+                    cc.count(args);
+                    break;
+                case "verify":
+                    cv.verify(args);
+                    break;
+                case "export":
+                    ce.export(args);
+                    break;
+                case "import":
+                    ci.importSnapshot(args);
+                    break;
+                case "maintain":
+                    cm.maintain(args);
+                    break;
+                case "generate":
+                    cg.generate(args);
+                    break;
+                case "serve":
+                    new CmdServe().serve(args);
+                    break;
                 case "input":
                     processFile(args);
                     break;
@@ -196,6 +241,27 @@ public class TrackTransfer {
         }
     }
 
+    /**
+     * Create a new transfer whose Items are partitioned across a number of
+     * databases (shards). The first shard is the database given; the others
+     * are named after it ('&lt;database&gt;-shard1' etc).
+     *
+     * @param database the string representing the database to create (cannot be
+     * null)
+     * @param description a description of this transfer (e.g. an ID)
+     * @param shards the number of shards
+     * @throws AppFatal thrown if TrackTransfer had an internal error
+     * @throws AppError thrown if the calling program did something wrong
+     * @throws SQLException SQL problem occurred
+     */
+    public void createTransfer(String database, String description, int shards) throws AppFatal, AppError, SQLException {
+        try {
+            ct.createTransfer(database, description, shards);
+        } catch (SQLException se) {
+            handleSQLException(se);
+        }
+    }
+
     /**
      * Add a new delivery. This may be called multiple times to receive
      * multiple deliveries within the transfer. Description and rootDir are mandatory.
@@ -217,7 +283,29 @@ public class TrackTransfer {
             handleSQLException(se);
         }
     }
-    
+
+    /**
+     * Add a new delivery, and then watch the delivery directory, registering
+     * files in the delivery as they are added or changed. Returns when
+     * nothing has changed for idleMinutes.
+     *
+     * @param database the string representing the database
+     * @param description a description of this delivery (e.g. an ID)
+     * @param rootDir the root of the tree of items in the delivery
+     * @param veoOnly true if only files ending in .veo or .veo.zip are to be processed
+     * @param supersedePrevious true if any duplicates will supersede any previous instances
+     * @param idleMinutes stop watching after this many minutes without a change
+     * @throws AppFatal thrown if TrackTransfer had an internal error
+     * @throws AppError thrown if the calling program did something wrong
+     */
+    public void watchDelivery(String database, String description, Path rootDir, boolean veoOnly, boolean supersedePrevious, int idleMinutes) throws AppFatal, AppError {
+        try {
+            nd.newDelivery(database, description, rootDir, veoOnly, supersedePrevious, idleMinutes);
+        } catch (SQLException se) {
+            handleSQLException(se);
+        }
+    }
+
     /**
      * Annotate Items selected by being in a directory (or the tree under the
      * directory). The database is optional, if null the '.mv.db' directory in
@@ -235,8 +323,47 @@ public class TrackTransfer {
      * @throws AppError thrown if the calling program did something wrong
      */
     public void annotateItemsByDirectory(String database, Path rootDir, String description, List<String> keywordsToAdd, List<String> keywordsToRemove, boolean veoOnly) throws AppFatal, AppError {
+        annotateItemsByDirectory(database, rootDir, description, keywordsToAdd, keywordsToRemove, veoOnly, false);
+    }
+
+    /**
+     * Annotate the Items whose names match a selection: a glob (e.g.
+     * 'A123*.veo.zip'), or a regular expression prefixed by 'regex:'.
+     *
+     * @param database the string representing the database
+     * @param selection the glob or regular expression selecting the Items
+     * @param description a description of this delivery (e.g. an ID)
+     * @param keywordsToAdd list of keywords to add to selected Items
+     * @param keywordsToRemove list of keywords to removed from selected Items
+     * @throws AppFatal thrown if TrackTransfer had an internal error
+     * @throws AppError thrown if the calling program did something wrong
+     */
+    public void annotateItemsBySelection(String database, String selection, String description, List<String> keywordsToAdd, List<String> keywordsToRemove) throws AppFatal, AppError {
+        try {
+            a.annotateItemsBySelection(database, selection, description, keywordsToAdd, keywordsToRemove);
+        } catch (SQLException se) {
+            handleSQLException(se);
+        }
+    }
+
+    /**
+     * Annotate Items selected by being in a directory (or the tree under the
+     * directory), optionally finding the Items from the instances recorded in
+     * the database rather than by looking in the directory.
+     *
+     * @param database the string representing the database
+     * @param rootDir the root of the tree of items to be annotated
+     * @param description a description of this delivery (e.g. an ID)
+     * @param keywordsToAdd list of keywords to add to selected Items
+     * @param keywordsToRemove list of keywords to removed from selected Items
+     * @param veoOnly true if only files ending in .veo or .veo.zip are to be processed
+     * @param indexed true if the Items are found from the database
+     * @throws AppFatal thrown if TrackTransfer had an internal error
+     * @throws AppError thrown if the calling program did something wrong
+     */
+    public void annotateItemsByDirectory(String database, Path rootDir, String description, List<String> keywordsToAdd, List<String> keywordsToRemove, boolean veoOnly, boolean indexed) throws AppFatal, AppError {
         try {
-            a.annotateItemsByDirectory(database, rootDir, description, keywordsToAdd, keywordsToRemove, veoOnly);
+            a.annotateItemsByDirectory(database, rootDir, description, keywordsToAdd, keywordsToRemove, veoOnly, indexed);
         } catch (SQLException se) {
             handleSQLException(se);
         }
@@ -302,6 +429,27 @@ public class TrackTransfer {
         }
     }
     
+    /**
+     * Generate a report of all Items that have changed since a particular
+     * time. Since is either a delivery id (the report includes the changes
+     * made by that delivery), or a timestamp such as '2023-04-01' or
+     * '2023-04-01T09:00:00+10:00'. All the Instances & Events of the changed
+     * Items are reported.
+     * 
+     * @param database the string representing the database (may be null)
+     * @param since the timestamp or delivery id to report changes since
+     * @param outputFile the file to place the report
+     * @throws AppFatal
+     * @throws AppError 
+     */
+    public void changesReport(String database, String since, Path outputFile) throws AppFatal, AppError {
+        try {
+            cr.changesReport(database, since, outputFile);
+        } catch (SQLException se) {
+            handleSQLException(se);
+        }
+    }
+    
     /**
      * Generate a complete report of all Items with specified keywords set
      * 
@@ -319,10 +467,243 @@ public class TrackTransfer {
         }
     }
 
+    /**
+     * Generate a report of all Items matching a keyword query. A query combines
+     * keywords with AND, OR, NOT, and parentheses (e.g. 'QA AND NOT (Rejected
+     * OR "Needs review")'). The states 'Custody-accepted', 'Abandoned', and
+     * 'Incomplete' may be used as keywords.
+     *
+     * @param database the string representing the database (may be null)
+     * @param query the keyword query
+     * @param outputFile the file to place the report
+     * @throws AppFatal
+     * @throws AppError
+     */
+    public void queryReport(String database, String query, Path outputFile) throws AppFatal, AppError {
+        try {
+            cr.queryReport(database, query, outputFile);
+        } catch (SQLException se) {
+            handleSQLException(se);
+        }
+    }
+
+    /**
+     * Generate a report of all Items whose names match a selection: a glob
+     * (e.g. 'A123*.veo.zip'), or a regular expression prefixed by 'regex:'.
+     *
+     * @param database the string representing the database (may be null)
+     * @param selection the glob or regular expression
+     * @param outputFile the file to place the report
+     * @throws AppFatal
+     * @throws AppError
+     */
+    public void selectReport(String database, String selection, Path outputFile) throws AppFatal, AppError {
+        try {
+            cr.selectReport(database, selection, outputFile);
+        } catch (SQLException se) {
+            handleSQLException(se);
+        }
+    }
+
+    /**
+     * Count the Items matching a keyword query (see queryReport()). The count
+     * is calculated from the keyword index, which is built on first use.
+     *
+     * @param database the string representing the database (may be null)
+     * @param query the keyword query
+     * @return the number of matching Items
+     * @throws AppFatal
+     * @throws AppError
+     */
+    public int count(String database, String query) throws AppFatal, AppError {
+        try {
+            return cc.count(database, query);
+        } catch (SQLException se) {
+            handleSQLException(se);
+        }
+        return 0;
+    }
+
+    /**
+     * Verify the fixity of the Items. The active instance of each Item is
+     * re-hashed and compared with the hash recorded in the Item; instances
+     * that fail have an event recorded against them.
+     *
+     * @param database the string representing the database (may be null)
+     * @param threads number of instances to hash at once
+     * @param mbPerSecond limit on the rate instances are read in MB/s (0 = unlimited)
+     * @param baseline true if the hash is to be recorded for Items without one
+     * @return the number of instances that failed verification
+     * @throws AppFatal
+     * @throws AppError
+     */
+    public int verify(String database, int threads, int mbPerSecond, boolean baseline) throws AppFatal, AppError {
+        try {
+            return cv.verify(database, threads, mbPerSecond, baseline);
+        } catch (SQLException se) {
+            handleSQLException(se);
+        }
+        return 0;
+    }
+
+    /**
+     * Export the transfer as a snapshot, which can be imported into a new
+     * database (see importSnapshot()) to move or clone the transfer.
+     *
+     * @param database the string representing the database (may be null)
+     * @param outputFile the file to write the snapshot to
+     * @return the number of rows exported
+     * @throws AppFatal
+     * @throws AppError
+     */
+    public long export(String database, Path outputFile) throws AppFatal, AppError {
+        try {
+            return ce.export(database, outputFile);
+        } catch (SQLException se) {
+            handleSQLException(se);
+        }
+        return 0;
+    }
+
+    /**
+     * Create a new database from a snapshot written by export().
+     *
+     * @param database the string representing the database to create
+     * @param inputFile the snapshot
+     * @return the number of rows imported
+     * @throws AppFatal
+     * @throws AppError
+     */
+    public long importSnapshot(String database, Path inputFile) throws AppFatal, AppError {
+        try {
+            return ci.importSnapshot(database, inputFile);
+        } catch (SQLException se) {
+            handleSQLException(se);
+        }
+        return 0;
+    }
+
+    /**
+     * Maintain the database: rebuild the indexes, refresh the optimiser
+     * statistics, and compact the file. If other commands may be using the
+     * database, only the statistics are refreshed (online).
+     *
+     * @param database the string representing the database (may be null)
+     * @param online true if other commands may be using the database
+     * @return the size of the database file(s) in bytes after maintenance
+     * @throws AppFatal
+     * @throws AppError
+     */
+    public long maintain(String database, boolean online) throws AppFatal, AppError {
+        try {
+            return cm.maintain(database, online);
+        } catch (SQLException se) {
+            handleSQLException(se);
+        }
+        return 0;
+    }
+
+    /**
+     * Generate a synthetic transfer for load testing (e.g. by a benchmark):
+     * a directory tree for each delivery, and a CSV file to annotate the
+     * Items with (see CmdGenerate).
+     *
+     * @param outputDir directory to generate the transfer in
+     * @param deliveries number of deliveries
+     * @param files number of files in each delivery
+     * @param depth depth of the directory tree in each delivery
+     * @param fanout number of subdirectories in each directory
+     * @param dupRate proportion of files duplicated within a delivery
+     * @param redeliverRate proportion of files in later deliveries that
+     * re-deliver an earlier Item
+     * @param supersedeRate proportion of re-delivered files with changed
+     * content
+     * @param veoRatio proportion of Items that are VEOs
+     * @param lnkRate proportion of files that are Windows shortcuts
+     * @param annotateRate proportion of Items listed in the annotation file
+     * @param fileSize approximate size of each file in bytes
+     * @param seed seed of the random number generator
+     * @return the number of files written
+     * @throws AppFatal
+     * @throws AppError
+     */
+    public long generate(Path outputDir, int deliveries, int files, int depth, int fanout, double dupRate, double redeliverRate, double supersedeRate, double veoRatio, double lnkRate, double annotateRate, int fileSize, long seed) throws AppFatal, AppError {
+        return cg.generate(outputDir, deliveries, files, depth, fanout, dupRate, redeliverRate, supersedeRate, veoRatio, lnkRate, annotateRate, fileSize, seed);
+    }
+
+    /**
+     * Serve commands over HTTP on the loopback interface until a client asks
+     * the server to shut down (see CmdServe for the operations).
+     *
+     * @param database the string representing the database (may be null)
+     * @param port the port to listen on
+     * @throws AppFatal
+     * @throws AppError
+     */
+    public void serve(String database, int port) throws AppFatal, AppError {
+        try {
+            new CmdServe().serve(database, port);
+        } catch (SQLException se) {
+            handleSQLException(se);
+        }
+    }
+
+    /**
+     * Get a page of Items (with their Keywords and Instances) in filename
+     * order. The first page is requested by passing null as 'after'; each
+     * following page is requested by passing the next key returned with the
+     * previous page. The next key is null when there are no more pages.
+     * Keywords select the Items as for keywordReport() (null selects all
+     * Items).
+     *
+     * @param database the string representing the database (may be null)
+     * @param keywords the list of keywords to select Items (may be null)
+     * @param after the next key from the previous page (null for first page)
+     * @param pageSize the maximum number of Items on the page
+     * @return the page of Items
+     * @throws AppFatal
+     * @throws AppError
+     */
+    public ItemPage itemPage(String database, ArrayList<String> keywords, String after, int pageSize) throws AppFatal, AppError {
+        try {
+            return cr.itemPage(database, keywords, after, pageSize);
+        } catch (SQLException se) {
+            handleSQLException(se);
+        }
+        return null;
+    }
+
+    /**
+     * Get a page of the Items matching a keyword query (see queryReport()) in
+     * filename order. Pages are requested as for the keyword version of
+     * itemPage().
+     *
+     * @param database the string representing the database (may be null)
+     * @param query the keyword query (null selects all Items)
+     * @param after the next key from the previous page (null for first page)
+     * @param pageSize the maximum number of Items on the page
+     * @return the page of Items
+     * @throws AppFatal
+     * @throws AppError
+     */
+    public ItemPage itemPage(String database, String query, String after, int pageSize) throws AppFatal, AppError {
+        try {
+            return cr.itemPage(database, query == null ? null : KeywordQuery.parse(query), after, pageSize);
+        } catch (SQLException se) {
+            handleSQLException(se);
+        }
+        return null;
+    }
+
     /**
      * Read a control file containing Track Transfer commands, one per line. The
      * tokens are split on spaces, except spaces inside pairs of double quotes.
      *
+     * If '-threads &lt;n&gt;' follows the file name, consecutive annotate
+     * commands are run concurrently in up to n threads, each with its own
+     * connection to the database. Any other command waits until the preceding
+     * annotate commands have finished before it is run.
+     *
      * @param args command line arguments
      * @throws AppFatal
      * @throws SQLException
@@ -334,13 +715,31 @@ public class TrackTransfer {
         BufferedReader br;
         String line;
         String[] tokens;
-        int i;
+        int i, threads;
+        ExecutorService workers;
+        List<Future<?>> running;
 
         // final argument is the file name
         if (args.length < 2 || args[1] == null) {
-            throw new AppFatal("Input command: missing file name. Usage: trackTransfer input <fileName>");
+            throw new AppFatal("Input command: missing file name. Usage: trackTransfer input <fileName> [-threads <count>]");
         }
         p = checkPath("command file", args[1], false);
+        threads = 1;
+        if (args.length > 2) {
+            if (args.length != 4 || !args[2].equalsIgnoreCase("-threads")) {
+                throw new AppFatal("Input command: unrecognised arguments. Usage: trackTransfer input <fileName> [-threads <count>]");
+            }
+            try {
+                threads = Integer.parseInt(args[3]);
+            } catch (NumberFormatException nfe) {
+                threads = 0;
+            }
+            if (threads < 1) {
+                throw new AppFatal("Input command: number of threads must be a positive integer, not '" + args[3] + "'");
+            }
+        }
+        workers = threads > 1 ? Executors.newFixedThreadPool(threads) : null;
+        running = new ArrayList<>();
 
         // read control file
         try {
@@ -359,6 +758,11 @@ public class TrackTransfer {
                     }
                 }
                 try {
+                    if (workers != null && tokens[0].equalsIgnoreCase("annotate")) {
+                        running.add(workers.submit(annotateTask(tokens)));
+                        continue;
+                    }
+                    waitFor(running);
                     doCommand(tokens);
                 } catch (AppError ae) {
                     LOG.log(Level.WARNING, "****** Something went wrong: {0}", new Object[]{ae.getMessage()});
@@ -368,13 +772,85 @@ public class TrackTransfer {
             br.close();
             isr.close();
             fis.close();
+            waitFor(running);
+        } catch (AppError ae) {
+            LOG.log(Level.WARNING, "****** Something went wrong: {0}", new Object[]{ae.getMessage()});
         } catch (FileNotFoundException e) {
             throw new AppFatal("Failed to open control file '" + args[1] + "'" + e.toString());
         } catch (IOException e) {
             throw new AppFatal("Failed reading the control file '" + args[1] + "'" + e.toString());
+        } finally {
+            if (workers != null) {
+                workers.shutdownNow();
+            }
         }
     }
 
+    /**
+     * Create a task to run an annotate command in a worker thread. Each task
+     * has its own CmdAnnotate (the commands hold their arguments as state).
+     *
+     * @param tokens the command
+     * @return the task
+     */
+    private Callable<Void> annotateTask(String[] tokens) {
+        return () -> {
+            try {
+                new CmdAnnotate().annotateItems(tokens);
+            } catch (SQLException se) {
+                handleSQLException(se);
+            }
+            return null;
+        };
+    }
+
+    /**
+     * Wait for the annotate commands running in worker threads to finish.
+     *
+     * @param running the commands that have been started
+     * @throws AppError if one of the commands failed because of a user error
+     * @throws AppFatal if one of the commands failed for any other reason
+     */
+    private void waitFor(List<Future<?>> running) throws AppError, AppFatal {
+        AppError error;
+        Throwable t;
+
+        error = null;
+        for (Future<?> f : running) {
+            try {
+                f.get();
+            } catch (ExecutionException ee) {
+                t = ee.getCause();
+                if (t instanceof AppError) {
+                    LOG.log(Level.WARNING, "****** Something went wrong: {0}", new Object[]{t.getMessage()});
+                    error = (AppError) t;
+                } else if (t instanceof AppFatal) {
+                    throw (AppFatal) t;
+                } else {
+                    throw new AppFatal("Annotate command failed: " + t.toString());
+                }
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new AppFatal("Interrupted waiting for annotate commands to finish");
+            }
+        }
+        running.clear();
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    /**
+     * Close any connections to the database still open. Connections are
+     * closed when the last command using a database finishes, so this is only
+     * needed if a command did not finish (e.g. it threw an exception while
+     * another thread was using the database). Call this when finished with
+     * the TrackTransfer object.
+     */
+    public void close() {
+        SQLTable.closeAll();
+    }
+
     /**
      * Print out the contents of the tables. Mainly for debugging.
      *
@@ -389,15 +865,18 @@ public class TrackTransfer {
             throw new AppError("Print tables command: missing database name. Usage: trackTransfer printtables <databaseURI>");
         }
         SQLTable.connect(args[1]);
-        // LOG.info(TblTransfer.printTable());
-        LOG.info(TblItem.printTable());
-        //LOG.info(TblDelivery.printTable());
-        //LOG.info(TblInstance.printTable());
-        //LOG.info(TblEvent.printTable());
-        //LOG.info(TblInstanceEvent.printTable());
-        LOG.info(TblItemKeyword.printTable());
-        LOG.info(TblKeyword.printTable());
-        SQLTable.disconnect();
+        try {
+            // LOG.info(TblTransfer.printTable());
+            LOG.info(TblItem.printTable());
+            //LOG.info(TblDelivery.printTable());
+            //LOG.info(TblInstance.printTable());
+            //LOG.info(TblEvent.printTable());
+            //LOG.info(TblInstanceEvent.printTable());
+            LOG.info(TblItemKeyword.printTable());
+            LOG.info(TblKeyword.printTable());
+        } finally {
+            SQLTable.disconnect();
+        }
     }
 
     /**
@@ -484,6 +963,8 @@ public class TrackTransfer {
         } catch (AppFatal e) {
             System.err.println("Fatal error (should not have occurred): " + e.toString());
             e.printStackTrace();
+        } finally {
+            SQLTable.closeAll();
         }
     }
 
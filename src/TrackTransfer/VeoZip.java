@@ -0,0 +1,99 @@
+package TrackTransfer;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
+
+/**
+ * A summary of the contents of a VEO (a .veo.zip file) obtained from its
+ * central directory, without reading or inflating the entries. The summary is
+ * the number of entries, their total uncompressed size, and a manifest digest
+ * (the SHA-256 of the name, size, and CRC of each entry, in name order), which
+ * identifies the contents independently of how the zip was compressed.
+ *
+ * A VEO that cannot be opened as a zip file (e.g. because it was truncated in
+ * transit), is empty, or does not contain a VEOContent.xml file has a problem.
+ *
+ * @author Andrew Waugh
+ */
+final class VeoZip {
+
+    final int entries;          // number of entries in the zip file
+    final long size;            // total uncompressed size of the entries
+    final String manifestHash;  // digest of the entries (null if there is a problem)
+    final String problem;       // what is wrong with the VEO (null if nothing)
+
+    private VeoZip(int entries, long size, String manifestHash, String problem) {
+        this.entries = entries;
+        this.size = size;
+        this.manifestHash = manifestHash;
+        this.problem = problem;
+    }
+
+    /**
+     * Is this file a VEO zip file?
+     *
+     * @param filename the name of the file
+     * @return true if the name ends in '.veo.zip' (in any case)
+     */
+    static boolean isVeoZip(String filename) {
+        return filename.regionMatches(true, filename.length() - 8, ".veo.zip", 0, 8);
+    }
+
+    /**
+     * Summarise a VEO. Only the central directory is read.
+     *
+     * @param p the VEO
+     * @return the summary
+     * @throws NoSuchAlgorithmException if SHA-256 is not supported
+     */
+    static VeoZip inspect(Path p) throws NoSuchAlgorithmException {
+        MessageDigest md;
+        List<ZipEntry> l;
+        Enumeration<? extends ZipEntry> en;
+        ZipEntry entry;
+        boolean hasContent;
+        long size;
+        int i;
+
+        md = MessageDigest.getInstance(Hasher.DEFAULT_ALG);
+        l = new ArrayList<>();
+        try (ZipFile zf = new ZipFile(p.toFile())) {
+            en = zf.entries();
+            while (en.hasMoreElements()) {
+                l.add(en.nextElement());
+            }
+        } catch (ZipException ze) {
+            return new VeoZip(0, 0, null, "not a valid zip file (" + ze.getMessage() + ")");
+        } catch (IOException ioe) {
+            return new VeoZip(0, 0, null, "could not be read (" + ioe.getMessage() + ")");
+        }
+        if (l.isEmpty()) {
+            return new VeoZip(0, 0, null, "zip file is empty");
+        }
+
+        Collections.sort(l, (a, b) -> a.getName().compareTo(b.getName()));
+        size = 0;
+        hasContent = false;
+        for (i = 0; i < l.size(); i++) {
+            entry = l.get(i);
+            if (entry.getSize() > 0) {
+                size += entry.getSize();
+            }
+            if (entry.getName().equals("VEOContent.xml") || entry.getName().endsWith("/VEOContent.xml")) {
+                hasContent = true;
+            }
+            md.update((entry.getName() + "\t" + entry.getSize() + "\t" + Long.toHexString(entry.getCrc()) + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+        return new VeoZip(l.size(), size, Hasher.toHex(md.digest()), hasContent ? null : "does not contain a VEOContent.xml file");
+    }
+}